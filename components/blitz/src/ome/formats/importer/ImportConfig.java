@@ -143,6 +143,7 @@ public class ImportConfig {
     public final FileValue savedDirectory;
     public final StrValue readersPath;
     public final StrValue checksumAlgorithm;
+    public final IntValue parallelUpload;
 
     public final BoolValue encryptedConnection;
     public final BoolValue autoClose;
@@ -294,6 +295,7 @@ public class ImportConfig {
 
         readersPath = new StrValue("readersPath", this);
         checksumAlgorithm = new StrValue("checksumAlgorithm", this);
+        parallelUpload = new IntValue("parallelUpload", this, 1);
     }
 
     public String getBioFormatsVersion() {
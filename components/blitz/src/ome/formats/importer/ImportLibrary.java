@@ -27,6 +27,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import loci.common.Location;
 import loci.formats.FormatException;
@@ -38,6 +45,7 @@ import ome.formats.importer.transfers.FileTransfer;
 import ome.formats.importer.transfers.TransferState;
 import ome.formats.importer.transfers.UploadFileTransfer;
 import ome.formats.importer.util.ErrorHandler;
+import ome.formats.importer.util.ParallelTimeEstimatorImpl;
 import ome.formats.importer.util.ProportionalTimeEstimatorImpl;
 import ome.formats.importer.util.TimeEstimator;
 import ome.services.blitz.repo.path.ClientFilePathTransformer;
@@ -135,6 +143,11 @@ public class ImportLibrary implements IObservable
      */
     private final int minutesToWait;
 
+    /**
+     * How many files of a fileset may be uploaded at once.
+     */
+    private volatile int parallelUploads = 1;
+
     /**
      * Adapter for use with any callbacks created by the library.
      */
@@ -242,9 +255,28 @@ public class ImportLibrary implements IObservable
      */
     public void notifyObservers(ImportEvent event)
     {
-        for (IObserver observer : observers) {
-            observer.update(this, event);
+        // Files may be uploaded by several threads at once.
+        synchronized (observers) {
+            for (IObserver observer : observers) {
+                observer.update(this, event);
+            }
+        }
+    }
+
+    /**
+     * Sets how many files of a fileset are uploaded at once if they are
+     * transferred by an {@link UploadFileTransfer}. Other transfers always
+     * handle one file after another.
+     * @param parallelUploads the maximum number of files uploaded at once,
+     * at least 1
+     */
+    public void setParallelUploads(int parallelUploads)
+    {
+        if (parallelUploads < 1) {
+            throw new IllegalArgumentException(
+                    "parallel uploads must be at least 1: " + parallelUploads);
         }
+        this.parallelUploads = parallelUploads;
     }
 
 
@@ -390,26 +422,97 @@ public class ImportLibrary implements IObservable
     public List<String> uploadFilesToRepository(
             final String[] srcFiles, final ImportProcessPrx proc)
     {
-        final byte[] buf = new byte[store.getDefaultBlockSize()];
         final int fileTotal = srcFiles.length;
         final List<String> checksums = new ArrayList<String>(fileTotal);
         // TODO Fix with proper code instead of 10000L
         final TimeEstimator estimator = new ProportionalTimeEstimatorImpl(10000L);
 
         log.debug("Used files created:");
-        for (int i = 0; i < fileTotal; i++) {
-            try {
+        try {
+            uploadFiles(proc, srcFiles, estimator, checksums);
+        } catch (ServerError e) {
+            log.error("Server error uploading file.", e);
+        } catch (IOException e) {
+            log.error("I/O error uploading file.", e);
+        }
+        return checksums;
+    }
+
+    /**
+     * Uploads the files of a fileset, up to {@link #parallelUploads} at once.
+     * @param proc the server import process to use for the upload
+     * @param srcFiles the files to upload
+     * @param estimator the estimator of the upload time if the files are
+     * uploaded one after another
+     * @param checksums the list to which the client-side hashes of the files
+     * are added in order, up to the first file which failed to upload
+     * @throws ServerError if a file could not be uploaded
+     * @throws IOException if a file could not be read
+     */
+    private void uploadFiles(final ImportProcessPrx proc,
+            final String[] srcFiles, final TimeEstimator estimator,
+            final List<String> checksums) throws ServerError, IOException
+    {
+        final int threads = Math.min(parallelUploads, srcFiles.length);
+        if (threads <= 1 || !(transfer instanceof UploadFileTransfer)) {
+            final byte[] buf = new byte[store.getDefaultBlockSize()];
+            for (int i = 0; i < srcFiles.length; i++) {
                 checksums.add(uploadFile(proc, srcFiles, i,
                         checksumProviderFactory, estimator, buf));
-            } catch (ServerError e) {
-                log.error("Server error uploading file.", e);
-                break;
-            } catch (IOException e) {
-                log.error("I/O error uploading file.", e);
-                break;
             }
+            return;
+        }
+
+        long size = 0;
+        for (final String srcFile : srcFiles) {
+            size += new File(Location.getMappedId(srcFile)).length();
+        }
+        final TimeEstimator parallelEstimator = new ParallelTimeEstimatorImpl(size);
+        final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(threads);
+        for (int i = 0; i < threads; i++) {
+            buffers.add(new byte[store.getDefaultBlockSize()]);
+        }
+        final ExecutorService uploaders = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<String>> futures = new ArrayList<Future<String>>(srcFiles.length);
+            for (int i = 0; i < srcFiles.length; i++) {
+                final int index = i;
+                futures.add(uploaders.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        final byte[] buf = buffers.take();
+                        try {
+                            return uploadFile(proc, srcFiles, index,
+                                    checksumProviderFactory, parallelEstimator, buf);
+                        } finally {
+                            buffers.add(buf);
+                        }
+                    }
+                }));
+            }
+            for (final Future<String> future : futures) {
+                try {
+                    checksums.add(future.get());
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof ServerError) {
+                        throw (ServerError) cause;
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else {
+                        throw new RuntimeException(cause);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted uploading files", e);
+                }
+            }
+        } finally {
+            // On failure the files not yet uploaded are skipped.
+            uploaders.shutdownNow();
         }
-        return checksums;
     }
 
     public String uploadFile(final ImportProcessPrx proc,
@@ -499,7 +602,6 @@ public class ImportLibrary implements IObservable
         final ImportProcessPrx proc = createImport(container);
         final String[] srcFiles = container.getUsedFiles();
         final List<String> checksums = new ArrayList<String>();
-        final byte[] buf = new byte[store.getDefaultBlockSize()];
         final TimeEstimator estimator = new ProportionalTimeEstimatorImpl(
                 container.getUsedFilesTotalSize());
         Map<Integer, String> failingChecksums = new HashMap<Integer, String>();
@@ -507,10 +609,7 @@ public class ImportLibrary implements IObservable
         notifyObservers(new ImportEvent.FILESET_UPLOAD_START(
                 null, index, srcFiles.length, null, null, null));
 
-        for (int i = 0; i < srcFiles.length; i++) {
-            checksums.add(uploadFile(proc, srcFiles, i, checksumProviderFactory,
-                    estimator, buf));
-        }
+        uploadFiles(proc, srcFiles, estimator, checksums);
 
         try {
             handle = proc.verifyUpload(checksums);
@@ -173,6 +173,7 @@ public class CommandLineImporter {
 
             library = new ImportLibrary(store, reader,
                     transfer, exclusions, minutesToWait);
+            library.setParallelUploads(config.parallelUpload.get());
         }
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -457,6 +458,10 @@ public class CommandLineImporter {
             + " when as part of the Bio-Formats reader metadata\n\n"
             + "  e.g. $ bin/omero import -- --no-stats-info foo.tiff\n"
             + "       $ ./importer-cli --no-stats-info bar.tiff\n\n"
+            + "    --parallel-upload=COUNT \tUpload up to COUNT files of a fileset"
+            + " at once\n\n"
+            + "  e.g. $ bin/omero import -- --parallel-upload=4 foo.tiff\n"
+            + "       $ ./importer-cli --parallel-upload=4 bar.tiff\n\n"
             + "  --no-thumbnails\t\tDo not perform thumbnailing after import\n\n"
             + "  e.g. $ bin/omero import -- --no-thumbnails foo.tiff\n"
             + "       $ ./importer-cli --no-thumbnails bar.tiff\n\n"
@@ -608,6 +613,9 @@ public class CommandLineImporter {
         LongOpt outputFormat =
                 new LongOpt("output", LongOpt.REQUIRED_ARGUMENT, null, 25);
 
+        LongOpt parallelUpload =
+                new LongOpt("parallel-upload", LongOpt.REQUIRED_ARGUMENT, null, 26);
+
         // DEPRECATED OPTIONS
         LongOpt minutesWaitDeprecated =
                 new LongOpt("minutes_wait", LongOpt.REQUIRED_ARGUMENT, null, 86);
@@ -645,7 +653,7 @@ public class CommandLineImporter {
                                 closeCompleted, waitCompleted, autoClose,
                                 exclude, target, noStatsInfo,
                                 noUpgradeCheck, qaBaseURL,
-                                outputFormat,
+                                outputFormat, parallelUpload,
                                 plateName, plateName2,
                                 plateDescription, plateDescription2,
                                 noThumbnailsDeprecated,
@@ -804,6 +812,22 @@ public class CommandLineImporter {
                 outputChoice = ImportOutput.valueOf(outputArg);
                 break;
             }
+            case 26: {
+                String arg = g.getOptarg();
+                int count = 0;
+                try {
+                    count = Integer.parseInt(arg);
+                } catch (NumberFormatException nfe) {
+                    // Reported as any count below 1.
+                }
+                if (count < 1) {
+                    log.error("Invalid parallel upload count: {}", arg);
+                    usage(); // exits
+                }
+                log.info("Setting parallel uploads to {}", count);
+                config.parallelUpload.set(count);
+                break;
+            }
             // ADVANCED END ---------------------------------------------------
             // DEPRECATED OPTIONS
             case 90:
@@ -22,6 +22,9 @@ package ome.formats.importer.transfers;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 
 import ome.util.checksum.ChecksumProvider;
@@ -34,13 +37,38 @@ import org.apache.commons.lang.ArrayUtils;
  * Traditional file transfer mechanism which uploads
  * files using the API. This is done by reading from
  * {@link TransferState#getFile()} into {@link TransferState#getBuffer()}
- * and then {@link RawFileStorePrx#write(byte[], long, int) writing} to the
- * server. <em>Not thread safe</em>
+ * and then {@link RawFileStorePrx#begin_write(byte[], long, int) writing} to
+ * the server. Several writes are kept in flight so that the next blocks are
+ * read and hashed while the previous ones are sent. Files may be transferred
+ * concurrently as long as each has its own {@link TransferState}.
  *
  * @since 5.0
  */
 public class UploadFileTransfer extends AbstractFileTransfer {
 
+    /**
+     * The default number of writes of a file which may be in flight at once.
+     */
+    public static final int DEFAULT_WRITES_IN_FLIGHT = 4;
+
+    private final int writesInFlight;
+
+    public UploadFileTransfer() {
+        this(DEFAULT_WRITES_IN_FLIGHT);
+    }
+
+    /**
+     * @param writesInFlight how many writes of a file may be awaiting the
+     * server's reply, 1 to wait for each write before reading the next block
+     */
+    public UploadFileTransfer(int writesInFlight) {
+        if (writesInFlight < 1) {
+            throw new IllegalArgumentException(
+                    "writes in flight must be at least 1: " + writesInFlight);
+        }
+        this.writesInFlight = writesInFlight;
+    }
+
     public String transfer(TransferState state) throws IOException, ServerError {
 
         final RawFileStorePrx rawFileStore = start(state);
@@ -48,6 +76,9 @@ public class UploadFileTransfer extends AbstractFileTransfer {
         final byte[] buf = state.getBuffer();
         final ChecksumProvider cp = state.getChecksumProvider();
         
+        // The arguments are marshalled by begin_write so that the buffer
+        // can be refilled while the write is in flight.
+        final Deque<Ice.AsyncResult> writes = new ArrayDeque<Ice.AsyncResult>();
         FileInputStream stream = null;
 
         try {
@@ -71,17 +102,26 @@ public class UploadFileTransfer extends AbstractFileTransfer {
                 cp.putBytes(buf, 0, rlen);
                 final byte[] bufferToWrite;
                 if (rlen < buf.length) {
-                    bufferToWrite = new byte[rlen];
-                    System.arraycopy(buf, 0, bufferToWrite, 0, rlen);
+                    // A byte sequence is always sent whole.
+                    bufferToWrite = Arrays.copyOf(buf, rlen);
                 } else {
                     bufferToWrite = buf;
                 }
-                rawFileStore.write(bufferToWrite, offset, rlen);
+                if (writes.size() >= writesInFlight) {
+                    rawFileStore.end_write(writes.removeFirst());
+                }
+                writes.addLast(rawFileStore.begin_write(bufferToWrite, offset, rlen));
                 offset += rlen;
                 state.stop(rlen);
                 state.uploadBytes(offset);
             }
 
+            state.start();
+            while (!writes.isEmpty()) {
+                rawFileStore.end_write(writes.removeFirst());
+            }
+            state.stop();
+
             return finish(state, offset);
         } finally {
             cleanupUpload(rawFileStore, stream);
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats.importer.util;
+
+/**
+ * Class implementing the {@link TimeEstimator} interface for several files
+ * uploaded at once by different threads. Unlike
+ * {@link ProportionalTimeEstimatorImpl} the intervals of the threads are not
+ * timed one by one; the estimate is the remaining size divided by the
+ * throughput since the first call to {@link #start()}.
+ *
+ * @since 5.4.1
+ */
+public class ParallelTimeEstimatorImpl implements TimeEstimator {
+
+    private long imageContainerSize = 0, timeLeft = 0;
+
+    private long totalBytes = 0;
+
+    private long startTime = -1;
+
+    public ParallelTimeEstimatorImpl(long imageContainerSize) {
+        this.imageContainerSize = imageContainerSize;
+    }
+
+    public synchronized void start() {
+        if (startTime < 0) {
+            startTime = System.currentTimeMillis();
+        }
+    }
+
+    public void stop() {
+        // no-op: the uploads are timed together from the first start
+    }
+
+    public synchronized void stop(long uploadedBytes) {
+        totalBytes += uploadedBytes;
+        imageContainerSize -= uploadedBytes;
+
+        final long totalTime = System.currentTimeMillis() - startTime;
+        if (startTime >= 0 && totalTime > 0 && totalBytes > 0) {
+            float averageBps = totalBytes / ((float) totalTime / 1000);
+            timeLeft = (long) Math
+                    .ceil((imageContainerSize / averageBps) * 1000);
+        }
+    }
+
+    public synchronized long getUploadTimeLeft() {
+        return timeLeft;
+    }
+
+}
@@ -10,6 +10,7 @@ import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -38,6 +39,7 @@ import ome.util.SqlAction;
 import omero.ServerError;
 import omero.api.AMD_IRoi_findByImage;
 import omero.api.AMD_IRoi_findByPlane;
+import omero.api.AMD_IRoi_findByRegion;
 import omero.api.AMD_IRoi_findByRoi;
 import omero.api.AMD_IRoi_getMeasuredRois;
 import omero.api.AMD_IRoi_getMeasuredRoisMap;
@@ -177,6 +179,118 @@ public class RoiI extends AbstractAmdServant implements _IRoiOperations,
         }));
     }
 
+    public void findByRegion_async(AMD_IRoi_findByRegion __cb,
+            final long imageId, final int z, final int t, final double x,
+            final double y, final double width, final double height,
+            final RoiOptions opts, Current __current) throws ServerError {
+
+        final IceMapper mapper = new RoiResultMapper(opts);
+
+        runnableCall(__current, new Adapter(__cb, __current, mapper, factory
+                .getExecutor(), factory.principal, new SimpleWork(this,
+                "findByRegion", imageId, z, t, x, y, width, height) {
+
+            @Transactional(readOnly = true)
+            public Object doWork(Session session, ServiceFactory sf) {
+
+                final List<Long> shapeIds = geomTool.findShapesInRegion(
+                        session, factory.principal, imageId, z, t, x, y,
+                        width, height);
+                if (shapeIds.isEmpty()) {
+                    return Collections.emptyList();
+                }
+
+                // The Rois are loaded in batches of shape ids, each holding
+                // all the shapes of its Rois so that their fetched shapes
+                // are complete. Paging then applies to all the batches.
+                final Filter f = filter(opts, false);
+                final List<Object> rois = new ArrayList<Object>();
+                final List<Long> batch = new ArrayList<Long>();
+                for (Map.Entry<Long, List<Long>> roi : geomTool
+                        .groupShapesByRoi(session, shapeIds).entrySet()) {
+                    final List<Long> ids = roi.getValue();
+                    if (batch.size() + ids.size() > GeomTool.BATCH_SIZE
+                            && !batch.isEmpty()) {
+                        rois.addAll(findByShapes(session, f, batch));
+                        batch.clear();
+                    }
+                    if (ids.size() > GeomTool.BATCH_SIZE) {
+                        // Too many shapes to list: loads all the shapes of
+                        // the Roi on the plane instead.
+                        rois.addAll(findRoiOnPlane(session, f, roi.getKey(),
+                                z, t));
+                    } else {
+                        batch.addAll(ids);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    rois.addAll(findByShapes(session, f, batch));
+                }
+                return page(rois, opts);
+
+            }
+        }));
+    }
+
+    /**
+     * Loads the Rois of shapes along with those shapes.
+     */
+    private static List<?> findByShapes(Session session, Filter f,
+            List<Long> shapeIds) {
+        final QueryBuilder qb = new QueryBuilder();
+        qb.select("distinct r").from("Roi", "r");
+        qb.join("r.shapes", "s", false, true); // fetch
+        qb.join("r.folderLinks", "folderLinks", true, true); // fetch
+        qb.join("folderLinks.parent", "folder", true, true); // fetch
+        qb.where();
+        qb.and("s.id in (:ids)");
+        qb.filter("r", f);
+        qb.filterNow();
+        qb.order("r.id", true); // ascending
+        qb.paramList("ids", shapeIds);
+        return qb.queryWithoutFilter(session).list();
+    }
+
+    /**
+     * Loads a Roi along with its shapes on a plane.
+     */
+    private static List<?> findRoiOnPlane(Session session, Filter f,
+            long roiId, int z, int t) {
+        final QueryBuilder qb = new QueryBuilder();
+        qb.select("distinct r").from("Roi", "r");
+        qb.join("r.shapes", "s", false, true); // fetch
+        qb.join("r.folderLinks", "folderLinks", true, true); // fetch
+        qb.join("folderLinks.parent", "folder", true, true); // fetch
+        qb.where();
+        qb.and("r.id = :id");
+        qb.and(" ( s.theZ is null or s.theZ = :z ) ");
+        qb.and(" ( s.theT is null or s.theT = :t ) ");
+        qb.filter("r", f);
+        qb.filterNow();
+        qb.param("id", roiId);
+        qb.param("z", z);
+        qb.param("t", t);
+        return qb.queryWithoutFilter(session).list();
+    }
+
+    /**
+     * Applies the offset and limit of the options to Rois loaded by several
+     * queries.
+     */
+    private static List<Object> page(List<Object> rois, RoiOptions opts) {
+        int from = 0;
+        int to = rois.size();
+        if (opts != null) {
+            if (opts.offset != null) {
+                from = Math.min(to, Math.max(0, opts.offset.getValue()));
+            }
+            if (opts.limit != null) {
+                to = Math.min(to, from + Math.max(0, opts.limit.getValue()));
+            }
+        }
+        return rois.subList(from, to);
+    }
+
     public void getPoints_async(AMD_IRoi_getPoints __cb, final long shapeId,
             Current __current) throws ServerError {
 
@@ -581,6 +695,14 @@ public class RoiI extends AbstractAmdServant implements _IRoiOperations,
     // =========================================================================
 
     private static Filter filter(RoiOptions opts) {
+        return filter(opts, true);
+    }
+
+    /**
+     * Converts the options, with their offset and limit only if the results
+     * come from a single query.
+     */
+    private static Filter filter(RoiOptions opts, boolean paged) {
         Filter f = new Filter();
         if (opts != null) {
             if (opts.userId != null) {
@@ -597,7 +719,7 @@ public class RoiI extends AbstractAmdServant implements _IRoiOperations,
             if (opts.limit != null) {
                 limit = opts.limit.getValue();
             }
-            if (offset != null || limit != null) {
+            if (paged && (offset != null || limit != null)) {
                 f.page(offset, limit);
             }
         }
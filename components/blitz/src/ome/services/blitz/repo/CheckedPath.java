@@ -22,8 +22,11 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.activation.MimetypesFileTypeMap;
 
@@ -40,6 +43,7 @@ import ome.services.blitz.repo.path.ServerFilePathTransformer;
 import ome.services.blitz.util.ChecksumAlgorithmMapper;
 import ome.util.checksum.ChecksumProvider;
 import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumService;
 import ome.util.checksum.ChecksumType;
 import omero.ValidationException;
 import omero.model.ChecksumAlgorithm;
@@ -70,6 +74,7 @@ public class CheckedPath {
     private /*final*/ String baseName;
     private final String original;  // for error reporting
     private final ChecksumProvider checksumProvider;
+    private final ChecksumType checksumType;
 
     // HIGH-OVERHEAD FIELDS (non-final)
 
@@ -121,8 +126,9 @@ public class CheckedPath {
         this.original = path;
         if (checksumAlgorithm == null) {
             this.checksumProvider = null;
+            this.checksumType = null;
         } else {
-            final ChecksumType checksumType = ChecksumAlgorithmMapper.getChecksumType(checksumAlgorithm);
+            this.checksumType = ChecksumAlgorithmMapper.getChecksumType(checksumAlgorithm);
             if (checksumType == null) {
                 throw new ValidationException(null, null,
                         "unknown checksum algorithm: " + checksumAlgorithm.getValue().getValue());
@@ -141,6 +147,7 @@ public class CheckedPath {
         this.fsFile = fsFilePath;
         this.file = filePath;
         this.checksumProvider = null;
+        this.checksumType = null;
         breakPath();
     }
 
@@ -182,6 +189,37 @@ public class CheckedPath {
         return hash;
     }
 
+    /**
+     * Calculates the {@link #hash()} of several files at once.
+     * @param paths the files to hash
+     * @param checksumService the service hashing the files of the same
+     * algorithm concurrently
+     */
+    public static void hash(List<CheckedPath> paths, ChecksumService checksumService) {
+        final Map<ChecksumType, List<CheckedPath>> unhashed =
+                new EnumMap<ChecksumType, List<CheckedPath>>(ChecksumType.class);
+        for (final CheckedPath path : paths) {
+            if (path.hash == null && path.checksumType != null) {
+                List<CheckedPath> ofType = unhashed.get(path.checksumType);
+                if (ofType == null) {
+                    ofType = new ArrayList<CheckedPath>();
+                    unhashed.put(path.checksumType, ofType);
+                }
+                ofType.add(path);
+            }
+        }
+        for (final Map.Entry<ChecksumType, List<CheckedPath>> entry : unhashed.entrySet()) {
+            final List<File> files = new ArrayList<File>(entry.getValue().size());
+            for (final CheckedPath path : entry.getValue()) {
+                files.add(path.file);
+            }
+            final List<String> hashes = checksumService.hash(files, entry.getKey());
+            for (int i = 0; i < hashes.size(); i++) {
+                entry.getValue().get(i).hash = hashes.get(i);
+            }
+        }
+    }
+
     /**
      * Get the mimetype for a file.
      *
@@ -17,11 +17,18 @@
  */
 package ome.services.blitz.repo;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 
 import org.slf4j.Logger;
@@ -37,7 +44,10 @@ import ome.services.blitz.impl.AbstractCloseableAmdServant;
 import ome.services.blitz.impl.ServiceFactoryI;
 import ome.services.blitz.repo.PublicRepositoryI.AMD_submit;
 import ome.services.blitz.repo.path.FsFile;
+import ome.services.blitz.util.ChecksumAlgorithmMapper;
 import ome.services.blitz.util.ServiceFactoryAware;
+import ome.util.checksum.ChecksumProvider;
+import ome.util.checksum.ChecksumType;
 
 import omero.ServerError;
 import omero.api.RawFileStorePrx;
@@ -82,6 +92,82 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
         }
     }
 
+    /**
+     * Checksum of an uploaded file calculated from the bytes as they are
+     * written, so that {@link #verifyUpload(List, Current)} need not read
+     * the file back. It is only known if the file was written in order from
+     * its start by a single uploader, though a few blocks may arrive early,
+     * as when the client keeps several writes in flight.
+     */
+    static class UploadChecksum {
+        /** The maximum number of blocks held until the preceding bytes arrive */
+        static final int MAX_PENDING = 16;
+        private final ChecksumProvider provider;
+        /** Blocks written beyond {@link #offset}, keyed by position */
+        private final SortedMap<Long, byte[]> pending = new TreeMap<Long, byte[]>();
+        /** Next byte which should be hashed */
+        private long offset = 0;
+        private boolean valid = true;
+        private String hash;
+
+        UploadChecksum(ChecksumProvider provider) {
+            this.provider = provider;
+        }
+
+        synchronized void update(byte[] buf, long position, long length) {
+            if (!valid) {
+                return;
+            }
+            if (hash != null || position < offset || length > buf.length) {
+                // Written again: hash the file instead.
+                invalidate();
+                return;
+            }
+            if (position > offset) {
+                if (pending.size() >= MAX_PENDING || pending.containsKey(position)) {
+                    invalidate();
+                } else {
+                    pending.put(position, length == buf.length
+                            ? buf : Arrays.copyOf(buf, (int) length));
+                }
+                return;
+            }
+            provider.putBytes(buf, 0, (int) length);
+            offset += length;
+            while (!pending.isEmpty() && pending.firstKey() <= offset) {
+                if (pending.firstKey() < offset) {
+                    // Overlapping writes
+                    invalidate();
+                    return;
+                }
+                final byte[] next = pending.remove(offset);
+                provider.putBytes(next);
+                offset += next.length;
+            }
+        }
+
+        synchronized void invalidate() {
+            valid = false;
+            hash = null;
+            pending.clear();
+        }
+
+        /**
+         * @param size the current size of the uploaded file
+         * @return the checksum of the file, or {@code null} if it must be
+         * calculated from the file
+         */
+        synchronized String getHash(long size) {
+            if (!valid || !pending.isEmpty() || size != offset) {
+                return null;
+            }
+            if (hash == null) {
+                hash = provider.checksumAsString();
+            }
+            return hash;
+        }
+    }
+
     /**
      * Current which created this instance.
      */
@@ -132,6 +218,14 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
      */
     private final Cache<Integer, UploadState> uploaders = CacheBuilder.newBuilder().build();
 
+    /**
+     * The {@link UploadChecksum} of each of the files written by an uploader.
+     * Unlike {@link #uploaders}, these are kept after close for
+     * {@link #verifyUpload(List, Current)}.
+     */
+    private final ConcurrentMap<Integer, UploadChecksum> checksums =
+            new ConcurrentHashMap<Integer, UploadChecksum>();
+
     /**
      * Handle which is the initial first step of import.
      */
@@ -259,12 +353,25 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
         }
         RepoRawFileStoreI store = (RepoRawFileStoreI) servant;
 
+        final UploadChecksum checksum = newChecksum();
+        if (checksum != null) {
+            final UploadChecksum previous = checksums.putIfAbsent(idx, checksum);
+            if (previous != null) {
+                // A resumed upload: its first bytes were not hashed.
+                previous.invalidate();
+            }
+        }
+
         final ManagedImportProcessI proc = this;
         store.setCallback(new RepoRawFileStoreI.NoOpCallback() {
 
             @Override
             public void onWrite(byte[] buf, long position, long length) {
                 proc.setOffset(idx, position+length);
+                final UploadChecksum checksum = checksums.get(idx);
+                if (checksum != null) {
+                    checksum.update(buf, position, length);
+                }
             }
 
             /**
@@ -279,6 +386,22 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
         });
     }
 
+    /**
+     * @return a new checksum of the algorithm of the import settings, or
+     * {@code null} if that algorithm is unknown
+     */
+    private UploadChecksum newChecksum() {
+        if (settings.checksumAlgorithm == null) {
+            return null;
+        }
+        final ChecksumType type =
+                ChecksumAlgorithmMapper.getChecksumType(settings.checksumAlgorithm);
+        if (type == null) {
+            return null;
+        }
+        return new UploadChecksum(repo.checksumProviderFactory.getProvider(type));
+    }
+
     public HandlePrx verifyUpload(List<String> hashes, Current __current)
             throws ServerError {
 
@@ -292,13 +415,33 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
                             hashes.size()));
         }
 
-        Map<Integer, String> failingChecksums = new HashMap<Integer, String>();
+        final Map<Integer, String> serverHashes = new HashMap<Integer, String>();
+        final Map<Integer, CheckedPath> unhashed = new LinkedHashMap<Integer, CheckedPath>();
         for (int i = 0; i < size; i++) {
             String usedFile = location.sharedPath + FsFile.separatorChar + location.usedFiles.get(i);
             CheckedPath cp = repo.checkPath(usedFile, settings.checksumAlgorithm, this.current);
             final String clientHash = hashes.get(i);
-            final String serverHash = cp.hash();
-            if (!clientHash.equals(serverHash)) {
+            final UploadChecksum checksum = checksums.get(i);
+            final String serverHash = checksum == null ? null : checksum.getHash(cp.size());
+            if (serverHash == null || !clientHash.equals(serverHash)) {
+                // Not streamed, or possibly a failed write: read the file.
+                unhashed.put(i, cp);
+            } else {
+                serverHashes.put(i, serverHash);
+            }
+        }
+        if (repo.checksumService != null && unhashed.size() > 0) {
+            CheckedPath.hash(new ArrayList<CheckedPath>(unhashed.values()),
+                    repo.checksumService);
+        }
+        for (final Map.Entry<Integer, CheckedPath> entry : unhashed.entrySet()) {
+            serverHashes.put(entry.getKey(), entry.getValue().hash());
+        }
+
+        Map<Integer, String> failingChecksums = new HashMap<Integer, String>();
+        for (int i = 0; i < size; i++) {
+            final String serverHash = serverHashes.get(i);
+            if (!hashes.get(i).equals(serverHash)) {
                 failingChecksums.put(i, serverHash);
             }
         }
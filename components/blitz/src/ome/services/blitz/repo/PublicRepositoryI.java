@@ -78,6 +78,7 @@ import ome.system.Principal;
 import ome.system.ServiceFactory;
 import ome.util.SqlAction;
 import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumService;
 import ome.util.messages.InternalMessage;
 
 import omero.InternalException;
@@ -157,6 +158,9 @@ public class PublicRepositoryI implements _RepositoryOperations, ApplicationCont
 
     protected final ChecksumProviderFactory checksumProviderFactory;
 
+    /* hashes many files at once, may be null */
+    protected ChecksumService checksumService;
+
     /* in descending order of preference */
     protected final ImmutableList<ChecksumAlgorithm> checksumAlgorithms;
 
@@ -807,6 +811,14 @@ public class PublicRepositoryI implements _RepositoryOperations, ApplicationCont
 
     }
 
+    /**
+     * @param checksumService the service used to hash many files at once,
+     * otherwise they are hashed one after another by {@link CheckedPath#hash()}
+     */
+    public void setChecksumService(ChecksumService checksumService) {
+        this.checksumService = checksumService;
+    }
+
     /**
      * Create a new {@link CheckedPath} object based on the given user input.
      * This method is included to allow subclasses a chance to introduce their
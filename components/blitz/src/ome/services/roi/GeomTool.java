@@ -9,22 +9,31 @@ import static omero.rtypes.rdouble;
 import static omero.rtypes.rint;
 import static omero.rtypes.rlong;
 
+import java.awt.geom.Rectangle2D;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import ome.conditions.ApiUsageException;
+import ome.conditions.ValidationException;
 import ome.io.nio.PixelBuffer;
 import ome.model.IObject;
 import ome.model.core.Pixels;
 import ome.services.util.Executor;
+import ome.system.Principal;
 import ome.tools.hibernate.SessionFactory;
 import ome.util.Filterable;
 import ome.util.SqlAction;
@@ -44,16 +53,20 @@ import omero.model.SmartRectI;
 import omero.model.SmartShape;
 import omero.util.IceMapper;
 import omero.util.ObjectFactoryRegistry.ObjectFactory;
+import omeis.providers.re.RenderingExecutor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
 /**
  * Strategy for handling the conversion between {@link Shape shapes} and
  * database-specific geometries.
@@ -63,6 +76,9 @@ public class GeomTool {
 
     protected Logger log = LoggerFactory.getLogger(GeomTool.class);
 
+    /** The maximum number of shapes loaded by a single query. */
+    public static final int BATCH_SIZE = 1000;
+
     protected final AtomicBoolean hasShapes = new AtomicBoolean(true);
 
     protected final SqlAction sql;
@@ -75,6 +91,40 @@ public class GeomTool {
 
     protected final String uuid;
 
+    /** The maximum number of shapes held by the cached indexes. */
+    private static final long MAX_INDEXED_SHAPES = 1000000;
+
+    /**
+     * The time, in milliseconds, during which the stamp of the shapes of an
+     * image is reused rather than queried again.
+     */
+    public static final long STAMP_INTERVAL = 2000;
+
+    /** The pool reading the planes of the shapes. */
+    protected RenderingExecutor renderingExecutor;
+
+    /**
+     * The spatial indexes of the shapes of images, keyed by the image id and
+     * the {@link #shapeStamp(Session, long) stamp} of its shapes so that an
+     * index is rebuilt as soon as a shape is added, changed or deleted.
+     */
+    protected final Cache<List<Long>, ShapeIndex> shapeIndexes = CacheBuilder
+            .newBuilder().maximumWeight(MAX_INDEXED_SHAPES)
+            .weigher(new Weigher<List<Long>, ShapeIndex>() {
+                public int weigh(List<Long> key, ShapeIndex index) {
+                    return Math.max(1, index.size());
+                }
+            }).build();
+
+    /**
+     * The last {@link #shapeStamp(Session, long) stamps} of the shapes of
+     * images, keyed by the image id and the session and group the shapes are
+     * visible in, so that a burst of region queries checks the shapes once.
+     */
+    protected final Cache<List<Object>, List<Long>> shapeStamps = CacheBuilder
+            .newBuilder().maximumSize(10000)
+            .expireAfterWrite(STAMP_INTERVAL, TimeUnit.MILLISECONDS).build();
+
     public GeomTool(PixelData data, SqlAction sql,
             SessionFactory factory) {
         this(data, sql, factory, null, null);
@@ -89,6 +139,25 @@ public class GeomTool {
         this.uuid = uuid;
     }
 
+    /**
+     * Spring injector. Sets the pool reading the planes of the shapes
+     * concurrently.
+     */
+    public void setRenderingExecutor(RenderingExecutor renderingExecutor) {
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    /**
+     * Returns the pool reading the planes of the shapes, the default one if
+     * none has been injected.
+     */
+    private RenderingExecutor getRenderingExecutor() {
+        if (renderingExecutor == null) {
+            return RenderingExecutor.getDefault();
+        }
+        return renderingExecutor;
+    }
+
     /**
      * Loads just the shape and no other relationships. This
      * 
@@ -103,6 +172,169 @@ public class GeomTool {
         return (Shape) new ShapeMapper().map(shape);
     }
 
+    /**
+     * Finds the shapes of an image on a plane whose bounding box intersects
+     * a region, through a spatial index of the shapes of the image built on
+     * first use and whenever its shapes have changed since. The shapes are
+     * checked for changes at most every {@link #STAMP_INTERVAL} ms for the
+     * same principal, so a change may be missed for that long.
+     *
+     * @param session The Hibernate session.
+     * @param principal The principal of the session, <code>null</code> to
+     *                  check the shapes for changes on every call.
+     * @param imageId The id of the image.
+     * @param z The Z section.
+     * @param t The timepoint.
+     * @param x The X coordinate of the region.
+     * @param y The Y coordinate of the region.
+     * @param width The width of the region.
+     * @param height The height of the region.
+     * @return The ids of the shapes.
+     */
+    public List<Long> findShapesInRegion(Session session, Principal principal,
+            long imageId, int z, int t, double x, double y, double width,
+            double height) {
+        List<Long> key = null;
+        List<Object> scope = null;
+        if (principal != null) {
+            // The shapes visible depend on the session and its group.
+            scope = Arrays.<Object>asList(imageId, principal.getName(),
+                    principal.getGroup());
+            key = shapeStamps.getIfPresent(scope);
+        }
+        if (key == null) {
+            key = shapeStamp(session, imageId);
+            if (scope != null) {
+                shapeStamps.put(scope, key);
+            }
+        }
+        ShapeIndex index = shapeIndexes.getIfPresent(key);
+        if (index == null) {
+            index = buildShapeIndex(session, imageId);
+            shapeIndexes.put(key, index);
+        }
+        return index.find(z, t, x, y, width, height);
+    }
+
+    /**
+     * Groups shapes by Roi, looking them up in batches of at most
+     * {@link #BATCH_SIZE} ids. Shapes not visible in the session are left
+     * out.
+     *
+     * @param session The Hibernate session.
+     * @param shapeIds The ids of the shapes.
+     * @return The ids of the shapes, keyed by the id of their Roi in
+     *         ascending order.
+     */
+    public SortedMap<Long, List<Long>> groupShapesByRoi(Session session,
+            List<Long> shapeIds) {
+        final SortedMap<Long, List<Long>> byRoi =
+                new TreeMap<Long, List<Long>>();
+        final List<Long> ids = new ArrayList<Long>(new LinkedHashSet<Long>(
+                shapeIds));
+        for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+            final List<?> batch = session.createQuery(
+                    "select s.roi.id, s.id from Shape s where s.id in (:ids)")
+                    .setParameterList("ids",
+                        ids.subList(i, Math.min(ids.size(), i + BATCH_SIZE)))
+                    .list();
+            for (Object o : batch) {
+                final Object[] row = (Object[]) o;
+                List<Long> shapes = byRoi.get(row[0]);
+                if (shapes == null) {
+                    shapes = new ArrayList<Long>();
+                    byRoi.put((Long) row[0], shapes);
+                }
+                shapes.add((Long) row[1]);
+            }
+        }
+        return byRoi;
+    }
+
+    /**
+     * Returns the id of an image along with the number, the sum of the ids
+     * and the last update of the shapes of the image visible in the session.
+     */
+    private List<Long> shapeStamp(Session session, long imageId) {
+        final Object[] stamp = (Object[]) session.createQuery(
+                "select count(s.id), sum(s.id), "
+                + "max(s.details.updateEvent.id) from Shape s "
+                + "where s.roi.image.id = :id")
+                .setParameter("id", imageId).uniqueResult();
+        final List<Long> key = new ArrayList<Long>(4);
+        key.add(imageId);
+        for (Object value : stamp) {
+            key.add(value == null ? null : ((Number) value).longValue());
+        }
+        return key;
+    }
+
+    /**
+     * Indexes the bounding boxes of the shapes of an image, transforms
+     * included. The shapes are evicted from the session once indexed.
+     */
+    private ShapeIndex buildShapeIndex(Session session, long imageId) {
+        final long start = System.currentTimeMillis();
+        final ShapeIndex.Builder builder = new ShapeIndex.Builder();
+        final ScrollableResults results = session.createQuery(
+                "select s from Shape s left outer join fetch s.transform "
+                + "where s.roi.image.id = :id")
+                .setParameter("id", imageId)
+                .scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (results.next()) {
+                final ome.model.roi.Shape shape =
+                        (ome.model.roi.Shape) results.get(0);
+                final Rectangle2D bounds = bounds(assertSmart(
+                        (Shape) new ShapeMapper().map(shape)));
+                if (bounds != null) {
+                    builder.add(shape.getId(), shape.getTheZ(),
+                            shape.getTheT(), bounds);
+                }
+                if (shape.getTransform() != null) {
+                    session.evict(shape.getTransform());
+                }
+                session.evict(shape);
+            }
+        } finally {
+            results.close();
+        }
+        final ShapeIndex index = builder.build();
+        log.info(String.format("Indexed %d shapes of Image:%d [%d ms.]",
+                index.size(), imageId, System.currentTimeMillis() - start));
+        return index;
+    }
+
+    /**
+     * Returns the bounding box of a shape, from its outline if any, else from
+     * its bounding polygon, <code>null</code> if it has neither.
+     */
+    private static Rectangle2D bounds(SmartShape smartShape) {
+        java.awt.Shape awt;
+        try {
+            awt = smartShape.asAwtShape();
+        } catch (UnsupportedOperationException e) {
+            awt = null;
+        }
+        final Shape shape = (Shape) smartShape;
+        if (awt != null) {
+            return SmartShape.Util.transformAwtShape(awt,
+                    shape.getTransform()).getBounds2D();
+        }
+        final List<omero.model.Point> points = smartShape.asPoints();
+        if (points == null || points.isEmpty()) {
+            return null;
+        }
+        final Rectangle2D bounds = new Rectangle2D.Double(
+                points.get(0).getX().getValue(),
+                points.get(0).getY().getValue(), 0, 0);
+        for (omero.model.Point point : points) {
+            bounds.add(point.getX().getValue(), point.getY().getValue());
+        }
+        return SmartShape.Util.transformAwtShape(bounds,
+                shape.getTransform()).getBounds2D();
+    }
+
     //
     // Factory methods
     //
@@ -247,91 +479,106 @@ public class GeomTool {
         final RoiStats rs = new RoiStats();
         rs.perShape = new ShapeStats[shapeIds.size()];
 
-        for (int i = 0; i < shapeIds.size(); i++) {
+        final Map<Long, ome.model.roi.Shape> shapes = loadShapes(session,
+                "select distinct s from Shape s "
+                        + "join fetch s.roi r join fetch r.image i "
+                        + "join fetch i.pixels p join fetch p.channels c "
+                        + "join fetch c.logicalChannel lc "
+                        + "where s.id in (:ids)", shapeIds);
 
-            final long shapeId = shapeIds.get(i);
-
-            final ome.model.roi.Shape shape = (ome.model.roi.Shape) session
-                    .createQuery(
-                            "select s from Shape s "
-                                    + "join fetch s.roi r join fetch r.image i "
-                                    + "join fetch i.pixels p join fetch p.channels c "
-                                    + "join fetch c.logicalChannel lc "
-                                    + "where s.id = :id").setParameter("id",
-                            shapeId).uniqueResult();
-            final SmartShape smartShape = (SmartShape) new ShapeMapper()
-                    .map(shape);
-
-            final ome.model.roi.Roi roi = shape.getRoi();
-            final ome.model.core.Image img = roi.getImage();
-            final ome.model.core.Pixels pix = img.getPrimaryPixels();
-
-            final long roiId = roi.getId();
-            final long imgId = img.getId();
-            final long pixId = pix.getId();
-
-            final int maxZ = pix.getSizeZ();
-            final int maxT = pix.getSizeT();
-
-            // We only take the values for the first Shape. If this call is
-            // being made with different shapes, then the user will know as
-            // much.
-            if (rs.combined == null) {
-                rs.roiId = roiId;
-                rs.imageId = imgId;
-                rs.pixelsId = pixId;
-
-                int ch = pix.sizeOfChannels();
-                rs.combined = makeStats(ch);
-                rs.combined.shapeId = -1;
-                rs.combined.channelIds = new long[ch];
-                for (int w = 0; w < ch; w++) {
-                    rs.combined.channelIds[w] = pix.getChannel(w)
-                            .getLogicalChannel().getId();
-                }
+        // Shapes grouped by pixels set, so that each plane is read once.
+        final Map<Long, List<Integer>> byPixels =
+                new LinkedHashMap<Long, List<Integer>>();
+        for (int i = 0; i < shapeIds.size(); i++) {
+            final ome.model.roi.Shape shape = shapes.get(shapeIds.get(i));
+            if (shape == null) {
+                throw new ApiUsageException("Given shape id(s) invalid");
             }
-            final ShapeStats stats = makeStats(pix, shape);
-            stats.shapeId = shape.getId();
-
-            final int ch = stats.channelIds.length;
-            final double[] sumOfSquares = new double[ch];
-
-            final Integer theZ = shape.getTheZ(); // May be null
-            final Integer theT = shape.getTheT(); // May be null
-
-            final int startZ = (theZ == null) ? 0 : theZ.intValue();
-            final int startT = (theT == null) ? 0 : theT.intValue();
+            final long pixId = shape.getRoi().getImage().getPrimaryPixels()
+                    .getId();
+            List<Integer> indexes = byPixels.get(pixId);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                byPixels.put(pixId, indexes);
+            }
+            indexes.add(i);
+        }
 
-            final int endZ = (theZ == null) ? (maxZ - 1) : theZ.intValue();
-            final int endT = (theT == null) ? (maxT - 1) : theT.intValue();
+        for (Map.Entry<Long, List<Integer>> group : byPixels.entrySet()) {
 
-            final PixelBuffer buf = data.getBuffer(pixId);
+            final PixelBuffer buf = data.getBuffer(group.getKey());
             try {
-                SmartShape.PointCallback cb = new SmartShape.PointCallback() {
-
-                    public void handle(int x, int y) {
-
+                final ShapeStatsCalculator calculator =
+                        new ShapeStatsCalculator(data, buf,
+                                getRenderingExecutor());
+                final Map<Integer, ShapeStatsCalculator.Accumulator[]> acc =
+                        new HashMap<Integer, ShapeStatsCalculator.Accumulator[]>();
+
+                for (int i : group.getValue()) {
+
+                    final ome.model.roi.Shape shape =
+                            shapes.get(shapeIds.get(i));
+                    final ome.model.roi.Roi roi = shape.getRoi();
+                    final ome.model.core.Image img = roi.getImage();
+                    final ome.model.core.Pixels pix = img.getPrimaryPixels();
+
+                    // We only take the values for the first Shape. If this
+                    // call is being made with different shapes, then the user
+                    // will know as much.
+                    if (rs.combined == null) {
+                        rs.roiId = roi.getId();
+                        rs.imageId = img.getId();
+                        rs.pixelsId = pix.getId();
+
+                        int ch = pix.sizeOfChannels();
+                        rs.combined = makeStats(ch);
+                        rs.combined.shapeId = -1;
+                        rs.combined.channelIds = new long[ch];
                         for (int w = 0; w < ch; w++) {
+                            rs.combined.channelIds[w] = pix.getChannel(w)
+                                    .getLogicalChannel().getId();
+                        }
+                    }
+                    final ShapeStats stats = makeStats(pix, shape);
+                    stats.shapeId = shape.getId();
+                    rs.perShape[i] = stats;
 
-                            for (int z = startZ; z <= endZ; z++) {
-                                for (int t = startT; t <= endT; t++) {
+                    final Integer theZ = shape.getTheZ(); // May be null
+                    final Integer theT = shape.getTheT(); // May be null
+                    final Integer theC = shape.getTheC(); // May be null
 
-                                    // WHAT TO DO ABOUT THE CHANNELS IN AGGREGATION?
-                                    stats.pointsCount[w]++;
-                                    double value = data.get(buf, x, y, z, w, t);
-                                    stats.min[w] = Math.min(value, stats.min[w]);
-                                    stats.max[w] = Math.max(value, stats.max[w]);
-                                    stats.sum[w] += value;
-                                    sumOfSquares[w] += value * value;
+                    final int[] channels = new int[stats.channelIds.length];
+                    for (int w = 0; w < channels.length; w++) {
+                        channels[w] = theC == null ? w : theC.intValue();
+                    }
 
-                                }
-                            }
+                    final ShapeStatsCalculator.Points points = rasterise(
+                            (SmartShape) new ShapeMapper().map(shape),
+                            pix.getSizeX(), pix.getSizeY(), false);
+                    acc.put(i, calculator.add(points,
+                            range(theZ, pix.getSizeZ()), channels,
+                            range(theT, pix.getSizeT())));
+                }
 
+                calculator.run();
+
+                for (int i : group.getValue()) {
+                    final ShapeStats stats = rs.perShape[i];
+                    final ShapeStatsCalculator.Accumulator[] a = acc.get(i);
+                    for (int w = 0; w < a.length; w++) {
+                        copy(a[w], stats, w);
+                        stats.mean[w] = stats.sum[w] / stats.pointsCount[w];
+                        if (stats.pointsCount[w] > 1) {
+                            double sigmaSquare = (a[w].sumOfSquares
+                                    - stats.sum[w] * stats.sum[w]
+                                    / stats.pointsCount[w])
+                                    / (stats.pointsCount[w] - 1);
+                            if (sigmaSquare > 0) {
+                                stats.stdDev[w] = Math.sqrt(sigmaSquare);
+                            }
                         }
                     }
-                };
-
-                smartShape.areaPoints(cb);
+                }
             } finally {
                 try {
                     buf.close();
@@ -339,21 +586,6 @@ public class GeomTool {
                     log.error("Error closing " + buf, e);
                 }
             }
-
-            for (int w = 0; w < ch; w++) {
-
-                stats.mean[w] = stats.sum[w] / stats.pointsCount[w];
-                if (stats.pointsCount[w] > 1) {
-                    double sigmaSquare = (sumOfSquares[w] - stats.sum[w]
-                            * stats.sum[w] / stats.pointsCount[w])
-                            / (stats.pointsCount[w] - 1);
-                    if (sigmaSquare > 0) {
-                        stats.stdDev[w] = Math.sqrt(sigmaSquare);
-                    }
-                }
-            }
-
-            rs.perShape[i] = stats;
         }
 
         return rs;
@@ -371,25 +603,20 @@ public class GeomTool {
 
        // fetch shapes from db and perform some basic checks
         final Session session = factory.getSession();
-        List results =
-           session.createQuery(
+        final Map<Long, ome.model.roi.Shape> results = loadShapes(session,
                "select distinct s from Shape s " +
                "left join fetch s.transform t left join fetch s.roi r " +
                "join fetch r.image i join fetch i.pixels p " +
-               "where s.id in (:ids)").
-           setParameterList("ids", shapeIds).list();
+               "where s.id in (:ids)", shapeIds);
        if (results.size() != shapeIds.size()) {
            throw new ApiUsageException("Given shape id(s) invalid");
        }
 
-       final List<ShapeStats> shapeStats =
-               new ArrayList<ShapeStats>(shapeIds.size());
-       final Multimap<String, ome.model.roi.Shape> zt_lookup = HashMultimap.create();
        ome.model.core.Image image = null;
        ome.model.core.Pixels pixels = null;
 
-       for (final Object r : results) {
-           final ome.model.roi.Shape shape = (ome.model.roi.Shape) r;
+       for (final Long shapeId : shapeIds) {
+           final ome.model.roi.Shape shape = results.get(shapeId);
            final ome.model.roi.Roi roi = shape.getRoi();
            final ome.model.core.Image img = roi.getImage();
 
@@ -404,24 +631,20 @@ public class GeomTool {
                tForUnattached < 0 || tForUnattached >= pixels.getSizeT())
                throw new ApiUsageException(
                    "Fallback value(s) for unattached z/t shapes are out of bounds");
-           // if we have unattached z/t we use the unattached z,t fallback
-           final int theZ = shape.getTheZ() != null ? shape.getTheZ() : zForUnattached;
-           final int theT = shape.getTheT() != null ? shape.getTheT() : tForUnattached;
-           zt_lookup.put(theZ + "/" + theT, shape);
        }
 
-       // any point iteration in a tiled image is a lost cause
-       if (data.requiresPixelsPyramid(pixels)) 
-           throw new ApiUsageException("This method cannot handle tiled images yet.");
-
        // check if given channels are valid
        Set<Integer> validChannels = new HashSet<Integer>();
-       if (channels != null && channels.length > 0) {
-           for (int ch : channels) {
-               if (ch < 0 || ch >= pixels.getSizeC())
-                   throw new ApiUsageException("Given channel(s) out of bounds.");
-               validChannels.add(ch);
-           }
+       for (int ch : channels) {
+           if (ch < 0 || ch >= pixels.getSizeC())
+               throw new ApiUsageException("Given channel(s) out of bounds.");
+           validChannels.add(ch);
+       }
+       final int size_stats = validChannels.size();
+       final int[] statsChannels = new int[size_stats];
+       int k = 0;
+       for (int c : validChannels) {
+           statsChannels[k++] = c;
        }
 
        // common info for all shapes
@@ -429,61 +652,47 @@ public class GeomTool {
        final int sizeX = pixels.getSizeX();
        final int sizeY = pixels.getSizeY();
 
-       // loop over shapes (grouped by z/t planes)
-       for (final String key : zt_lookup.keySet()) {
-           final String[] keyTokens = key.split("/");
-           final int z = Integer.parseInt(keyTokens[0]);
-           final int t = Integer.parseInt(keyTokens[1]);
-
-           for (ome.model.roi.Shape shape : zt_lookup.get(key)) {
+       final ShapeStats[] shapeStats = new ShapeStats[shapeIds.size()];
+       try (final PixelBuffer buf = data.getBuffer(pixelId)) {
+           final ShapeStatsCalculator calculator =
+                   new ShapeStatsCalculator(data, buf, getRenderingExecutor());
+           final ShapeStatsCalculator.Accumulator[][] acc =
+                   new ShapeStatsCalculator.Accumulator[shapeStats.length][];
+           for (int i = 0; i < shapeStats.length; i++) {
+               final ome.model.roi.Shape shape = results.get(shapeIds.get(i));
+               // if we have unattached z/t we use the unattached z,t fallback
+               final int theZ = shape.getTheZ() != null ? shape.getTheZ() : zForUnattached;
+               final int theT = shape.getTheT() != null ? shape.getTheT() : tForUnattached;
                final SmartShape smartShape = (SmartShape) new ShapeMapper().map(shape);
-               final int size_stats = validChannels.size();
-               final ShapeStats stats = makeStats(size_stats);
-               stats.shapeId = shape.getId();
-               final double[] sumOfSquares = new double[size_stats];
-
-               try (final PixelBuffer buf = data.getBuffer(pixelId)) {
-            	   int i = 0;
-                   for (int c : validChannels) {
-                       final int w = i;
-                       stats.channelIds[w] = c;
-                       final ome.util.PixelData pd = data.getPlane(buf, z, c, t);
-                       smartShape.areaPoints(
-                           new SmartShape.PointCallback() {
-                               public void handle(int x, int y) {
-                                   // we won't use pixels outside of the image 
-                                   if (x < 0 || y < 0 || x >= sizeX || y >= sizeY) return;
-                                   stats.pointsCount[w]++;
-                                   double value = pd.getPixelValue(sizeX * y + x);
-                                   stats.min[w] = Math.min(value, stats.min[w]);
-                                   stats.max[w] = Math.max(value, stats.max[w]);
-                                   stats.sum[w] += value;
-                                   sumOfSquares[w] += value * value;
-                               }
-                           });
-                       pd.dispose();
-                       i++;
-                   }
-               } catch (IOException io) {
-                   log.error("Error closing buffer", io);
-               }
+               // we won't use pixels outside of the image
+               acc[i] = calculator.add(rasterise(smartShape, sizeX, sizeY, true),
+                       new int[] { theZ }, statsChannels, new int[] { theT });
+           }
+           calculator.run();
 
+           for (int i = 0; i < shapeStats.length; i++) {
+               final ShapeStats stats = makeStats(size_stats);
+               stats.shapeId = shapeIds.get(i);
                for (int w = 0; w < size_stats; w++) {
+                   stats.channelIds[w] = statsChannels[w];
+                   copy(acc[i][w], stats, w);
                    if (stats.pointsCount[w] > 0) {
                        stats.mean[w] = stats.sum[w] / stats.pointsCount[w];
                        if (stats.pointsCount[w] > 1) {
                            double sigmaSquare =
-                               (sumOfSquares[w] - stats.sum[w] * stats.mean[w]) /
+                               (acc[i][w].sumOfSquares - stats.sum[w] * stats.mean[w]) /
                                (stats.pointsCount[w] - 1);
                            if (sigmaSquare > 0) stats.stdDev[w] = Math.sqrt(sigmaSquare);
                        }
                    }
                }
-               shapeStats.add(stats);
+               shapeStats[i] = stats;
            }
+       } catch (IOException io) {
+           log.error("Error closing buffer", io);
        }
-       
-       return shapeStats.toArray(new ShapeStats[] {});
+
+       return shapeStats;
     }
 
     /**
@@ -511,6 +720,89 @@ public class GeomTool {
     // helpers
     //
 
+    /**
+     * Loads shapes in batches of at most {@link #BATCH_SIZE} ids.
+     *
+     * @param session The Hibernate session.
+     * @param hql The query, with an <code>ids</code> list parameter.
+     * @param shapeIds The ids of the shapes.
+     * @return The shapes found, keyed by id.
+     */
+    private Map<Long, ome.model.roi.Shape> loadShapes(Session session,
+            String hql, List<Long> shapeIds) {
+        final Map<Long, ome.model.roi.Shape> shapes =
+                new HashMap<Long, ome.model.roi.Shape>();
+        final List<Long> ids = new ArrayList<Long>(new LinkedHashSet<Long>(
+                shapeIds));
+        for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+            final List<?> batch = session.createQuery(hql).setParameterList(
+                    "ids", ids.subList(i, Math.min(ids.size(), i + BATCH_SIZE)))
+                    .list();
+            for (Object o : batch) {
+                final ome.model.roi.Shape shape = (ome.model.roi.Shape) o;
+                shapes.put(shape.getId(), shape);
+            }
+        }
+        return shapes;
+    }
+
+    /**
+     * Collects the points of a shape within a plane.
+     *
+     * @param smartShape The shape.
+     * @param sizeX The width of the plane.
+     * @param sizeY The height of the plane.
+     * @param clip Pass <code>true</code> to skip the points outside of the
+     *             plane, <code>false</code> to fail.
+     * @return See above.
+     */
+    private ShapeStatsCalculator.Points rasterise(SmartShape smartShape,
+            final int sizeX, final int sizeY, final boolean clip) {
+        final ShapeStatsCalculator.Points points =
+                new ShapeStatsCalculator.Points();
+        smartShape.areaPoints(new SmartShape.PointCallback() {
+            public void handle(int x, int y) {
+                if (y < 0 || y >= sizeY) {
+                    if (clip) return;
+                    throw new ApiUsageException(
+                            "DimensionsOutOfBounds: Y '" + y + "' greater "
+                            + "than sizeY '" + sizeY + "' or negative.");
+                }
+                if (x < 0 || x >= sizeX) {
+                    if (clip) return;
+                    throw new ValidationException(
+                            "IndexOutOfBounds: X '" + x + "' greater than "
+                            + "sizeX '" + sizeX + "' or negative.");
+                }
+                points.add(x, y);
+            }
+        });
+        return points;
+    }
+
+    /**
+     * Returns the given index or, if <code>null</code>, all the indexes of a
+     * dimension.
+     */
+    private static int[] range(Integer index, int size) {
+        if (index != null) {
+            return new int[] { index.intValue() };
+        }
+        final int[] all = new int[size];
+        for (int i = 0; i < size; i++) {
+            all[i] = i;
+        }
+        return all;
+    }
+
+    private static void copy(ShapeStatsCalculator.Accumulator acc,
+            ShapeStats stats, int w) {
+        stats.pointsCount[w] = acc.count;
+        stats.min[w] = acc.min;
+        stats.max[w] = acc.max;
+        stats.sum[w] = acc.sum;
+    }
+
     private ShapeStats makeStats(int ch) {
         ShapeStats stats = new ShapeStats();
         stats.channelIds = new long[ch];
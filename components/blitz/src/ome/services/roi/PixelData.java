@@ -83,6 +83,31 @@ public class PixelData {
         }
     }
 
+    /**
+     * Returns the {@link ome.util.PixelData} for a region of a plane given its
+     * z, c and t as well as a {@link PixelBuffer}
+     *
+     * @param buf the {@link PixelBuffer}
+     * @param z the Z
+     * @param c the C
+     * @param t the T
+     * @param x the X offset of the region
+     * @param y the Y offset of the region
+     * @param w the width of the region
+     * @param h the height of the region
+     * @return the ome.util.PixelData for the region
+     */
+    public ome.util.PixelData getTile(PixelBuffer buf, int z, int c, int t,
+            int x, int y, int w, int h) {
+        try {
+            return buf.getTile(z, c, t, x, y, w, h);
+        } catch (IOException e) {
+            throw new ResourceError("IOException: " + e);
+        } catch (IndexOutOfBoundsException iobe) {
+            throw new ValidationException("IndexOutOfBounds: " + iobe);
+        }
+    }
+
     /**
      * Returns whether a pyramid should be used for the given {@link Pixels}.
      * This usually implies that this is a "Big image" and therefore will
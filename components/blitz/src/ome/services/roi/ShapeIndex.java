@@ -0,0 +1,277 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.roi;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable spatial index of the bounding boxes of the shapes of an image,
+ * answering which shapes intersect a region of a plane without scanning all
+ * of them. The boxes are bucketed by Z section and timepoint, then in a
+ * uniform grid of square cells; the boxes spanning more than
+ * {@link #MAX_CELLS} cells are kept aside and checked on every query of
+ * their plane.
+ *
+ * @since 5.4.1
+ */
+public class ShapeIndex {
+
+    /** The default width and height of the cells of the grid. */
+    public static final double DEFAULT_CELL_SIZE = 256;
+
+    /** The maximum number of cells a box is bucketed in. */
+    static final int MAX_CELLS = 64;
+
+    private final double cellSize;
+
+    private final long[] shapeIds;
+
+    private final double[] minX, minY, maxX, maxY;
+
+    /**
+     * The grids of the shapes of each plane, keyed by {@link #key(long, long)}
+     * of their Z section and timepoint, <code>-1</code> if on all of them.
+     */
+    private final Map<Long, Grid> grids;
+
+    private ShapeIndex(Builder builder) {
+        cellSize = builder.cellSize;
+        int size = builder.shapeIds.size();
+        shapeIds = new long[size];
+        minX = new double[size];
+        minY = new double[size];
+        maxX = new double[size];
+        maxY = new double[size];
+        final Map<Long, List<Integer>> planes =
+            new HashMap<Long, List<Integer>>();
+        for (int i = 0; i < size; i++) {
+            shapeIds[i] = builder.shapeIds.get(i);
+            final Rectangle2D bounds = builder.bounds.get(i);
+            minX[i] = bounds.getMinX();
+            minY[i] = bounds.getMinY();
+            maxX[i] = bounds.getMaxX();
+            maxY[i] = bounds.getMaxY();
+            final Long key = key(builder.zs.get(i), builder.ts.get(i));
+            List<Integer> plane = planes.get(key);
+            if (plane == null) {
+                plane = new ArrayList<Integer>();
+                planes.put(key, plane);
+            }
+            plane.add(i);
+        }
+        grids = new HashMap<Long, Grid>(planes.size() * 4 / 3 + 1);
+        for (Map.Entry<Long, List<Integer>> plane : planes.entrySet()) {
+            grids.put(plane.getKey(), new Grid(plane.getValue()));
+        }
+    }
+
+    /**
+     * Returns the number of shapes indexed.
+     *
+     * @return See above.
+     */
+    public int size() {
+        return shapeIds.length;
+    }
+
+    /**
+     * Finds the shapes on a plane whose bounding box intersects a region,
+     * edges included. The shapes without a Z section or a timepoint are on
+     * all of them.
+     *
+     * @param z The Z section.
+     * @param t The timepoint.
+     * @param x The X coordinate of the region.
+     * @param y The Y coordinate of the region.
+     * @param width The width of the region.
+     * @param height The height of the region.
+     * @return The ids of the shapes, in the order they were added.
+     */
+    public List<Long> find(int z, int t, double x, double y, double width,
+            double height) {
+        final BitSet found = new BitSet(shapeIds.length);
+        for (Long key : new LinkedHashSet<Long>(Arrays.asList(key(z, t),
+                key(-1, t), key(z, -1), key(-1, -1)))) {
+            final Grid grid = grids.get(key);
+            if (grid != null) {
+                grid.find(found, x, y, x + width, y + height);
+            }
+        }
+        final List<Long> ids = new ArrayList<Long>(found.cardinality());
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+            ids.add(shapeIds[i]);
+        }
+        return ids;
+    }
+
+    private int cell(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static Long key(long x, long y) {
+        return (x << 32) | (y & 0xffffffffL);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * The grid of the shapes of a plane.
+     */
+    private class Grid {
+
+        /** The shapes of each cell, keyed by {@link #key(long, long)}. */
+        private final Map<Long, int[]> cells;
+
+        /** The shapes spanning too many cells to be bucketed. */
+        private final int[] large;
+
+        Grid(List<Integer> shapes) {
+            final Map<Long, List<Integer>> buckets =
+                new HashMap<Long, List<Integer>>();
+            final List<Integer> spanning = new ArrayList<Integer>();
+            for (int i : shapes) {
+                final int x0 = cell(minX[i]), x1 = cell(maxX[i]);
+                final int y0 = cell(minY[i]), y1 = cell(maxY[i]);
+                if (((long) x1 - x0 + 1) * ((long) y1 - y0 + 1) > MAX_CELLS) {
+                    spanning.add(i);
+                    continue;
+                }
+                for (long y = y0; y <= y1; y++) {
+                    for (long x = x0; x <= x1; x++) {
+                        final Long key = key(x, y);
+                        List<Integer> bucket = buckets.get(key);
+                        if (bucket == null) {
+                            bucket = new ArrayList<Integer>(4);
+                            buckets.put(key, bucket);
+                        }
+                        bucket.add(i);
+                    }
+                }
+            }
+            cells = new HashMap<Long, int[]>(buckets.size() * 4 / 3 + 1);
+            for (Map.Entry<Long, List<Integer>> bucket : buckets.entrySet()) {
+                cells.put(bucket.getKey(), toArray(bucket.getValue()));
+            }
+            large = toArray(spanning);
+        }
+
+        /** Marks the shapes of the grid intersecting a region as found. */
+        void find(BitSet found, double x0, double y0, double x1, double y1) {
+            for (int i : large) {
+                check(found, i, x0, y0, x1, y1);
+            }
+            final int cx0 = cell(x0), cx1 = cell(x1);
+            final int cy0 = cell(y0), cy1 = cell(y1);
+            if (((long) cx1 - cx0 + 1) * ((long) cy1 - cy0 + 1)
+                    > cells.size()) {
+                // Cheaper to go through the occupied cells than the region's.
+                for (int[] bucket : cells.values()) {
+                    for (int i : bucket) {
+                        check(found, i, x0, y0, x1, y1);
+                    }
+                }
+            } else {
+                for (long cy = cy0; cy <= cy1; cy++) {
+                    for (long cx = cx0; cx <= cx1; cx++) {
+                        final int[] bucket = cells.get(key(cx, cy));
+                        if (bucket != null) {
+                            for (int i : bucket) {
+                                check(found, i, x0, y0, x1, y1);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void check(BitSet found, int i, double x0, double y0,
+                double x1, double y1) {
+            if (minX[i] <= x1 && maxX[i] >= x0
+                    && minY[i] <= y1 && maxY[i] >= y0) {
+                found.set(i);
+            }
+        }
+    }
+
+    /**
+     * Collects the bounding boxes of shapes to index.
+     */
+    public static class Builder {
+
+        private final double cellSize;
+
+        private final List<Long> shapeIds = new ArrayList<Long>();
+
+        private final List<Integer> zs = new ArrayList<Integer>();
+
+        private final List<Integer> ts = new ArrayList<Integer>();
+
+        private final List<Rectangle2D> bounds = new ArrayList<Rectangle2D>();
+
+        /**
+         * Creates a builder of an index with cells of
+         * {@link ShapeIndex#DEFAULT_CELL_SIZE}.
+         */
+        public Builder() {
+            this(DEFAULT_CELL_SIZE);
+        }
+
+        /**
+         * Creates a builder.
+         *
+         * @param cellSize The width and height of the cells of the grid.
+         */
+        public Builder(double cellSize) {
+            if (!(cellSize > 0)) {
+                throw new IllegalArgumentException(
+                        "Cell size must be positive: " + cellSize);
+            }
+            this.cellSize = cellSize;
+        }
+
+        /**
+         * Adds a shape.
+         *
+         * @param shapeId The id of the shape.
+         * @param z The Z section of the shape, <code>null</code> if on all.
+         * @param t The timepoint of the shape, <code>null</code> if on all.
+         * @param box The bounding box of the shape.
+         * @return This builder.
+         */
+        public Builder add(long shapeId, Integer z, Integer t,
+                Rectangle2D box) {
+            shapeIds.add(shapeId);
+            zs.add(z == null ? -1 : z);
+            ts.add(t == null ? -1 : t);
+            bounds.add(box);
+            return this;
+        }
+
+        /**
+         * Creates the index of the shapes added.
+         *
+         * @return See above.
+         */
+        public ShapeIndex build() {
+            return new ShapeIndex(this);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.roi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import ome.conditions.ValidationException;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.Utils;
+import omeis.providers.re.RenderingExecutor;
+
+/**
+ * Accumulates the statistics of the points of shapes of one pixels set plane
+ * by plane: each plane is read once, as the smallest region holding all the
+ * shapes on it, and the planes are read concurrently on the
+ * {@link RenderingExecutor} if the pixel buffer allows it. No region larger
+ * than {@link #MAX_REGION_PIXELS} is read: the shapes are then read one by
+ * one, and a shape larger than that is read tile by tile.
+ *
+ * @since 5.4.1
+ */
+class ShapeStatsCalculator {
+
+    /**
+     * The maximum number of pixels of a region read for all the shapes on a
+     * plane, beyond which the region of each shape is read on its own.
+     */
+    static final long MAX_REGION_PIXELS = 4096L * 4096L;
+
+    /** The maximum number of pixels of a region read. */
+    private final long maxRegionPixels;
+
+    /** The side of the tiles a shape larger than a region is read by. */
+    private final int tileSide;
+
+    private final PixelData data;
+
+    private final PixelBuffer buf;
+
+    private final RenderingExecutor executor;
+
+    /** The shapes of each plane, keyed by <code>{z, c, t}</code>. */
+    private final Map<List<Integer>, List<Entry>> planes =
+        new LinkedHashMap<List<Integer>, List<Entry>>();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param data The strategy reading the pixels.
+     * @param buf The buffer of the pixels set.
+     * @param executor The pool reading the planes, <code>null</code> to read
+     *                 them from the calling thread.
+     */
+    ShapeStatsCalculator(PixelData data, PixelBuffer buf,
+            RenderingExecutor executor) {
+        this(data, buf, executor, MAX_REGION_PIXELS);
+    }
+
+    /**
+     * Creates a new instance reading regions of at most the given size.
+     *
+     * @param data The strategy reading the pixels.
+     * @param buf The buffer of the pixels set.
+     * @param executor The pool reading the planes, <code>null</code> to read
+     *                 them from the calling thread.
+     * @param maxRegionPixels The maximum number of pixels of a region read.
+     */
+    ShapeStatsCalculator(PixelData data, PixelBuffer buf,
+            RenderingExecutor executor, long maxRegionPixels) {
+        this.data = data;
+        this.buf = buf;
+        this.executor = executor;
+        this.maxRegionPixels = maxRegionPixels;
+        this.tileSide = (int) Math.max(1, Math.sqrt(maxRegionPixels));
+    }
+
+    /**
+     * Adds the points of a shape on planes.
+     *
+     * @param points The points of the shape.
+     * @param zs The Z sections the shape is on.
+     * @param channels The channels the shape is on.
+     * @param ts The timepoints the shape is on.
+     * @return The statistics of the shape per channel, accumulated by
+     *         {@link #run()}.
+     */
+    Accumulator[] add(Points points, int[] zs, int[] channels, int[] ts) {
+        points.sort();
+        Accumulator[] accumulators = new Accumulator[channels.length];
+        for (int w = 0; w < channels.length; w++) {
+            accumulators[w] = new Accumulator();
+            for (int z : zs) {
+                for (int t : ts) {
+                    List<Integer> key = new ArrayList<Integer>(3);
+                    key.add(z);
+                    key.add(channels[w]);
+                    key.add(t);
+                    List<Entry> entries = planes.get(key);
+                    if (entries == null) {
+                        entries = new ArrayList<Entry>();
+                        planes.put(key, entries);
+                    }
+                    entries.add(new Entry(points, accumulators[w]));
+                }
+            }
+        }
+        return accumulators;
+    }
+
+    /**
+     * Reads the planes and accumulates the statistics of the shapes added.
+     */
+    void run() {
+        List<PlaneTask> tasks = new ArrayList<PlaneTask>(planes.size());
+        for (Map.Entry<List<Integer>, List<Entry>> plane : planes.entrySet()) {
+            List<Integer> key = plane.getKey();
+            tasks.add(new PlaneTask(
+                    key.get(0), key.get(1), key.get(2), plane.getValue()));
+        }
+        List<Accumulator[]> results;
+        if (executor != null && tasks.size() > 1
+                && Utils.isConcurrentReadSafe(buf)) {
+            results = executor.invokeAllCallerRunsFirst(tasks,
+                    RuntimeException.class);
+        } else {
+            results = RenderingExecutor.invokeAllInCaller(tasks,
+                    RuntimeException.class);
+        }
+        // Merged in the order of the planes whichever thread read them.
+        for (int i = 0; i < tasks.size(); i++) {
+            List<Entry> entries = tasks.get(i).entries;
+            Accumulator[] partials = results.get(i);
+            for (int j = 0; j < partials.length; j++) {
+                entries.get(j).accumulator.merge(partials[j]);
+            }
+        }
+    }
+
+    /**
+     * The points of a shape within a pixels set, rasterised once whichever
+     * the number of planes it is on. The points are held as spans of
+     * consecutive points of a row so that the memory used grows with the
+     * height of the shape rather than with its area.
+     */
+    static class Points {
+
+        /** The row, first and last column of each span. */
+        private int[] spans = new int[3 * 16];
+
+        /** The number of spans. */
+        private int size;
+
+        /** Whether the spans are sorted by row then column. */
+        private boolean sorted = true;
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+        void add(int x, int y) {
+            if (size > 0) {
+                int last = 3 * (size - 1);
+                if (spans[last] == y && spans[last + 2] + 1 == x) {
+                    spans[last + 2] = x;
+                    maxX = Math.max(maxX, x);
+                    return;
+                }
+                if (spans[last] > y
+                        || (spans[last] == y && spans[last + 2] >= x)) {
+                    sorted = false;
+                }
+            }
+            if (3 * size == spans.length) {
+                if (spans.length > Integer.MAX_VALUE / 2) {
+                    throw new ValidationException("Too many spans: " + size);
+                }
+                spans = Arrays.copyOf(spans, spans.length * 2);
+            }
+            spans[3 * size] = y;
+            spans[3 * size + 1] = x;
+            spans[3 * size + 2] = x;
+            size++;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /** Returns the number of spans the points are held as. */
+        int spanCount() {
+            return size;
+        }
+
+        /** Sorts the spans by row then column, once all added. */
+        void sort() {
+            if (sorted) {
+                return;
+            }
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            final int[] unsorted = spans;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int i = 3 * a, j = 3 * b;
+                    if (unsorted[i] != unsorted[j]) {
+                        return unsorted[i] < unsorted[j] ? -1 : 1;
+                    }
+                    if (unsorted[i + 1] != unsorted[j + 1]) {
+                        return unsorted[i + 1] < unsorted[j + 1] ? -1 : 1;
+                    }
+                    return 0;
+                }
+            });
+            int[] copy = new int[3 * size];
+            int n = 0;
+            for (int index : order) {
+                int y = unsorted[3 * index];
+                int x0 = unsorted[3 * index + 1];
+                int x1 = unsorted[3 * index + 2];
+                if (n > 0 && copy[3 * (n - 1)] == y
+                        && copy[3 * (n - 1) + 2] + 1 == x0) {
+                    copy[3 * (n - 1) + 2] = x1;
+                } else {
+                    copy[3 * n] = y;
+                    copy[3 * n + 1] = x0;
+                    copy[3 * n + 2] = x1;
+                    n++;
+                }
+            }
+            spans = copy;
+            size = n;
+            sorted = true;
+        }
+    }
+
+    /**
+     * The count, extrema and sums of the values of the points of a shape on
+     * a channel.
+     */
+    static class Accumulator {
+
+        long count;
+
+        double min = Double.MAX_VALUE;
+
+        double max;
+
+        double sum;
+
+        double sumOfSquares;
+
+        void add(double value) {
+            count++;
+            min = Math.min(value, min);
+            max = Math.max(value, max);
+            sum += value;
+            sumOfSquares += value * value;
+        }
+
+        void merge(Accumulator other) {
+            count += other.count;
+            min = Math.min(other.min, min);
+            max = Math.max(other.max, max);
+            sum += other.sum;
+            sumOfSquares += other.sumOfSquares;
+        }
+    }
+
+    /**
+     * A shape on a plane.
+     */
+    private static class Entry {
+
+        final Points points;
+
+        final Accumulator accumulator;
+
+        Entry(Points points, Accumulator accumulator) {
+            this.points = points;
+            this.accumulator = accumulator;
+        }
+    }
+
+    /**
+     * Reads a plane and accumulates the values of the shapes on it, returning
+     * partial statistics so that planes can be read concurrently.
+     */
+    private class PlaneTask implements Callable<Accumulator[]> {
+
+        final int z, c, t;
+
+        final List<Entry> entries;
+
+        PlaneTask(int z, int c, int t, List<Entry> entries) {
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.entries = entries;
+        }
+
+        public Accumulator[] call() {
+            Accumulator[] partials = new Accumulator[entries.size()];
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+            for (int i = 0; i < partials.length; i++) {
+                partials[i] = new Accumulator();
+                Points points = entries.get(i).points;
+                if (!points.isEmpty()) {
+                    minX = Math.min(minX, points.minX);
+                    minY = Math.min(minY, points.minY);
+                    maxX = Math.max(maxX, points.maxX);
+                    maxY = Math.max(maxY, points.maxY);
+                }
+            }
+            if (minX > maxX) {
+                return partials;
+            }
+            long area = (long) (maxX - minX + 1) * (maxY - minY + 1);
+            if (area <= maxRegionPixels) {
+                read(0, partials.length, partials, minX, minY, maxX, maxY);
+            } else {
+                for (int i = 0; i < partials.length; i++) {
+                    Points points = entries.get(i).points;
+                    if (points.isEmpty()) {
+                        continue;
+                    }
+                    long shapeArea = (long) (points.maxX - points.minX + 1)
+                        * (points.maxY - points.minY + 1);
+                    if (shapeArea <= maxRegionPixels) {
+                        read(i, i + 1, partials, points.minX, points.minY,
+                                points.maxX, points.maxY);
+                    } else {
+                        readTiles(points, partials[i]);
+                    }
+                }
+            }
+            return partials;
+        }
+
+        /** Reads a region and accumulates the values of some shapes in it. */
+        private void read(int from, int to, Accumulator[] partials,
+                int minX, int minY, int maxX, int maxY) {
+            int width = maxX - minX + 1;
+            ome.util.PixelData pd = data.getTile(buf, z, c, t,
+                    minX, minY, width, maxY - minY + 1);
+            try {
+                for (int i = from; i < to; i++) {
+                    Points points = entries.get(i).points;
+                    accumulate(points, 0, points.size, partials[i], pd,
+                            minX, minY, width, minX, maxX);
+                }
+            } finally {
+                pd.dispose();
+            }
+        }
+
+        /**
+         * Reads the bounding box of a shape tile by tile, only the tiles
+         * holding some of its points, and accumulates its values.
+         */
+        private void readTiles(Points points, Accumulator partial) {
+            int first = 0;
+            for (int y = points.minY; y <= points.maxY; y += tileSide) {
+                int height = Math.min(tileSide, points.maxY - y + 1);
+                // The spans are sorted by row: those of this band of rows.
+                int end = first;
+                while (end < points.size
+                        && points.spans[3 * end] < y + height) {
+                    end++;
+                }
+                for (int x = points.minX; x <= points.maxX; x += tileSide) {
+                    int width = Math.min(tileSide, points.maxX - x + 1);
+                    if (!intersects(points, first, end, x, x + width - 1)) {
+                        continue;
+                    }
+                    ome.util.PixelData pd =
+                        data.getTile(buf, z, c, t, x, y, width, height);
+                    try {
+                        accumulate(points, first, end, partial, pd,
+                                x, y, width, x, x + width - 1);
+                    } finally {
+                        pd.dispose();
+                    }
+                }
+                first = end;
+            }
+        }
+
+        /** Returns whether spans have points between two columns. */
+        private boolean intersects(Points points, int from, int to,
+                int minX, int maxX) {
+            for (int s = from; s < to; s++) {
+                if (points.spans[3 * s + 1] <= maxX
+                        && points.spans[3 * s + 2] >= minX) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Accumulates the values of the points of spans between two columns,
+         * read from a region starting at <code>(x, y)</code>.
+         */
+        private void accumulate(Points points, int from, int to,
+                Accumulator partial, ome.util.PixelData pd,
+                int x, int y, int width, int minX, int maxX) {
+            for (int s = from; s < to; s++) {
+                int row = (points.spans[3 * s] - y) * width - x;
+                int x0 = Math.max(minX, points.spans[3 * s + 1]);
+                int x1 = Math.min(maxX, points.spans[3 * s + 2]);
+                for (int px = x0; px <= x1; px++) {
+                    partial.add(pd.getPixelValue(row + px));
+                }
+            }
+        }
+    }
+}
@@ -42,6 +42,12 @@ public interface CacheService
     /** Indicates to cache data in memory only. */
     public static final int IN_MEMORY = 2;
 
+    /**
+     * Indicates to cache data in memory only, the size of the cache being
+     * the number of bytes used by its elements rather than their number.
+     */
+    public static final int IN_MEMORY_BYTES = 3;
+
     /** The default size of a cache. */
     public static final int CACHE_SIZE = 10;
 
@@ -110,6 +116,15 @@ public interface CacheService
      */
     public void setCacheEntries(int cacheID, int entries);
 
+    /**
+     * Resets the number of bytes used by the elements of a cache created
+     * with the type {@link #IN_MEMORY_BYTES}.
+     *
+     * @param cacheID The id of the cache.
+     * @param bytes The number of bytes.
+     */
+    public void setCacheBytes(int cacheID, long bytes);
+
     /** Clears all the caches. */
     public void clearAllCaches();
 
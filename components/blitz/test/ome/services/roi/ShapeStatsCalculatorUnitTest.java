@@ -0,0 +1,255 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.roi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ome.io.nio.PixelBuffer;
+import ome.services.roi.ShapeStatsCalculator.Accumulator;
+import ome.services.roi.ShapeStatsCalculator.Points;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks the statistics accumulated by the {@link ShapeStatsCalculator}
+ * against the values of the points of the shapes, and the regions it reads.
+ */
+@Test(groups = { "rois" })
+public class ShapeStatsCalculatorUnitTest extends TestCase {
+
+    /** The value of a pixel, distinct per plane. */
+    private static int value(int x, int y, int z, int c, int t) {
+        return (x * 7 + y * 13 + z * 101 + c * 211 + t * 307) % 65536;
+    }
+
+    /**
+     * Pixel data computing the pixels of the regions read, and recording
+     * the regions as <code>{z, c, t, x, y, w, h}</code>.
+     */
+    private static class Regions extends PixelData {
+
+        final List<int[]> read = new ArrayList<int[]>();
+
+        Regions() {
+            super(null, null);
+        }
+
+        @Override
+        public ome.util.PixelData getTile(PixelBuffer buf, final int z,
+                final int c, final int t, final int x, final int y,
+                final int w, int h) {
+            read.add(new int[] { z, c, t, x, y, w, h });
+            return new ome.util.PixelData("uint16", ByteBuffer.allocate(0)) {
+                @Override
+                public double getPixelValue(int offset) {
+                    return value(x + offset % w, y + offset / w, z, c, t);
+                }
+            };
+        }
+    }
+
+    /**
+     * A shape, keeping its rectangles of points to compute the expected
+     * statistics.
+     */
+    private static class Shape {
+
+        final Points points = new Points();
+
+        final List<int[]> rectangles = new ArrayList<int[]>();
+
+        Shape add(int x, int y) {
+            points.add(x, y);
+            rectangles.add(new int[] { x, y, 1, 1 });
+            return this;
+        }
+
+        Shape rectangle(int x, int y, int w, int h) {
+            for (int j = y; j < y + h; j++) {
+                for (int i = x; i < x + w; i++) {
+                    points.add(i, j);
+                }
+            }
+            rectangles.add(new int[] { x, y, w, h });
+            return this;
+        }
+
+        Accumulator expected(int[] zs, int c, int[] ts) {
+            Accumulator acc = new Accumulator();
+            for (int z : zs) {
+                for (int t : ts) {
+                    for (int[] r : rectangles) {
+                        for (int j = r[1]; j < r[1] + r[3]; j++) {
+                            for (int i = r[0]; i < r[0] + r[2]; i++) {
+                                acc.add(value(i, j, z, c, t));
+                            }
+                        }
+                    }
+                }
+            }
+            return acc;
+        }
+    }
+
+    private static void assertStats(Accumulator expected, Accumulator actual) {
+        assertEquals(expected.count, actual.count);
+        assertEquals(expected.min, actual.min, 0.0);
+        assertEquals(expected.max, actual.max, 0.0);
+        // Large sums are rounded differently in another order.
+        assertEquals(expected.sum, actual.sum, expected.sum * 1e-12);
+        assertEquals(expected.sumOfSquares, actual.sumOfSquares,
+                expected.sumOfSquares * 1e-12);
+    }
+
+    private static void assertRegionsWithin(List<int[]> read, long max) {
+        for (int[] region : read) {
+            assertTrue((long) region[5] * region[6] <= max);
+        }
+    }
+
+    @Test
+    public void testOneRegionPerPlane() throws Exception {
+        Regions data = new Regions();
+        ShapeStatsCalculator calculator =
+            new ShapeStatsCalculator(data, null, null);
+        int[] zs = new int[] { 0, 1 };
+        int[] channels = new int[] { 0, 2 };
+        int[] ts = new int[] { 3 };
+        Shape a = new Shape().rectangle(2, 3, 4, 5);
+        Shape b = new Shape().add(20, 1).add(21, 2).add(30, 40);
+        Shape c = new Shape().rectangle(10, 10, 3, 3);
+        Accumulator[] as = calculator.add(a.points, zs, channels, ts);
+        Accumulator[] bs = calculator.add(b.points, zs, channels, ts);
+        Accumulator[] cs = calculator.add(c.points, new int[] { 1 },
+                new int[] { 2 }, ts);
+        calculator.run();
+
+        // One region per plane, the box of all its shapes.
+        assertEquals(4, data.read.size());
+        for (int[] region : data.read) {
+            assertEquals(2, region[3]);
+            assertEquals(1, region[4]);
+            assertEquals(29, region[5]);
+            assertEquals(40, region[6]);
+        }
+        for (int w = 0; w < channels.length; w++) {
+            assertStats(a.expected(zs, channels[w], ts), as[w]);
+            assertStats(b.expected(zs, channels[w], ts), bs[w]);
+        }
+        assertStats(c.expected(new int[] { 1 }, 2, ts), cs[0]);
+    }
+
+    @Test
+    public void testOneRegionPerShape() throws Exception {
+        Regions data = new Regions();
+        ShapeStatsCalculator calculator =
+            new ShapeStatsCalculator(data, null, null, 100);
+        int[] zs = new int[] { 0 };
+        int[] channels = new int[] { 1 };
+        int[] ts = new int[] { 0 };
+        Shape a = new Shape().rectangle(0, 0, 10, 10);
+        Shape b = new Shape().rectangle(50, 50, 5, 5);
+        Accumulator[] as = calculator.add(a.points, zs, channels, ts);
+        Accumulator[] bs = calculator.add(b.points, zs, channels, ts);
+        calculator.run();
+
+        // The box of both shapes is too large: one region per shape.
+        assertEquals(2, data.read.size());
+        assertRegionsWithin(data.read, 100);
+        assertStats(a.expected(zs, 1, ts), as[0]);
+        assertStats(b.expected(zs, 1, ts), bs[0]);
+    }
+
+    @Test
+    public void testOversizedShapeReadByTiles() throws Exception {
+        Regions data = new Regions();
+        ShapeStatsCalculator calculator =
+            new ShapeStatsCalculator(data, null, null, 16);
+        int[] zs = new int[] { 2 };
+        int[] channels = new int[] { 0 };
+        int[] ts = new int[] { 1 };
+        // An L of 4x4 tiles, 3 columns and 2 rows, only 4 tiles of which
+        // hold points; its box ends within the last column and row.
+        Shape shape = new Shape().rectangle(1, 1, 10, 1).rectangle(1, 2, 1, 5);
+        Accumulator[] acc = calculator.add(shape.points, zs, channels, ts);
+        calculator.run();
+
+        assertEquals(4, data.read.size());
+        assertRegionsWithin(data.read, 16);
+        for (int[] region : data.read) {
+            assertTrue(region[3] + region[5] <= 11);
+            assertTrue(region[4] + region[6] <= 7);
+        }
+        assertStats(shape.expected(zs, 0, ts), acc[0]);
+    }
+
+    @Test
+    public void testShapeLargerThanRegions() throws Exception {
+        Regions data = new Regions();
+        ShapeStatsCalculator calculator =
+            new ShapeStatsCalculator(data, null, null);
+        int[] zs = new int[] { 0 };
+        int[] channels = new int[] { 1 };
+        int[] ts = new int[] { 0 };
+        int side = 4097;
+        Shape shape = new Shape().rectangle(3, 5, side, side);
+        // One span per row whichever the width of the shape.
+        assertEquals(side, shape.points.spanCount());
+        Accumulator[] acc = calculator.add(shape.points, zs, channels, ts);
+        calculator.run();
+
+        assertEquals(4, data.read.size());
+        assertRegionsWithin(data.read,
+                ShapeStatsCalculator.MAX_REGION_PIXELS);
+        assertStats(shape.expected(zs, 1, ts), acc[0]);
+    }
+
+    @Test
+    public void testUnorderedPoints() throws Exception {
+        Regions data = new Regions();
+        ShapeStatsCalculator calculator =
+            new ShapeStatsCalculator(data, null, null, 16);
+        int[] zs = new int[] { 0 };
+        int[] channels = new int[] { 0 };
+        int[] ts = new int[] { 0 };
+        Shape shape = new Shape();
+        for (int y = 9; y >= 0; y--) {
+            for (int x = 12; x >= 0; x -= 2) {
+                shape.add(x, y);
+            }
+        }
+        for (int y = 0; y < 10; y++) {
+            for (int x = 1; x < 13; x += 2) {
+                shape.add(x, y);
+            }
+        }
+        Accumulator[] acc = calculator.add(shape.points, zs, channels, ts);
+        // The points of each row are merged into one span once sorted.
+        assertEquals(10, shape.points.spanCount());
+        calculator.run();
+
+        assertRegionsWithin(data.read, 16);
+        assertStats(shape.expected(zs, 0, ts), acc[0]);
+    }
+
+    @Test
+    public void testEmptyShape() throws Exception {
+        Regions data = new Regions();
+        ShapeStatsCalculator calculator =
+            new ShapeStatsCalculator(data, null, null);
+        Accumulator[] acc = calculator.add(new Points(), new int[] { 0 },
+                new int[] { 0 }, new int[] { 0 });
+        calculator.run();
+
+        assertTrue(data.read.isEmpty());
+        assertEquals(0, acc[0].count);
+    }
+}
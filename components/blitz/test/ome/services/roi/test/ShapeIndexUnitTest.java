@@ -0,0 +1,115 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.roi.test;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ome.services.roi.ShapeIndex;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks the {@link ShapeIndex} against a scan of all the shapes.
+ */
+@Test(groups = { "rois" })
+public class ShapeIndexUnitTest extends TestCase {
+
+    private static Rectangle2D box(double x, double y, double w, double h) {
+        return new Rectangle2D.Double(x, y, w, h);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        ShapeIndex index = new ShapeIndex.Builder().build();
+        assertEquals(0, index.size());
+        assertTrue(index.find(0, 0, 0, 0, 1000, 1000).isEmpty());
+    }
+
+    @Test
+    public void testPlanes() throws Exception {
+        ShapeIndex index = new ShapeIndex.Builder()
+            .add(1, 0, 0, box(10, 10, 5, 5))
+            .add(2, 1, 0, box(10, 10, 5, 5))
+            .add(3, null, 0, box(10, 10, 5, 5))
+            .add(4, null, null, box(10, 10, 5, 5))
+            .build();
+        assertEquals(Arrays.asList(1L, 3L, 4L), index.find(0, 0, 0, 0, 20, 20));
+        assertEquals(Arrays.asList(2L, 3L, 4L), index.find(1, 0, 0, 0, 20, 20));
+        assertEquals(Arrays.asList(4L), index.find(0, 1, 0, 0, 20, 20));
+    }
+
+    @Test
+    public void testEdges() throws Exception {
+        ShapeIndex index = new ShapeIndex.Builder(16)
+            .add(1, 0, 0, box(10, 10, 6, 6))
+            .add(2, 0, 0, box(40, 40, 0, 0))
+            .build();
+        assertEquals(Arrays.asList(1L), index.find(0, 0, 16, 16, 10, 10));
+        assertEquals(Collections.emptyList(), index.find(0, 0, 17, 0, 10, 10));
+        assertEquals(Arrays.asList(2L), index.find(0, 0, 30, 30, 10, 10));
+        assertEquals(Arrays.asList(1L, 2L), index.find(0, 0, -5, -5, 100, 100));
+    }
+
+    @Test
+    public void testLargeShapes() throws Exception {
+        ShapeIndex index = new ShapeIndex.Builder(10)
+            .add(1, 0, 0, box(-500, -500, 5000, 5000))
+            .add(2, 0, 0, box(3, 3, 1, 1))
+            .build();
+        assertEquals(Arrays.asList(1L), index.find(0, 0, 4000, 4000, 1, 1));
+        assertEquals(Arrays.asList(1L, 2L), index.find(0, 0, 0, 0, 5, 5));
+    }
+
+    @Test
+    public void testAgainstScan() throws Exception {
+        Random random = new Random(17L);
+        ShapeIndex.Builder builder = new ShapeIndex.Builder(64);
+        List<Rectangle2D> boxes = new ArrayList<Rectangle2D>();
+        List<Integer> zs = new ArrayList<Integer>();
+        List<Integer> ts = new ArrayList<Integer>();
+        for (int i = 0; i < 2000; i++) {
+            double size = random.nextInt(10) == 0 ? 2000 : 40;
+            Rectangle2D box = box(random.nextDouble() * 4000 - 100,
+                    random.nextDouble() * 4000 - 100,
+                    random.nextDouble() * size, random.nextDouble() * size);
+            Integer z = random.nextInt(4) == 0 ? null : random.nextInt(3);
+            Integer t = random.nextInt(4) == 0 ? null : random.nextInt(2);
+            builder.add(i, z, t, box);
+            boxes.add(box);
+            zs.add(z);
+            ts.add(t);
+        }
+        ShapeIndex index = builder.build();
+        assertEquals(2000, index.size());
+        for (int q = 0; q < 200; q++) {
+            int z = random.nextInt(3);
+            int t = random.nextInt(2);
+            double x = random.nextDouble() * 4000;
+            double y = random.nextDouble() * 4000;
+            double w = random.nextDouble() * (q % 10 == 0 ? 4000 : 300);
+            double h = random.nextDouble() * (q % 10 == 0 ? 4000 : 300);
+            List<Long> expected = new ArrayList<Long>();
+            for (int i = 0; i < boxes.size(); i++) {
+                Rectangle2D box = boxes.get(i);
+                if ((zs.get(i) == null || zs.get(i) == z)
+                        && (ts.get(i) == null || ts.get(i) == t)
+                        && box.getMinX() <= x + w && box.getMaxX() >= x
+                        && box.getMinY() <= y + h && box.getMaxY() >= y) {
+                    expected.add((long) i);
+                }
+            }
+            assertEquals(expected, index.find(z, t, x, y, w, h));
+        }
+    }
+}
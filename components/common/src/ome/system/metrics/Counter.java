@@ -29,6 +29,11 @@ public interface Counter {
      */
     void inc();
 
+    /**
+     * @see com.codahale.metrics.Counter#inc(long)
+     */
+    void inc(long n);
+
     /**
      * @see com.codahale.metrics.Counter#getCount()
      */
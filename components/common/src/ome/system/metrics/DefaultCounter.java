@@ -38,6 +38,13 @@ public class DefaultCounter implements Counter {
         c.inc();
     }
 
+    /**
+     * @see com.codahale.metrics.Counter#inc(long)
+     */
+    public void inc(long n) {
+        c.inc(n);
+    }
+
     /**
      * @see com.codahale.metrics.Counter#getCount()
      */
@@ -140,6 +140,11 @@ public class NullMetrics implements Metrics {
             // no-op
         }
 
+        @Override
+        public void inc(long n) {
+            // no-op
+        }
+
         public void dec() {
             // no-op
         }
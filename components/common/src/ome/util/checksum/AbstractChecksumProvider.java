@@ -20,6 +20,7 @@
 package ome.util.checksum;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -27,7 +28,6 @@ import com.google.common.base.Optional;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
-import com.google.common.io.Files;
 
 /**
  * Abstract skeleton class implementing {@link ChecksumProvider} and providing
@@ -41,6 +41,9 @@ import com.google.common.io.Files;
  */
 public class AbstractChecksumProvider implements ChecksumProvider {
 
+    /** The maximum size of the buffer of the reads of {@link #putFile(String)}. */
+    private static final int FILE_BUFFER_SIZE = 1024 * 1024;
+
     private final HashFunction hashFunction;
 
     private Hasher hasher;
@@ -95,12 +98,29 @@ public class AbstractChecksumProvider implements ChecksumProvider {
      */
     public ChecksumProvider putFile(String filePath) {
         this.verifyState(this.hashBytes, this.hashString);
+        final File file = new File(filePath);
+        final byte[] buffer = new byte[(int) Math.max(1,
+                Math.min(FILE_BUFFER_SIZE, file.length()))];
+        final Hasher fileHasher = this.hashFunction.newHasher();
+        FileInputStream stream = null;
         try {
-            this.hashCode = Optional.of(
-                    Files.hash(new File(filePath), this.hashFunction));
+            stream = new FileInputStream(file);
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                fileHasher.putBytes(buffer, 0, read);
+            }
+            this.hashCode = Optional.of(fileHasher.hash());
             return this;
         } catch (IOException io) {
             throw new RuntimeException(io);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException io) {
+                    // already read
+                }
+            }
         }
     }
 
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.util.checksum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.system.metrics.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Calculates the checksums of files on a bounded pool of threads. The files
+ * are hashed concurrently and, for the algorithms whose checksum of a file
+ * can be combined from those of its parts ({@link ChecksumType#ADLER32} and
+ * {@link ChecksumType#CRC32}), large files are hashed in chunks concurrently.
+ * The checksums are the same as those of the {@link ChecksumProvider} of the
+ * algorithm.
+ *
+ * @since 5.4.1
+ */
+public class ChecksumService {
+
+    private static final Logger log = LoggerFactory.getLogger(ChecksumService.class);
+
+    /** The default size of the chunks of a file hashed concurrently. */
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    /** The size of the buffer of each read from a file. */
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final int ADLER_BASE = 65521;
+
+    private static final long CRC32_POLYNOMIAL = 0xedb88320L;
+
+    private final ChecksumProviderFactory checksumProviderFactory;
+
+    private final ExecutorService pool;
+
+    private final long chunkSize;
+
+    private Timer hashTimer = new NullMetrics().timer(this, "hash");
+
+    private Counter hashedBytes = new NullMetrics().counter(this, "bytes");
+
+    public ChecksumService(ChecksumProviderFactory checksumProviderFactory,
+            int threads) {
+        this(checksumProviderFactory, threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param checksumProviderFactory the source of the providers of the
+     * algorithms which cannot be hashed in chunks
+     * @param threads the number of files or chunks hashed at once
+     * @param chunkSize the size of the chunks of a file hashed concurrently
+     */
+    public ChecksumService(ChecksumProviderFactory checksumProviderFactory,
+            int threads, long chunkSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+        }
+        this.checksumProviderFactory = checksumProviderFactory;
+        this.chunkSize = chunkSize;
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("checksum-%d").setDaemon(true).build());
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.hashTimer = metrics.timer(this, "hash");
+        this.hashedBytes = metrics.counter(this, "bytes");
+    }
+
+    /**
+     * Stops the threads of the pool, interrupting any hashing.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Calculates the checksum of a file.
+     *
+     * @param file the file
+     * @param checksumType the algorithm
+     * @return the checksum as {@link ChecksumProvider#checksumAsString()}
+     */
+    public String hash(File file, ChecksumType checksumType) {
+        return hash(Collections.singletonList(file), checksumType).get(0);
+    }
+
+    /**
+     * Calculates the checksums of files concurrently. Throws a
+     * RuntimeException in a case of an IO error.
+     *
+     * @param files the files
+     * @param checksumType the algorithm
+     * @return the checksums of the files, in the same order, as
+     * {@link ChecksumProvider#checksumAsString()}
+     */
+    public List<String> hash(List<File> files, final ChecksumType checksumType) {
+        // The chunks of a missing file would be none, as for an empty file.
+        for (final File file : files) {
+            if (!file.isFile() || !file.canRead()) {
+                throw new RuntimeException(new FileNotFoundException(
+                        "Cannot read " + file.getPath()));
+            }
+        }
+        final boolean chunked = isChunkable(checksumType);
+        final List<List<Future<Long>>> chunks = new ArrayList<List<Future<Long>>>(files.size());
+        final List<Future<String>> wholes = new ArrayList<Future<String>>(files.size());
+        final List<Long> lengths = new ArrayList<Long>(files.size());
+        final Timer.Context timer = hashTimer.time();
+        final long startTime = System.nanoTime();
+        long bytes = 0;
+        try {
+            // Every task is submitted from here so that none waits on another.
+            for (final File file : files) {
+                final long length = file.length();
+                lengths.add(length);
+                bytes += length;
+                if (chunked) {
+                    final List<Future<Long>> fileChunks = new ArrayList<Future<Long>>();
+                    for (long start = 0; start < length; start += chunkSize) {
+                        final long end = Math.min(length, start + chunkSize);
+                        fileChunks.add(pool.submit(
+                                new ChunkTask(file, checksumType, start, end)));
+                    }
+                    chunks.add(fileChunks);
+                } else {
+                    wholes.add(pool.submit(new Callable<String>() {
+                        @Override
+                        public String call() {
+                            return checksumProviderFactory.getProvider(checksumType)
+                                    .putFile(file.getPath()).checksumAsString();
+                        }
+                    }));
+                }
+            }
+
+            final List<String> hashes = new ArrayList<String>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                if (chunked) {
+                    hashes.add(combine(checksumType, lengths.get(i), chunks.get(i)));
+                } else {
+                    hashes.add(get(wholes.get(i)));
+                }
+            }
+            hashedBytes.inc(bytes);
+            return hashes;
+        } finally {
+            timer.stop();
+            final long millis = (System.nanoTime() - startTime) / 1000000;
+            if (log.isDebugEnabled() && millis > 0) {
+                log.debug(String.format("Hashed %s file(s), %s bytes in %s ms (%.1f MB/s)",
+                        files.size(), bytes, millis, bytes / 1000.0 / millis));
+            }
+            for (final List<Future<Long>> fileChunks : chunks) {
+                for (final Future<Long> chunk : fileChunks) {
+                    chunk.cancel(true);
+                }
+            }
+            for (final Future<String> whole : wholes) {
+                whole.cancel(true);
+            }
+        }
+    }
+
+    static boolean isChunkable(ChecksumType checksumType) {
+        return checksumType == ChecksumType.ADLER32 || checksumType == ChecksumType.CRC32;
+    }
+
+    private String combine(ChecksumType checksumType, long length,
+            List<Future<Long>> fileChunks) {
+        long value = newChecksum(checksumType).getValue();
+        long start = 0;
+        for (final Future<Long> chunk : fileChunks) {
+            final long chunkLength = Math.min(chunkSize, length - start);
+            if (checksumType == ChecksumType.ADLER32) {
+                value = combineAdler32(value, get(chunk), chunkLength);
+            } else {
+                value = combineCrc32(value, get(chunk), chunkLength);
+            }
+            start += chunkLength;
+        }
+        // As the checksum hash functions of Guava
+        return HashCode.fromInt((int) value).toString();
+    }
+
+    private static Checksum newChecksum(ChecksumType checksumType) {
+        return checksumType == ChecksumType.ADLER32 ? new Adler32() : new CRC32();
+    }
+
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two sequences of bytes, as
+     * <code>adler32_combine</code> of zlib.
+     *
+     * @param adler1 the checksum of the first sequence
+     * @param adler2 the checksum of the second sequence
+     * @param length2 the length of the second sequence
+     * @return the checksum of the concatenated sequences
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Combines the CRC-32 checksums of two sequences of bytes, as
+     * <code>crc32_combine</code> of zlib.
+     *
+     * @param crc1 the checksum of the first sequence
+     * @param crc2 the checksum of the second sequence
+     * @param length2 the length of the second sequence
+     * @return the checksum of the concatenated sequences
+     */
+    static long combineCrc32(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        final long[] even = new long[32];
+        final long[] odd = new long[32];
+
+        // operator for one zero bit
+        odd[0] = CRC32_POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operators for two and four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply length2 zero bytes to crc1
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return (crc1 ^ crc2) & 0xffffffffL;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+
+    /**
+     * Hashes a chunk of a file with a {@link Checksum} of its own.
+     */
+    private static class ChunkTask implements Callable<Long> {
+
+        private final File file;
+        private final ChecksumType checksumType;
+        private final long start, end;
+
+        ChunkTask(File file, ChecksumType checksumType, long start, long end) {
+            this.file = file;
+            this.checksumType = checksumType;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            final Checksum checksum = newChecksum(checksumType);
+            final ByteBuffer buffer = ByteBuffer.allocate(
+                    (int) Math.min(BUFFER_SIZE, end - start));
+            final FileInputStream stream = new FileInputStream(file);
+            try {
+                final FileChannel channel = stream.getChannel();
+                long position = start;
+                while (position < end) {
+                    if (Thread.interrupted()) {
+                        throw new IOException("Interrupted hashing " + file);
+                    }
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    final int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("File truncated while hashing: " + file);
+                    }
+                    checksum.update(buffer.array(), 0, read);
+                    position += read;
+                }
+            } finally {
+                stream.close();
+            }
+            return checksum.getValue();
+        }
+    }
+}
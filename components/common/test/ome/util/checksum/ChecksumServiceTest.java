@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.util.checksum;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+
+/**
+ * Checks that {@link ChecksumService} calculates the same checksums as the
+ * {@link ChecksumProvider} of each algorithm, however the files are chunked.
+ *
+ * @since 5.4.1
+ */
+public class ChecksumServiceTest {
+
+    private static final int[] SIZES = {0, 1, 999, 1000, 1001, 5432, 100000};
+
+    private final ChecksumProviderFactory factory = new ChecksumProviderFactoryImpl();
+
+    private final List<byte[]> contents = new ArrayList<byte[]>();
+
+    private final List<File> files = new ArrayList<File>();
+
+    private ChecksumService service;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        final Random random = new Random(7L);
+        for (final int size : SIZES) {
+            final byte[] content = new byte[size];
+            random.nextBytes(content);
+            final File file = File.createTempFile("checksum-service", ".bin");
+            file.deleteOnExit();
+            Files.write(content, file);
+            contents.add(content);
+            files.add(file);
+        }
+        service = new ChecksumService(factory, 3, 1000);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        service.close();
+        for (final File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHashesMatchProviders() {
+        for (final ChecksumType checksumType : ChecksumType.values()) {
+            final List<String> hashes = service.hash(files, checksumType);
+            Assert.assertEquals(hashes.size(), files.size());
+            for (int i = 0; i < files.size(); i++) {
+                final String expected = factory.getProvider(checksumType)
+                        .putBytes(contents.get(i)).checksumAsString();
+                Assert.assertEquals(hashes.get(i), expected,
+                        checksumType + " of " + SIZES[i] + " bytes");
+            }
+        }
+    }
+
+    @Test
+    public void testSingleFile() {
+        final int last = files.size() - 1;
+        Assert.assertEquals(service.hash(files.get(last), ChecksumType.SHA1),
+                factory.getProvider(ChecksumType.SHA1)
+                    .putFile(files.get(last).getPath()).checksumAsString());
+    }
+
+    @Test
+    public void testCombine() {
+        final byte[] content = contents.get(contents.size() - 1);
+        for (final int cut : new int[] {0, 1, 65521, 70000, content.length}) {
+            final Adler32 adler1 = new Adler32(), adler2 = new Adler32(), adler = new Adler32();
+            adler1.update(content, 0, cut);
+            adler2.update(content, cut, content.length - cut);
+            adler.update(content);
+            Assert.assertEquals(ChecksumService.combineAdler32(adler1.getValue(),
+                    adler2.getValue(), content.length - cut), adler.getValue());
+            final CRC32 crc1 = new CRC32(), crc2 = new CRC32(), crc = new CRC32();
+            crc1.update(content, 0, cut);
+            crc2.update(content, cut, content.length - cut);
+            crc.update(content);
+            Assert.assertEquals(ChecksumService.combineCrc32(crc1.getValue(),
+                    crc2.getValue(), content.length - cut), crc.getValue());
+        }
+    }
+
+    @Test
+    public void testMissingFile() {
+        final List<File> missing = new ArrayList<File>();
+        missing.add(new File(files.get(0).getPath() + ".missing"));
+        for (final ChecksumType checksumType : ChecksumType.values()) {
+            try {
+                service.hash(missing, checksumType);
+                Assert.fail(checksumType + " of a missing file");
+            } catch (RuntimeException e) {
+                Assert.assertTrue(e.getCause() instanceof FileNotFoundException);
+            }
+        }
+    }
+}
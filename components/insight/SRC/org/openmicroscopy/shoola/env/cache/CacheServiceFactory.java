@@ -116,6 +116,7 @@ public class CacheServiceFactory
 			public void removeCache(int cacheID) {}
 			public void clearCache(int cacheID) {}
 			public void setCacheEntries(int cacheID, int size) {}
+			public void setCacheBytes(int cacheID, long bytes) {}
 			public void clearAllCaches() {}
             public void shutDown() {}
 		};
@@ -27,6 +27,8 @@ import java.io.InputStream;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.MemoryUnit;
 import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
 
 import omero.gateway.cache.CacheService;
@@ -113,6 +115,17 @@ class CacheServiceImpl
 						false, 300, 600, false, 300, null, null, 10000000);
 				manager.addCache(cache);
 				break;
+			case IN_MEMORY_BYTES:
+				cacheID++;
+				//The least recently used elements are evicted once their
+				//size reaches the given number of bytes, none go to disk.
+				cache = new Cache(new CacheConfiguration(""+cacheID, 0)
+						.memoryStoreEvictionPolicy(
+								MemoryStoreEvictionPolicy.LRU)
+						.maxBytesLocalHeap(size, MemoryUnit.BYTES)
+						.timeToIdleSeconds(300).timeToLiveSeconds(600));
+				manager.addCache(cache);
+				break;
 			case DEFAULT:
 				cacheID++;
 				manager.addCache(""+cacheID);
@@ -168,9 +181,7 @@ class CacheServiceImpl
 	        log.debug(this, msg);
 		}
 		if (cache == null) return;
-		if (cache.getSize() >= 
-			cache.getCacheConfiguration().getMaxElementsInMemory())
-			cache.flush();
+		//The cache evicts elements itself when full.
 		cache.put(new Element(key, element));
 	}
 	
@@ -265,5 +276,26 @@ class CacheServiceImpl
 		cache.flush();
 		cache.getCacheConfiguration().setMaxElementsInMemory(size);
 	}
+
+	/** 
+	 * Implemented as specified by {@link CacheService}.
+	 * @see CacheService#setCacheBytes(int, long)
+	 */
+	public void setCacheBytes(int cacheID, long bytes)
+	{
+		Cache cache = null;
+		try {
+			cache = manager.getCache(""+cacheID);
+		} catch (Exception e) {
+			String s = "Cannot retrieve cache with ID: "+cacheID;
+	        LogMessage msg = new LogMessage();
+	        msg.print(s);
+	        msg.print(e);
+	        log.debug(this, msg);
+		}
+		if (cache == null) return;
+		if (bytes <= 0) bytes = 1;
+		cache.getCacheConfiguration().setMaxBytesLocalHeap(bytes);
+	}
 	
 }
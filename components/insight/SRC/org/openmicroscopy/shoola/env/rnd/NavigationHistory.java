@@ -110,6 +110,22 @@ class NavigationHistory
             history.remove(0);
     }
     
+    /**
+     * Returns <code>true</code> if the passed plane definitions have the same
+     * z and t indexes, <code>false</code> otherwise.
+     * Note that {@link PlaneDef} doesn't override <code>equals</code>.
+     * 
+     * @param pd    The plane definition to compare.  Mustn't be 
+     *              <code>null</code>.
+     * @param other The plane definition to compare with.  May be 
+     *              <code>null</code>.
+     * @return See above.
+     */
+    private boolean isSameMove(PlaneDef pd, PlaneDef other)
+    {
+        return other != null && pd.z == other.z && pd.t == other.t;
+    }
+    
     /**
      * Returns the plane definition that was added by the second last call
      * to {@link #addMove(PlaneDef)}.
@@ -196,7 +212,7 @@ class NavigationHistory
         
         //Check if pd is the current move.  If so, return as we haven't moved
         //at all from the previous point.
-        if (pd.equals(curMove())) return;  //curMove can be null, but pd is not.
+        if (isSameMove(pd, curMove())) return;  //curMove can be null.
         
         //Now make a copy to avoid caller changing entry after we added.
         pd = new PlaneDef();
@@ -273,12 +289,14 @@ class NavigationHistory
             pd = new PlaneDef();
             pd.slice = omero.romio.XY.value;
             pd.t = (int) p.x2;
-            pd.y = (int) p.x1;
+            pd.z = (int) p.x1;
             
             //Even though dir.getPoint is monotonic, we could be getting a pd
             //equal to the previous one b/c of the above casts to int.  However,
             //this shouldn't happen if navigation is || to the z or t axis.
-            if (!nextMoves.contains(pd))  //Never allow duplicates.
+            if (nextMoves.isEmpty() ||  //Never allow duplicates.
+                    !isSameMove(pd, 
+                            (PlaneDef) nextMoves.get(nextMoves.size()-1)))
                 nextMoves.add(pd);
         }
         return (PlaneDef[]) nextMoves.toArray(new PlaneDef[0]);
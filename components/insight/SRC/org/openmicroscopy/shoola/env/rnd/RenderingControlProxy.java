@@ -27,17 +27,27 @@ import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import omero.LockTimeout;
+import omero.api.Callback_RenderingEngine_renderCompressed;
 import omero.api.RenderingEnginePrx;
 import omero.api.ResolutionDescription;
 import omero.model.CodomainMapContext;
@@ -113,6 +123,15 @@ class RenderingControlProxy
 	/** The maximum number of retry.*/
 	private static final int MAX_RETRY = 2;
 	
+	/** The maximum number of planes rendered ahead of the viewer. */
+	private static final int MAX_PREFETCH = 3;
+	
+	/** The number of moves used to guess the planes to prefetch. */
+	private static final int MAX_HISTORY = 10;
+	
+	/** The time, in seconds, to wait for a plane being prefetched. */
+	private static final long PREFETCH_WAIT = 10;
+	
     /** List of supported families. */
     private List families;
     
@@ -122,11 +141,39 @@ class RenderingControlProxy
     /** The pixels set to render. */
     private Pixels pixs;
     
-    /** Reference to service to render pixels set. */
+    /**
+     * Reference to service to render pixels set, forwarding the calls to
+     * {@link #engine} one at a time.
+     */
     private RenderingEnginePrx servant;
 
+    /** The service to render pixels set, used directly to prefetch planes. */
+    private volatile RenderingEnginePrx engine;
+
+    /**
+     * Held during each call to the rendering engine. The engine is stateful
+     * and cannot serve concurrent calls so a plane is prefetched only when
+     * no other call is running or waiting.
+     */
+    private final Semaphore engineLock;
+
     /** The id of the cache associated to this proxy. */
-    private int cacheID;
+    private volatile int cacheID;
+    
+    /** Incremented each time the cached planes become out of date. */
+    private volatile int cacheGeneration;
+    
+    /** Lock preventing planes rendered with old settings to be cached. */
+    private final Object cacheLock;
+    
+    /** The latches of the planes being prefetched, indexed by cache key. */
+    private final Map<Integer, CountDownLatch> prefetching;
+
+    /** The planes to prefetch, one at a time, in that order. */
+    private final LinkedList<PlaneDef> toPrefetch;
+    
+    /** Keeps track of the planes rendered to guess the next ones. */
+    private NavigationHistory navigationHistory;
     
     /** The channel metadata. */
     private ChannelData[] metadata;
@@ -140,12 +187,9 @@ class RenderingControlProxy
     /** Helper reference to the registry. */
     private Registry context;
     
-    /** The size of the cache. */
+    /** The size of the cache, in bytes. */
     private int cacheSize;
     
-    /** The size of the image. */
-    private int imageSize;
-    
     /** The rendering settings. */
     private Map<String, List<RndProxyDef>> settings;
     
@@ -263,57 +307,281 @@ class RenderingControlProxy
 	}
 
     /**
-     * Retrieves from the cache the buffered image representing the specified
-     * plane definition. Note that only the images corresponding to an XY-plane
-     * are cached.
-     * 
+     * Returns the key of the specified plane in the cache or
+     * <code>null</code> if the plane cannot be cached. Note that only the
+     * whole XY-planes of images that are not big images are cached.
+     *
+     * @param pd The specified {@link PlaneDef plane definition}.
+     * @return See above.
+     */
+    private Integer getCacheKey(PlaneDef pd)
+    {
+    	if (pd.slice != omero.romio.XY.value || pd.region != null) return null;
+    	if (isBigImage()) return null;
+    	return Integer.valueOf(pd.z+getPixelsDimensionsZ()*pd.t);
+    }
+
+    /**
+     * Retrieves from the cache the rendered plane corresponding to the
+     * specified plane definition i.e. the compressed bytes or the packed
+     * pixels.
+     *
      * @param pd The specified {@link PlaneDef plane definition}.
-     * @return The corresponding bufferedImage.
+     * @return The corresponding plane or <code>null</code>.
      */
     private Object getFromCache(PlaneDef pd)
     {
-        // We only cache XY images.
-    	if (pd.slice == omero.romio.XY.value && cacheID >= 0) {
-    		int index = pd.z+getPixelsDimensionsZ()*pd.t;
-    		return context.getCacheService().getElement(cacheID, index);
-    	}
-        return null;
+    	Integer key = getCacheKey(pd);
+    	if (key == null || cacheID < 0) return null;
+    	return context.getCacheService().getElement(cacheID, key);
     }
-    
+
     /**
-     * Caches the specified image if it corresponds to an XYPlane.
-     * 
+     * Caches the specified plane if it corresponds to an XYPlane.
+     *
      * @param pd The plane definition.
-     * @param object The buffered image to cache or the bytes array.
+     * @param object The bytes array or the packed pixels to cache.
      */
     private void cache(PlaneDef pd, Object object)
     {
-    	if (isBigImage()) return;
-        if (pd.slice == omero.romio.XY.value) {
-            //We only cache XY images.
-            //if (xyCache != null) xyCache.add(pd, object);
-        	if (cacheID >= 0) {
-        		int index = pd.z+getPixelsDimensionsZ()*pd.t;
-        		//context.getCacheService().addElement(cacheID,
-        			//	Integer.valueOf(index), object);
-        	}
-        }
+    	Integer key = getCacheKey(pd);
+    	if (key == null || object == null || cacheID < 0) return;
+    	context.getCacheService().addElement(cacheID, key, object);
     }
-    
-    /** Clears the cache. */
+
+    /**
+     * Clears the cache and the planes to prefetch. The planes still being
+     * prefetched will not be cached since they were rendered with the
+     * previous settings.
+     */
     private void invalidateCache()
     {
     	if (isBigImage()) return;
-    	if (cacheID >= 0) context.getCacheService().clearCache(cacheID);
+    	synchronized (toPrefetch) {
+    		toPrefetch.clear();
+		}
+    	synchronized (cacheLock) {
+    		cacheGeneration++;
+    		if (cacheID >= 0) context.getCacheService().clearCache(cacheID);
+		}
     }
-    
+
     /** Clears the cache and releases memory. */
     private void eraseCache()
     {
     	if (isBigImage()) return;
     	invalidateCache();
-    	if (cacheID >=0)
+    	if (cacheID >= 0) {
     		context.getCacheService().removeCache(cacheID);
+    		cacheID = -1;
+    	}
+    }
+
+    /**
+     * Returns the plane to render along with the specified one.
+     *
+     * @param pDef The plane requested by the viewer.
+     * @param z The selected z-section.
+     * @param t The selected timepoint.
+     * @return See above.
+     */
+    private PlaneDef createPlane(PlaneDef pDef, int z, int t)
+    {
+    	PlaneDef plane = new PlaneDef();
+    	plane.slice = omero.romio.XY.value;
+    	plane.z = z;
+    	plane.t = t;
+    	plane.stride = pDef.stride;
+    	return plane;
+    }
+
+    /**
+     * Renders in the background the planes the user is likely to view after
+     * the specified one so that they are in the cache when requested.
+     * The planes are guessed by the {@link NavigationHistory} i.e. in the
+     * current direction or are the neighbouring z-sections and timepoints
+     * if the direction is not known yet.
+     *
+     * @param pDef The plane that has just been rendered.
+     */
+    private void prefetch(PlaneDef pDef)
+    {
+    	if (shutDown || cacheID < 0 || getCacheKey(pDef) == null) return;
+    	int sizeZ = getPixelsDimensionsZ();
+    	int sizeT = getPixelsDimensionsT();
+    	if (sizeZ*sizeT < 2) return;
+    	try {
+    		if (navigationHistory == null)
+    			navigationHistory = new NavigationHistory(MAX_HISTORY, sizeZ,
+    					sizeT);
+    		navigationHistory.addMove(pDef);
+    		PlaneDef[] moves = navigationHistory.guessNextMoves(MAX_PREFETCH);
+    		List<PlaneDef> planes = new ArrayList<PlaneDef>();
+    		for (int i = 0; i < moves.length; i++)
+    			planes.add(createPlane(pDef, moves[i].z, moves[i].t));
+    		if (planes.isEmpty()) {
+    			if (pDef.z+1 < sizeZ)
+    				planes.add(createPlane(pDef, pDef.z+1, pDef.t));
+    			if (pDef.z > 0)
+    				planes.add(createPlane(pDef, pDef.z-1, pDef.t));
+    			if (pDef.t+1 < sizeT)
+    				planes.add(createPlane(pDef, pDef.z, pDef.t+1));
+    			if (pDef.t > 0)
+    				planes.add(createPlane(pDef, pDef.z, pDef.t-1));
+    		}
+    		synchronized (toPrefetch) {
+    			toPrefetch.clear();
+    			toPrefetch.addAll(planes.subList(0,
+    					Math.min(planes.size(), MAX_PREFETCH)));
+			}
+    		prefetchNext();
+		} catch (Exception e) {
+			log("Cannot prefetch planes: "+e);
+		}
+    }
+
+    /**
+     * Renders the next plane to prefetch if the rendering engine is idle.
+     * The following plane is prefetched once this one is rendered.
+     */
+    private void prefetchNext()
+    {
+    	try {
+    		//Fair so that calls waiting for the engine are served first.
+    		if (shutDown || !engineLock.tryAcquire(0, TimeUnit.SECONDS))
+    			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+    	PlaneDef pDef = null;
+    	synchronized (toPrefetch) {
+    		PlaneDef plane;
+    		while (pDef == null && !toPrefetch.isEmpty()) {
+    			plane = toPrefetch.removeFirst();
+    			if (!prefetching.containsKey(getCacheKey(plane)) &&
+    					getFromCache(plane) == null)
+    				pDef = plane;
+    		}
+		}
+    	if (pDef == null) engineLock.release();
+    	else prefetchPlane(pDef);
+    }
+
+    /**
+     * Renders the specified plane asynchronously and caches it if the
+     * rendering settings have not been modified in the meantime.
+     * The {@link #engineLock} must be held and is released once the plane
+     * is rendered.
+     *
+     * @param pDef The plane to render.
+     */
+    private void prefetchPlane(final PlaneDef pDef)
+    {
+    	final Integer key = getCacheKey(pDef);
+    	final int generation = cacheGeneration;
+    	final CountDownLatch done = new CountDownLatch(1);
+    	prefetching.put(key, done);
+    	Callback_RenderingEngine_renderCompressed cb =
+    		new Callback_RenderingEngine_renderCompressed() {
+
+			public void response(byte[] values)
+			{
+				synchronized (cacheLock) {
+					if (generation == cacheGeneration) cache(pDef, values);
+				}
+				prefetched(key, done);
+			}
+
+			public void exception(Ice.LocalException e)
+			{
+				log("Cannot prefetch plane "+key+": "+e);
+				prefetched(key, done);
+			}
+
+			public void exception(Ice.UserException e)
+			{
+				log("Cannot prefetch plane "+key+": "+e);
+				prefetched(key, done);
+			}
+		};
+    	try {
+    		engine.begin_renderCompressed(pDef, cb);
+		} catch (Exception e) {
+			log("Cannot prefetch plane "+key+": "+e);
+			prefetched(key, done);
+		}
+    }
+
+    /**
+     * Indicates that the plane corresponding to the specified key is no
+     * longer being prefetched and prefetches the next one.
+     *
+     * @param key The key of the plane.
+     * @param done The latch released when the plane is prefetched.
+     */
+    private void prefetched(Integer key, CountDownLatch done)
+    {
+    	prefetching.remove(key);
+    	engineLock.release();
+    	done.countDown();
+    	prefetchNext();
+    }
+
+    /**
+     * Returns a proxy forwarding the calls to the specified rendering engine
+     * one at a time, so that they never run along with the plane being
+     * prefetched.
+     *
+     * @param re The rendering engine.
+     * @return See above.
+     */
+    private RenderingEnginePrx guard(final RenderingEnginePrx re)
+    {
+    	engine = re;
+    	InvocationHandler handler = new InvocationHandler() {
+
+			public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable
+			{
+				boolean call = method.getDeclaringClass() != Object.class;
+				if (call) engineLock.acquireUninterruptibly();
+				try {
+					return method.invoke(re, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				} finally {
+					if (call) engineLock.release();
+				}
+			}
+		};
+    	return (RenderingEnginePrx) Proxy.newProxyInstance(
+    			RenderingEnginePrx.class.getClassLoader(),
+    			new Class[] {RenderingEnginePrx.class}, handler);
+    }
+
+    /**
+     * Returns the compressed plane from the cache, waiting for it if it is
+     * being prefetched, or <code>null</code> if the plane has to be rendered.
+     *
+     * @param pDef The plane to render.
+     * @return See above.
+     */
+    private byte[] getPrefetched(PlaneDef pDef)
+    {
+    	Integer key = getCacheKey(pDef);
+    	if (key == null) return null;
+    	CountDownLatch done = prefetching.get(key);
+    	if (done != null) {
+    		try {
+    			done.await(PREFETCH_WAIT, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+    	}
+    	Object values = getFromCache(pDef);
+    	if (values instanceof byte[]) return (byte[]) values;
+    	return null;
     }
     
     /**
@@ -345,7 +613,7 @@ class RenderingControlProxy
     	if (pDef.slice == omero.romio.XY.value) {
     		try {
     			cacheID = context.getCacheService().createCache(
-    					CacheService.IN_MEMORY, cacheSize/imageSize);
+    					CacheService.IN_MEMORY_BYTES, cacheSize);
 			} catch (Exception e) {
 				//log the error for example if the cache manager could not
 				//be initialized.
@@ -554,11 +822,14 @@ class RenderingControlProxy
 	private BufferedImage renderCompressedBI(PlaneDef pDef)
 		throws RenderingServiceException, DSOutOfServiceException
 	{
-		//Need to adjust the cache.
-		//Object array = getFromCache(pDef);
 		try {
-			byte[] values = servant.renderCompressed(pDef);
-			imageSize = values.length;
+			byte[] values = getPrefetched(pDef);
+			if (values == null) {
+				values = servant.renderCompressed(pDef);
+				initializeCache(pDef);
+				cache(pDef, values);
+			}
+			prefetch(pDef);
 			return WriterImage.bytesToImage(values);
 		} catch (Throwable e) {
 			if (e instanceof LockTimeout && retry < MAX_RETRY) { //retry
@@ -583,16 +854,20 @@ class RenderingControlProxy
 	private BufferedImage renderUncompressed(PlaneDef pDef)
 		throws RenderingServiceException, DSOutOfServiceException
 	{
-		//See if the requested image is in cache.
-        BufferedImage img = (BufferedImage) getFromCache(pDef);
-        //if (img != null) return img;
+		//See if the requested plane is in cache.
+        Object cached = getFromCache(pDef);
+        BufferedImage img = null;
         try {
-        	int[] buf = servant.renderAsPackedInt(pDef);
+        	int[] buf;
+        	if (cached instanceof int[]) buf = (int[]) cached;
+        	else {
+        		buf = servant.renderAsPackedInt(pDef);
+        		initializeCache(pDef);
+        		cache(pDef, buf);
+        	}
             Point p = getSize(pDef);
-            imageSize = 3*buf.length;
-            initializeCache(pDef);
-            img = Factory.createImage(buf, 32, p.x, p.y);
-            cache(pDef, img);
+            //The image shares the buffer so the cached one is not modified.
+            img = Factory.createImage(buf.clone(), 32, p.x, p.y);
 		} catch (Throwable e) {
 			if (e instanceof LockTimeout && retry < MAX_RETRY) { //retry
 				retry++;
@@ -734,13 +1009,17 @@ class RenderingControlProxy
             throw new NullPointerException("No security context.");
         this.ctx = ctx;
         slaves = new ArrayList<RenderingControl>();
+        cacheLock = new Object();
+        prefetching = new ConcurrentHashMap<Integer, CountDownLatch>();
+        toPrefetch = new LinkedList<PlaneDef>();
+        engineLock = new Semaphore(1, true);
         resolutionLevels = -1;
         selectedResolutionLevel = -1;
         lastAction = System.currentTimeMillis();
         shutDown = false;
         this.cacheSize = cacheSize;
         this.context = context;
-        servant = re;
+        servant = guard(re);
         pixs = pixels;
         families = null;
         models = null;
@@ -748,7 +1027,6 @@ class RenderingControlProxy
         	families = servant.getAvailableFamilies();
             models = servant.getAvailableModels();
             cacheID = -1;
-            imageSize = 1;
             this.compression = compression;
             metadata = new ChannelData[m.size()];
             Iterator<ChannelData> j = m.iterator();
@@ -831,24 +1109,24 @@ class RenderingControlProxy
     /**
      * Resets the rendering engine.
      * 
-     * @param servant The value to set.
+     * @param re The value to set.
      * @param rndDef Local copy of the rendering settings used to speed-up the 
      * client.
 	 * @throws RenderingServiceException If an error occurred while setting 
      * the value.
      * @throws DSOutOfServiceException If the connection is broken.
      */
-    void resetRenderingEngine(RenderingEnginePrx servant, RndProxyDef rndDef)
+    void resetRenderingEngine(RenderingEnginePrx re, RndProxyDef rndDef)
     	throws RenderingServiceException, DSOutOfServiceException
     {
-    	if (servant == null) return;
+    	if (re == null) return;
     	try {
-			this.servant.close();
+			servant.close();
 		} catch (Exception e) {
 		    log("Error while closing the rendering engine "+e);
 		}
     	invalidateCache();
-    	this.servant = servant;
+    	servant = guard(re);
     	shutDown = false;
     	lastAction = System.currentTimeMillis();
     	try {
@@ -875,22 +1153,25 @@ class RenderingControlProxy
             }
 		} catch (Exception e) {
 			handleException(e, "Cannot reset the rendering engine.");
+		} finally {
+			//Planes prefetched during the reset may use partial settings.
+			invalidateCache();
 		}
     }
     
     /**
      * Reloads the rendering engine.
      * 
-     * @param servant The value to set.
+     * @param re The value to set.
      * @throws RenderingServiceException If an error occurred while setting 
      * the value.
      * @throws DSOutOfServiceException If the connection is broken.
      */
-    void setRenderingEngine(RenderingEnginePrx servant)
+    void setRenderingEngine(RenderingEnginePrx re)
     	throws RenderingServiceException, DSOutOfServiceException
     {
-    	if (servant == null) return;
-    	this.servant = servant;
+    	if (re == null) return;
+    	servant = guard(re);
     	shutDown = false;
     	lastAction = System.currentTimeMillis();
     	// reset default of the rendering engine.
@@ -934,6 +1215,9 @@ class RenderingControlProxy
             }
 		} catch (Exception e) {
 			handleException(e, "Cannot reset the rendering engine.");
+		} finally {
+			//Planes prefetched during the reset may use partial settings.
+			invalidateCache();
 		}
     }
 
@@ -949,8 +1233,10 @@ class RenderingControlProxy
     {
     	if (shutDown) return shutDown;
     	try {
-    		if (!keepCache && cacheID >= 0)
-    			context.getCacheService().removeCache(cacheID);
+    		synchronized (toPrefetch) {
+    			toPrefetch.clear();
+			}
+    		if (!keepCache) eraseCache();
     		Iterator<RenderingControl> j = slaves.iterator();
 			while (j.hasNext())
 				((RenderingControlProxy) j.next()).shutDown();
@@ -971,9 +1257,9 @@ class RenderingControlProxy
 	 */
 	void setCacheSize(int size)
 	{
-		if (imageSize == 0) imageSize = 1;
+		cacheSize = size;
 		if (cacheID >= 0)
-			context.getCacheService().setCacheEntries(cacheID, size/imageSize);
+			context.getCacheService().setCacheBytes(cacheID, size);
 	}
 	
     /** 
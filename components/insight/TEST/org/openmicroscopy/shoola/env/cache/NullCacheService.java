@@ -101,6 +101,12 @@ public class NullCacheService
      */
 	public void setCacheEntries(int cacheID, int size) {}
 
+    /**
+     * No-op implementation
+     * @see CacheService#setCacheBytes(int, long)
+     */
+	public void setCacheBytes(int cacheID, long bytes) {}
+
     public void shutDown() {}
 	
 }
@@ -0,0 +1,166 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *  All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package omeis.providers.re;
+
+import ome.model.display.ChannelBinding;
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.lut.LutReader;
+import omeis.providers.re.quantum.Quantization_8_16_bit;
+
+/**
+ * Maps every raw value of an 8 or 16 bit integer channel onto its packed
+ * <code>0x00RRGGBB</code> contribution to the rendered image. The table
+ * combines the quantization look-up table, the codomain chain and either the
+ * colour and alpha of the channel or its lookup table, so that rendering a
+ * pixel only requires one look-up and a saturated add per component.
+ * <p>
+ * A table is only valid as long as the strategy, the codomain chain and the
+ * colour settings of the channel it was built from do not change, see
+ * {@link #isValid(int, Quantization_8_16_bit, CodomainChain, ChannelBinding)}.
+ * </p>
+ *
+ * @since 5.4.1
+ */
+final class ColorTable {
+
+    /** The {@link RowQuantizer} path the table is indexed for. */
+    private final int path;
+
+    /** The strategy the table was built from. */
+    private final Quantization_8_16_bit qs;
+
+    /** The version of the quantization look-up table. */
+    private final int qsVersion;
+
+    /** The codomain chain the table was built from. */
+    private final CodomainChain cc;
+
+    /** The version of the codomain chain. */
+    private final int ccVersion;
+
+    /** The red component of the channel. */
+    private final int red;
+
+    /** The green component of the channel. */
+    private final int green;
+
+    /** The blue component of the channel. */
+    private final int blue;
+
+    /** The alpha component of the channel. */
+    private final int alpha;
+
+    /** The name of the lookup table of the channel or <code>null</code>. */
+    private final String lookupTable;
+
+    /** The packed contributions indexed by raw value minus the type minimum. */
+    private final int[] values;
+
+    /**
+     * Builds the table of a channel.
+     *
+     * @param quantizer The quantizer of the channel, must not be generic.
+     * @param qs The quantum strategy of the channel.
+     * @param cc The codomain chain of the channel.
+     * @param cb The channel binding.
+     * @param reader The lookup table reader or <code>null</code>.
+     */
+    ColorTable(RowQuantizer quantizer, Quantization_8_16_bit qs,
+            CodomainChain cc, ChannelBinding cb, LutReader reader)
+    {
+        path = quantizer.getPath();
+        this.qs = qs;
+        qsVersion = qs.getLookupTableVersion();
+        this.cc = cc;
+        ccVersion = cc.getVersion();
+        red = cb.getRed();
+        green = cb.getGreen();
+        blue = cb.getBlue();
+        alpha = cb.getAlpha();
+        lookupTable = cb.getLookupTable();
+
+        double redRatio = red > 0 ? red / 255.0 : 0.0;
+        double greenRatio = green > 0 ? green / 255.0 : 0.0;
+        double blueRatio = blue > 0 ? blue / 255.0 : 0.0;
+        float alphaRatio = (float) alpha / 255;
+        boolean hasMap = cc.hasMapContext();
+        int min = quantizer.getRawMin();
+        values = new int[quantizer.getRawRange()];
+        int v, r, g, b;
+        for (int i = 0; i < values.length; i++) {
+            v = quantizer.quantizeRaw(min + i);
+            if (hasMap) {
+                v = cc.transform(v);
+            }
+            if (reader != null) {
+                r = reader.getRed(v) & 0xFF;
+                g = reader.getGreen(v) & 0xFF;
+                b = reader.getBlue(v) & 0xFF;
+            } else {
+                // Same truncations as the per-pixel computation.
+                r = (int) ((int) (redRatio * v) * alphaRatio);
+                g = (int) ((int) (greenRatio * v) * alphaRatio);
+                b = (int) ((int) (blueRatio * v) * alphaRatio);
+            }
+            values[i] = r << 16 | g << 8 | b;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the table still reflects the specified
+     * settings, <code>false</code> if it has to be rebuilt.
+     *
+     * @param path The {@link RowQuantizer} path of the plane to render.
+     * @param qs The current quantum strategy of the channel.
+     * @param cc The current codomain chain of the channel.
+     * @param cb The current channel binding.
+     * @return See above.
+     */
+    boolean isValid(int path, Quantization_8_16_bit qs, CodomainChain cc,
+            ChannelBinding cb)
+    {
+        if (this.path != path || this.qs != qs || this.cc != cc) {
+            return false;
+        }
+        if (qsVersion != qs.getLookupTableVersion()
+                || ccVersion != cc.getVersion()) {
+            return false;
+        }
+        if (red != cb.getRed() || green != cb.getGreen()
+                || blue != cb.getBlue() || alpha != cb.getAlpha()) {
+            return false;
+        }
+        String name = cb.getLookupTable();
+        return lookupTable == null ? name == null : lookupTable.equals(name);
+    }
+
+    /**
+     * Returns the packed <code>0x00RRGGBB</code> contributions indexed as
+     * filled by {@link RowQuantizer#readIndexes}. Must not be modified.
+     *
+     * @return See above.
+     */
+    int[] getValues()
+    {
+        return values;
+    }
+}
@@ -23,6 +23,10 @@ import omeis.providers.re.quantum.QuantumStrategy;
 
 /**
  * Transforms a plane within a given pixels set into a greyscale image.
+ * <p>
+ * Large planes are divided up into bands of rows, each band being rendered
+ * by a {@link RenderGreyScaleRegionTask}.
+ * </p>
  * 
  * @author Jean-Marie Burel &nbsp;&nbsp;&nbsp;&nbsp; <a
  *         href="mailto:j.burel@dundee.ac.uk">j.burel@dundee.ac.uk</a>
@@ -62,62 +66,24 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getRgbBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
+        PixelBuffer pixels = pixelBuffer;
+        RenderingStats performanceStats = stats;
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain(channel);
         
         // Retrieve the planar data to render
-        performanceStats.startIO(channel);
-        Plane2D plane =
-        	PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        performanceStats.endIO(channel);
+        // The buffer is shared by concurrent render calls.
+        Plane2D plane;
+        synchronized (pixels) {
+            performanceStats.startIO(channel);
+            plane = PlaneFactory.createPlane(planeDef, channel, metadata,
+                    pixels);
+            performanceStats.endIO(channel);
+        }
 
         RGBBuffer buf = getRgbBuffer();
-        
-        byte value;
-        float alpha = channelBinding.getAlpha().floatValue() / 255;
-
-        int x1, x2, discreteValue, pixelIndex;
-        byte[] r = buf.getRedBand();
-        byte[] g = buf.getBlueBand();
-        byte[] b = buf.getGreenBand();
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-            for (int i = 0; i < planeSize; i++)
-            {
-                for (x1 = 0; x1 < sizeX1; ++x1)
-                {
-                    discreteValue = qs.quantize(plane.getPixelValue(i));
-                    if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-                    value = (byte) (discreteValue * alpha);
-                    r[i] = value;
-                    g[i] = value;
-                    b[i] = value;
-                }
-            }
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			pixelIndex = sizeX1 * x2 + x1;
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-        			value = (byte) (discreteValue * alpha);
-        			r[pixelIndex] = value;
-        			g[pixelIndex] = value;
-        			b[pixelIndex] = value;
-        		}
-        	}
-        }
+        render(buf, plane, qs, cc);
         return buf;
     }
     
@@ -139,66 +105,35 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getIntBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
+        PixelBuffer pixels = pixelBuffer;
+        RenderingStats performanceStats = stats;
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain(channel);
         
         // Retrieve the planar data to render
         
+        // The buffer is shared by concurrent render calls.
         Plane2D plane;
-        try {
-        	performanceStats.startIO(channel);
-        	plane = PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        	performanceStats.endIO(channel);
-		} finally
-		{
-			try
-            {
-                pixels.close();
-            } 
-            catch (IOException e)
-            {
-                log.error("Pixels could not be closed successfully.", e);
-    			throw new ResourceError(
-    					e.getMessage() + " Please check server log.");
+        synchronized (pixels) {
+            try {
+                performanceStats.startIO(channel);
+                plane = PlaneFactory.createPlane(planeDef, channel, metadata,
+                        pixels);
+                performanceStats.endIO(channel);
+            } finally {
+                try {
+                    pixels.close();
+                } catch (IOException e) {
+                    log.error("Pixels could not be closed successfully.", e);
+                    throw new ResourceError(
+                            e.getMessage() + " Please check server log.");
+                }
             }
-		}
+        }
        
 	    RGBIntBuffer dataBuf = getIntBuffer();
-	    
-        int alpha = channelBinding.getAlpha();
-        int[] buf = ((RGBIntBuffer) dataBuf).getDataBuffer();
-        int x1, x2, discreteValue, pixelIndex;
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-        	for (int i = 0; i < planeSize; i++)
-        	{
-                discreteValue = qs.quantize(plane.getPixelValue(i));
-                if (hasMapContext) {
-                    discreteValue = cc.transform(discreteValue);
-                }
-                buf[i] = alpha << 24 | discreteValue << 16
-                        | discreteValue << 8 | discreteValue;
-        	}
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		pixelIndex = sizeX1 * x2;
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-        			buf[pixelIndex + x1] = alpha << 24 | discreteValue << 16
-        			| discreteValue << 8 | discreteValue;
-        		}
-        	}
-        }
+	    render(dataBuf, plane, qs, cc);
 	    return dataBuf;
 	}
 
@@ -220,53 +155,55 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getRGBAIntBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
+        PixelBuffer pixels = pixelBuffer;
+        RenderingStats performanceStats = stats;
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain(channel);
         
         // Retrieve the planar data to render
-        performanceStats.startIO(channel);
-        Plane2D plane =
-        	PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        performanceStats.endIO(channel);
+        // The buffer is shared by concurrent render calls.
+        Plane2D plane;
+        synchronized (pixels) {
+            performanceStats.startIO(channel);
+            plane = PlaneFactory.createPlane(planeDef, channel, metadata,
+                    pixels);
+            performanceStats.endIO(channel);
+        }
 	
 	    RGBAIntBuffer dataBuf = getRGBAIntBuffer();
-	    
-        int alpha = channelBinding.getAlpha();
-        int[] buf = ((RGBAIntBuffer) dataBuf).getDataBuffer();
-        int x1, x2, discreteValue, pixelIndex;
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-        	for (int i = 0; i < planeSize; i++)
-        	{
-                discreteValue = qs.quantize(plane.getPixelValue(i));
-                if (hasMapContext) {
-                    discreteValue = cc.transform(discreteValue);
-                }
-                buf[i] = alpha | discreteValue << 24
-                        | discreteValue << 16 | discreteValue << 8;
-        	}
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		pixelIndex = sizeX1 * x2;
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			discreteValue = cc.transform(discreteValue);
-        			buf[pixelIndex + x1] = alpha | discreteValue << 24
-        			| discreteValue << 16 | discreteValue << 8;
-        		}
-        	}
-        }
+	    render(dataBuf, plane, qs, cc);
 	    return dataBuf;
 	}
 
 
+    /**
+     * Renders the plane into the specified buffer. The plane is split into
+     * bands of rows which are rendered concurrently.
+     *
+     * @param buf The buffer to render into.
+     * @param plane The wavelength data.
+     * @param qs The quantum strategy of the channel.
+     * @param cc The codomain chain of the channel.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     */
+    private void render(RGBBuffer buf, Plane2D plane, QuantumStrategy qs,
+            CodomainChain cc) throws QuantizationException {
+        RenderingStats performanceStats = stats;
+        int alpha = channelBinding.getAlpha();
+        int taskCount = numTasks();
+        RenderingTask[] tasks = new RenderingTask[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            tasks[i] = new RenderGreyScaleRegionTask(buf, plane, qs, cc, alpha,
+                    0, sizeX1, bandStart(i, taskCount),
+                    bandStart(i + 1, taskCount));
+        }
+        performanceStats.startRendering();
+        execute(tasks);
+        performanceStats.endRendering();
+    }
+
 	/**
 	 * Initializes the first active channel binding for the current rendering
 	 * context.
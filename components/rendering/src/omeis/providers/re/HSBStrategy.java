@@ -12,9 +12,6 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
@@ -43,9 +40,11 @@ import omeis.providers.re.quantum.QuantumStrategy;
  * each wavelength is mapped to a color. All these things are specified by the
  * rendering context.
  * <p>
- * This strategy renders the in "regions", dividing the planar data up based
- * on {@link #maxTasks} and assigning each task to its own thread. This should
- * result in parallel rendering on multi-processor machines.
+ * This strategy renders the in "regions", dividing the planar data up into
+ * bands of rows based on the size of the plane and {@link #maxTasks}, and
+ * submitting each task to the {@link RenderingExecutor} shared by all
+ * renderers. This should result in parallel rendering on multi-processor
+ * machines.
  * </p>
  * <p>
  * Thread-safety relies on the fact that the rendering context is not going to
@@ -67,22 +66,6 @@ class HSBStrategy extends RenderingStrategy {
     /** The logger for this particular class */
     private static Logger log = LoggerFactory.getLogger(HSBStrategy.class);
     
-    /**
-     * Retrieves the maximum number of reasonable tasks to schedule based on
-     * image size and <i>maxTasks</i>.
-     * 
-     * @param size The width along the X2 axis.
-     * @return the number of tasks to schedule.
-     */
-    private int numTasks(int size) {
-        for (int i = maxTasks; i > 0; i--) {
-            if (size % i == 0) {
-                return i;
-            }
-        }
-        return 1;
-    }
-
     /**
      * Retrieves the wavelength data for all the active channels and overlays.
      * 
@@ -91,45 +74,48 @@ class HSBStrategy extends RenderingStrategy {
     private List<Plane2D> getWavelengthData(PlaneDef pDef) {
         ChannelBinding[] channelBindings = renderer.getChannelBindings();
         Pixels metadata = renderer.getMetadata();
-        PixelBuffer pixels = renderer.getPixels();
+        PixelBuffer pixels = pixelBuffer;
         List<Plane2D> wData = null;
-        try
-        {
-        	RenderingStats performanceStats = renderer.getStats();
-        	wData = new ArrayList<Plane2D>();
-
-        	for (int w = 0; w < channelBindings.length; w++) {
-        		if (channelBindings[w].getActive()) {
-        			performanceStats.startIO(w);
-        			wData.add(PlaneFactory.createPlane(pDef, w, metadata, 
-        					pixels));
-        			performanceStats.endIO(w);
-        		}
-        	}
-        	Map<byte[], Integer> overlays = renderer.getOverlays();
-        	if (overlays != null)
-        	{
-        		for (byte[] overlay : overlays.keySet())
-        		{
-				ome.util.PixelData data =
-					new PixelData(PixelsType.VALUE_BIT, ByteBuffer.wrap(overlay));
-        			wData.add(new Plane2D(pDef, metadata, data));
-        		}
-        	}
-        }
-        finally
-        {
-            // Make sure that the pixel buffer is cleansed properly.
+        // The buffer is shared by concurrent render calls.
+        synchronized (pixels) {
             try
             {
-                pixels.close();
-            } 
-            catch (IOException e)
+            	RenderingStats performanceStats = stats;
+            	wData = new ArrayList<Plane2D>();
+
+            	for (int w = 0; w < channelBindings.length; w++) {
+            		if (channelBindings[w].getActive()) {
+            			performanceStats.startIO(w);
+            			wData.add(PlaneFactory.createPlane(pDef, w, metadata, 
+            					pixels));
+            			performanceStats.endIO(w);
+            		}
+            	}
+            	Map<byte[], Integer> overlays = renderer.getOverlays();
+            	if (overlays != null)
+            	{
+            		for (byte[] overlay : overlays.keySet())
+            		{
+    				ome.util.PixelData data =
+    					new PixelData(PixelsType.VALUE_BIT, ByteBuffer.wrap(overlay));
+            			wData.add(new Plane2D(pDef, metadata, data));
+            		}
+            	}
+            }
+            finally
             {
-                log.error("Pixels could not be closed successfully.", e);
-    			throw new ResourceError(
-    					e.getMessage() + " Please check server log.");
-            }        	
+                // Make sure that the pixel buffer is cleansed properly.
+                try
+                {
+                    pixels.close();
+                } 
+                catch (IOException e)
+                {
+                    log.error("Pixels could not be closed successfully.", e);
+        			throw new ResourceError(
+        					e.getMessage() + " Please check server log.");
+                }        	
+            }
         }
 
         return wData;
@@ -267,6 +253,43 @@ class HSBStrategy extends RenderingStrategy {
         return strats;
     }
 
+    /**
+     * Returns the colour table of each active channel, <code>null</code> for
+     * the channels and overlays which have to be rendered pixel by pixel.
+     *
+     * @param wData The wavelength data.
+     * @param strategies The quantum strategy of each wavelength.
+     * @param chains The codomain chain of each active channel.
+     * @param readers The lookup table reader of each active channel.
+     * @return See above.
+     */
+    private List<ColorTable> getColorTables(List<Plane2D> wData,
+            List<QuantumStrategy> strategies, List<CodomainChain> chains,
+            List<LutReader> readers)
+    {
+        ChannelBinding[] channelBindings = renderer.getChannelBindings();
+        List<ColorTable> tables = new ArrayList<ColorTable>();
+        int i = 0;
+        for (int w = 0; w < channelBindings.length; w++) {
+            if (!channelBindings[w].getActive()) {
+                continue;
+            }
+            RowQuantizer quantizer = new RowQuantizer(wData.get(i),
+                    strategies.get(i), chains.get(i));
+            if (quantizer.getPath() == RowQuantizer.GENERIC) {
+                tables.add(null);
+            } else {
+                tables.add(renderer.getColorTable(w, quantizer,
+                        readers.get(i)));
+            }
+            i++;
+        }
+        while (tables.size() < wData.size()) {
+            tables.add(null);
+        }
+        return tables;
+    }
+
     /**
      * Creates a set of rendering tasks for the image based on the calling
      * buffer type.
@@ -280,24 +303,26 @@ class HSBStrategy extends RenderingStrategy {
     private RenderingTask[] makeRenderingTasks(PlaneDef def, RGBBuffer buf) {
         List<RenderHSBRegionTask> tasks = new ArrayList<RenderHSBRegionTask>();
 
-        //RenderingStats performanceStats = renderer.getStats();
+        //RenderingStats performanceStats = stats;
         List<Plane2D> wData = getWavelengthData(def);
         List<int[]> colors = getColors();
         List<LutReader> readers = getLutReaders();
         List<QuantumStrategy> strategies = getStrategies();
-        // Create a number of rendering tasks.
-        int taskCount = numTasks(sizeX2);
-        int delta = sizeX2/taskCount;
+        List<CodomainChain> chains = getChains();
+        List<ColorTable> tables =
+            getColorTables(wData, strategies, chains, readers);
+        // Create a number of rendering tasks, one per band of rows.
+        int taskCount = numTasks();
         int x1Start = 0;
         int x1End = sizeX1;
         int x2Start, x2End;
-        log.info("taskCount: "+taskCount+" delta: "+delta);
+        log.debug("taskCount: "+taskCount);
         for (int i = 0; i < taskCount; i++) {
-            x2Start = i*delta;
-            x2End = (i+1)*delta;
+            x2Start = bandStart(i, taskCount);
+            x2End = bandStart(i + 1, taskCount);
             tasks.add(new RenderHSBRegionTask(buf, wData, strategies,
-                    getChains(), colors, renderer.getOptimizations(),
-                    x1Start, x1End, x2Start, x2End, readers));
+                    chains, colors, renderer.getOptimizations(),
+                    x1Start, x1End, x2Start, x2End, readers, tables));
         }
 
         // Turn the list into an array an return it.
@@ -314,7 +339,7 @@ class HSBStrategy extends RenderingStrategy {
             QuantizationException {
         // Set the context and retrieve objects we're gonna use.
         renderer = ctx;
-        //RenderingStats performanceStats = renderer.getStats();
+        //RenderingStats performanceStats = stats;
         Pixels metadata = renderer.getMetadata();
 
         // Initialize sizeX1 and sizeX2 according to the plane definition and
@@ -373,39 +398,13 @@ class HSBStrategy extends RenderingStrategy {
      */
     private void render(RGBBuffer buf, PlaneDef planeDef) throws IOException,
             QuantizationException {
-        RenderingStats performanceStats = renderer.getStats();
-        // Process each active wavelength. If their number N > 1, then
+        RenderingStats performanceStats = stats;
+        // Process each band of rows. If their number N > 1, then
         // process N-1 async and one in the current thread. If N = 1,
         // just use the current thread.
         RenderingTask[] tasks = makeRenderingTasks(planeDef, buf);
         performanceStats.startRendering();
-        int n = tasks.length;
-        Future[] rndTskFutures = new Future[n]; // [0] unused.
-        ExecutorService processor = Executors.newCachedThreadPool();
-
-        while (0 < --n) {
-            rndTskFutures[n] = processor.submit(tasks[n]);
-        }
-
-        // Call the task in the current thread.
-        if (n == 0) {
-            tasks[0].call();
-        }
-
-        // Wait for all forked tasks (if any) to complete.
-        for (n = 1; n < rndTskFutures.length; ++n) {
-            try {
-                rndTskFutures[n].get();
-            } catch (Exception e) {
-                if (e instanceof QuantizationException) {
-                    throw (QuantizationException) e;
-                }
-                throw new RuntimeException(e);
-            }
-        }
-
-        // Shutdown the task processor
-        processor.shutdown();
+        execute(tasks);
 
         // End the performance metrics for this rendering event.
         performanceStats.endRendering();
@@ -0,0 +1,189 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *  All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package omeis.providers.re;
+
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.quantum.QuantizationException;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+/**
+ * A task object to render a band of rows of a single channel as a greyscale
+ * image. This task is used by the {@link GreyScaleStrategy} to render large
+ * planes concurrently.
+ *
+ * @since 5.4.1
+ */
+class RenderGreyScaleRegionTask implements RenderingTask {
+
+    /** Buffer to hold the output image's data. */
+    private RGBBuffer dataBuffer;
+
+    /** The wavelength data. */
+    private Plane2D plane;
+
+    /** How to quantize a pixel intensity value. */
+    private QuantumStrategy qs;
+
+    /** The spatial transformations to apply to the quantized data. */
+    private CodomainChain cc;
+
+    /** The alpha component of the channel. */
+    private int alpha;
+
+    /** The <i>X1</i>-axis start */
+    private int x1Start;
+
+    /** The <i>X1</i>-axis end */
+    private int x1End;
+
+    /** The <i>X2</i>-axis start */
+    private int x2Start;
+
+    /** The <i>X2</i>-axis end */
+    private int x2End;
+
+    /**
+     * Creates a new instance to render a band of rows.
+     *
+     * @param dataBuffer
+     *            Buffer to hold the output image's data.
+     * @param plane
+     *            The wavelength data.
+     * @param qs
+     *            The quantum strategy of the channel.
+     * @param cc
+     *            The spatial transformations to apply to the quantized data.
+     * @param alpha
+     *            The alpha component of the channel.
+     * @param x1Start
+     *            The <i>X1</i>-axis start
+     * @param x1End
+     *            The <i>X1</i>-axis end
+     * @param x2Start
+     *            The <i>X2</i>-axis start
+     * @param x2End
+     *            The <i>X2</i>-axis end
+     */
+    RenderGreyScaleRegionTask(RGBBuffer dataBuffer, Plane2D plane,
+            QuantumStrategy qs, CodomainChain cc, int alpha,
+            int x1Start, int x1End, int x2Start, int x2End) {
+        this.dataBuffer = dataBuffer;
+        this.plane = plane;
+        this.qs = qs;
+        this.cc = cc;
+        this.alpha = alpha;
+        this.x1Start = x1Start;
+        this.x1End = x1End;
+        this.x2Start = x2Start;
+        this.x2End = x2End;
+    }
+
+    /**
+     * Renders the band.
+     *
+     * @throws QuantizationException
+     *             If an error occurs while quantizing a pixels intensity value.
+     */
+    public Object call() throws QuantizationException {
+        if (dataBuffer instanceof RGBIntBuffer) {
+            renderPackedInt();
+        } else if (dataBuffer instanceof RGBAIntBuffer) {
+            renderPackedIntAsRGBA();
+        } else {
+            renderBanded();
+        }
+        return null;
+    }
+
+    /**
+     * Renders into a banded byte buffer.
+     *
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
+     */
+    private void renderBanded() throws QuantizationException {
+        int width = x1End - x1Start;
+        byte[] r = dataBuffer.getRedBand();
+        byte[] g = dataBuffer.getGreenBand();
+        byte[] b = dataBuffer.getBlueBand();
+        RowQuantizer quantizer = new RowQuantizer(plane, qs, cc);
+        int[] values = new int[width];
+        float alphaRatio = (float) alpha / 255;
+        byte value;
+        int pix;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            quantizer.quantize(x1Start, x1End, x2, width, values);
+            for (int x1 = x1Start; x1 < x1End; ++x1) {
+                pix = width * x2 + x1;
+                value = (byte) (values[x1 - x1Start] * alphaRatio);
+                r[pix] = value;
+                g[pix] = value;
+                b[pix] = value;
+            }
+        }
+    }
+
+    /**
+     * Renders into a packed integer array.
+     *
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
+     */
+    private void renderPackedInt() throws QuantizationException {
+        int width = x1End - x1Start;
+        int[] buf = ((RGBIntBuffer) dataBuffer).getDataBuffer();
+        RowQuantizer quantizer = new RowQuantizer(plane, qs, cc);
+        int[] values = new int[width];
+        int v, pix;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            quantizer.quantize(x1Start, x1End, x2, width, values);
+            for (int x1 = x1Start; x1 < x1End; ++x1) {
+                pix = width * x2 + x1;
+                v = values[x1 - x1Start];
+                buf[pix] = alpha << 24 | v << 16 | v << 8 | v;
+            }
+        }
+    }
+
+    /**
+     * Renders into a packed integer array in RGBA order.
+     *
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
+     */
+    private void renderPackedIntAsRGBA() throws QuantizationException {
+        int width = x1End - x1Start;
+        int[] buf = ((RGBAIntBuffer) dataBuffer).getDataBuffer();
+        RowQuantizer quantizer = new RowQuantizer(plane, qs, cc);
+        int[] values = new int[width];
+        int v, pix;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            quantizer.quantize(x1Start, x1End, x2, width, values);
+            for (int x1 = x1Start; x1 < x1End; ++x1) {
+                pix = width * x2 + x1;
+                v = values[x1 - x1Start];
+                buf[pix] = alpha | v << 24 | v << 16 | v << 8;
+            }
+        }
+    }
+}
@@ -9,7 +9,6 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ome.util.PixelData;
 import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.lut.LutReader;
@@ -20,7 +19,8 @@ import omeis.providers.re.quantum.QuantumStrategy;
 /**
  * A task object to render an image region asynchronously. This task is used by
  * the {@link HSBStrategy} to do concurrent rendering if more than one region
- * has to be processed.
+ * has to be processed. Each row of a channel is first quantized by a
+ * {@link RowQuantizer}, then mapped onto the colour space.
  * 
  * @author Chris Allan &nbsp;&nbsp;&nbsp;&nbsp; <a
  *         href="mailto:callan@blackcat.ca">callan@blackat.ca</a>
@@ -72,6 +72,12 @@ class RenderHSBRegionTask implements RenderingTask {
     /** The collection of readers.*/
     private List<LutReader> readers;
 
+    /**
+     * The colour table of each channel, <code>null</code> for the channels
+     * rendered pixel by pixel.
+     */
+    private List<ColorTable> tables;
+
     /**
      * Creates a new instance to render a wavelength.
      * 
@@ -95,12 +101,14 @@ class RenderHSBRegionTask implements RenderingTask {
      * @param x2End
      *            The <i>X2</i>-axis end
      * @param readers The lookup table readers.
+     * @param tables The colour tables, <code>null</code> for the channels
+     *               to render pixel by pixel.
      */
     RenderHSBRegionTask(RGBBuffer dataBuffer, List<Plane2D> wData,
             List<QuantumStrategy> strategies, List<CodomainChain> chains,
             List<int[]> colors, Optimizations optimizations,
             int x1Start, int x1End, int x2Start, int x2End,
-            List<LutReader> readers) {
+            List<LutReader> readers, List<ColorTable> tables) {
         this.dataBuffer = dataBuffer;
         this.wData = wData;
         this.strategies = strategies;
@@ -112,6 +120,7 @@ class RenderHSBRegionTask implements RenderingTask {
         this.x2Start = x2Start;
         this.x2End = x2End;
         this.readers = readers;
+        this.tables = tables;
     }
 
     /**
@@ -151,12 +160,13 @@ class RenderHSBRegionTask implements RenderingTask {
         byte[] b = dataBuffer.getBlueBand();
         LutReader reader;
         CodomainChain cc;
+        int[] values = new int[x1End - x1Start];
         for (Plane2D plane : wData) {
             int[] color = colors.get(i);
             reader = readers.get(i);
             cc = chains.get(i);
-            boolean hasMap = cc.hasMapContext();
             QuantumStrategy qs = strategies.get(i);
+            RowQuantizer quantizer = new RowQuantizer(plane, qs, cc);
             int rColor = color[ColorsFactory.RED_INDEX];
             int gColor = color[ColorsFactory.GREEN_INDEX];
             int bColor = color[ColorsFactory.BLUE_INDEX];
@@ -164,12 +174,10 @@ class RenderHSBRegionTask implements RenderingTask {
             float alpha = new Float(
                     color[ColorsFactory.ALPHA_INDEX]).floatValue() / 65025;// 255*255
             for (int x2 = x2Start; x2 < x2End; ++x2) {
+                quantizer.quantize(x1Start, x1End, x2, width, values);
                 for (int x1 = x1Start; x1 < x1End; ++x1) {
                     pix = width * x2 + x1;
-                    discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-                    if (hasMap) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
+                    discreteValue = values[x1 - x1Start];
 
                     if (reader != null) {
                         int r1 = ((r[pix] & 0x00FF0000) >> 16);
@@ -229,6 +237,7 @@ class RenderHSBRegionTask implements RenderingTask {
         int width = x1End - x1Start;
         int i = 0;
         int[] buf = ((RGBIntBuffer) dataBuffer).getDataBuffer();
+        int[] values = new int[x1End - x1Start];
         boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
         boolean isAlphaless = optimizations.isAlphalessRendering();
         LutReader reader;
@@ -238,8 +247,14 @@ class RenderHSBRegionTask implements RenderingTask {
             int[] color = colors.get(i);
             reader = readers.get(i);
             cc = chains.get(i);
-            boolean hasMap = cc.hasMapContext();
             QuantumStrategy qs = strategies.get(i);
+            RowQuantizer quantizer = new RowQuantizer(plane, qs, cc);
+            ColorTable table = tables.get(i);
+            if (table != null) {
+                renderPackedInt(buf, quantizer, table.getValues(), values);
+                i++;
+                continue;
+            }
             boolean isMask = qs instanceof BinaryMaskQuantizer? true : false;
             redRatio = color[ColorsFactory.RED_INDEX] > 0 ? 
                     color[ColorsFactory.RED_INDEX] / 255.0 : 0.0;
@@ -247,9 +262,6 @@ class RenderHSBRegionTask implements RenderingTask {
                      color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
             blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ? 
                      color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
-            boolean isXYPlanar = plane.isXYPlanar();
-            PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
 
             // Get our color offset if we've got the primary color optimization
             // enabled.
@@ -259,18 +271,10 @@ class RenderHSBRegionTask implements RenderingTask {
             float alpha = new Integer(
                     color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
             for (int x2 = x2Start; x2 < x2End; ++x2) {
+                quantizer.quantize(x1Start, x1End, x2, width, values);
                 for (int x1 = x1Start; x1 < x1End; ++x1) {
                     pix = width * x2 + x1;
-                    if (isXYPlanar)
-                        discreteValue =
-                        qs.quantize(
-                                data.getPixelValueDirect(pix * bytesPerPixel));
-                    else
-                        discreteValue =
-                            qs.quantize(plane.getPixelValue(x1, x2));
-                    if (hasMap) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
+                    discreteValue = values[x1 - x1Start];
                     if (reader != null) {
                         int r1 = ((buf[pix] & 0x00FF0000) >> 16);
                         int r2 = reader.getRed(discreteValue) & 0xFF;
@@ -376,6 +380,7 @@ class RenderHSBRegionTask implements RenderingTask {
         int width = x1End - x1Start;
         int i = 0;
         int[] buf = ((RGBAIntBuffer) dataBuffer).getDataBuffer();
+        int[] values = new int[x1End - x1Start];
         boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
         boolean isAlphaless = optimizations.isAlphalessRendering();
         LutReader reader;
@@ -384,17 +389,21 @@ class RenderHSBRegionTask implements RenderingTask {
             int[] color = colors.get(i);
             reader = readers.get(i);
             cc = chains.get(i);
-            boolean hasMap = cc.hasMapContext();
             QuantumStrategy qs = strategies.get(i);
+            RowQuantizer quantizer = new RowQuantizer(plane, qs, cc);
+            ColorTable table = tables.get(i);
+            if (table != null) {
+                renderPackedIntAsRGBA(buf, quantizer, table.getValues(),
+                        values);
+                i++;
+                continue;
+            }
             redRatio = color[ColorsFactory.RED_INDEX] > 0 ? 
                     color[ColorsFactory.RED_INDEX] / 255.0 : 0.0;
             greenRatio = color[ColorsFactory.GREEN_INDEX] > 0 ? 
                     color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
             blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ? 
                     color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
-            boolean isXYPlanar = plane.isXYPlanar();
-            PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
 
             // Get our color offset if we've got the primary color optimization
             // enabled.
@@ -403,18 +412,10 @@ class RenderHSBRegionTask implements RenderingTask {
 
             float alpha = new Integer(color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
             for (int x2 = x2Start; x2 < x2End; ++x2) {
+                quantizer.quantize(x1Start, x1End, x2, width, values);
                 for (int x1 = x1Start; x1 < x1End; ++x1) {
                     pix = width * x2 + x1;
-                    if (isXYPlanar)
-                        discreteValue =
-                        qs.quantize(
-                                data.getPixelValueDirect(pix * bytesPerPixel));
-                    else
-                        discreteValue =
-                            qs.quantize(plane.getPixelValue(x1, x2));
-                    if (hasMap) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
+                    discreteValue = values[x1 - x1Start];
                     if (reader != null) {
                         int r1 = ((buf[pix] & 0xFF000000) >> 24);
                         int r2 = reader.getRed(discreteValue) & 0xFF;
@@ -493,6 +494,78 @@ class RenderHSBRegionTask implements RenderingTask {
         }
     }
     
+    /**
+     * Adds the contribution of a channel read from its colour table to a
+     * packed integer array.
+     * 
+     * @param buf The buffer to render into.
+     * @param quantizer The quantizer of the channel.
+     * @param table The packed contributions of the channel.
+     * @param indexes Scratch array holding a row of table indexes.
+     */
+    private void renderPackedInt(int[] buf, RowQuantizer quantizer,
+            int[] table, int[] indexes) {
+        int width = x1End - x1Start;
+        int pix, c, p, r, g, b;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            quantizer.readIndexes(x1Start, x1End, x2, width, indexes);
+            pix = width * x2 + x1Start;
+            for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                c = table[indexes[x1 - x1Start]];
+                p = buf[pix];
+                r = ((p >> 16) & 0xFF) + ((c >> 16) & 0xFF);
+                g = ((p >> 8) & 0xFF) + ((c >> 8) & 0xFF);
+                b = (p & 0xFF) + (c & 0xFF);
+                if (r > 255) {
+                    r = 255;
+                }
+                if (g > 255) {
+                    g = 255;
+                }
+                if (b > 255) {
+                    b = 255;
+                }
+                buf[pix] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    /**
+     * Adds the contribution of a channel read from its colour table to a
+     * packed integer array in RGBA order.
+     * 
+     * @param buf The buffer to render into.
+     * @param quantizer The quantizer of the channel.
+     * @param table The packed contributions of the channel.
+     * @param indexes Scratch array holding a row of table indexes.
+     */
+    private void renderPackedIntAsRGBA(int[] buf, RowQuantizer quantizer,
+            int[] table, int[] indexes) {
+        int width = x1End - x1Start;
+        int pix, c, p, r, g, b;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            quantizer.readIndexes(x1Start, x1End, x2, width, indexes);
+            pix = width * x2 + x1Start;
+            for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                c = table[indexes[x1 - x1Start]];
+                p = buf[pix];
+                r = (p >>> 24) + ((c >> 16) & 0xFF);
+                g = ((p >> 16) & 0xFF) + ((c >> 8) & 0xFF);
+                b = ((p >> 8) & 0xFF) + (c & 0xFF);
+                if (r > 255) {
+                    r = 255;
+                }
+                if (g > 255) {
+                    g = 255;
+                }
+                if (b > 255) {
+                    b = 255;
+                }
+                buf[pix] = 0x000000FF | r << 24 | g << 16 | b << 8;
+            }
+        }
+    }
+
     /**
      * Returns a color offset based on which color component is 0xFF.
      * @param color the color to check.
@@ -9,6 +9,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -33,9 +34,11 @@ import omeis.providers.re.codomain.ReverseIntensityContext;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.data.PlaneFactory;
 import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.lut.LutReader;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumFactory;
 import omeis.providers.re.quantum.QuantumStrategy;
+import omeis.providers.re.quantum.Quantization_8_16_bit;
 
 /**
  * Transforms raw image data into an <i>RGB</i> image that can be displayed on
@@ -119,17 +122,12 @@ public class Renderer {
      */
     private List<CodomainChain> codomainChains;
 
-    /**
-     * Takes care of the actual rendering, using this <code>Renderer</code> as
-     * a rendering context.
-     */
-    private RenderingStrategy renderingStrategy;
-
     /**
      * Collects performance measurements during each invocation of the
-     * {@link #render(PlaneDef) render} method.
+     * {@link #render(PlaneDef) render} method. Refers to the most recent
+     * invocation if several run concurrently.
      */
-    private RenderingStats stats;
+    private volatile RenderingStats stats;
 
     /** Renderer optimizations. */
     private Optimizations optimizations = new Optimizations();
@@ -140,6 +138,13 @@ public class Renderer {
     /** The collections of available lookup tables.*/
     private List<File> luts;
 
+    /** The pool used to run rendering tasks. */
+    private RenderingExecutor executor;
+
+    /** The colour tables of the channels, keyed by channel index. */
+    private final Map<Integer, ColorTable> colorTables =
+        new HashMap<Integer, ColorTable>();
+
     /**
      * Returns a copy of a list of channel bindings with one element removed;
      * the so called "other" channel bindings for the image.
@@ -354,6 +359,28 @@ public class Renderer {
     		List<RenderingModel> renderingModels, Pixels pixelsObj,
             RenderingDef renderingDefObj, PixelBuffer bufferObj,
             List<File> luts) {
+        this(quantumFactory, renderingModels, pixelsObj, renderingDefObj,
+                bufferObj, luts, RenderingExecutor.getDefault());
+    }
+
+    /**
+     * Creates a new instance to render the specified pixels set and get this
+     * new instance ready for rendering.
+     * 
+     * @param quantumFactory a populated quantum factory.
+     * @param renderingModels an enumerated list of all rendering models.
+     * @param pixelsObj Pixels object.
+     * @param renderingDefObj Rendering definition object.
+     * @param bufferObj PixelBuffer object.
+     * @param luts the available lookup tables.
+     * @param executor the pool used to run rendering tasks.
+     * @throws NullPointerException If <code>null</code> parameters are passed.
+     */
+    public Renderer(QuantumFactory quantumFactory,
+    		List<RenderingModel> renderingModels, Pixels pixelsObj,
+            RenderingDef renderingDefObj, PixelBuffer bufferObj,
+            List<File> luts, RenderingExecutor executor) {
+        this.executor = executor;
         metadata = pixelsObj;
         rndDef = renderingDefObj;
         buffer = bufferObj;
@@ -364,6 +391,8 @@ public class Renderer {
             throw new NullPointerException("Expecting not null rndDef");
         } else if (buffer == null) {
             throw new NullPointerException("Expecting not null buffer");
+        } else if (executor == null) {
+            throw new NullPointerException("Expecting not null executor");
         }
 
    
@@ -395,9 +424,6 @@ public class Renderer {
                     qd.getCdEnd().intValue(), nl));
         }
 
-        // Create an appropriate rendering strategy.
-        renderingStrategy = RenderingStrategy.makeNew(rndDef.getModel());
-        
         // Examine the metadata we've been given and enable optimizations.
         checkOptimizations();
     }
@@ -415,7 +441,8 @@ public class Renderer {
      * Specifies the model that dictates how transformed raw data has to be
      * mapped onto a color space. This class delegates the actual rendering to a
      * {@link RenderingStrategy}, which is selected depending on that model. So
-     * setting the model also results in changing the rendering strategy.
+     * setting the model also results in changing the rendering strategy used
+     * by subsequent render calls.
      * 
      * @param model
      *            Identifies the color space model.
@@ -423,7 +450,25 @@ public class Renderer {
     public void setModel(RenderingModel model)
     {
         rndDef.setModel(model);
-        renderingStrategy = RenderingStrategy.makeNew(model);
+    }
+
+    /**
+     * Creates the strategy for a single render call. Each call gets its own
+     * instance, so concurrent calls do not share the state the strategy keeps
+     * while rendering a plane.
+     * 
+     * @param stats The performance measurements of the call.
+     * @param pixels The pixels to read the planes from.
+     * @return See above.
+     */
+    private RenderingStrategy newStrategy(RenderingStats stats,
+            PixelBuffer pixels) {
+        RenderingStrategy strategy =
+            RenderingStrategy.makeNew(rndDef.getModel());
+        strategy.init(stats, pixels);
+        log.info("Using: '" + strategy.getClass().getName()
+                + "' rendering strategy.");
+        return strategy;
     }
 
     /**
@@ -503,10 +548,9 @@ public class Renderer {
             throw new NullPointerException("No plane definition.");
         }
         checkRegionDef(pd.getRegion());
-        stats = new RenderingStats(this, pd);
-        log.info("Using: '" + renderingStrategy.getClass().getName()
-                + "' rendering strategy.");
-        RGBBuffer img = renderingStrategy.render(this, pd);
+        RenderingStats stats = new RenderingStats(this, pd);
+        this.stats = stats;
+        RGBBuffer img = newStrategy(stats, buffer).render(this, pd);
         stats.stop();
         // TODO: Commenting this out for now. -- callan
         //log.info(stats.getStats());
@@ -544,26 +588,15 @@ public class Renderer {
             throw new NullPointerException("No plane definition.");
         }
         checkRegionDef(pd.getRegion());
-        stats = new RenderingStats(this, pd);
-        log.info("Using: '" + renderingStrategy.getClass().getName()
-                + "' rendering strategy.");
-        PixelBuffer oldBuffer = buffer;
-        try
-        {
-            if (newBuffer != null)
-            {
-                buffer = newBuffer;
-            }
-            RGBIntBuffer img = renderingStrategy.renderAsPackedInt(this, pd);
-            stats.stop();
-            // TODO: Commenting this out for now. -- callan
-            //log.info(stats.getStats());
-            return img.getDataBuffer();
-        }
-        finally
-        {
-            buffer = oldBuffer;
-        }
+        RenderingStats stats = new RenderingStats(this, pd);
+        this.stats = stats;
+        RenderingStrategy strategy =
+            newStrategy(stats, newBuffer != null ? newBuffer : buffer);
+        RGBIntBuffer img = strategy.renderAsPackedInt(this, pd);
+        stats.stop();
+        // TODO: Commenting this out for now. -- callan
+        //log.info(stats.getStats());
+        return img.getDataBuffer();
     }
 
     /**
@@ -586,7 +619,8 @@ public class Renderer {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        return renderingStrategy.getImageSize(pd, metadata);
+        return RenderingStrategy.makeNew(rndDef.getModel()).getImageSize(pd,
+                metadata);
     }
 
     /**
@@ -610,7 +644,8 @@ public class Renderer {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        return renderingStrategy.getPlaneDimsAsString(pd, metadata);
+        return RenderingStrategy.makeNew(rndDef.getModel())
+            .getPlaneDimsAsString(pd, metadata);
     }
 
     /**
@@ -712,6 +747,41 @@ public class Renderer {
         return codomainChains.get(channel);
     }
 
+    /**
+     * Returns the pool used to run rendering tasks.
+     * 
+     * @return See above.
+     */
+    RenderingExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns the colour table of the specified channel. The table is only
+     * rebuilt if the quantization, codomain chain or colour settings of the
+     * channel changed since it was last requested.
+     * 
+     * @param w The index of the channel.
+     * @param quantizer The quantizer of the channel, must not be generic.
+     * @param reader The lookup table reader of the channel or
+     *               <code>null</code>.
+     * @return See above.
+     */
+    synchronized ColorTable getColorTable(int w, RowQuantizer quantizer,
+            LutReader reader) {
+        Quantization_8_16_bit qs =
+            (Quantization_8_16_bit) quantumManager.getStrategyFor(w);
+        CodomainChain cc = codomainChains.get(w);
+        ChannelBinding cb = getChannelBindings()[w];
+        ColorTable table = colorTables.get(w);
+        if (table == null
+                || !table.isValid(quantizer.getPath(), qs, cc, cb)) {
+            table = new ColorTable(quantizer, qs, cc, cb, reader);
+            colorTables.put(w, table);
+        }
+        return table;
+    }
+
     /**
      * Returns a {@link RenderingStats} object that the rendering strategy can
      * use to track performance. A new stats object is created upon each
@@ -0,0 +1,335 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *  All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package omeis.providers.re;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Histogram;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.system.metrics.Timer;
+
+/**
+ * Bounded thread pool shared by all {@link Renderer} instances of a server.
+ * <p>
+ * The pool is sized from the number of available processors and backed by a
+ * bounded queue. When the queue is full the submitting thread runs the task
+ * itself, which throttles callers instead of spawning further threads.
+ * </p>
+ * <p>
+ * Queue depth on submission, task latency and the number of tasks which had
+ * to be run by the caller are reported via {@link Metrics}.
+ * </p>
+ *
+ * @since 5.4.1
+ */
+public class RenderingExecutor {
+
+    /** The logger for this particular class */
+    private static final Logger log =
+            LoggerFactory.getLogger(RenderingExecutor.class);
+
+    /** Default queue length per rendering thread. */
+    private static final int QUEUE_PER_THREAD = 16;
+
+    /** Lazily created instance used when none has been injected. */
+    private static RenderingExecutor defaultInstance;
+
+    /** The backing pool. */
+    private final ThreadPoolExecutor executor;
+
+    /** Time spent by each task from submission to completion. */
+    private final Timer taskTimer;
+
+    /** Number of queued tasks when a new task is submitted. */
+    private final Histogram queueDepth;
+
+    /** Number of tasks which were run by the submitting thread. */
+    private final Counter callerRuns;
+
+    /**
+     * Creates a pool sized to the number of available processors with
+     * no metrics.
+     */
+    public RenderingExecutor()
+    {
+        this(0, 0, new NullMetrics());
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param threads The number of rendering threads. If less than
+     *                <code>1</code> the number of available processors
+     *                is used.
+     * @param queueSize The maximum number of tasks waiting for a thread.
+     *                  If less than <code>1</code> a multiple of the
+     *                  number of threads is used.
+     * @param metrics The metrics registry to report to.
+     */
+    public RenderingExecutor(int threads, int queueSize, Metrics metrics)
+    {
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        if (queueSize < 1) {
+            queueSize = threads * QUEUE_PER_THREAD;
+        }
+        if (metrics == null) {
+            metrics = new NullMetrics();
+        }
+        taskTimer = metrics.timer(this, "taskLatency");
+        queueDepth = metrics.histogram(this, "queueDepth");
+        callerRuns = metrics.counter(this, "callerRuns");
+        executor = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new RenderingThreadFactory(),
+                new ThreadPoolExecutor.CallerRunsPolicy() {
+                    @Override
+                    public void rejectedExecution(Runnable r,
+                            ThreadPoolExecutor e) {
+                        callerRuns.inc();
+                        super.rejectedExecution(r, e);
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        log.info("Rendering executor: " + threads + " threads, queue of "
+                + queueSize);
+    }
+
+    /**
+     * Returns the instance used by renderers which have not been given
+     * an executor explicitly.
+     *
+     * @return See above.
+     */
+    public static synchronized RenderingExecutor getDefault()
+    {
+        if (defaultInstance == null) {
+            defaultInstance = new RenderingExecutor();
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Submits a task for execution.
+     *
+     * @param task The task to run.
+     * @return The future holding the result of the task.
+     */
+    public <T> Future<T> submit(final Callable<T> task)
+    {
+        queueDepth.update(executor.getQueue().size());
+        final Timer.Context ctx = taskTimer.time();
+        return executor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                try {
+                    return task.call();
+                } finally {
+                    ctx.stop();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs tasks, all but the first one on this pool and the first one in
+     * the calling thread, and returns once every task is complete.
+     * If a task fails, the tasks not started yet are skipped and the
+     * failure is thrown only once the running tasks are complete, so that
+     * none of them still uses the state of the caller.
+     *
+     * @param tasks The tasks to run.
+     * @param checked The type of the checked exceptions of the tasks, thrown
+     *                as is. Other checked exceptions are wrapped in a
+     *                {@link RuntimeException}.
+     * @return The results of the tasks, in order.
+     * @throws E If a task failed with such an exception.
+     */
+    public <T, E extends Exception> List<T> invokeAllCallerRunsFirst(
+            List<? extends Callable<T>> tasks, Class<E> checked) throws E
+    {
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int i = 1; i < tasks.size(); i++) {
+            final Callable<T> task = tasks.get(i);
+            futures.add(submit(new Callable<T>() {
+                public T call() throws Exception {
+                    return failed.get() ? null : task.call();
+                }
+            }));
+        }
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (!tasks.isEmpty()) {
+                results.add(tasks.get(0).call());
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause(), checked);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            throw rethrow(e, checked);
+        } finally {
+            if (results.size() < tasks.size()) {
+                failed.set(true);
+                await(futures);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs tasks one after the other in the calling thread, for callers
+     * which cannot run them concurrently. Exceptions are thrown as by
+     * {@link #invokeAllCallerRunsFirst(List, Class)}.
+     *
+     * @param tasks The tasks to run.
+     * @param checked The type of the checked exceptions of the tasks.
+     * @return The results of the tasks, in order.
+     * @throws E If a task failed with such an exception.
+     */
+    public static <T, E extends Exception> List<T> invokeAllInCaller(
+            List<? extends Callable<T>> tasks, Class<E> checked) throws E
+    {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                results.add(task.call());
+            }
+        } catch (Exception e) {
+            throw rethrow(e, checked);
+        }
+        return results;
+    }
+
+    /**
+     * Waits for tasks to complete whatever their outcome.
+     *
+     * @param futures The tasks.
+     */
+    private static void await(List<? extends Future<?>> futures)
+    {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (Exception e) {
+                    // Only the first failure is reported.
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the failure of a task if it is of the given type, throws it
+     * if it is unchecked, or wraps it.
+     *
+     * @param t The failure.
+     * @param checked The type of the checked exceptions to return.
+     * @return See above.
+     */
+    private static <E extends Exception> E rethrow(Throwable t,
+            Class<E> checked)
+    {
+        if (checked.isInstance(t)) {
+            return checked.cast(t);
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    /**
+     * Returns the number of rendering threads.
+     *
+     * @return See above.
+     */
+    public int getThreads()
+    {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Returns the number of tasks currently waiting for a thread.
+     *
+     * @return See above.
+     */
+    public int getQueueSize()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting new tasks. Tasks already submitted are completed.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Names rendering threads and marks them as daemons so that they
+     * never keep the JVM alive.
+     */
+    private static class RenderingThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Rendering-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -8,10 +8,12 @@
 package omeis.providers.re;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.enums.RenderingModel;
 
@@ -50,6 +52,12 @@ abstract class RenderingStrategy {
     
     /** The rendering context. */
     protected Renderer renderer;
+
+    /** Collects performance measurements for the current render call. */
+    protected RenderingStats stats;
+
+    /** The pixels to read the planes from for the current render call. */
+    protected PixelBuffer pixelBuffer;
     
     /**
      * The number of pixels on the <i>X1</i>-axis. This is the <i>X</i>-axis
@@ -70,6 +78,12 @@ abstract class RenderingStrategy {
      */
     protected int maxTasks;
 
+    /**
+     * The minimum number of pixels a rendering task is given. Smaller planes,
+     * typically tiles, are rendered by a single task in the calling thread.
+     */
+    static final int MIN_PIXELS_PER_TASK = 256 * 256;
+
     /**
      * Checks if the passed region is valid.
      * 
@@ -146,6 +160,53 @@ abstract class RenderingStrategy {
         }
     }
 
+    /**
+     * Retrieves the number of bands of rows the plane is split into. The
+     * number depends on the size of the plane and is bounded by
+     * <i>maxTasks</i> and by the number of rows.
+     * Should only be called after {@link #initAxesSize(PlaneDef, Pixels)}.
+     *
+     * @return See above.
+     */
+    protected int numTasks()
+    {
+        long size = (long) sizeX1 * sizeX2;
+        long n = Math.min(maxTasks, size / MIN_PIXELS_PER_TASK);
+        n = Math.min(n, sizeX2);
+        return n < 1 ? 1 : (int) n;
+    }
+
+    /**
+     * Returns the first row of the specified band along the <i>X2</i>-axis.
+     * Rows are spread as evenly as possible between the bands; the end of
+     * band <code>i</code> is the start of band <code>i + 1</code>.
+     *
+     * @param band The index of the band.
+     * @param taskCount The number of bands.
+     * @return See above.
+     */
+    protected int bandStart(int band, int taskCount)
+    {
+        return (int) ((long) band * sizeX2 / taskCount);
+    }
+
+    /**
+     * Runs the specified tasks. All but the first task are submitted to the
+     * {@link RenderingExecutor} of the rendering context, the first one runs
+     * in the calling thread. Returns once every task is complete, even if one
+     * of them fails, so that none of them still writes to the render buffer.
+     *
+     * @param tasks The tasks to run.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     */
+    protected void execute(RenderingTask[] tasks)
+            throws QuantizationException
+    {
+        renderer.getExecutor().invokeAllCallerRunsFirst(Arrays.asList(tasks),
+                QuantizationException.class);
+    }
+
     /**
      * Constructs a strategy.
      */
@@ -154,6 +215,18 @@ abstract class RenderingStrategy {
     	maxTasks = Runtime.getRuntime().availableProcessors();
     }
 
+    /**
+     * Sets the state of the render call this strategy is created for.
+     * 
+     * @param stats The performance measurements of the call.
+     * @param pixelBuffer The pixels to read the planes from.
+     */
+    void init(RenderingStats stats, PixelBuffer pixelBuffer)
+    {
+        this.stats = stats;
+        this.pixelBuffer = pixelBuffer;
+    }
+
     /**
      * Returns an RGB buffer for usage. Note that the buffer is reallocated
      * upon each call. Should only be called within the context of a
@@ -165,7 +238,6 @@ abstract class RenderingStrategy {
      */
     protected RGBBuffer getRgbBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBBuffer buf = new RGBBuffer(sizeX1, sizeX2);
 		stats.endMalloc();
@@ -181,7 +253,6 @@ abstract class RenderingStrategy {
      */
 	protected RGBIntBuffer getIntBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBIntBuffer buf =  new RGBIntBuffer(sizeX1, sizeX2);
     	stats.endMalloc();
@@ -197,7 +268,6 @@ abstract class RenderingStrategy {
      */
 	protected RGBAIntBuffer getRGBAIntBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBAIntBuffer buf =  new RGBAIntBuffer(sizeX1, sizeX2);
     	stats.endMalloc();
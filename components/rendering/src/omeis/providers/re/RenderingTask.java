@@ -22,7 +22,7 @@ import omeis.providers.re.quantum.QuantizationException;
  *          2005/06/17 12:57:33 $) </small>
  * @since OMERO3.0
  */
-public interface RenderingTask extends Callable {
+public interface RenderingTask extends Callable<Object> {
     /**
      * Renders wavelength.
      * 
@@ -0,0 +1,318 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *  All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package omeis.providers.re;
+
+import java.nio.ByteBuffer;
+
+import ome.util.PixelData;
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.quantum.QuantizationException;
+import omeis.providers.re.quantum.QuantumStrategy;
+import omeis.providers.re.quantum.Quantization_8_16_bit;
+
+/**
+ * Quantizes a row of a plane into an array of values in the device space.
+ * <p>
+ * For <i>XY</i> planes of 8 or 16 bit integer data quantized through a
+ * {@link Quantization_8_16_bit} look-up table covering the whole range of the
+ * pixels type, the raw values are read from the backing {@link ByteBuffer}
+ * and used to index the table directly. Any other plane goes through
+ * {@link QuantumStrategy#quantize(double)}, one pixel at a time. The path is
+ * selected once, when the quantizer is created for a plane.
+ * </p>
+ *
+ * @since 5.4.1
+ */
+final class RowQuantizer {
+
+    /** Values go through {@link QuantumStrategy#quantize(double)}. */
+    static final int GENERIC = 0;
+
+    /** Unsigned 8 bit values index the look-up table. */
+    static final int UINT8 = 1;
+
+    /** Signed 8 bit values index the look-up table. */
+    static final int INT8 = 2;
+
+    /** Unsigned 16 bit values index the look-up table. */
+    static final int UINT16 = 3;
+
+    /** Signed 16 bit values index the look-up table. */
+    static final int INT16 = 4;
+
+    /** The wavelength data. */
+    private final Plane2D plane;
+
+    /** How to quantize a pixel intensity value. */
+    private final QuantumStrategy qs;
+
+    /** The spatial transformations to apply to the quantized data. */
+    private final CodomainChain cc;
+
+    /** Whether the codomain chain has to be applied. */
+    private final boolean hasMap;
+
+    /** One of the constants defined by this class. */
+    private final int path;
+
+    /** The backing buffer of the plane, <code>null</code> if generic. */
+    private final ByteBuffer buffer;
+
+    /** The look-up table, <code>null</code> if generic. */
+    private final byte[] lut;
+
+    /** The intensity value mapped by the first element of {@link #lut}. */
+    private final int lutMin;
+
+    /**
+     * Returns the path to use for the specified plane and strategy.
+     *
+     * @param plane The wavelength data.
+     * @param qs The quantum strategy.
+     * @return See above.
+     */
+    static int selectPath(Plane2D plane, QuantumStrategy qs)
+    {
+        if (!plane.isXYPlanar() || !(qs instanceof Quantization_8_16_bit)) {
+            return GENERIC;
+        }
+        Quantization_8_16_bit q = (Quantization_8_16_bit) qs;
+        if (q.getLookupTable() == null) {
+            return GENERIC;
+        }
+        PixelData data = plane.getData();
+        int path;
+        switch (data.javaType()) {
+            case PixelData.BYTE:
+                path = data.isSigned() ? INT8 : UINT8;
+                break;
+            case PixelData.SHORT:
+                path = data.isSigned() ? INT16 : UINT16;
+                break;
+            default:
+                return GENERIC;
+        }
+        // Values outside the table are rescaled by quantize().
+        if (q.getLookupTableStart() > data.getMinimum()
+                || q.getLookupTableEnd() < data.getMaximum()) {
+            return GENERIC;
+        }
+        return path;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param plane The wavelength data.
+     * @param qs The quantum strategy of the channel.
+     * @param cc The codomain chain of the channel.
+     */
+    RowQuantizer(Plane2D plane, QuantumStrategy qs, CodomainChain cc)
+    {
+        this.plane = plane;
+        this.qs = qs;
+        this.cc = cc;
+        hasMap = cc.hasMapContext();
+        path = selectPath(plane, qs);
+        if (path == GENERIC) {
+            buffer = null;
+            lut = null;
+            lutMin = 0;
+        } else {
+            Quantization_8_16_bit q = (Quantization_8_16_bit) qs;
+            buffer = plane.getData().getData();
+            lut = q.getLookupTable();
+            lutMin = q.getLookupTableStart();
+        }
+    }
+
+    /**
+     * Returns the path selected for the plane.
+     *
+     * @return One of the constants defined by this class.
+     */
+    int getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Returns the lowest raw value of the pixels type read by the selected
+     * path.
+     *
+     * @return See above.
+     */
+    int getRawMin()
+    {
+        switch (path) {
+            case INT8:
+                return Byte.MIN_VALUE;
+            case INT16:
+                return Short.MIN_VALUE;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the number of raw values of the pixels type read by the
+     * selected path, <code>0</code> for the generic path.
+     *
+     * @return See above.
+     */
+    int getRawRange()
+    {
+        switch (path) {
+            case UINT8:
+            case INT8:
+                return 1 << 8;
+            case UINT16:
+            case INT16:
+                return 1 << 16;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Quantizes a raw value using the look-up table without applying the
+     * codomain chain. Must not be called for the generic path.
+     *
+     * @param raw The raw value, within the range of the pixels type.
+     * @return The quantized value.
+     */
+    int quantizeRaw(int raw)
+    {
+        return lut[raw - lutMin] & 0xFF;
+    }
+
+    /**
+     * Reads the raw values of the pixels <code>[x1Start, x1End)</code> of the
+     * row <code>x2</code> minus {@link #getRawMin()}, i.e. as indexes into a
+     * table of {@link #getRawRange()} elements. The index of pixel
+     * <code>x1</code> is written to <code>indexes[x1 - x1Start]</code>. Must
+     * not be called for the generic path.
+     *
+     * @param x1Start The <i>X1</i>-axis start.
+     * @param x1End The <i>X1</i>-axis end.
+     * @param x2 The row.
+     * @param width The number of pixels in a row of the plane.
+     * @param indexes The array to fill.
+     */
+    void readIndexes(int x1Start, int x1End, int x2, int width, int[] indexes)
+    {
+        int pix = width * x2 + x1Start;
+        int n = x1End - x1Start;
+        int i;
+        switch (path) {
+            case UINT8:
+                for (i = 0; i < n; i++) {
+                    indexes[i] = buffer.get(pix + i) & 0xFF;
+                }
+                break;
+            case INT8:
+                for (i = 0; i < n; i++) {
+                    indexes[i] = buffer.get(pix + i) - Byte.MIN_VALUE;
+                }
+                break;
+            case UINT16:
+                pix *= 2;
+                for (i = 0; i < n; i++) {
+                    indexes[i] = buffer.getShort(pix + 2 * i) & 0xFFFF;
+                }
+                break;
+            case INT16:
+                pix *= 2;
+                for (i = 0; i < n; i++) {
+                    indexes[i] = buffer.getShort(pix + 2 * i) - Short.MIN_VALUE;
+                }
+                break;
+            default:
+                throw new IllegalStateException("No raw path for the plane.");
+        }
+    }
+
+    /**
+     * Quantizes the pixels <code>[x1Start, x1End)</code> of the row
+     * <code>x2</code>. The value of pixel <code>x1</code> is written to
+     * <code>values[x1 - x1Start]</code>.
+     *
+     * @param x1Start The <i>X1</i>-axis start.
+     * @param x1End The <i>X1</i>-axis end.
+     * @param x2 The row.
+     * @param width The number of pixels in a row of the plane.
+     * @param values The array to fill.
+     * @throws QuantizationException
+     *             If an error occurs while quantizing a value.
+     */
+    void quantize(int x1Start, int x1End, int x2, int width, int[] values)
+        throws QuantizationException
+    {
+        int pix = width * x2 + x1Start;
+        int n = x1End - x1Start;
+        int i;
+        switch (path) {
+            case UINT8:
+                for (i = 0; i < n; i++) {
+                    values[i] =
+                        lut[(buffer.get(pix + i) & 0xFF) - lutMin] & 0xFF;
+                }
+                break;
+            case INT8:
+                for (i = 0; i < n; i++) {
+                    values[i] = lut[buffer.get(pix + i) - lutMin] & 0xFF;
+                }
+                break;
+            case UINT16:
+                pix *= 2;
+                for (i = 0; i < n; i++) {
+                    values[i] = lut[(buffer.getShort(pix + 2 * i) & 0xFFFF)
+                                    - lutMin] & 0xFF;
+                }
+                break;
+            case INT16:
+                pix *= 2;
+                for (i = 0; i < n; i++) {
+                    values[i] =
+                        lut[buffer.getShort(pix + 2 * i) - lutMin] & 0xFF;
+                }
+                break;
+            default:
+                if (plane.isXYPlanar()) {
+                    for (i = 0; i < n; i++) {
+                        values[i] = qs.quantize(plane.getPixelValue(pix + i));
+                    }
+                } else {
+                    for (i = 0; i < n; i++) {
+                        values[i] = qs.quantize(
+                                plane.getPixelValue(x1Start + i, x2));
+                    }
+                }
+        }
+        if (hasMap) {
+            for (i = 0; i < n; i++) {
+                values[i] = cc.transform(values[i]);
+            }
+        }
+    }
+}
@@ -55,8 +55,12 @@ public class CodomainChain {
     /** The upper bound of the codomain interval. */
     private int intervalEnd;
 
+    /** Incremented each time the lookup table is rebuilt. */
+    private int version;
+
     /** Builds the lookup table. */
     private void buildLUT() {
+        version++;
         LUT = new int[intervalEnd - intervalStart + 1];
         CodomainMap map;
         CodomainMapContext ctx;
@@ -326,6 +330,16 @@ public class CodomainChain {
         return LUT[y - intervalStart];
     }
 
+    /**
+     * Returns a number which changes whenever the transformation changes,
+     * so that callers can tell if values they derived from it are stale.
+     * 
+     * @return See above.
+     */
+    public int getVersion() {
+        return version;
+    }
+
     /**
      * Returns <code>true</code> if some transformations need to be applied,
      * <code>false</code> otherwise.
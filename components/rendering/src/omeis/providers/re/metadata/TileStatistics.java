@@ -0,0 +1,523 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.metadata;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.Utils;
+import ome.util.PixelData;
+import omeis.providers.re.RenderingExecutor;
+
+/**
+ * Computes the minimum, maximum and histogram of the pixels of channels in
+ * one pass over the tiles of a {@link PixelBuffer}, reading only the tiles
+ * intersecting the requested region.
+ * <p>
+ * The values of 8 and 16 bit pixels are counted one by one, so that the
+ * minimum, maximum, histogram and percentiles all derive from a single
+ * pass. Wider pixels types need a second pass to fill a histogram whose
+ * range is not given. Channels, and groups of planes within a channel, are
+ * processed concurrently on the {@link RenderingExecutor} if the buffer can
+ * be read by several threads.
+ * </p>
+ * <p>
+ * The tiles are read at the current resolution level of the buffer; the
+ * region is given in the coordinates of that level.
+ * </p>
+ *
+ * @since 5.4.1
+ */
+public class TileStatistics {
+
+    /** The buffer to read the tiles from. */
+    private final PixelBuffer buffer;
+
+    /** The pool running the channels, <code>null</code> to run serially. */
+    private final RenderingExecutor executor;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param buffer The buffer to read the tiles from.
+     * @param executor The pool running the channels, <code>null</code> to
+     *                 read all the tiles from the calling thread.
+     */
+    public TileStatistics(PixelBuffer buffer, RenderingExecutor executor) {
+        this.buffer = buffer;
+        this.executor = executor;
+    }
+
+    /**
+     * Computes the statistics of channels over a set of planes.
+     *
+     * @param pixelsType The pixels type of the buffer.
+     * @param channels The channels.
+     * @param planes The planes of each channel to include, as
+     *               <code>{z, t}</code> pairs.
+     * @param region The region of the planes to include, <code>null</code>
+     *               for the whole planes.
+     * @param binCount The number of bins of the histograms, <code>0</code>
+     *                 for no histogram.
+     * @param ranges The minimum and maximum covered by the histogram of each
+     *               channel. The range of the values is used for the
+     *               channels not in the map, which may be <code>null</code>.
+     * @return The statistics, keyed by channel.
+     * @throws IOException If a tile cannot be read.
+     */
+    public Map<Integer, Result> compute(String pixelsType, int[] channels,
+            List<int[]> planes, Rectangle region, int binCount,
+            Map<Integer, double[]> ranges)
+        throws IOException
+    {
+        Rectangle plane = new Rectangle(
+                0, 0, buffer.getSizeX(), buffer.getSizeY());
+        region = region == null? plane : region.intersection(plane);
+        boolean counted = isCounted(pixelsType);
+        boolean concurrent = executor != null
+            && Utils.isConcurrentReadSafe(buffer);
+        int chunks = 1;
+        if (concurrent && channels.length > 0) {
+            chunks = (2 * executor.getThreads() + channels.length - 1)
+                / channels.length;
+            chunks = Math.max(1, Math.min(planes.size(), chunks));
+        }
+
+        // First pass: counts, extrema and the histograms of known ranges.
+        List<PlaneTask> tasks = new ArrayList<PlaneTask>();
+        for (int channel : channels) {
+            double[] range = ranges == null? null : ranges.get(channel);
+            for (int k = 0; k < chunks; k++) {
+                List<int[]> chunk = planes.subList(
+                        k * planes.size() / chunks,
+                        (k + 1) * planes.size() / chunks);
+                tasks.add(new PlaneTask(channel, chunk, region, counted,
+                        counted || range == null? 0 : binCount, range));
+            }
+        }
+        List<Accumulator> partials = execute(tasks, concurrent);
+        Map<Integer, Accumulator> merged =
+            new HashMap<Integer, Accumulator>();
+        for (Accumulator partial : partials) {
+            Accumulator accumulator = merged.get(partial.channel);
+            if (accumulator == null) {
+                merged.put(partial.channel, partial);
+            } else {
+                accumulator.merge(partial);
+            }
+        }
+
+        // Second pass for the histograms of uncounted values over their own
+        // range, now known.
+        if (!counted && binCount > 0) {
+            tasks.clear();
+            for (int channel : channels) {
+                if (ranges != null && ranges.containsKey(channel)) {
+                    continue;
+                }
+                Accumulator accumulator = merged.get(channel);
+                double[] range = new double[] {
+                        accumulator.min, accumulator.max };
+                for (int k = 0; k < chunks; k++) {
+                    List<int[]> chunk = planes.subList(
+                            k * planes.size() / chunks,
+                            (k + 1) * planes.size() / chunks);
+                    tasks.add(new PlaneTask(channel, chunk, region, false,
+                            binCount, range));
+                }
+            }
+            for (Accumulator partial : execute(tasks, concurrent)) {
+                merged.get(partial.channel).mergeBins(partial);
+            }
+        }
+
+        Map<Integer, Result> results = new HashMap<Integer, Result>();
+        for (int channel : channels) {
+            Accumulator accumulator = merged.get(channel);
+            double[] range = ranges == null? null : ranges.get(channel);
+            if (range == null) {
+                range = new double[] { accumulator.min, accumulator.max };
+            }
+            int[] histogram = null;
+            if (binCount > 0) {
+                histogram = counted?
+                        accumulator.histogram(binCount, range[0], range[1])
+                        : accumulator.bins;
+            }
+            results.put(channel, new Result(accumulator.min, accumulator.max,
+                    accumulator.count, histogram, accumulator.counts,
+                    accumulator.offset));
+        }
+        return results;
+    }
+
+    /**
+     * Returns <code>true</code> if the values of a pixels type are counted
+     * one by one, i.e. if there are at most 65536 of them.
+     */
+    private static boolean isCounted(String pixelsType) {
+        PixelData type = new PixelData(pixelsType, null);
+        return type.javaType() == PixelData.BYTE
+            || type.javaType() == PixelData.SHORT
+            || type.javaType() == PixelData.BIT;
+    }
+
+    /**
+     * Runs tasks, all but the first one on the executor if they may run
+     * concurrently and the first one in the calling thread.
+     *
+     * @param tasks The tasks to run.
+     * @param concurrent Whether the tasks may run concurrently.
+     * @return The results of the tasks, in order.
+     * @throws IOException If a tile cannot be read.
+     */
+    private List<Accumulator> execute(List<PlaneTask> tasks,
+            boolean concurrent)
+        throws IOException
+    {
+        if (concurrent) {
+            return executor.invokeAllCallerRunsFirst(tasks, IOException.class);
+        }
+        return RenderingExecutor.invokeAllInCaller(tasks, IOException.class);
+    }
+
+    /**
+     * The statistics of a channel.
+     */
+    public static class Result {
+
+        private final double min;
+
+        private final double max;
+
+        private final long count;
+
+        private final int[] histogram;
+
+        /** The number of pixels of each value, <code>null</code> if wide. */
+        private final long[] counts;
+
+        /** The value counted by the first element of {@link #counts}. */
+        private final int offset;
+
+        Result(double min, double max, long count, int[] histogram,
+                long[] counts, int offset) {
+            this.min = min;
+            this.max = max;
+            this.count = count;
+            this.histogram = histogram;
+            this.counts = counts;
+            this.offset = offset;
+        }
+
+        /**
+         * Returns the minimum value, positive infinity if no pixel was read.
+         *
+         * @return See above.
+         */
+        public double getMin() {
+            return min;
+        }
+
+        /**
+         * Returns the maximum value, negative infinity if no pixel was read.
+         *
+         * @return See above.
+         */
+        public double getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the number of pixels read.
+         *
+         * @return See above.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the histogram, <code>null</code> if none was requested.
+         *
+         * @return See above.
+         */
+        public int[] getHistogram() {
+            return histogram;
+        }
+
+        /**
+         * Returns the smallest value which at least a fraction of the pixels
+         * are lower than or equal to. Only 8 and 16 bit pixels are counted
+         * one by one, the percentiles of other types are not known.
+         *
+         * @param fraction The fraction of the pixels, between 0 and 1.
+         * @return See above or <code>NaN</code> if not known.
+         */
+        public double getPercentile(double fraction) {
+            if (counts == null || count == 0) {
+                return Double.NaN;
+            }
+            long target = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return offset + i;
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Statistics accumulated over tiles.
+     */
+    private static class Accumulator {
+
+        final int channel;
+
+        /** The number of pixels of each value, <code>null</code> if wide. */
+        long[] counts;
+
+        /** The value counted by the first element of {@link #counts}. */
+        int offset;
+
+        double min = Double.POSITIVE_INFINITY;
+
+        double max = Double.NEGATIVE_INFINITY;
+
+        long count;
+
+        /** The histogram over a known range, <code>null</code> if none. */
+        int[] bins;
+
+        final double binMin;
+
+        final double binRange;
+
+        Accumulator(int channel, int binCount, double[] range) {
+            this.channel = channel;
+            if (binCount > 0) {
+                bins = new int[binCount];
+                binMin = range[0];
+                binRange = (range[1] - range[0] + 1) / binCount;
+            } else {
+                bins = null;
+                binMin = 0;
+                binRange = 0;
+            }
+        }
+
+        /** Counts the pixels of a tile one value at a time. */
+        void count(PixelData tile) {
+            ByteBuffer data = tile.getData();
+            int n = tile.size();
+            int i;
+            switch (tile.javaType()) {
+                case PixelData.BYTE:
+                    if (counts == null) {
+                        counts = new long[256];
+                        offset = tile.isSigned()? Byte.MIN_VALUE : 0;
+                    }
+                    if (tile.isSigned()) {
+                        for (i = 0; i < n; i++) {
+                            counts[data.get(i) - Byte.MIN_VALUE]++;
+                        }
+                    } else {
+                        for (i = 0; i < n; i++) {
+                            counts[data.get(i) & 0xFF]++;
+                        }
+                    }
+                    break;
+                case PixelData.SHORT:
+                    if (counts == null) {
+                        counts = new long[65536];
+                        offset = tile.isSigned()? Short.MIN_VALUE : 0;
+                    }
+                    if (tile.isSigned()) {
+                        for (i = 0; i < n; i++) {
+                            counts[data.getShort(2 * i) - Short.MIN_VALUE]++;
+                        }
+                    } else {
+                        for (i = 0; i < n; i++) {
+                            counts[data.getShort(2 * i) & 0xFFFF]++;
+                        }
+                    }
+                    break;
+                default:
+                    if (counts == null) {
+                        counts = new long[2];
+                        offset = 0;
+                    }
+                    for (i = 0; i < n; i++) {
+                        counts[(int) tile.getPixelValue(i)]++;
+                    }
+            }
+            count += n;
+        }
+
+        /** Reads the pixels of a tile value by value. */
+        void add(PixelData tile) {
+            int n = tile.size();
+            for (int i = 0; i < n; i++) {
+                double value = tile.getPixelValue(i);
+                min = value < min? value : min;
+                max = value > max? value : max;
+                if (bins != null) {
+                    bin(value, 1);
+                }
+            }
+            count += n;
+        }
+
+        /** Adds pixels of a value to the histogram as the viewer expects. */
+        void bin(double value, long n) {
+            int bin = (int) ((value - binMin) / binRange);
+            // If there are more bins than values (binRange < 1) the bin
+            // would be offset by -1, e.g. min=0.0, max=127.0, binCount=256:
+            // a pixel of value 127.0 would go into bin 254 instead of 255.
+            if (bin > 0 && binRange < 1) {
+                bin++;
+            }
+            if (bin >= 0 && bin < bins.length) {
+                bins[bin] += n;
+            }
+        }
+
+        /** Derives the extrema from the counted values. */
+        void finishCounts() {
+            if (counts == null) {
+                return;
+            }
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    min = Math.min(min, offset + i);
+                    max = Math.max(max, offset + i);
+                }
+            }
+        }
+
+        void merge(Accumulator other) {
+            if (other.counts != null) {
+                if (counts == null) {
+                    counts = other.counts;
+                    offset = other.offset;
+                } else {
+                    for (int i = 0; i < counts.length; i++) {
+                        counts[i] += other.counts[i];
+                    }
+                }
+            }
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            count += other.count;
+            mergeBins(other);
+        }
+
+        void mergeBins(Accumulator other) {
+            if (other.bins == null) {
+                return;
+            }
+            if (bins == null) {
+                // The histogram is filled by a second pass.
+                bins = other.bins;
+                return;
+            }
+            for (int i = 0; i < bins.length; i++) {
+                bins[i] += other.bins[i];
+            }
+        }
+
+        /** Builds a histogram from the counted values. */
+        int[] histogram(int binCount, double from, double to) {
+            Accumulator binned = new Accumulator(
+                    channel, binCount, new double[] { from, to });
+            if (counts != null) {
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        binned.bin(offset + i, counts[i]);
+                    }
+                }
+            }
+            return binned.bins;
+        }
+    }
+
+    /**
+     * Accumulates the statistics of the region of some planes of a channel.
+     */
+    private class PlaneTask implements Callable<Accumulator> {
+
+        private final int channel;
+
+        private final List<int[]> planes;
+
+        private final Rectangle region;
+
+        private final boolean counted;
+
+        private final int binCount;
+
+        private final double[] range;
+
+        PlaneTask(int channel, List<int[]> planes, Rectangle region,
+                boolean counted, int binCount, double[] range) {
+            this.channel = channel;
+            this.planes = planes;
+            this.region = region;
+            this.counted = counted;
+            this.binCount = binCount;
+            this.range = range;
+        }
+
+        public Accumulator call() throws IOException {
+            Accumulator accumulator =
+                new Accumulator(channel, binCount, range);
+            Dimension tileSize = buffer.getTileSize();
+            int x0 = region.x - region.x % tileSize.width;
+            int y0 = region.y - region.y % tileSize.height;
+            int x1 = region.x + region.width;
+            int y1 = region.y + region.height;
+            for (int[] plane : planes) {
+                for (int y = y0; y < y1; y += tileSize.height) {
+                    for (int x = x0; x < x1; x += tileSize.width) {
+                        int tx = Math.max(x, region.x);
+                        int ty = Math.max(y, region.y);
+                        int tw = Math.min(x + tileSize.width, x1) - tx;
+                        int th = Math.min(y + tileSize.height, y1) - ty;
+                        if (tw <= 0 || th <= 0) {
+                            continue;
+                        }
+                        PixelData tile = buffer.getTile(
+                                plane[0], channel, plane[1], tx, ty, tw, th);
+                        try {
+                            if (counted) {
+                                accumulator.count(tile);
+                            } else {
+                                accumulator.add(tile);
+                            }
+                        } finally {
+                            tile.dispose();
+                        }
+                    }
+                }
+            }
+            accumulator.finishCounts();
+            return accumulator;
+        }
+    }
+}
@@ -46,6 +46,9 @@ public class Quantization_8_16_bit extends QuantumStrategy {
     /** The upper bound of the table. */
     private int lutMax;
 
+    /** Incremented each time the table is rebuilt. */
+    private int lutVersion;
+
     /** The input start normalized value. */
     private double ysNormalized;
 
@@ -220,6 +223,7 @@ public class Quantization_8_16_bit extends QuantumStrategy {
      * gof.
      */
     private void buildLUT() {
+        lutVersion++;
     	double dStart = getWindowStart(), dEnd = getWindowEnd();
         if (LUT == null) {
             initLUT((int) dStart, (int) dEnd);
@@ -292,6 +296,46 @@ public class Quantization_8_16_bit extends QuantumStrategy {
         super(qd, pixels);
     }
 
+    /**
+     * Returns the look-up table mapping pixel intensities onto the device
+     * space. The first element of the table maps the intensity value returned
+     * by {@link #getLookupTableStart()}. The table is rebuilt whenever the
+     * input window changes and must not be modified by callers.
+     *
+     * @return See above or <code>null</code> if the table is not yet built.
+     */
+    public byte[] getLookupTable() {
+        return LUT;
+    }
+
+    /**
+     * Returns the lowest pixel intensity value mapped by the look-up table.
+     *
+     * @return See above.
+     */
+    public int getLookupTableStart() {
+        return lutMin;
+    }
+
+    /**
+     * Returns the highest pixel intensity value mapped by the look-up table.
+     *
+     * @return See above.
+     */
+    public int getLookupTableEnd() {
+        return lutMax;
+    }
+
+    /**
+     * Returns a number which changes whenever the look-up table is rebuilt,
+     * so that callers can tell if values they derived from it are stale.
+     *
+     * @return See above.
+     */
+    public int getLookupTableVersion() {
+        return lutVersion;
+    }
+
     /**
      * Implemented as specified in {@link QuantumStrategy}.
      * 
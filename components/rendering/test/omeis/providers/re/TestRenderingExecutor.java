@@ -0,0 +1,115 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.system.metrics.NullMetrics;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for
+ * {@link RenderingExecutor#invokeAllCallerRunsFirst(List, Class)}.
+ */
+@Test
+public class TestRenderingExecutor {
+
+    private final RenderingExecutor executor =
+            new RenderingExecutor(2, 0, new NullMetrics());
+
+    @AfterClass
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /** Returns a task returning its index after sleeping a while. */
+    private static Callable<Integer> task(final int index,
+            final AtomicInteger running, final AtomicInteger completed) {
+        return new Callable<Integer>() {
+            public Integer call() throws Exception {
+                running.incrementAndGet();
+                try {
+                    Thread.sleep(20);
+                    completed.incrementAndGet();
+                    return index;
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testResultsInOrder() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 8; i++) {
+            tasks.add(task(i, running, completed));
+        }
+        Assert.assertEquals(
+                executor.invokeAllCallerRunsFirst(tasks, Exception.class),
+                Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7));
+        Assert.assertEquals(
+                RenderingExecutor.invokeAllInCaller(tasks, Exception.class),
+                Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7));
+        Assert.assertEquals(completed.get(), 16);
+    }
+
+    @Test
+    public void testFailureWaitsForRunningTasks() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        tasks.add(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                // Fails while the other tasks are running.
+                while (running.get() == 0) {
+                    Thread.sleep(1);
+                }
+                throw new IOException("first");
+            }
+        });
+        for (int i = 1; i < 40; i++) {
+            tasks.add(task(i, running, completed));
+        }
+        try {
+            executor.invokeAllCallerRunsFirst(tasks, IOException.class);
+            Assert.fail("IOException expected");
+        } catch (IOException e) {
+            Assert.assertEquals(e.getMessage(), "first");
+        }
+        Assert.assertEquals(running.get(), 0);
+        // The tasks not started yet when the first one failed were skipped.
+        Assert.assertTrue(completed.get() < 39);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testUncheckedFailure() throws Exception {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        tasks.add(new Callable<Integer>() {
+            public Integer call() {
+                return 0;
+            }
+        });
+        tasks.add(new Callable<Integer>() {
+            public Integer call() {
+                throw new IllegalStateException();
+            }
+        });
+        executor.invokeAllCallerRunsFirst(tasks, IOException.class);
+    }
+}
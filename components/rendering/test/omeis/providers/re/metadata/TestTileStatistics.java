@@ -0,0 +1,223 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.metadata;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ome.io.nio.RomioPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.system.metrics.NullMetrics;
+import omeis.providers.re.RenderingExecutor;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.metadata.TileStatistics},
+ * checked against a pixel by pixel computation over whole planes.
+ */
+@Test
+public class TestTileStatistics {
+
+    private static final int SIZE_X = 45;
+
+    private static final int SIZE_Y = 37;
+
+    private static final int SIZE_Z = 3;
+
+    private static final int SIZE_C = 2;
+
+    private final RenderingExecutor executor =
+        new RenderingExecutor(3, 16, new NullMetrics());
+
+    private final List<File> files = new ArrayList<File>();
+
+    @AfterClass
+    public void tearDown() {
+        executor.shutdown();
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes random planes, filling <code>values</code> with the values
+     * written, and returns a buffer reading them by tiles of 16 by 8 pixels.
+     */
+    private RomioPixelBuffer createBuffer(String type, double[][][] values)
+            throws IOException {
+        Pixels pixels = new Pixels();
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(SIZE_Z);
+        pixels.setSizeC(SIZE_C);
+        pixels.setSizeT(1);
+        pixels.setPixelsType(new PixelsType(type));
+        File file = File.createTempFile("tilestatistics", ".pixels");
+        files.add(file);
+        RomioPixelBuffer buffer = new RomioPixelBuffer(
+                file.getAbsolutePath(), pixels, true) {
+            @Override
+            public Dimension getTileSize() {
+                return new Dimension(16, 8);
+            }
+        };
+        Random random = new Random(SIZE_X * SIZE_Y);
+        int bytes = buffer.getByteWidth();
+        for (int z = 0; z < SIZE_Z; z++) {
+            for (int c = 0; c < SIZE_C; c++) {
+                ByteBuffer plane = ByteBuffer.allocate(SIZE_X * SIZE_Y * bytes);
+                for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                    double value;
+                    if ("float".equals(type)) {
+                        value = (float) (random.nextGaussian() * 100);
+                        plane.putFloat((float) value);
+                    } else {
+                        value = 1000 + random.nextInt(300 * (c + 1));
+                        plane.putShort((short) value);
+                    }
+                    values[z][c][i] = value;
+                }
+                buffer.setPlane(plane.array(), z, c, 0);
+            }
+        }
+        return buffer;
+    }
+
+    /** Computes the statistics as the rendering services used to. */
+    private static double[] legacy(double[][][] values, int c, int[] zs,
+            Rectangle region, int binCount, double[] range, int[] bins) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int z : zs) {
+            for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                if (region.contains(i % SIZE_X, i / SIZE_X)) {
+                    min = Math.min(min, values[z][c][i]);
+                    max = Math.max(max, values[z][c][i]);
+                }
+            }
+        }
+        if (range == null) {
+            range = new double[] { min, max };
+        }
+        double binRange = (range[1] - range[0] + 1) / binCount;
+        for (int z : zs) {
+            for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                if (region.contains(i % SIZE_X, i / SIZE_X)) {
+                    int bin = (int) ((values[z][c][i] - range[0]) / binRange);
+                    if (bin > 0 && binRange < 1)
+                        bin++;
+                    if (bin >= 0 && bin < binCount)
+                        bins[bin]++;
+                }
+            }
+        }
+        return new double[] { min, max };
+    }
+
+    private void check(String type, RenderingExecutor executor,
+            Rectangle region, int binCount, Map<Integer, double[]> ranges)
+            throws IOException {
+        double[][][] values = new double[SIZE_Z][SIZE_C][SIZE_X * SIZE_Y];
+        RomioPixelBuffer buffer = createBuffer(type, values);
+        try {
+            List<int[]> planes = new ArrayList<int[]>();
+            for (int z = 0; z < SIZE_Z; z++) {
+                planes.add(new int[] { z, 0 });
+            }
+            Map<Integer, TileStatistics.Result> results =
+                new TileStatistics(buffer, executor).compute(type,
+                        new int[] { 0, 1 }, planes, region, binCount, ranges);
+            Rectangle all = region == null?
+                    new Rectangle(0, 0, SIZE_X, SIZE_Y) : region;
+            for (int c = 0; c < SIZE_C; c++) {
+                int[] bins = new int[binCount];
+                double[] minMax = legacy(values, c, new int[] { 0, 1, 2 },
+                        all, binCount,
+                        ranges == null? null : ranges.get(c), bins);
+                TileStatistics.Result result = results.get(c);
+                Assert.assertEquals(result.getMin(), minMax[0]);
+                Assert.assertEquals(result.getMax(), minMax[1]);
+                Assert.assertEquals(result.getCount(),
+                        (long) SIZE_Z * all.width * all.height);
+                if (binCount > 0) {
+                    Assert.assertEquals(result.getHistogram(), bins);
+                } else {
+                    Assert.assertNull(result.getHistogram());
+                }
+            }
+        } finally {
+            buffer.close();
+        }
+    }
+
+    public void testCountedSerial() throws IOException {
+        check("uint16", null, null, 256, null);
+    }
+
+    public void testCountedConcurrent() throws IOException {
+        check("uint16", executor, null, 256, null);
+    }
+
+    public void testCountedRegion() throws IOException {
+        check("uint16", executor, new Rectangle(5, 3, 30, 20), 64, null);
+    }
+
+    public void testCountedRange() throws IOException {
+        Map<Integer, double[]> ranges = new HashMap<Integer, double[]>();
+        ranges.put(1, new double[] { 1100, 1200 });
+        check("uint16", executor, null, 256, ranges);
+    }
+
+    public void testCountedNoHistogram() throws IOException {
+        check("uint16", executor, new Rectangle(17, 9, 1, 1), 0, null);
+    }
+
+    public void testFloat() throws IOException {
+        check("float", executor, null, 100, null);
+    }
+
+    public void testFloatRegionRange() throws IOException {
+        Map<Integer, double[]> ranges = new HashMap<Integer, double[]>();
+        ranges.put(0, new double[] { -50, 50 });
+        check("float", executor, new Rectangle(16, 8, 16, 8), 10, ranges);
+    }
+
+    public void testPercentile() throws IOException {
+        double[][][] values = new double[SIZE_Z][SIZE_C][SIZE_X * SIZE_Y];
+        RomioPixelBuffer buffer = createBuffer("uint16", values);
+        try {
+            TileStatistics.Result result = new TileStatistics(buffer, executor)
+                .compute("uint16", new int[] { 0 },
+                        Collections.singletonList(new int[] { 1, 0 }), null,
+                        0, null).get(0);
+            double[] sorted = values[1][0].clone();
+            Arrays.sort(sorted);
+            Assert.assertEquals(result.getPercentile(0), sorted[0]);
+            Assert.assertEquals(result.getPercentile(0.5),
+                    sorted[(sorted.length + 1) / 2 - 1]);
+            Assert.assertEquals(result.getPercentile(1),
+                    sorted[sorted.length - 1]);
+        } finally {
+            buffer.close();
+        }
+    }
+}
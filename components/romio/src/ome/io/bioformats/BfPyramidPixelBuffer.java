@@ -121,6 +121,22 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /** The byte order of the compressed pyramid. */
     private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
 
+    /**
+     * Readers shared with the other instances reading the same pyramid, used
+     * to decode tiles concurrently. <code>null</code> if tiles are read by
+     * the delegate one at a time.
+     */
+    private volatile PyramidReaderPool readerPool;
+
+    /**
+     * Decoded tiles shared with the other instances reading the same
+     * pyramid. <code>null</code> if tiles are decoded on every read.
+     */
+    private volatile DecodedTileCache tileCache;
+
+    /** Modification time of the pyramid file when the reader was opened. */
+    private long readerModified;
+
     public static final String PYR_LOCK_EXT = ".pyr_lock";
 
     /**
@@ -204,6 +220,7 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
             // note: we double checked readerFile exists just in case.
             lockFile.delete();
         }
+        readerModified = readerFile.lastModified();
         reader = new OmeroPixelsPyramidReader();
         delegate = new BfPixelBuffer(readerFile.getAbsolutePath(), reader);
         byteOrder = delegate.isLittleEndian()? ByteOrder.LITTLE_ENDIAN
@@ -451,6 +468,29 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         }
     }
 
+    /**
+     * Sets the pool of readers tiles are decoded with once the pyramid is
+     * written, instead of the delegate.
+     * @param readerPool The pool or <code>null</code> to use the delegate.
+     */
+    public void setReaderPool(PyramidReaderPool readerPool)
+    {
+        this.readerPool = readerPool == null || !readerPool.isEnabled()?
+                null : readerPool;
+    }
+
+    /**
+     * Sets the cache tiles are read from and added to once the pyramid is
+     * written.
+     * @param tileCache The cache or <code>null</code> to decode tiles on
+     * every read.
+     */
+    public void setTileCache(DecodedTileCache tileCache)
+    {
+        this.tileCache = tileCache == null || !tileCache.isEnabled()?
+                null : tileCache;
+    }
+
     /**
      * Whether or not this instance is in writing-mode. Any of the calls to reader
      * methods called while this method returns true will close the writer,
@@ -1003,30 +1043,174 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTile(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getTile(Integer z, Integer c, Integer t,
+    public PixelData getTile(Integer z, Integer c, Integer t,
             Integer x, Integer y, Integer w, Integer h) throws IOException
     {
-        checkTileParameters(x, y, w, h);
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        PixelData data = delegate().getTile(z, c, t, x, y, w, h);
-        data.setOrder(byteOrder);
+        int resolutionLevel;
+        ByteOrder order;
+        DecodedTileCache.Key key;
+        byte[] tile;
+        synchronized (this)
+        {
+            checkTileParameters(x, y, w, h);
+            resolutionLevel = delegate().getResolutionLevel();
+            order = byteOrder;
+            key = tileKey(resolutionLevel, z, c, t, x, y, w, h);
+            tile = key == null? null : tileCache.get(key);
+            if (tile == null && readerPool == null)
+            {
+                PixelData data = delegate().getTile(
+                        0, 0, getRasterizedT(z, c, t), x, y, w, h);
+                data.setOrder(byteOrder);
+                if (key != null)
+                {
+                    tileCache.put(key, data.getData().array().clone());
+                }
+                return data;
+            }
+        }
+        if (tile == null)
+        {
+            tile = readPooledTile(resolutionLevel, getRasterizedT(z, c, t),
+                    x, y, w, h);
+            if (key != null)
+            {
+                tileCache.put(key, tile.clone());
+            }
+        }
+        else
+        {
+            tile = tile.clone();
+        }
+        PixelData data = new PixelData(
+                pixels.getPixelsType().getValue(), ByteBuffer.wrap(tile));
+        data.setOrder(order);
         return data;
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTileDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getTileDirect(Integer z, Integer c, Integer t,
+    public byte[] getTileDirect(Integer z, Integer c, Integer t,
             Integer x, Integer y, Integer w, Integer h, byte[] buffer)
         throws IOException
     {
-        checkTileParameters(x, y, w, h);
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        return delegate().getTileDirect(z, c, t, x, y, w, h, buffer);
+        int resolutionLevel;
+        ByteOrder order;
+        int bytesPerPixel;
+        DecodedTileCache.Key key;
+        byte[] tile;
+        synchronized (this)
+        {
+            checkTileParameters(x, y, w, h);
+            resolutionLevel = delegate().getResolutionLevel();
+            order = byteOrder;
+            bytesPerPixel = delegate().getByteWidth();
+            key = tileKey(resolutionLevel, z, c, t, x, y, w, h);
+            tile = key == null? null : tileCache.get(key);
+            if (tile == null && readerPool == null)
+            {
+                if (key == null)
+                {
+                    return delegate().getTileDirect(
+                            0, 0, getRasterizedT(z, c, t), x, y, w, h, buffer);
+                }
+                tile = delegate().getTile(0, 0, getRasterizedT(z, c, t),
+                        x, y, w, h).getData().array();
+                tileCache.put(key, tile);
+            }
+        }
+        if (tile == null)
+        {
+            tile = readPooledTile(resolutionLevel, getRasterizedT(z, c, t),
+                    x, y, w, h);
+            if (key != null)
+            {
+                tileCache.put(key, tile);
+            }
+        }
+        return copyBigEndian(tile, order, bytesPerPixel, buffer);
+    }
+
+    /**
+     * Decodes a tile with a reader borrowed from the pool.
+     * @param resolutionLevel The resolution level to read the tile at.
+     * @param t The rasterized timepoint of the tile.
+     * @param x X offset of the tile.
+     * @param y Y offset of the tile.
+     * @param w Width of the tile.
+     * @param h Height of the tile.
+     * @return The pixels of the tile in the byte order of the pyramid.
+     * @throws IOException If the tile cannot be read.
+     */
+    private byte[] readPooledTile(int resolutionLevel, int t, int x, int y,
+            int w, int h)
+        throws IOException
+    {
+        String path = readerFile.getAbsolutePath();
+        BfPixelBuffer pooled = readerPool.borrow(path);
+        boolean read = false;
+        try
+        {
+            pooled.setResolutionLevel(resolutionLevel);
+            byte[] tile = pooled.getTile(0, 0, t, x, y, w, h)
+                    .getData().array();
+            read = true;
+            return tile;
+        }
+        finally
+        {
+            if (read)
+            {
+                readerPool.release(path, pooled);
+            }
+            else
+            {
+                readerPool.discard(path, pooled);
+            }
+        }
+    }
+
+    /**
+     * Returns the key of a tile in the cache or <code>null</code> if tiles
+     * are not cached.
+     */
+    private DecodedTileCache.Key tileKey(int resolutionLevel, int z, int c,
+            int t, int x, int y, int w, int h)
+    {
+        if (tileCache == null || pixels.getId() == null)
+        {
+            return null;
+        }
+        return new DecodedTileCache.Key(pixels.getId(), readerModified,
+                resolutionLevel, z, c, t, x, y, w, h);
+    }
+
+    /**
+     * Copies pixels to a buffer in big-endian order, as
+     * {@link BfPixelsWrapper#swapIfRequired(byte[])} leaves them.
+     * @param tile The pixels in the byte order of the pyramid.
+     * @param order The byte order of the pyramid.
+     * @param bytesPerPixel The width of a pixel.
+     * @param buffer The buffer to copy to.
+     * @return The buffer.
+     */
+    private static byte[] copyBigEndian(byte[] tile, ByteOrder order,
+            int bytesPerPixel, byte[] buffer)
+    {
+        if (order == ByteOrder.BIG_ENDIAN || bytesPerPixel == 1)
+        {
+            System.arraycopy(tile, 0, buffer, 0, tile.length);
+            return buffer;
+        }
+        for (int i = 0; i < tile.length; i += bytesPerPixel)
+        {
+            for (int j = 0; j < bytesPerPixel; j++)
+            {
+                buffer[i + j] = tile[i + bytesPerPixel - 1 - j];
+            }
+        }
+        return buffer;
     }
 
     /* (non-Javadoc)
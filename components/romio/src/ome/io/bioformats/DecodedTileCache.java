@@ -0,0 +1,185 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.bioformats;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+/**
+ * Cache of decoded pyramid tiles shared by all the
+ * {@link BfPyramidPixelBuffer} instances, so that a tile read by several
+ * sessions, or rendered again after a change of settings, is decoded once.
+ * Tiles are held in memory up to a number of bytes, the least recently used
+ * being evicted first.
+ *
+ * @since 5.4.1
+ */
+public class DecodedTileCache {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(DecodedTileCache.class);
+
+    /** The decoded tiles in the byte order of their pyramid. */
+    private final Cache<Key, byte[]> tiles;
+
+    /** Whether caching is enabled at all. */
+    private final boolean enabled;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxMemory The maximum number of megabytes held in memory.
+     *                  <code>0</code> disables the cache.
+     * @param metrics The metrics registry to report hits and misses to.
+     */
+    public DecodedTileCache(long maxMemory, Metrics metrics) {
+        if (metrics == null) {
+            metrics = new NullMetrics();
+        }
+        long maxBytes = Math.max(0, maxMemory) * 1024 * 1024;
+        tiles = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, byte[]>() {
+                    public int weigh(Key key, byte[] value) {
+                        return value.length;
+                    }
+                })
+                .build();
+        enabled = maxBytes > 0;
+        hits = metrics.counter(this, "hits");
+        misses = metrics.counter(this, "misses");
+        log.info("Decoded tile cache: " + maxMemory + "MB");
+    }
+
+    /**
+     * Returns <code>true</code> if tiles are cached.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the cached tile or <code>null</code> if there is none. The
+     * array returned is shared and must not be modified.
+     *
+     * @param key The tile.
+     * @return See above.
+     */
+    public byte[] get(Key key) {
+        if (!enabled) {
+            return null;
+        }
+        byte[] tile = tiles.getIfPresent(key);
+        if (tile == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return tile;
+    }
+
+    /**
+     * Caches a tile. The array must not be modified afterwards.
+     *
+     * @param key The tile.
+     * @param tile The decoded pixels.
+     */
+    public void put(Key key, byte[] tile) {
+        if (enabled) {
+            tiles.put(key, tile);
+        }
+    }
+
+    /**
+     * Identifies a tile of a pyramid. The modification time of the pyramid
+     * file keeps the tiles of a pyramid created again apart.
+     */
+    public static final class Key {
+
+        private final long pixelsId;
+
+        private final long modified;
+
+        private final int resolutionLevel;
+
+        private final int z, c, t, x, y, w, h;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param pixelsId The id of the pixels set.
+         * @param modified The modification time of the pyramid file.
+         * @param resolutionLevel The resolution level of the tile.
+         * @param z Z section of the tile.
+         * @param c Channel of the tile.
+         * @param t Timepoint of the tile.
+         * @param x X offset of the tile.
+         * @param y Y offset of the tile.
+         * @param w Width of the tile.
+         * @param h Height of the tile.
+         */
+        public Key(long pixelsId, long modified, int resolutionLevel,
+                int z, int c, int t, int x, int y, int w, int h) {
+            this.pixelsId = pixelsId;
+            this.modified = modified;
+            this.resolutionLevel = resolutionLevel;
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return pixelsId == other.pixelsId && modified == other.modified
+                    && resolutionLevel == other.resolutionLevel
+                    && z == other.z && c == other.c && t == other.t
+                    && x == other.x && y == other.y
+                    && w == other.w && h == other.h;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (pixelsId ^ (pixelsId >>> 32));
+            result = 31 * result + (int) (modified ^ (modified >>> 32));
+            result = 31 * result + resolutionLevel;
+            result = 31 * result + z;
+            result = 31 * result + c;
+            result = 31 * result + t;
+            result = 31 * result + x;
+            result = 31 * result + y;
+            result = 31 * result + w;
+            result = 31 * result + h;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.bioformats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of readers of pixels pyramid files shared by all the
+ * {@link BfPyramidPixelBuffer} instances. Each reader decodes one tile at a
+ * time, so holding a few readers per pyramid file lets independent tiles of
+ * the same pyramid be decoded in parallel, while sparing every pixel buffer
+ * the cost of opening its own.
+ * <p>
+ * At most <code>maxReaders</code> readers are open per pyramid file, callers
+ * wait for one to be released beyond that. Readers unused for longer than
+ * the idle time are closed, as are the ones opened before their file was
+ * last modified.
+ * </p>
+ *
+ * @since 5.4.1
+ */
+public class PyramidReaderPool {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(PyramidReaderPool.class);
+
+    /** The maximum number of readers open per pyramid file. */
+    private final int maxReaders;
+
+    /** Time in ms. after which an unused reader is closed. */
+    private final long maxIdle;
+
+    /** The readers, keyed by the absolute path of the pyramid file. */
+    private final ConcurrentMap<String, Readers> pools =
+            new ConcurrentHashMap<String, Readers>();
+
+    /** Time in ms. of the last sweep for idle readers. */
+    private volatile long lastSweep = System.currentTimeMillis();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxReaders The maximum number of readers open per pyramid file.
+     *                   <code>0</code> disables the pool.
+     * @param maxIdle Time in ms. after which an unused reader is closed.
+     */
+    public PyramidReaderPool(int maxReaders, long maxIdle) {
+        this.maxReaders = Math.max(0, maxReaders);
+        this.maxIdle = Math.max(0, maxIdle);
+        log.info("Pyramid reader pool: " + this.maxReaders
+                + " readers per file, closed after " + this.maxIdle
+                + "ms idle");
+    }
+
+    /**
+     * Returns <code>true</code> if readers can be borrowed from the pool.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return maxReaders > 0;
+    }
+
+    /**
+     * Borrows a reader of a pyramid file, opening it if no idle one is left
+     * and waiting if all the readers of the file are in use. The reader must
+     * be given back with {@link #release(String, BfPixelBuffer)} or
+     * {@link #discard(String, BfPixelBuffer)}.
+     *
+     * @param path The absolute path of the pyramid file.
+     * @return A reader at the highest resolution level.
+     * @throws IOException If the reader cannot be opened or the thread is
+     * interrupted while waiting.
+     */
+    public BfPixelBuffer borrow(String path) throws IOException {
+        if (!isEnabled()) {
+            throw new IllegalStateException("Pyramid reader pool disabled.");
+        }
+        Readers readers;
+        Idle idle;
+        while (true) {
+            readers = pools.get(path);
+            if (readers == null) {
+                Readers created = new Readers();
+                readers = pools.putIfAbsent(path, created);
+                if (readers == null) {
+                    readers = created;
+                }
+            }
+            synchronized (readers) {
+                if (readers.removed) {
+                    continue;
+                }
+                try {
+                    while (readers.borrowed >= maxReaders) {
+                        readers.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(
+                            "Interrupted while waiting for a reader of "
+                            + path);
+                }
+                readers.borrowed++;
+                idle = readers.idle.pollFirst();
+                break;
+            }
+        }
+        long modified = new File(path).lastModified();
+        try {
+            if (idle != null) {
+                if (idle.modified == modified) {
+                    return idle.reader;
+                }
+                readers.modified.remove(idle.reader);
+                close(idle.reader);
+            }
+            BfPixelBuffer reader = new BfPixelBuffer(
+                    path, new OmeroPixelsPyramidReader());
+            try {
+                // Opens the file.
+                reader.getResolutionLevels();
+            } catch (RuntimeException e) {
+                close(reader);
+                throw e;
+            }
+            readers.modified.put(reader, modified);
+            return reader;
+        } catch (IOException | RuntimeException e) {
+            giveBack(path, null);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a reader to the pool for reuse. It is reset to the highest
+     * resolution level.
+     *
+     * @param path The absolute path of the pyramid file.
+     * @param reader The reader borrowed.
+     */
+    public void release(String path, BfPixelBuffer reader) {
+        try {
+            reader.setResolutionLevel(reader.getResolutionLevels() - 1);
+        } catch (RuntimeException e) {
+            discard(path, reader);
+            return;
+        }
+        giveBack(path, reader);
+        if (System.currentTimeMillis() - lastSweep > maxIdle) {
+            evictIdle();
+        }
+    }
+
+    /**
+     * Closes a borrowed reader which should not be reused, e.g. because a
+     * read failed.
+     *
+     * @param path The absolute path of the pyramid file.
+     * @param reader The reader borrowed.
+     */
+    public void discard(String path, BfPixelBuffer reader) {
+        Readers readers = pools.get(path);
+        if (readers != null) {
+            readers.modified.remove(reader);
+        }
+        close(reader);
+        giveBack(path, null);
+    }
+
+    /**
+     * Closes the readers unused for longer than the idle time and forgets
+     * the pyramid files without any reader left.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        lastSweep = now;
+        List<BfPixelBuffer> expired = new ArrayList<BfPixelBuffer>();
+        for (Map.Entry<String, Readers> entry : pools.entrySet()) {
+            Readers readers = entry.getValue();
+            synchronized (readers) {
+                Iterator<Idle> i = readers.idle.descendingIterator();
+                while (i.hasNext()) {
+                    Idle idle = i.next();
+                    if (now - idle.since <= maxIdle) {
+                        break;
+                    }
+                    i.remove();
+                    readers.modified.remove(idle.reader);
+                    expired.add(idle.reader);
+                }
+                if (readers.idle.isEmpty() && readers.borrowed == 0) {
+                    readers.removed = true;
+                    pools.remove(entry.getKey(), readers);
+                }
+            }
+        }
+        for (BfPixelBuffer reader : expired) {
+            close(reader);
+        }
+        if (!expired.isEmpty() && log.isDebugEnabled()) {
+            log.debug("Closed " + expired.size() + " idle pyramid readers");
+        }
+    }
+
+    /**
+     * Closes all the idle readers. Borrowed readers are closed when
+     * discarded.
+     */
+    public void close() {
+        List<BfPixelBuffer> all = new ArrayList<BfPixelBuffer>();
+        for (Readers readers : pools.values()) {
+            synchronized (readers) {
+                for (Idle idle : readers.idle) {
+                    all.add(idle.reader);
+                }
+                readers.idle.clear();
+                readers.modified.clear();
+            }
+        }
+        for (BfPixelBuffer reader : all) {
+            close(reader);
+        }
+    }
+
+    /**
+     * Gives a permit back to the readers of a file and, if not
+     * <code>null</code>, a reader for reuse.
+     */
+    private void giveBack(String path, BfPixelBuffer reader) {
+        // Never removed from the map while one of its readers is borrowed.
+        Readers readers = pools.get(path);
+        synchronized (readers) {
+            if (reader != null) {
+                Long modified = readers.modified.get(reader);
+                if (modified != null) {
+                    readers.idle.addFirst(new Idle(
+                            reader, modified, System.currentTimeMillis()));
+                    reader = null;
+                }
+            }
+            readers.borrowed--;
+            readers.notify();
+        }
+        close(reader);
+    }
+
+    private void close(BfPixelBuffer reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (Exception e) {
+            log.warn("Failed to close pyramid reader " + reader.filePath, e);
+        }
+    }
+
+    /**
+     * The readers of a pyramid file. Idle readers are ordered from the most
+     * to the least recently used.
+     */
+    private static class Readers {
+
+        final Deque<Idle> idle = new ArrayDeque<Idle>();
+
+        /** The modification time of the file each open reader was opened at. */
+        final Map<BfPixelBuffer, Long> modified =
+                new ConcurrentHashMap<BfPixelBuffer, Long>();
+
+        int borrowed;
+
+        boolean removed;
+    }
+
+    /**
+     * A reader waiting to be reused.
+     */
+    private static class Idle {
+
+        final BfPixelBuffer reader;
+
+        final long modified;
+
+        final long since;
+
+        Idle(BfPixelBuffer reader, long modified, long since) {
+            this.reader = reader;
+            this.modified = modified;
+            this.since = since;
+        }
+    }
+}
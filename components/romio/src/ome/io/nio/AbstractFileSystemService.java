@@ -29,6 +29,8 @@ public class AbstractFileSystemService {
 
     public final static String THUMBNAILS_PATH = "Thumbnails" + File.separator;
 
+    public final static String RENDERED_TILES_PATH = "RenderedTiles" + File.separator;
+
     private final String root;
 
     public AbstractFileSystemService(String path) {
@@ -46,6 +48,15 @@ public class AbstractFileSystemService {
         }
     }
 
+    /**
+     * Returns the absolute path of the root of this service.
+     *
+     * @return See above.
+     */
+    protected String getRoot() {
+        return root;
+    }
+
     /**
      * Makes sure that for a given path, its subpath exists. For example, given
      * the path "/foo/bar/foobar.txt" the method will make sure the directory
@@ -100,6 +111,17 @@ public class AbstractFileSystemService {
         return getPath(THUMBNAILS_PATH, id);
     }
 
+    /**
+     * Returns the numbered directory holding the cached rendered tiles of a
+     * pixels set, e.g. "ROOT/RenderedTiles/Dir-123/Dir-456/123456"
+     *
+     * @param id     the pixels identifier
+     * @return       the path relative to the root
+     */
+    public String getRenderedTilesPath(Long id) {
+        return getPath(RENDERED_TILES_PATH, id);
+    }
+
     private String getPath(String prefix, Long id) {
         String suffix = "";
         Long remaining = id;
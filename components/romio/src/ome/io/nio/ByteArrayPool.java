@@ -0,0 +1,146 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.util.PixelData;
+
+/**
+ * Bounded pool of the byte arrays that {@link RomioPixelBuffer} instances
+ * read regions into when they do not memory map them. Planes, rows and tiles
+ * of the same images are requested over and over with the same sizes, so
+ * handing back the arrays of disposed regions spares allocating and zeroing
+ * a new array per request.
+ * <p>
+ * Arrays are kept per size, up to <code>maxBytes</code> in total. Arrays
+ * released beyond that are left to the garbage collector.
+ * </p>
+ *
+ * @since 5.4.1
+ */
+public class ByteArrayPool {
+
+    /** The maximum number of bytes held by the pool. */
+    private final long maxBytes;
+
+    /** The free arrays, keyed by length. */
+    private final Map<Integer, Deque<byte[]>> arrays =
+            new HashMap<Integer, Deque<byte[]>>();
+
+    /** The number of bytes held by the pool. */
+    private long pooledBytes;
+
+    private final Counter reused;
+
+    private final Counter allocated;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxMegabytes The maximum number of megabytes held by the pool.
+     *                     <code>0</code> disables the pool.
+     * @param metrics The registry to report reused and allocated arrays to,
+     *                may be <code>null</code>.
+     */
+    public ByteArrayPool(long maxMegabytes, Metrics metrics) {
+        if (metrics == null) {
+            metrics = new NullMetrics();
+        }
+        maxBytes = Math.max(0, maxMegabytes) * 1024 * 1024;
+        reused = metrics.counter(this, "reused");
+        allocated = metrics.counter(this, "allocated");
+    }
+
+    /**
+     * Returns a free array of the given length, allocating one if there is
+     * none. Its content is undefined.
+     *
+     * @param size The length of the array.
+     * @return See above.
+     */
+    public byte[] borrow(int size) {
+        synchronized (arrays) {
+            Deque<byte[]> free = arrays.get(size);
+            if (free != null && !free.isEmpty()) {
+                pooledBytes -= size;
+                reused.inc();
+                return free.pop();
+            }
+        }
+        allocated.inc();
+        return new byte[size];
+    }
+
+    /**
+     * Hands back an array which must no longer be used by the caller.
+     *
+     * @param array The array to release.
+     */
+    public void release(byte[] array) {
+        synchronized (arrays) {
+            if (pooledBytes + array.length > maxBytes) {
+                return;
+            }
+            Deque<byte[]> free = arrays.get(array.length);
+            if (free == null) {
+                free = new ArrayDeque<byte[]>();
+                arrays.put(array.length, free);
+            }
+            free.push(array);
+            pooledBytes += array.length;
+        }
+    }
+
+    /**
+     * Wraps an array borrowed from the pool as pixel data which releases the
+     * array when disposed.
+     *
+     * @param pixelsType The OME pixels type.
+     * @param array The borrowed array holding the pixels.
+     * @return See above.
+     */
+    public PixelData wrap(String pixelsType, byte[] array) {
+        return new PooledPixelData(pixelsType, array);
+    }
+
+    /**
+     * Pixel data backed by an array of the pool. As for mapped pixel data,
+     * the instance must not be used once {@link #dispose()} has been called.
+     */
+    private class PooledPixelData extends PixelData {
+
+        /** The array to release, <code>null</code> once released. */
+        private byte[] array;
+
+        private PooledPixelData(String pixelsType, byte[] array) {
+            super(pixelsType, ByteBuffer.wrap(array));
+            this.array = array;
+        }
+
+        @Override
+        public void dispose() {
+            byte[] released;
+            synchronized (this) {
+                released = array;
+                array = null;
+                data = null;
+            }
+            if (released != null) {
+                release(released);
+            }
+        }
+    }
+}
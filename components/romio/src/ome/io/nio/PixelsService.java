@@ -29,6 +29,8 @@ import ome.conditions.MissingPyramidException;
 import ome.conditions.ResourceError;
 import ome.io.bioformats.BfPixelBuffer;
 import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.io.bioformats.DecodedTileCache;
+import ome.io.bioformats.PyramidReaderPool;
 import ome.io.messages.MissingPyramidMessage;
 import ome.io.messages.MissingStatsInfoMessage;
 import ome.parameters.Parameters;
@@ -93,6 +95,27 @@ public class PixelsService extends AbstractFileSystemService
 	private Timer tileTimes;
 
 	private Timer minmaxTimes;
+
+	/** Passed to the {@link RomioPixelBuffer} instances created. */
+	private Metrics metrics;
+
+	/** Whether the {@link RomioPixelBuffer} instances map their regions. */
+	private boolean memoryMap = true;
+
+	/**
+	 * The arrays the {@link RomioPixelBuffer} instances read their regions
+	 * into when they do not map them.
+	 */
+	private ByteArrayPool arrayPool;
+
+	/** The number of threads reading ROMIO tiles during pyramid creation. */
+	private int tileReaders = 2;
+
+	/** Readers shared by the pyramid pixel buffers opened for reading. */
+	private PyramidReaderPool pyramidReaderPool;
+
+	/** Tiles shared by the pyramid pixel buffers opened for reading. */
+	private DecodedTileCache decodedTileCache;
 	
 	private IQuery iQuery;
 
@@ -184,10 +207,66 @@ public class PixelsService extends AbstractFileSystemService
     }
 
     public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
         this.tileTimes = metrics.timer(this, "tileTimes");
         this.minmaxTimes = metrics.timer(this, "minmaxTimes");
     }
 
+    /**
+     * Sets whether the ROMIO pixel buffers memory map the regions they read
+     * or read them with positional reads into heap buffers. Defaults to
+     * <code>true</code>.
+     *
+     * @param memoryMap Pass <code>true</code> to memory map the regions.
+     */
+    public void setMemoryMap(boolean memoryMap) {
+        this.memoryMap = memoryMap;
+    }
+
+    /**
+     * Sets the pool of the arrays the ROMIO pixel buffers read regions into
+     * when they do not memory map them. Without a pool, a new array is
+     * allocated per region.
+     *
+     * @param arrayPool The pool, may be <code>null</code>.
+     */
+    public void setByteArrayPool(ByteArrayPool arrayPool) {
+        this.arrayPool = arrayPool;
+    }
+
+    /**
+     * Sets the number of threads reading tiles from ROMIO pixel buffers
+     * ahead of the writer when creating pyramids. Tiles from Bio-Formats
+     * are always read by a single thread. Defaults to <code>2</code>.
+     *
+     * @param tileReaders The number of reading threads.
+     */
+    public void setTileReaders(int tileReaders) {
+        this.tileReaders = Math.max(1, tileReaders);
+    }
+
+    /**
+     * Sets the pool of readers shared by the pyramid pixel buffers opened
+     * for reading, so that their tiles are decoded concurrently.
+     *
+     * @param pyramidReaderPool The pool or <code>null</code> for each pixel
+     * buffer to decode its tiles one at a time.
+     */
+    public void setPyramidReaderPool(PyramidReaderPool pyramidReaderPool) {
+        this.pyramidReaderPool = pyramidReaderPool;
+    }
+
+    /**
+     * Sets the cache of the tiles decoded by the pyramid pixel buffers
+     * opened for reading.
+     *
+     * @param decodedTileCache The cache or <code>null</code> to decode tiles
+     * on every read.
+     */
+    public void setDecodedTileCache(DecodedTileCache decodedTileCache) {
+        this.decodedTileCache = decodedTileCache;
+    }
+
     public long getMemoizerWait() {
         return memoizerWait;
     }
@@ -218,7 +297,7 @@ public class PixelsService extends AbstractFileSystemService
 	 */
 	public PixelBuffer createPixelBuffer(Pixels pixels) throws IOException {
 		RomioPixelBuffer pixbuf = new RomioPixelBuffer(getPixelsPath(pixels
-				.getId()), pixels, true);
+				.getId()), pixels, true, memoryMap, metrics, arrayPool);
 		initPixelBuffer(pixbuf);
 		return pixbuf;
 	}
@@ -399,49 +478,55 @@ public class PixelsService extends AbstractFileSystemService
                 (Math.ceil(source.getSizeX() / tileSize.getWidth())) *
                 (Math.ceil(source.getSizeY() / tileSize.getHeight()));
             final int tenPercent = Math.max((int) totalTiles / 10, 1);
-            Utils.forEachTile(new TileLoopIteration() {
-                public void run(int z, int c, int t, int x, int y, int w,
-                            int h, int tileCount)
+            // ROMIO buffers can be read concurrently, Bio-Formats ones cannot
+            // but are still read ahead of the pyramid writer.
+            final int readers = minMaxStore == null ? tileReaders : 1;
+            TileReadAhead readAhead = new TileReadAhead(source,
+                    (int) tileSize.getWidth(), (int) tileSize.getHeight(),
+                    readers, 2 * readers + 2);
+            try
             {
-                if (log.isInfoEnabled()
-                    && tileCount % tenPercent == 0)
-                {
-                    log.info(String.format(
-                            "Pyramid creation for Pixels:%d %d/%d (%d%%).",
-                            pixels.getId(), tileCount + 1, (int) totalTiles,
-                            (int) (tileCount / totalTiles * 100)));
-                }
-                try
-                {
-                    Timer.Context ctx = tileTimes == null ? null : tileTimes.time();
-                    try {
-                        PixelData tile = source.getTile(z, c, t, x, y, w, h);
-                        pixelsPyramid.setTile(
-                            tile.getData().array(), z, c, t, x, y, w, h);
-                        tile.dispose();
-                    } finally {
-                        if (ctx != null) {
-                            ctx.stop();
+                readAhead.run(new TileReadAhead.TileConsumer() {
+                    public void consume(PixelData tile, int z, int c, int t,
+                            int x, int y, int w, int h, int tileCount)
+                        throws IOException
+                    {
+                        if (log.isInfoEnabled()
+                            && tileCount % tenPercent == 0)
+                        {
+                            log.info(String.format(
+                                    "Pyramid creation for Pixels:%d %d/%d (%d%%).",
+                                    pixels.getId(), tileCount + 1, (int) totalTiles,
+                                    (int) (tileCount / totalTiles * 100)));
+                        }
+                        Timer.Context ctx = tileTimes == null ? null : tileTimes.time();
+                        try {
+                            pixelsPyramid.setTile(
+                                tile.getData().array(), z, c, t, x, y, w, h);
+                        } finally {
+                            if (ctx != null) {
+                                ctx.stop();
+                            }
                         }
                     }
+                });
+            }
+            catch (IOException e1)
+            {
+                log.error("FAIL -- Error during tile population", e1);
+                try
+                {
+                    pixelsPyramidFile.delete();
+                    FileUtils.touch(pixelsPyramidFile); // ticket:5189
                 }
-                catch (IOException e1)
+                catch (Exception e2)
                 {
-                    log.error("FAIL -- Error during tile population", e1);
-                    try
-                    {
-                        pixelsPyramidFile.delete();
-                        FileUtils.touch(pixelsPyramidFile); // ticket:5189
-                    }
-                    catch (Exception e2)
-                    {
-                        log.warn("Error clearing empty or incomplete pixel " +
-                                 "buffer.", e2);
-                    }
-                    return;
+                    log.warn("Error clearing empty or incomplete pixel " +
+                             "buffer.", e2);
                 }
+                // The minimum and maximum of the tiles read so far are partial.
+                return null;
             }
-            }, source, (int) tileSize.getWidth(), (int) tileSize.getHeight());
 
             log.info("SUCCESS -- Pyramid created for pixels id:" + pixels.getId());
 
@@ -833,7 +918,13 @@ public class PixelsService extends AbstractFileSystemService
                 // #5159. Creating the path if we need to write.
                 createSubpath(filePath);
             }
-            return new BfPyramidPixelBuffer(pixels, filePath, write);
+            BfPyramidPixelBuffer pixelBuffer =
+                    new BfPyramidPixelBuffer(pixels, filePath, write);
+            if (!write) {
+                pixelBuffer.setReaderPool(pyramidReaderPool);
+                pixelBuffer.setTileCache(decodedTileCache);
+            }
+            return pixelBuffer;
         }
         catch (Exception e)
         {
@@ -855,7 +946,8 @@ public class PixelsService extends AbstractFileSystemService
      */
     protected PixelBuffer createRomioPixelBuffer(String pixelsFilePath,
         Pixels pixels, boolean allowModification) {
-        return new RomioPixelBuffer(pixelsFilePath, pixels, allowModification);
+        return new RomioPixelBuffer(pixelsFilePath, pixels, allowModification,
+                memoryMap, metrics, arrayPool);
     }
 
     /**
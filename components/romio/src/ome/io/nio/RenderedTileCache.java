@@ -0,0 +1,276 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+/**
+ * Cache of compressed rendered planes and tiles shared by all rendering
+ * engines. Entries are grouped by pixels set and identified within a set by
+ * a key which must capture everything the compressed image depends on, i.e.
+ * the plane, region, resolution level, compression and rendering settings.
+ * <p>
+ * Entries are kept in memory up to a number of bytes and, if enabled, also
+ * written to a directory per pixels set under the binary repository so that
+ * they survive eviction and restarts. The files on disk are also bounded in
+ * size: the least recently used ones are deleted to make room for new ones.
+ * All the entries of a pixels set are dropped by {@link #invalidate(long)},
+ * e.g. when its settings are saved or it is deleted.
+ * </p>
+ *
+ * @since 5.4.1
+ */
+public class RenderedTileCache extends AbstractFileSystemService {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(RenderedTileCache.class);
+
+    /** Separates the pixels id from the key in memory. */
+    private final static String SEPARATOR = "/";
+
+    /** Entries held in memory, keyed by pixels id and key. */
+    private final Cache<String, byte[]> memory;
+
+    /**
+     * Sizes of the files written to the binary repository, keyed by path.
+     * Evicting an entry deletes its file.
+     */
+    private final Cache<String, Integer> disk;
+
+    /** Whether entries are also written to the binary repository. */
+    private final boolean useDisk;
+
+    /** Whether caching is enabled at all. */
+    private final boolean enabled;
+
+    private final Counter hits;
+
+    private final Counter diskHits;
+
+    private final Counter misses;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param path The root of the binary repository.
+     * @param maxMemory The maximum number of megabytes held in memory.
+     *                  <code>0</code> disables the memory cache.
+     * @param maxDisk The maximum number of megabytes written to disk.
+     *                <code>0</code> disables the disk cache.
+     * @param metrics The metrics registry to report hits and misses to.
+     */
+    public RenderedTileCache(String path, long maxMemory, long maxDisk,
+            Metrics metrics) {
+        super(path);
+        if (metrics == null) {
+            metrics = new NullMetrics();
+        }
+        long maxBytes = Math.max(0, maxMemory) * 1024 * 1024;
+        memory = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<String, byte[]>() {
+                    public int weigh(String key, byte[] value) {
+                        return value.length;
+                    }
+                })
+                .build();
+        long maxDiskBytes = Math.max(0, maxDisk) * 1024 * 1024;
+        // A single segment so that the whole size is available to any file.
+        disk = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(maxDiskBytes)
+                .weigher(new Weigher<String, Integer>() {
+                    public int weigh(String file, Integer size) {
+                        return size;
+                    }
+                })
+                .removalListener(new RemovalListener<String, Integer>() {
+                    public void onRemoval(
+                            RemovalNotification<String, Integer> removal) {
+                        if (removal.wasEvicted()) {
+                            new File(removal.getKey()).delete();
+                        }
+                    }
+                })
+                .build();
+        useDisk = maxDiskBytes > 0;
+        enabled = maxBytes > 0 || useDisk;
+        if (useDisk) {
+            loadDisk();
+        }
+        hits = metrics.counter(this, "hits");
+        diskHits = metrics.counter(this, "diskHits");
+        misses = metrics.counter(this, "misses");
+        log.info("Rendered tile cache: " + maxMemory + "MB in memory, "
+                + Math.max(0, maxDisk) + "MB on disk");
+    }
+
+    /**
+     * Registers the files written before a restart so that they count
+     * towards the maximum size on disk. Files left over by an interrupted
+     * write are deleted.
+     */
+    private void loadDisk() {
+        File dir = new File(FilenameUtils.concat(getRoot(),
+                RENDERED_TILES_PATH));
+        if (!dir.isDirectory()) {
+            return;
+        }
+        Collection<File> files = FileUtils.listFiles(dir, null, true);
+        for (File file : files) {
+            if (file.getName().contains(".tmp")) {
+                file.delete();
+            } else {
+                disk.put(file.getPath(), (int) file.length());
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if entries are cached in memory or on disk.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the cached image or <code>null</code> if there is none.
+     *
+     * @param pixelsId The id of the pixels set.
+     * @param key The key of the image within the pixels set.
+     * @return See above.
+     */
+    public byte[] get(long pixelsId, String key) {
+        if (!enabled) {
+            return null;
+        }
+        byte[] tile = memory.getIfPresent(pixelsId + SEPARATOR + key);
+        if (tile != null) {
+            hits.inc();
+            return tile;
+        }
+        if (useDisk) {
+            File file = getFile(pixelsId, key);
+            if (file.exists()) {
+                try {
+                    tile = FileUtils.readFileToByteArray(file);
+                    // Marks the file as recently used.
+                    disk.getIfPresent(file.getPath());
+                    memory.put(pixelsId + SEPARATOR + key, tile);
+                    diskHits.inc();
+                    return tile;
+                } catch (IOException e) {
+                    log.warn("Cannot read cached tile " + file, e);
+                }
+            }
+        }
+        misses.inc();
+        return null;
+    }
+
+    /**
+     * Caches an image.
+     *
+     * @param pixelsId The id of the pixels set.
+     * @param key The key of the image within the pixels set.
+     * @param tile The compressed image.
+     */
+    public void put(long pixelsId, String key, byte[] tile) {
+        if (!enabled) {
+            return;
+        }
+        memory.put(pixelsId + SEPARATOR + key, tile);
+        if (useDisk) {
+            File file = getFile(pixelsId, key);
+            // Written aside then renamed so that readers never see part of it.
+            File tmp = new File(file.getPath() + ".tmp"
+                    + Thread.currentThread().getId());
+            try {
+                createSubpath(file.getPath());
+                FileUtils.writeByteArrayToFile(tmp, tile);
+                if (tmp.renameTo(file)) {
+                    disk.put(file.getPath(), tile.length);
+                } else {
+                    tmp.delete();
+                }
+            } catch (IOException e) {
+                log.warn("Cannot write cached tile " + file, e);
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached images of a pixels set.
+     *
+     * @param pixelsId The id of the pixels set.
+     */
+    public void invalidate(long pixelsId) {
+        if (!enabled) {
+            return;
+        }
+        String prefix = pixelsId + SEPARATOR;
+        Iterator<String> i = memory.asMap().keySet().iterator();
+        while (i.hasNext()) {
+            if (i.next().startsWith(prefix)) {
+                i.remove();
+            }
+        }
+        if (useDisk) {
+            File dir = new File(getRenderedTilesPath(pixelsId));
+            String dirPrefix = dir.getPath() + File.separator;
+            i = disk.asMap().keySet().iterator();
+            while (i.hasNext()) {
+                if (i.next().startsWith(dirPrefix)) {
+                    i.remove();
+                }
+            }
+            try {
+                FileUtils.deleteDirectory(dir);
+            } catch (IOException e) {
+                log.warn("Cannot delete cached tiles " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the file holding an image on disk. The key is hashed so that it
+     * can be used as a file name whatever it contains.
+     *
+     * @param pixelsId The id of the pixels set.
+     * @param key The key of the image within the pixels set.
+     * @return See above.
+     */
+    private File getFile(long pixelsId, String key) {
+        String name = Hashing.sha1().hashString(key, StandardCharsets.UTF_8)
+                .toString();
+        return new File(getRenderedTilesPath(pixelsId), name);
+    }
+}
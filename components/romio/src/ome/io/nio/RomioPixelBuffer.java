@@ -25,6 +25,9 @@ import java.util.List;
 
 import ome.conditions.ApiUsageException;
 import ome.model.core.Pixels;
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
 import ome.util.PixelData;
 
 import org.slf4j.Logger;
@@ -80,6 +83,26 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
      */
     private final boolean permitModification;
 
+    /**
+     * Whether regions are memory mapped or read into heap buffers.
+     */
+    private final boolean memoryMap;
+
+    /** The number of regions mapped. */
+    private final Counter mapsCreated;
+
+    /** The number of bytes mapped. */
+    private final Counter bytesMapped;
+
+    /** The number of bytes read into heap buffers. */
+    private final Counter bytesRead;
+
+    /**
+     * The pool of the arrays regions are read into when they are not mapped,
+     * may be <code>null</code>.
+     */
+    private final ByteArrayPool arrayPool;
+
     /**
      * Creates a new instance. {@link #permitModification} defaults to false.
      * 
@@ -97,6 +120,45 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
      * @param pixels The pixels object to handle.
      */
     public RomioPixelBuffer(String path, Pixels pixels, boolean permitModification) {
+        this(path, pixels, permitModification, true, null);
+    }
+
+    /**
+     * Creates a new instance, choosing how regions are read.
+     *
+     * @param path The path to the file.
+     * @param pixels The pixels object to handle.
+     * @param permitModification Whether data can be written.
+     * @param memoryMap Pass <code>true</code> to memory map the regions,
+     *                  <code>false</code> to read them with positional reads
+     *                  into heap buffers.
+     * @param metrics The registry to report the mapped and read bytes to,
+     *                may be <code>null</code>.
+     */
+    public RomioPixelBuffer(String path, Pixels pixels,
+            boolean permitModification, boolean memoryMap, Metrics metrics) {
+        this(path, pixels, permitModification, memoryMap, metrics, null);
+    }
+
+    /**
+     * Creates a new instance, choosing how regions are read and where the
+     * arrays they are read into come from.
+     *
+     * @param path The path to the file.
+     * @param pixels The pixels object to handle.
+     * @param permitModification Whether data can be written.
+     * @param memoryMap Pass <code>true</code> to memory map the regions,
+     *                  <code>false</code> to read them with positional reads
+     *                  into heap buffers.
+     * @param metrics The registry to report the mapped and read bytes to,
+     *                may be <code>null</code>.
+     * @param arrayPool The pool of the arrays regions are read into when they
+     *                  are not mapped. If <code>null</code>, a new array is
+     *                  allocated per region.
+     */
+    public RomioPixelBuffer(String path, Pixels pixels,
+            boolean permitModification, boolean memoryMap, Metrics metrics,
+            ByteArrayPool arrayPool) {
         super(path);
         if (pixels == null) {
             throw new NullPointerException(
@@ -104,6 +166,14 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         }
         this.pixels = pixels;
         this.permitModification = permitModification;
+        this.memoryMap = memoryMap;
+        if (metrics == null) {
+            metrics = new NullMetrics();
+        }
+        mapsCreated = metrics.counter(this, "mapsCreated");
+        bytesMapped = metrics.counter(this, "bytesMapped");
+        bytesRead = metrics.counter(this, "bytesRead");
+        this.arrayPool = arrayPool;
     }
 
     private void throwIfReadOnly() {
@@ -162,7 +232,8 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         }
     }
 
-    private FileChannel getFileChannel() throws FileNotFoundException {
+    private synchronized FileChannel getFileChannel()
+            throws FileNotFoundException {
         if (channel == null) {
             file = new RandomAccessFile(getPath(), "rw");
             channel = file.getChannel();
@@ -335,6 +406,22 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
 	 */
     public PixelData getRegion(Integer size, Long offset)
             throws IOException {
+        if (!memoryMap) {
+            String type = pixels.getPixelsType().getValue();
+            if (arrayPool == null) {
+                byte[] buffer = new byte[size];
+                readFully(ByteBuffer.wrap(buffer), offset);
+                return new PixelData(type, ByteBuffer.wrap(buffer));
+            }
+            byte[] buffer = arrayPool.borrow(size);
+            try {
+                readFully(ByteBuffer.wrap(buffer), offset);
+            } catch (IOException e) {
+                arrayPool.release(buffer);
+                throw e;
+            }
+            return arrayPool.wrap(type, buffer);
+        }
         FileChannel fileChannel = getFileChannel();
 
         /*
@@ -343,6 +430,8 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
          */
 
         MappedByteBuffer b = fileChannel.map(MapMode.READ_ONLY, offset, size);
+        mapsCreated.inc();
+        bytesMapped.inc(size);
         return new PixelData(pixels.getPixelsType().getValue(), b);
     }
     
@@ -355,6 +444,10 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
     {
 		if (buffer.length != size)
 			throw new ApiUsageException("Buffer size incorrect.");
+		if (!memoryMap) {
+			readFully(ByteBuffer.wrap(buffer), offset);
+			return buffer;
+		}
 		final PixelData pd = getRegion(size, offset);
 		pd.getData().get(buffer);
 		pd.dispose();
@@ -472,11 +565,8 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
 			Integer count, Integer offset, byte[] buffer)
 		throws IOException, DimensionsOutOfBoundsException
 	{
-		final PixelData pd = getPlane(z, c, t);
-		final ByteBuffer b = pd.getData();
-		b.position(offset * getByteWidth());
-		b.get(buffer, 0, count * getByteWidth());
-		pd.dispose();
+		readFully(ByteBuffer.wrap(buffer, 0, count * getByteWidth()),
+		        getPlaneOffset(z, c, t) + (long) offset * getByteWidth());
 		return buffer;
 	}
 
@@ -514,44 +604,76 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
     	if (stride == null || stride < 0) stride = 0;
     	checkBounds(x, y, z, c, t);
     	checkBounds(x+width-1, y+height-1, null, null, null);
-    	
-    	PixelData plane = getPlane(z, c, t);
-    	Integer size;
-    	ByteBuffer buf;
-    	PixelData region = null;
-    	int offset;
-    	
+
+    	// Only the rows of the region are read, straight from the file.
+    	int pixelSize = getByteWidth();
+    	int rowSize = getRowSize();
+    	long rowOffset = getPlaneOffset(z, c, t) + (long) y * rowSize
+    	        + (long) x * pixelSize;
+    	byte[] buffer;
+
     	if (stride == 0) {
-    		size =  width*height*getByteWidth();
-            buf = ByteBuffer.wrap(new byte[size]);
-            region = new PixelData(pixels.getPixelsType().getValue(), buf);
-            for (int i = 0; i < height; i++) {
-            	for (int j = 0; j < width; j++) {
-            		offset = (i+y)*getSizeX()+x+j;
-            		region.setPixelValue(i*width+j, plane.getPixelValue(offset));
-            	}
-            }
-            plane.dispose();
-            return region;
+    		int regionRowSize = width*pixelSize;
+    		buffer = new byte[regionRowSize*height];
+    		if (width.equals(getSizeX())) {
+    			readFully(ByteBuffer.wrap(buffer), rowOffset);
+    		} else {
+    			for (int i = 0; i < height; i++) {
+    				readFully(ByteBuffer.wrap(buffer, i*regionRowSize,
+    				        regionRowSize), rowOffset);
+    				rowOffset += rowSize;
+    			}
+    		}
+    		return new PixelData(pixels.getPixelsType().getValue(),
+    		        ByteBuffer.wrap(buffer));
     	}
     	stride++;
+    	// As the former loop over the whole plane, the sampled rows are
+    	// width/stride pixels apart in a buffer of width*height/stride^2
+    	// pixels. When width is not a multiple of stride, the extra pixel
+    	// sampled at the end of a row is overwritten by the next row, and
+    	// the sampling stops at the end of the buffer rather than overrun it.
     	int w = width/stride;
-    	size = width*height*getByteWidth()/(stride*stride);
-        buf = ByteBuffer.wrap(new byte[size]);
-        region = new PixelData(pixels.getPixelsType().getValue(), buf);
-    	int k = 0;
-    	int l = 0;
-    	for (int i = 0; i < height; i = i+stride) {
-    		l = 0;
-        	for (int j = 0; j < width; j = j+stride) {
-        		offset = (i+y)*getSizeX()+x+j;
-        		region.setPixelValue(k*w+l, plane.getPixelValue(offset));
-        		l++;
-        	}
-        	k++;
+    	int sampled = (width + stride - 1)/stride;
+    	int rows = (height + stride - 1)/stride;
+    	buffer = new byte[width*height*pixelSize/(stride*stride)];
+    	int count = buffer.length/pixelSize;
+    	byte[] row = new byte[((sampled-1)*stride+1)*pixelSize];
+    	for (int i = 0; i < rows; i++) {
+    		int k = i*w;
+    		int n = Math.min(sampled, count - k);
+    		if (n <= 0) {
+    			break;
+    		}
+    		readFully(ByteBuffer.wrap(row, 0, ((n-1)*stride+1)*pixelSize),
+    		        rowOffset);
+    		for (int l = 0; l < n; l++) {
+    			System.arraycopy(row, l*stride*pixelSize, buffer,
+    			        (k+l)*pixelSize, pixelSize);
+    		}
+    		rowOffset += (long) rowSize*stride;
+    	}
+    	return new PixelData(pixels.getPixelsType().getValue(),
+    	        ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * Reads from the file until the buffer is full.
+     *
+     * @param buffer The buffer to fill.
+     * @param offset The offset in the file of the first byte to read.
+     * @throws IOException If the file ends before the buffer is full.
+     */
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        FileChannel fileChannel = getFileChannel();
+        while (buffer.hasRemaining()) {
+            int read = fileChannel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + offset);
+            }
+            offset += read;
+            bytesRead.inc(read);
         }
-        plane.dispose();
-        return region;
     }
     
     /**
@@ -0,0 +1,347 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ome.util.PixelData;
+
+/**
+ * Iterates over the tiles of a pixel buffer in the order of
+ * {@link Utils#forEachTile(TileLoopIteration, PixelBuffer, int, int)} while
+ * reading them ahead of the consumer. Tiles are read by a pool of threads,
+ * at most a window of tiles ahead of the one being consumed, and handed to
+ * the consumer in order on the calling thread. Reading thus overlaps with
+ * whatever the consumer does, e.g. compressing and writing a pyramid.
+ * <p>
+ * More than one reader must only be used with buffers which can be read
+ * concurrently.
+ * </p>
+ *
+ * @since 5.4.1
+ */
+public class TileReadAhead
+{
+    /**
+     * Consumes the tiles read.
+     */
+    public interface TileConsumer
+    {
+        /**
+         * Consumes a tile. The tile is disposed of once the method returns.
+         * @param tile The pixel data of the tile.
+         * @param z Z section of the tile.
+         * @param c Channel of the tile.
+         * @param t Timepoint of the tile.
+         * @param x X offset of the tile.
+         * @param y Y offset of the tile.
+         * @param w Width of the tile.
+         * @param h Height of the tile.
+         * @param tileCount Counter of the tile since the beginning of the loop.
+         * @throws IOException If the tile cannot be consumed.
+         */
+        void consume(PixelData tile, int z, int c, int t, int x, int y, int w,
+                     int h, int tileCount) throws IOException;
+    }
+
+    /** Marks the end of the tiles. */
+    private static final Future<Tile> END =
+        new FutureTask<Tile>(new Callable<Tile>() {
+            public Tile call() {
+                return null;
+            }
+        });
+
+    /** The buffer to read the tiles from. */
+    private final PixelBuffer source;
+
+    /** The maximum width of a tile. */
+    private final int tileWidth;
+
+    /** The maximum height of a tile. */
+    private final int tileHeight;
+
+    /** The number of reading threads. */
+    private final int readers;
+
+    /** The maximum number of tiles read ahead. */
+    private final int window;
+
+    /**
+     * Creates a new instance.
+     * @param source The buffer to read the tiles from.
+     * @param tileWidth The maximum width of a tile.
+     * @param tileHeight The maximum height of a tile.
+     * @param readers The number of reading threads, at least one.
+     * @param window The maximum number of tiles read ahead, at least one.
+     */
+    public TileReadAhead(PixelBuffer source, int tileWidth, int tileHeight,
+                         int readers, int window)
+    {
+        this.source = source;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.readers = Math.max(1, readers);
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Reads all the tiles and hands them to a consumer, in order. Stops at
+     * the first tile which cannot be read or consumed.
+     * @param consumer The consumer of the tiles.
+     * @return The total number of tiles consumed.
+     * @throws IOException If a tile cannot be read or consumed.
+     */
+    public int run(TileConsumer consumer) throws IOException
+    {
+        final ExecutorService pool =
+            Executors.newFixedThreadPool(readers, new ReaderThreadFactory());
+        final BlockingQueue<Future<Tile>> queue =
+            new ArrayBlockingQueue<Future<Tile>>(window);
+        final AtomicReference<RuntimeException> failure =
+            new AtomicReference<RuntimeException>();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        // Reads submitted but never queued because the consumer stopped.
+        final List<Future<Tile>> orphans =
+            Collections.synchronizedList(new ArrayList<Future<Tile>>());
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Utils.forEachTile(new TileLoopIteration() {
+                        public void run(final int z, final int c, final int t,
+                                final int x, final int y, final int w,
+                                final int h, int tileCount)
+                        {
+                            if (Thread.currentThread().isInterrupted()) {
+                                return;
+                            }
+                            Future<Tile> future = pool.submit(
+                                new Callable<Tile>() {
+                                    public Tile call() throws IOException {
+                                        if (stopped.get()) {
+                                            return null;
+                                        }
+                                        return new Tile(source.getTile(
+                                                z, c, t, x, y, w, h),
+                                                z, c, t, x, y, w, h);
+                                    }
+                                });
+                            try {
+                                queue.put(future);
+                            } catch (InterruptedException e) {
+                                orphans.add(future);
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }, source, tileWidth, tileHeight);
+                } catch (RuntimeException e) {
+                    failure.set(e);
+                } finally {
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        // The consumer has stopped.
+                    }
+                }
+            }
+        }, "TileReadAhead-producer");
+        producer.setDaemon(true);
+        producer.start();
+
+        int tileCount = 0;
+        try
+        {
+            Future<Tile> future;
+            while ((future = queue.take()) != END)
+            {
+                Tile tile = get(future);
+                try
+                {
+                    consumer.consume(tile.data, tile.z, tile.c, tile.t,
+                            tile.x, tile.y, tile.w, tile.h, tileCount);
+                }
+                finally
+                {
+                    tile.data.dispose();
+                }
+                tileCount++;
+            }
+            if (failure.get() != null)
+            {
+                throw failure.get();
+            }
+            return tileCount;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading tiles.");
+        }
+        finally
+        {
+            // Readers are not interrupted, which would close the channel of
+            // a ROMIO buffer, the reads not yet started are skipped instead.
+            // The caller may close the source on return, so the reads
+            // already started are waited for and their tiles disposed of.
+            stopped.set(true);
+            producer.interrupt();
+            boolean interrupted = false;
+            List<Future<Tile>> pending = new ArrayList<Future<Tile>>();
+            while (producer.isAlive())
+            {
+                queue.drainTo(pending);
+                try
+                {
+                    producer.join(100);
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            queue.drainTo(pending);
+            pending.addAll(orphans);
+            pool.shutdown();
+            while (!pool.isTerminated())
+            {
+                try
+                {
+                    pool.awaitTermination(1, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            for (Future<Tile> future : pending)
+            {
+                dispose(future);
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Disposes of the tile of a completed read whose tile was never consumed.
+     * @param future The completed read.
+     */
+    private void dispose(Future<Tile> future)
+    {
+        if (future == END || !future.isDone())
+        {
+            return;
+        }
+        try
+        {
+            Tile tile = future.get();
+            if (tile != null)
+            {
+                tile.data.dispose();
+            }
+        }
+        catch (ExecutionException e)
+        {
+            // The read failed, there is no tile to dispose of.
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for a tile to be read.
+     * @param future The pending tile.
+     * @return The tile.
+     * @throws IOException If the tile cannot be read.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private Tile get(Future<Tile> future)
+        throws IOException, InterruptedException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * A tile and its coordinates.
+     */
+    private static class Tile
+    {
+        final PixelData data;
+
+        final int z, c, t, x, y, w, h;
+
+        Tile(PixelData data, int z, int c, int t, int x, int y, int w, int h)
+        {
+            this.data = data;
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+    }
+
+    /**
+     * Names the reading threads and marks them as daemons so that they
+     * never keep the JVM alive.
+     */
+    private static class ReaderThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r,
+                    "TileReadAhead-reader-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -7,6 +7,8 @@
 
 package ome.io.nio;
 
+import ome.io.bioformats.BfPyramidPixelBuffer;
+
 /**
  * General utility methods for working with ROMIO classes.
  * @author Chris Allan <callan at blackcat dot ca>
@@ -14,6 +16,19 @@ package ome.io.nio;
  */
 public class Utils
 {
+    /**
+     * Returns <code>true</code> if tiles of a pixel buffer may be read by
+     * several threads at once. ROMIO and pyramid buffers can, buffers reading
+     * original files through a Bio-Formats reader cannot.
+     * @param pixelBuffer The pixel buffer.
+     * @return See above.
+     */
+    public static boolean isConcurrentReadSafe(PixelBuffer pixelBuffer)
+    {
+        return pixelBuffer instanceof RomioPixelBuffer
+            || pixelBuffer instanceof BfPyramidPixelBuffer;
+    }
+
     /**
      * Iterates over every tile in a given pixel buffer based on the
      * over arching dimensions and a requested maximum tile width and height.
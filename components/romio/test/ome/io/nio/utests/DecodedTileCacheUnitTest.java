@@ -0,0 +1,162 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+
+import ome.io.bioformats.DecodedTileCache;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.Utils;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.system.metrics.DefaultMetrics;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.util.PixelData;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link DecodedTileCache} alone and the tiles read through it by
+ * pyramid pixel buffers.
+ */
+public class DecodedTileCacheUnitTest {
+
+    private static final int SIZE = 300;
+
+    private static final int TILE = 128;
+
+    private static final byte[] DATA = new byte[] { 1, 2, 3, 4 };
+
+    private String root;
+
+    private Pixels pixels;
+
+    private PixelsService service;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE);
+        pixels.setSizeY(SIZE);
+        pixels.setSizeZ(2);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels.setPixelsType(type);
+        service = new PixelsService(root) {
+            public boolean requiresPixelsPyramid(Pixels pixels) {
+                return true;
+            }
+        };
+        final PixelBuffer writer = service._getPixelBuffer(pixels, true);
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int w, int h,
+                    int tileCount) {
+                byte[] tile = new byte[w * h * 2];
+                for (int i = 0; i < tile.length; i++) {
+                    tile[i] = (byte) (i * 3 + tileCount);
+                }
+                try {
+                    writer.setTile(tile, z, c, t, x, y, w, h);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, writer, TILE, TILE);
+        writer.close();
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private DecodedTileCache.Key key(long pixelsId, int z) {
+        return new DecodedTileCache.Key(pixelsId, 1L, 0, z, 0, 0, 0, 0, 2, 1);
+    }
+
+    @Test
+    public void testMemory() {
+        Metrics metrics = new DefaultMetrics();
+        DecodedTileCache cache = new DecodedTileCache(1, metrics);
+        Assert.assertNull(cache.get(key(1L, 0)));
+        cache.put(key(1L, 0), DATA);
+        Assert.assertSame(cache.get(key(1L, 0)), DATA);
+        Assert.assertNull(cache.get(key(1L, 1)));
+        Assert.assertNull(cache.get(key(2L, 0)));
+        Assert.assertEquals(metrics.counter(cache, "hits").getCount(), 1);
+        Assert.assertEquals(metrics.counter(cache, "misses").getCount(), 3);
+    }
+
+    @Test
+    public void testDisabled() {
+        DecodedTileCache cache = new DecodedTileCache(0, new NullMetrics());
+        Assert.assertFalse(cache.isEnabled());
+        cache.put(key(1L, 0), DATA);
+        Assert.assertNull(cache.get(key(1L, 0)));
+    }
+
+    @Test
+    public void testEviction() {
+        DecodedTileCache cache = new DecodedTileCache(1, new NullMetrics());
+        byte[] large = new byte[600 * 1024];
+        cache.put(key(1L, 0), large);
+        cache.put(key(1L, 1), large);
+        Assert.assertNull(cache.get(key(1L, 0)));
+        Assert.assertSame(cache.get(key(1L, 1)), large);
+    }
+
+    @Test
+    public void testCachedTiles() throws IOException {
+        PixelBuffer uncached = service.getPixelBuffer(pixels, false);
+        Metrics metrics = new DefaultMetrics();
+        DecodedTileCache cache = new DecodedTileCache(16, metrics);
+        service.setDecodedTileCache(cache);
+        try {
+            for (int level : new int[] {
+                    uncached.getResolutionLevels() - 1, 0 }) {
+                uncached.setResolutionLevel(level);
+                // Read twice, the second time from the cache.
+                for (int pass = 0; pass < 2; pass++) {
+                    PixelBuffer cached = service.getPixelBuffer(pixels, false);
+                    cached.setResolutionLevel(level);
+                    int w = Math.min(TILE, uncached.getSizeX());
+                    int h = Math.min(TILE, uncached.getSizeY());
+                    PixelData expected = uncached.getTile(1, 0, 0, 0, 0, w, h);
+                    PixelData tile = cached.getTile(1, 0, 0, 0, 0, w, h);
+                    Assert.assertEquals(tile.getData().array(),
+                            expected.getData().array());
+                    Assert.assertEquals(tile.getOrder(), expected.getOrder());
+                    // Callers may modify the tiles they are given.
+                    tile.getData().array()[0]++;
+                    byte[] buffer = new byte[w * h * 2];
+                    Assert.assertEquals(
+                            cached.getTileDirect(1, 0, 0, 0, 0, w, h, buffer),
+                            uncached.getTileDirect(1, 0, 0, 0, 0, w, h,
+                                    new byte[buffer.length]));
+                    cached.close();
+                }
+            }
+            Assert.assertEquals(metrics.counter(cache, "misses").getCount(), 2);
+            Assert.assertEquals(metrics.counter(cache, "hits").getCount(), 6);
+        } finally {
+            service.setDecodedTileCache(null);
+            uncached.close();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+
+import ome.io.nio.ByteArrayPool;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.io.nio.RomioPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.system.metrics.DefaultMetrics;
+import ome.system.metrics.Metrics;
+import ome.util.PixelData;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the regions read by
+ * {@link PixelBuffer#getPlaneRegion(Integer, Integer, Integer, Integer,
+ * Integer, Integer, Integer, Integer)} against the ones extracted from the
+ * whole plane, and the data read with and without memory mappings.
+ */
+public class PlaneRegionUnitTest {
+
+    private static final int SIZE_X = 60;
+
+    private static final int SIZE_Y = 40;
+
+    private static final int BYTE_WIDTH = 2;
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    private PixelsService service;
+
+    private Pixels pixels;
+
+    private PixelBuffer pixelBuffer;
+
+    private byte[] plane;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(2);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels.setPixelsType(type);
+
+        service = new PixelsService(ROOT);
+        pixelBuffer = service._getPixelBuffer(pixels, true);
+        plane = new byte[SIZE_X * SIZE_Y * BYTE_WIDTH];
+        for (int i = 0; i < plane.length; i++) {
+            plane[i] = (byte) (i * 7);
+        }
+        pixelBuffer.setPlane(new byte[plane.length], 0, 0, 0);
+        pixelBuffer.setPlane(plane, 1, 0, 0);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        pixelBuffer.close();
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    private void assertRegion(int x, int y, int width, int height, int stride)
+        throws IOException {
+        PixelData region =
+            pixelBuffer.getPlaneRegion(x, y, width, height, 1, 0, 0, stride);
+        int step = stride + 1;
+        int w = width / step;
+        byte[] expected = new byte[width * height * BYTE_WIDTH / (step * step)];
+        // The former loop over the whole plane, minus its overrun of the
+        // buffer when the sizes are not multiples of the step.
+        int count = expected.length / BYTE_WIDTH;
+        for (int i = 0, k = 0; i < height; i += step, k++) {
+            for (int j = 0, l = 0; j < width; j += step, l++) {
+                int index = (k * w + l) * BYTE_WIDTH;
+                if (k * w + l < count) {
+                    int offset = ((y + i) * SIZE_X + x + j) * BYTE_WIDTH;
+                    expected[index] = plane[offset];
+                    expected[index + 1] = plane[offset + 1];
+                }
+            }
+        }
+        byte[] actual = new byte[region.getData().capacity()];
+        region.getData().get(actual);
+        Assert.assertEquals(actual, expected);
+    }
+
+    @Test
+    public void testWholePlane() throws IOException {
+        assertRegion(0, 0, SIZE_X, SIZE_Y, 0);
+    }
+
+    @Test
+    public void testFullRows() throws IOException {
+        assertRegion(0, 5, SIZE_X, 10, 0);
+    }
+
+    @Test
+    public void testTile() throws IOException {
+        assertRegion(7, 3, 16, 20, 0);
+    }
+
+    @Test
+    public void testLastPixel() throws IOException {
+        assertRegion(SIZE_X - 1, SIZE_Y - 1, 1, 1, 0);
+    }
+
+    @Test
+    public void testStride() throws IOException {
+        assertRegion(0, 0, SIZE_X, SIZE_Y, 1);
+        assertRegion(4, 2, 24, 36, 2);
+    }
+
+    @Test
+    public void testStrideOddSizes() throws IOException {
+        assertRegion(3, 1, 25, 17, 1);
+        assertRegion(0, 0, SIZE_X - 1, SIZE_Y - 3, 2);
+        assertRegion(1, 2, 31, 36, 3);
+    }
+
+    @Test
+    public void testStrideNarrowerThanStep() throws IOException {
+        assertRegion(5, 0, 2, 30, 2);
+    }
+
+    @Test
+    public void testPlaneRegionDirect() throws IOException {
+        byte[] buffer = new byte[10 * BYTE_WIDTH];
+        pixelBuffer.getPlaneRegionDirect(1, 0, 0, 10, 25, buffer);
+        for (int i = 0; i < buffer.length; i++) {
+            Assert.assertEquals(buffer[i], plane[25 * BYTE_WIDTH + i]);
+        }
+    }
+
+    @Test
+    public void testReadWithoutMapping() throws IOException {
+        Metrics metrics = new DefaultMetrics();
+        RomioPixelBuffer mapped = new RomioPixelBuffer(
+                service.getPixelsPath(1L), pixels, false, true, metrics);
+        RomioPixelBuffer read = new RomioPixelBuffer(
+                service.getPixelsPath(1L), pixels, false, false, metrics);
+        try {
+            byte[] expected = new byte[plane.length];
+            byte[] actual = new byte[plane.length];
+            mapped.getPlaneDirect(1, 0, 0, expected);
+            read.getPlaneDirect(1, 0, 0, actual);
+            Assert.assertEquals(actual, plane);
+            Assert.assertEquals(actual, expected);
+
+            PixelData row = read.getRow(3, 1, 0, 0);
+            Assert.assertFalse(row.getData().isDirect());
+            Assert.assertEquals(row.getPixelValue(5),
+                    mapped.getRow(3, 1, 0, 0).getPixelValue(5));
+
+            Assert.assertEquals(
+                    metrics.counter(mapped, "mapsCreated").getCount(), 2);
+            Assert.assertEquals(
+                    metrics.counter(mapped, "bytesRead").getCount(),
+                    plane.length + SIZE_X * BYTE_WIDTH);
+        } finally {
+            mapped.close();
+            read.close();
+        }
+    }
+
+    @Test
+    public void testReadIntoPooledArrays() throws IOException {
+        Metrics metrics = new DefaultMetrics();
+        ByteArrayPool pool = new ByteArrayPool(1, metrics);
+        RomioPixelBuffer read = new RomioPixelBuffer(
+                service.getPixelsPath(1L), pixels, false, false, metrics, pool);
+        try {
+            PixelData first = read.getRow(3, 1, 0, 0);
+            byte[] expected = new byte[SIZE_X * BYTE_WIDTH];
+            first.getData().get(expected);
+            first.dispose();
+            Assert.assertNull(first.getData());
+            // Disposing twice must not hand the array back twice.
+            first.dispose();
+
+            PixelData second = read.getRow(3, 1, 0, 0);
+            PixelData third = read.getRow(4, 1, 0, 0);
+            byte[] actual = new byte[expected.length];
+            second.getData().get(actual);
+            Assert.assertEquals(actual, expected);
+            Assert.assertNotSame(second.getData().array(),
+                    third.getData().array());
+            Assert.assertEquals(metrics.counter(pool, "reused").getCount(), 1);
+            Assert.assertEquals(metrics.counter(pool, "allocated").getCount(), 2);
+            second.dispose();
+            third.dispose();
+        } finally {
+            read.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ome.io.bioformats.BfPixelBuffer;
+import ome.io.bioformats.PyramidReaderPool;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.Utils;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the tiles read through a {@link PyramidReaderPool} and the reuse and
+ * eviction of its readers.
+ */
+public class PyramidReaderPoolUnitTest {
+
+    private static final int SIZE = 600;
+
+    private static final int TILE = 256;
+
+    private String root;
+
+    private Pixels pixels;
+
+    private PixelsService service;
+
+    private String path;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE);
+        pixels.setSizeY(SIZE);
+        pixels.setSizeZ(1);
+        pixels.setSizeC(1);
+        pixels.setSizeT(2);
+        PixelsType type = new PixelsType();
+        type.setValue("uint8");
+        pixels.setPixelsType(type);
+        service = new PixelsService(root) {
+            public boolean requiresPixelsPyramid(Pixels pixels) {
+                return true;
+            }
+        };
+        final PixelBuffer writer = service._getPixelBuffer(pixels, true);
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int w, int h,
+                    int tileCount) {
+                byte[] tile = new byte[w * h];
+                for (int i = 0; i < tile.length; i++) {
+                    tile[i] = (byte) (i % w + tileCount);
+                }
+                try {
+                    writer.setTile(tile, z, c, t, x, y, w, h);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, writer, TILE, TILE);
+        writer.close();
+        path = new File(service.getPixelsPath(pixels.getId())
+                + PixelsService.PYRAMID_SUFFIX).getAbsolutePath();
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private List<byte[]> readTiles(PixelBuffer pixelBuffer, int level)
+            throws IOException {
+        pixelBuffer.setResolutionLevel(level);
+        final List<byte[]> tiles = new ArrayList<byte[]>();
+        final PixelBuffer source = pixelBuffer;
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int w, int h,
+                    int tileCount) {
+                try {
+                    PixelData tile = source.getTile(z, c, t, x, y, w, h);
+                    tiles.add(tile.getData().array());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, pixelBuffer, TILE, TILE);
+        return tiles;
+    }
+
+    @Test(timeOut = 60000)
+    public void testConcurrentReads() throws Exception {
+        PixelBuffer unpooled = service.getPixelBuffer(pixels, false);
+        final int level = unpooled.getResolutionLevels() - 2;
+        final List<byte[]> expected = readTiles(unpooled, level);
+        unpooled.close();
+
+        PyramidReaderPool pool = new PyramidReaderPool(2, 60000);
+        service.setPyramidReaderPool(pool);
+        try {
+            ExecutorService threads = Executors.newFixedThreadPool(4);
+            List<Future<List<byte[]>>> results =
+                    new ArrayList<Future<List<byte[]>>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(threads.submit(new Callable<List<byte[]>>() {
+                    public List<byte[]> call() throws IOException {
+                        PixelBuffer pooled =
+                                service.getPixelBuffer(pixels, false);
+                        try {
+                            return readTiles(pooled, level);
+                        } finally {
+                            pooled.close();
+                        }
+                    }
+                }));
+            }
+            for (Future<List<byte[]>> result : results) {
+                List<byte[]> tiles = result.get();
+                Assert.assertEquals(tiles.size(), expected.size());
+                for (int i = 0; i < tiles.size(); i++) {
+                    Assert.assertEquals(tiles.get(i), expected.get(i));
+                }
+            }
+            threads.shutdown();
+        } finally {
+            service.setPyramidReaderPool(null);
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        PyramidReaderPool pool = new PyramidReaderPool(1, 60000);
+        BfPixelBuffer reader = pool.borrow(path);
+        reader.setResolutionLevel(0);
+        pool.release(path, reader);
+        BfPixelBuffer reused = pool.borrow(path);
+        Assert.assertSame(reused, reader);
+        Assert.assertEquals(reused.getResolutionLevel(),
+                reused.getResolutionLevels() - 1);
+        pool.release(path, reused);
+        pool.close();
+    }
+
+    @Test
+    public void testDiscard() throws IOException {
+        PyramidReaderPool pool = new PyramidReaderPool(1, 60000);
+        BfPixelBuffer reader = pool.borrow(path);
+        pool.discard(path, reader);
+        BfPixelBuffer other = pool.borrow(path);
+        Assert.assertNotSame(other, reader);
+        pool.release(path, other);
+        pool.close();
+    }
+
+    @Test
+    public void testEvictIdle() throws Exception {
+        PyramidReaderPool pool = new PyramidReaderPool(1, 1);
+        BfPixelBuffer reader = pool.borrow(path);
+        pool.release(path, reader);
+        Thread.sleep(10);
+        pool.evictIdle();
+        BfPixelBuffer other = pool.borrow(path);
+        Assert.assertNotSame(other, reader);
+        pool.release(path, other);
+        pool.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testBounded() throws Exception {
+        final PyramidReaderPool pool = new PyramidReaderPool(1, 60000);
+        final BfPixelBuffer reader = pool.borrow(path);
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        Future<BfPixelBuffer> waiting =
+            thread.submit(new Callable<BfPixelBuffer>() {
+                public BfPixelBuffer call() throws IOException {
+                    return pool.borrow(path);
+                }
+            });
+        Thread.sleep(100);
+        Assert.assertFalse(waiting.isDone());
+        pool.release(path, reader);
+        Assert.assertSame(waiting.get(), reader);
+        pool.release(path, reader);
+        pool.close();
+        thread.shutdown();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+
+import ome.io.nio.RenderedTileCache;
+import ome.system.metrics.NullMetrics;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+public class RenderedTileCacheUnitTest {
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    private static final byte[] TILE = new byte[] { 1, 2, 3 };
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    @Test
+    public void testMemory() {
+        RenderedTileCache cache =
+            new RenderedTileCache(ROOT, 1, 0, new NullMetrics());
+        Assert.assertNull(cache.get(1L, "a"));
+        cache.put(1L, "a", TILE);
+        Assert.assertEquals(cache.get(1L, "a"), TILE);
+        Assert.assertNull(cache.get(1L, "b"));
+        Assert.assertNull(cache.get(2L, "a"));
+    }
+
+    @Test
+    public void testDisabled() {
+        RenderedTileCache cache =
+            new RenderedTileCache(ROOT, 0, 0, new NullMetrics());
+        Assert.assertFalse(cache.isEnabled());
+        cache.put(1L, "a", TILE);
+        Assert.assertNull(cache.get(1L, "a"));
+    }
+
+    @Test
+    public void testDiskSurvivesNewCache() {
+        new RenderedTileCache(ROOT, 0, 1, new NullMetrics())
+            .put(3L, "a", TILE);
+        RenderedTileCache cache =
+            new RenderedTileCache(ROOT, 1, 1, new NullMetrics());
+        Assert.assertEquals(cache.get(3L, "a"), TILE);
+    }
+
+    @Test
+    public void testInvalidate() {
+        RenderedTileCache cache =
+            new RenderedTileCache(ROOT, 1, 1, new NullMetrics());
+        cache.put(4L, "a", TILE);
+        cache.put(40L, "a", TILE);
+        cache.invalidate(4L);
+        Assert.assertNull(cache.get(4L, "a"));
+        Assert.assertFalse(new File(cache.getRenderedTilesPath(4L)).exists());
+        Assert.assertEquals(cache.get(40L, "a"), TILE);
+    }
+
+    @Test
+    public void testDiskBounded() {
+        RenderedTileCache cache =
+            new RenderedTileCache(ROOT, 0, 1, new NullMetrics());
+        byte[] large = new byte[300 * 1024];
+        for (int i = 0; i < 10; i++) {
+            cache.put(5L, "large" + i, large);
+        }
+        long size = FileUtils.sizeOfDirectory(
+                new File(cache.getRenderedTilesPath(5L)));
+        Assert.assertTrue(size <= 1024 * 1024, "size on disk: " + size);
+        Assert.assertNull(cache.get(5L, "large0"));
+        Assert.assertEquals(cache.get(5L, "large9"), large);
+        cache.invalidate(5L);
+    }
+
+    @Test
+    public void testDiskBoundedAfterRestart() {
+        byte[] large = new byte[300 * 1024];
+        RenderedTileCache cache =
+            new RenderedTileCache(ROOT, 0, 1, new NullMetrics());
+        cache.put(6L, "large0", large);
+        cache.put(6L, "large1", large);
+        cache = new RenderedTileCache(ROOT, 0, 1, new NullMetrics());
+        for (int i = 2; i < 10; i++) {
+            cache.put(6L, "large" + i, large);
+        }
+        long size = FileUtils.sizeOfDirectory(
+                new File(cache.getRenderedTilesPath(6L)));
+        Assert.assertTrue(size <= 1024 * 1024, "size on disk: " + size);
+        cache.invalidate(6L);
+    }
+}
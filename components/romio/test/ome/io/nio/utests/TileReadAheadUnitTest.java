@@ -0,0 +1,205 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.TileReadAhead;
+import ome.io.nio.Utils;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link TileReadAhead} hands over all the tiles, in the order
+ * and with the content of {@link Utils#forEachTile}.
+ */
+public class TileReadAheadUnitTest {
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    private Pixels pixels;
+
+    private RomioPixelBuffer pixelBuffer;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        pixels = new Pixels();
+        pixels.setSizeX(37);
+        pixels.setSizeY(29);
+        pixels.setSizeZ(3);
+        pixels.setSizeC(2);
+        pixels.setSizeT(1);
+        PixelsType type = new PixelsType();
+        type.setValue("uint8");
+        pixels.setPixelsType(type);
+        pixelBuffer = new RomioPixelBuffer(
+                new File(ROOT, "readahead").getPath(), pixels, true);
+        byte[] plane = new byte[37 * 29];
+        for (int z = 0; z < 3; z++) {
+            for (int c = 0; c < 2; c++) {
+                for (int i = 0; i < plane.length; i++) {
+                    plane[i] = (byte) (i * 7 + z * 3 + c);
+                }
+                pixelBuffer.setPlane(plane, z, c, 0);
+            }
+        }
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        pixelBuffer.close();
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    private List<String> expected() {
+        final List<String> tiles = new ArrayList<String>();
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int w, int h,
+                    int tileCount) {
+                try {
+                    PixelData tile = pixelBuffer.getTile(z, c, t, x, y, w, h);
+                    tiles.add(describe(tile, z, c, t, x, y, w, h, tileCount));
+                    tile.dispose();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, pixelBuffer, 8, 6);
+        return tiles;
+    }
+
+    private String describe(PixelData tile, int z, int c, int t, int x,
+            int y, int w, int h, int tileCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(tileCount).append(':').append(z).append(',').append(c)
+            .append(',').append(t).append(',').append(x).append(',')
+            .append(y).append(',').append(w).append(',').append(h)
+            .append('=');
+        for (int i = 0; i < tile.size(); i++) {
+            sb.append(tile.getPixelValue(i)).append(' ');
+        }
+        return sb.toString();
+    }
+
+    private void assertReadAhead(int readers, int window) throws IOException {
+        final List<String> tiles = new ArrayList<String>();
+        int count = new TileReadAhead(pixelBuffer, 8, 6, readers, window).run(
+                new TileReadAhead.TileConsumer() {
+                    public void consume(PixelData tile, int z, int c, int t,
+                            int x, int y, int w, int h, int tileCount) {
+                        tiles.add(describe(
+                                tile, z, c, t, x, y, w, h, tileCount));
+                    }
+                });
+        List<String> expected = expected();
+        Assert.assertEquals(count, expected.size());
+        Assert.assertEquals(tiles, expected);
+    }
+
+    @Test
+    public void testSingleReader() throws IOException {
+        assertReadAhead(1, 1);
+    }
+
+    @Test
+    public void testSeveralReaders() throws IOException {
+        assertReadAhead(4, 10);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testReadFailure() throws IOException {
+        RomioPixelBuffer failing = new RomioPixelBuffer(
+                pixelBuffer.getPath(), pixels, false) {
+            @Override
+            public PixelData getTile(Integer z, Integer c, Integer t,
+                    Integer x, Integer y, Integer w, Integer h)
+                throws IOException {
+                if (z == 1) {
+                    throw new IOException("Cannot read tile.");
+                }
+                return super.getTile(z, c, t, x, y, w, h);
+            }
+        };
+        try {
+            new TileReadAhead(failing, 8, 6, 2, 4).run(
+                    new TileReadAhead.TileConsumer() {
+                        public void consume(PixelData tile, int z, int c,
+                                int t, int x, int y, int w, int h,
+                                int tileCount) {
+                            Assert.assertEquals(z, 0);
+                        }
+                    });
+        } finally {
+            failing.close();
+        }
+    }
+
+    @Test
+    public void testConsumerFailureWaitsForReads() throws IOException {
+        final AtomicInteger reading = new AtomicInteger();
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicInteger disposed = new AtomicInteger();
+        RomioPixelBuffer slow = new RomioPixelBuffer(
+                pixelBuffer.getPath(), pixels, false) {
+            @Override
+            public PixelData getTile(Integer z, Integer c, Integer t,
+                    Integer x, Integer y, Integer w, Integer h)
+                throws IOException {
+                reading.incrementAndGet();
+                try {
+                    Thread.sleep(20);
+                    PixelData tile = super.getTile(z, c, t, x, y, w, h);
+                    read.incrementAndGet();
+                    return new PixelData("uint8", tile.getData()) {
+                        @Override
+                        public void dispose() {
+                            disposed.incrementAndGet();
+                            super.dispose();
+                        }
+                    };
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    reading.decrementAndGet();
+                }
+            }
+        };
+        try {
+            new TileReadAhead(slow, 8, 6, 4, 10).run(
+                    new TileReadAhead.TileConsumer() {
+                        public void consume(PixelData tile, int z, int c,
+                                int t, int x, int y, int w, int h,
+                                int tileCount) throws IOException {
+                            if (tileCount == 2) {
+                                throw new IOException("Cannot write tile.");
+                            }
+                        }
+                    });
+            Assert.fail("The failure of the consumer must be thrown.");
+        } catch (IOException e) {
+            // Expected: the reads have completed and their tiles disposed.
+            Assert.assertEquals(reading.get(), 0);
+            Assert.assertEquals(disposed.get(), read.get());
+        } finally {
+            slow.close();
+        }
+    }
+}
@@ -34,6 +34,24 @@ public interface LocalCompress {
 	void compressToStream(BufferedImage image, OutputStream outputStream)
 		throws IOException;
 
+    /**
+     * Compresses a packed integer RGB image, such as the one returned by
+     * {@link omeis.providers.re.Renderer#renderAsPackedInt}, to a byte array.
+     * The image is encoded directly from <i>buf</i>, which is not copied.
+     * 
+     * @param buf
+     *            the packed integer image.
+     * @param sizeX
+     *            the width of the image.
+     * @param sizeY
+     *            the height of the image.
+     * @return the compressed image.
+     * @throws IOException
+     *             if there is a problem when compressing the image.
+     */
+	byte[] compressToBytes(int[] buf, int sizeX, int sizeY)
+		throws IOException;
+
 	/**
 	 * Sets the current compression level for the service. (The default is 85%)
 	 * 
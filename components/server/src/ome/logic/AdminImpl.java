@@ -1130,20 +1130,26 @@ public class AdminImpl extends AbstractLevel2Service implements LocalAdmin,
     
     public Map<String, Long> getLockingIds(final Class<IObject> type,
             final long id, final Long groupId) {
+        return getLockingIds(type, Collections.singleton(id), groupId).get(id);
+    }
+
+    public Map<Long, Map<String, Long>> getLockingIds(
+            final Class<IObject> type, final Collection<Long> ids,
+            final Long groupId) {
 
         String groupClause = "";
         if (groupId != null) {
-            groupClause = "and details.group.id <> " + groupId;
+            groupClause = "x.details.group.id <> " + groupId;
         }
-        
+
         // since it's a managed entity it's class.getName() might
         // contain
         // some byte-code generation string
         final Class<? extends IObject> klass = Utils.trueClass(type);
 
-        // the values that could possibly link to this instance.
+        // the values that could possibly link to these instances.
         final String[][] checks = metadata.getLockChecks(klass);
-        return this.metadata.countLocks(osf.getSession(), id, checks, groupClause);
+        return this.metadata.countLocks(osf.getSession(), ids, checks, groupClause);
 
     }
 
@@ -8,6 +8,7 @@
 package ome.logic;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -16,11 +17,31 @@ import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import ome.api.local.LocalCompress;
+import ome.util.ImageUtil;
 
 public class CompressImpl implements LocalCompress {
 
+    /**
+     * Size above which the output buffer of a thread is not kept once an
+     * image has been compressed.
+     */
+    private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+
+    /**
+     * The JPEG encoder of each thread. Looking up a writer is costly and the
+     * writers are not thread safe so each thread keeps its own.
+     */
+    private static final ThreadLocal<Encoder> encoders =
+        new ThreadLocal<Encoder>() {
+            @Override
+            protected Encoder initialValue() {
+                return new Encoder();
+            }
+        };
+
 	/** The default compression quality in fractional percent. */
     private float quality = 0.85F;
 	
@@ -30,25 +51,18 @@ public class CompressImpl implements LocalCompress {
     public void compressToStream(BufferedImage image, OutputStream outputStream)
     	throws IOException
     {
-        // Get a JPEG image writer
-        ImageWriter jpegWriter =
-        	ImageIO.getImageWritersByFormatName("jpeg").next();
-
-        // Setup the compression value from (0.05, 0.75 and 0.95)
-        ImageWriteParam iwp = jpegWriter.getDefaultWriteParam();
-        iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        iwp.setCompressionQuality(quality);
-
-        // Write the JPEG to our ByteArray stream
-    	ImageOutputStream imageOutputStream = null;
-        try {
-        	imageOutputStream = ImageIO.createImageOutputStream(outputStream);
-        	jpegWriter.setOutput(imageOutputStream);
-        	jpegWriter.write(null, new IIOImage(image, null, null), iwp);
-        } finally {
-        	if (imageOutputStream != null)
-        		imageOutputStream.close();
-        }
+        encoders.get().write(image, outputStream, quality);
+    }
+
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#compressToBytes(int[], int, int)
+     */
+    public byte[] compressToBytes(int[] buf, int sizeX, int sizeY)
+        throws IOException
+    {
+        // The image is backed by the rendered buffer, nothing is copied.
+        BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX, sizeY);
+        return encoders.get().toBytes(image, quality);
     }
 
 	/* (non-Javadoc)
@@ -66,4 +80,69 @@ public class CompressImpl implements LocalCompress {
 	{
 		return quality;
 	}
+
+    /**
+     * A JPEG writer, its parameters and an output buffer reused by a single
+     * thread.
+     */
+    private static class Encoder {
+
+        private final ImageWriter writer;
+
+        private final ImageWriteParam param;
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        Encoder() {
+            writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        }
+
+        /**
+         * Compresses an image to a stream.
+         *
+         * @param image The image to compress.
+         * @param outputStream The stream to write to, not closed.
+         * @param quality The compression quality.
+         * @throws IOException If the image cannot be written.
+         */
+        void write(BufferedImage image, OutputStream outputStream,
+                float quality) throws IOException {
+            // Setup the compression value from (0.05, 0.75 and 0.95)
+            param.setCompressionQuality(quality);
+            // Buffered in memory, ImageIO may otherwise use a cache file.
+            ImageOutputStream imageOutputStream =
+                new MemoryCacheImageOutputStream(outputStream);
+            try {
+                writer.setOutput(imageOutputStream);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.reset();
+                imageOutputStream.close();
+            }
+        }
+
+        /**
+         * Compresses an image to a new array, going through the buffer of the
+         * encoder so that the compressed bytes are copied only once.
+         *
+         * @param image The image to compress.
+         * @param quality The compression quality.
+         * @return See above.
+         * @throws IOException If the image cannot be written.
+         */
+        byte[] toBytes(BufferedImage image, float quality)
+            throws IOException {
+            buffer.reset();
+            try {
+                write(image, buffer, quality);
+                return buffer.toByteArray();
+            } finally {
+                if (buffer.size() > MAX_RETAINED_BUFFER) {
+                    buffer = new ByteArrayOutputStream();
+                }
+            }
+        }
+    }
 }
@@ -519,14 +519,24 @@ public class BasicSecuritySystem implements SecuritySystem,
         if (!logs.isEmpty()) {
 
             boolean foundAdminType = false;
+            boolean foundMembership = false;
+            final Set<Long> userIds = new HashSet<Long>();
+            final Set<Long> groupIds = new HashSet<Long>();
             final Multimap<String, EventLog> map = ArrayListMultimap.create();
 
             for (EventLog el : getLogs()) {
                 String t = el.getEntityType();
-                if (Experimenter.class.getName().equals(t)
-                        || ExperimenterGroup.class.getName().equals(t)
-                        || GroupExperimenterMap.class.getName().equals(t)) {
+                if (Experimenter.class.getName().equals(t)) {
                     foundAdminType = true;
+                    userIds.add(el.getEntityId());
+                } else if (ExperimenterGroup.class.getName().equals(t)) {
+                    foundAdminType = true;
+                    groupIds.add(el.getEntityId());
+                } else if (GroupExperimenterMap.class.getName().equals(t)) {
+                    // Logged under the id of the map, which may be deleted,
+                    // so the users and groups concerned are unknown.
+                    foundAdminType = true;
+                    foundMembership = true;
                 }
                 map.put(t, el);
             }
@@ -535,8 +545,11 @@ public class BasicSecuritySystem implements SecuritySystem,
                 log.error("No context found for publishing");
             } else {
                 // publish message if administrative type is modified
-                if (foundAdminType) {
+                if (foundMembership) {
                     this.ctx.publishEvent(new UserGroupUpdateEvent(this));
+                } else if (foundAdminType) {
+                    this.ctx.publishEvent(new UserGroupUpdateEvent(this,
+                            userIds, groupIds));
                 }
                 this.ctx.publishEvent(new EventLogsMessage(this, map));
             }
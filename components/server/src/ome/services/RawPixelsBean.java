@@ -8,11 +8,14 @@
 package ome.services;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,8 +40,10 @@ import ome.parameters.Parameters;
 import ome.util.PixelData;
 import ome.util.ShallowCopy;
 import ome.util.SqlAction;
+import omeis.providers.re.RenderingExecutor;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.metadata.StatsFactory;
+import omeis.providers.re.metadata.TileStatistics;
 
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
@@ -67,6 +72,12 @@ public class RawPixelsBean extends AbstractStatefulBean implements
 
     /** The default bin size used for histograms */
     private static final int DEFAULT_HISTOGRAM_BINSIZE = 256;
+
+    /**
+     * The maximum number of pixels of the resolution level of a pyramid the
+     * histograms and minimum and maximum are computed from.
+     */
+    private static final long MAX_STATISTICS_PIXELS = 2048L * 2048L;
     
     private Long id;
 
@@ -98,6 +109,9 @@ public class RawPixelsBean extends AbstractStatefulBean implements
     /** The server's OMERO data directory. */
     private transient String omeroDataDir;
 
+    /** The pool computing the statistics of the channels. */
+    private transient RenderingExecutor renderingExecutor;
+
     /**
      * default constructor
      */
@@ -149,6 +163,18 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         this.sql = sql;
     }
 
+    /**
+     * RenderingExecutor Bean injector
+     * @param renderingExecutor the pool computing the statistics of the
+     *                          channels
+     */
+    public synchronized final void setRenderingExecutor(
+            RenderingExecutor renderingExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.renderingExecutor,
+                renderingExecutor);
+        this.renderingExecutor = renderingExecutor;
+    }
+
     // ~ Lifecycle methods
     // =========================================================================
 
@@ -682,64 +708,63 @@ public class RawPixelsBean extends AbstractStatefulBean implements
             int binCount, boolean globalRange, PlaneDef plane) {
         errorIfNotLoaded();
 
-        if (requiresPixelsPyramid())
-            throw new ApiUsageException(
-                    "This method can not handle tiled images yet.");
-
         if (binCount <= 0)
             binCount = DEFAULT_HISTOGRAM_BINSIZE;
 
-        int imgWidth = buffer.getSizeX();
-
         int z = (plane != null && plane.getZ() >= 0) ? plane.getZ() : 0;
         int t = (plane != null && plane.getT() >= 0) ? plane.getT() : 0;
-        int x = (plane != null && plane.getRegion() != null && plane
-                .getRegion().getX() >= 0) ? plane.getRegion().getX() : 0;
-        int y = (plane != null && plane.getRegion() != null && plane
-                .getRegion().getY() >= 0) ? plane.getRegion().getY() : 0;
-        int w = (plane != null && plane.getRegion() != null && plane
-                .getRegion().getWidth() > 0) ? plane.getRegion().getWidth()
-                : imgWidth;
-        int h = (plane != null && plane.getRegion() != null && plane
-                .getRegion().getHeight() > 0) ? plane.getRegion().getHeight()
-                : buffer.getSizeY();
+        Rectangle region = null;
+        if (plane != null && plane.getRegion() != null) {
+            int x = Math.max(0, plane.getRegion().getX());
+            int y = Math.max(0, plane.getRegion().getY());
+            int w = plane.getRegion().getWidth() > 0 ? plane.getRegion()
+                    .getWidth() : buffer.getSizeX();
+            int h = plane.getRegion().getHeight() > 0 ? plane.getRegion()
+                    .getHeight() : buffer.getSizeY();
+            region = new Rectangle(x, y, w, h);
+        }
 
         Map<Integer, int[]> result = new HashMap<Integer, int[]>();
-
+        int restoreLevel = reduceResolution();
         try {
+            region = scaleRegion(region);
+            List<Integer> present = new ArrayList<Integer>();
+            Map<Integer, double[]> ranges = new HashMap<Integer, double[]>();
             for (int ch : channels) {
                 Channel channel = pixelsInstance.getChannel(ch);
                 if (channel == null)
                     continue;
-                PixelData px = buffer.getPlane(z, ch, t);
-                int[] data = new int[binCount];
-
-                double[] minmax = determineHistogramMinMax(px, channel,
-                        globalRange);
-                double min = minmax[0];
-                double max = minmax[1];
-
-                double range = max - min + 1;
-                double binRange = range / binCount;
-                for (int i = 0; i < px.size(); i++) {
-                    int pxx = i % imgWidth;
-                    int pxy = i / imgWidth;
-                    if (pxx >= x && pxx < (x + w) && pxy >= y && pxy < (y + h)) {
-                        int bin = (int) ((px.getPixelValue(i) - min) / binRange);
-                        // if there are more bins than values (binRange < 1) the bin will be offset by -1.
-                        // e.g. min=0.0, max=127.0, binCount=256: a pixel with max value 127.0 would go
-                        // into bin 254 (expected: 255). Therefore increment by one for these cases.
-                        if (bin > 0 && binRange < 1)
-                            bin++;
-
-                        if (bin >= 0 && bin < binCount)
-                            data[bin]++;
-                    }
+                present.add(ch);
+                double[] minmax = globalMinMax(channel, globalRange);
+                if (minmax != null)
+                    ranges.put(ch, minmax);
+            }
+            int[] planeChannels = toArray(present);
+            List<int[]> planes = Collections.singletonList(new int[] { z, t });
+            String type = pixelsInstance.getPixelsType().getValue();
+            TileStatistics statistics =
+                new TileStatistics(buffer, getRenderingExecutor());
+            // The range of the histogram is the one of the whole plane, not
+            // only of the region.
+            if (region != null && ranges.size() < present.size()) {
+                Map<Integer, TileStatistics.Result> planeMinMax =
+                    statistics.compute(type, planeChannels, planes, null, 0,
+                            null);
+                for (int ch : planeChannels) {
+                    if (!ranges.containsKey(ch))
+                        ranges.put(ch, minMax(planeMinMax.get(ch),
+                                pixelsInstance.getChannel(ch)));
                 }
-                result.put(ch, data);
+            }
+            Map<Integer, TileStatistics.Result> stats = statistics.compute(
+                    type, planeChannels, planes, region, binCount, ranges);
+            for (int ch : planeChannels) {
+                result.put(ch, stats.get(ch).getHistogram());
             }
         } catch (Exception e) {
             handleException(e);
+        } finally {
+            restoreResolution(restoreLevel);
         }
 
         return result;
@@ -748,69 +773,154 @@ public class RawPixelsBean extends AbstractStatefulBean implements
     @RolesAllowed("user")
     public synchronized Map<Integer, double[]> findMinMax(int[] channels) {
         Map<Integer, double[]> result = new HashMap<Integer, double[]>();
-        
-        if (requiresPixelsPyramid())
-            return result;
 
+        int restoreLevel = reduceResolution();
         try {
+            List<Integer> present = new ArrayList<Integer>();
             for (int ch : channels) {
-                Channel channel = pixelsInstance.getChannel(ch);
-                if (channel == null)
-                    continue;
-                int z = buffer.getSizeZ() > 1 ? (buffer.getSizeZ() - 1) / 2 : 0;
-                int t = buffer.getSizeT() > 1 ? (buffer.getSizeT() - 1) / 2 : 0;
-                PixelData px = buffer.getPlane(z, ch, t);
-                double[] minmax = determineHistogramMinMax(px, channel, false);
-                result.put(ch, minmax);
+                if (pixelsInstance.getChannel(ch) != null)
+                    present.add(ch);
+            }
+            int z = buffer.getSizeZ() > 1 ? (buffer.getSizeZ() - 1) / 2 : 0;
+            int t = buffer.getSizeT() > 1 ? (buffer.getSizeT() - 1) / 2 : 0;
+            Map<Integer, TileStatistics.Result> stats =
+                new TileStatistics(buffer, getRenderingExecutor()).compute(
+                        pixelsInstance.getPixelsType().getValue(),
+                        toArray(present),
+                        Collections.singletonList(new int[] { z, t }),
+                        null, 0, null);
+            for (int ch : present) {
+                result.put(ch, minMax(stats.get(ch),
+                        pixelsInstance.getChannel(ch)));
             }
         } catch (IOException e) {
             handleException(e);
+        } finally {
+            restoreResolution(restoreLevel);
         }
         return result;
     }
     
     // ~ Helpers
     // =========================================================================
-    
+
     /**
-     * Get the minimum and maximum value to use for the histogram. If useGlobal
-     * is <code>true</code> and the channel has stats calculated the global
-     * minimum and maximum will be used, otherwise the minimum and maximum value
-     * of the plane will be used.
-     * 
-     * @param px
-     *            The {@link PixelData}
+     * Returns the pool computing the statistics of the channels, the default
+     * one if none has been injected.
+     */
+    private RenderingExecutor getRenderingExecutor() {
+        if (renderingExecutor == null) {
+            return RenderingExecutor.getDefault();
+        }
+        return renderingExecutor;
+    }
+
+    /**
+     * Switches a pyramid to the largest resolution level of at most
+     * {@link #MAX_STATISTICS_PIXELS} pixels, so that its statistics are
+     * computed from a bounded number of tiles.
+     *
+     * @return The resolution level to restore or <code>-1</code> if the
+     *         resolution level has not been changed.
+     */
+    private int reduceResolution() {
+        if (!requiresPixelsPyramid())
+            return -1;
+        int current = buffer.getResolutionLevel();
+        List<List<Integer>> sizes = buffer.getResolutionDescriptions();
+        int levels = sizes.size();
+        // The descriptions are ordered from the highest resolution.
+        int index = levels - 1;
+        for (int i = 0; i < levels; i++) {
+            List<Integer> size = sizes.get(i);
+            if ((long) size.get(0) * size.get(1) <= MAX_STATISTICS_PIXELS) {
+                index = i;
+                break;
+            }
+        }
+        buffer.setResolutionLevel(levels - 1 - index);
+        return current;
+    }
+
+    /**
+     * Restores the resolution level changed by {@link #reduceResolution()}.
+     *
+     * @param level The level returned by {@link #reduceResolution()}.
+     */
+    private void restoreResolution(int level) {
+        if (level >= 0)
+            buffer.setResolutionLevel(level);
+    }
+
+    /**
+     * Scales a region of the full resolution image to the current resolution
+     * level.
+     *
+     * @param region The region, may be <code>null</code>.
+     * @return See above.
+     */
+    private Rectangle scaleRegion(Rectangle region) {
+        if (region == null)
+            return null;
+        int sizeX = pixelsInstance.getSizeX();
+        int sizeY = pixelsInstance.getSizeY();
+        if (buffer.getSizeX() == sizeX && buffer.getSizeY() == sizeY)
+            return region;
+        double sx = (double) buffer.getSizeX() / sizeX;
+        double sy = (double) buffer.getSizeY() / sizeY;
+        int x = (int) Math.floor(region.x * sx);
+        int y = (int) Math.floor(region.y * sy);
+        int w = Math.max(1, (int) Math.ceil((region.x + region.width) * sx) - x);
+        int h = Math.max(1, (int) Math.ceil((region.y + region.height) * sy) - y);
+        return new Rectangle(x, y, w, h);
+    }
+
+    /**
+     * Get the global minimum and maximum of a channel if useGlobal is
+     * <code>true</code> and the channel has stats calculated.
+     *
      * @param channel
      *            The {@link Channel}
      * @param useGlobal
      *            Try to use the global minimum/maximum
-     * @return See above
+     * @return See above or <code>null</code> if the minimum and maximum of
+     *         the plane should be used.
      */
-    private double[] determineHistogramMinMax(PixelData px, Channel channel,
-            boolean useGlobal) {
-        double min, max;
-
-        if (useGlobal && channel != null && channel.getStatsInfo() != null) {
-            min = channel.getStatsInfo().getGlobalMin();
-            max = channel.getStatsInfo().getGlobalMax();
+    private double[] globalMinMax(Channel channel, boolean useGlobal) {
+        if (useGlobal && channel.getStatsInfo() != null) {
+            double min = channel.getStatsInfo().getGlobalMin();
+            double max = channel.getStatsInfo().getGlobalMax();
             // if max == 1.0 the global min/max probably has not been
             // calculated; fall back to plane min/max
             if (max != 1.0)
                 return new double[] { min, max };
         }
+        return null;
+    }
 
+    /**
+     * Get the minimum and maximum value of the pixels read, the range of the
+     * pixels type being the starting point.
+     *
+     * @param stats
+     *            The statistics of the pixels read
+     * @param channel
+     *            The {@link Channel}
+     * @return See above
+     */
+    private double[] minMax(TileStatistics.Result stats, Channel channel) {
         StatsFactory sf = new StatsFactory();
         double[] pixelMinMax = sf.initPixelsRange(channel.getPixels());
+        return new double[] { Math.min(pixelMinMax[1], stats.getMin()),
+                Math.max(pixelMinMax[0], stats.getMax()) };
+    }
 
-        min = pixelMinMax[1];
-        max = pixelMinMax[0];
-
-        for (int i = 0; i < px.size(); i++) {
-            min = Math.min(min, px.getPixelValue(i));
-            max = Math.max(max, px.getPixelValue(i));
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
         }
-
-        return new double[] { min, max };
+        return array;
     }
     
     private synchronized byte[] bufferAsByteArrayWithExceptionIfNull(ByteBuffer buffer) {
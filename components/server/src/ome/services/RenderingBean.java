@@ -5,11 +5,10 @@
 package ome.services;
 
 import java.awt.Dimension;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -17,6 +16,7 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RolesAllowed;
@@ -33,6 +33,7 @@ import ome.conditions.ValidationException;
 import ome.io.nio.InMemoryPlanarPixelBuffer;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
+import ome.io.nio.RenderedTileCache;
 import ome.model.IObject;
 import ome.model.core.Channel;
 import ome.model.core.OriginalFile;
@@ -51,10 +52,10 @@ import ome.services.util.Executor;
 import ome.system.EventContext;
 import ome.system.ServiceFactory;
 import ome.system.SimpleEventContext;
-import ome.util.ImageUtil;
 import ome.util.ShallowCopy;
 import omeis.providers.re.RGBBuffer;
 import omeis.providers.re.Renderer;
+import omeis.providers.re.RenderingExecutor;
 import omeis.providers.re.RenderingEngine;
 import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.codomain.CodomainMap;
@@ -72,6 +73,8 @@ import org.perf4j.StopWatch;
 import org.perf4j.slf4j.Slf4JStopWatch;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.hash.Hashing;
+
 /**
  * Provides the {@link RenderingEngine} service. This class is an Adapter to
  * wrap the {@link Renderer} so to make it thread-safe.
@@ -142,6 +145,8 @@ public class RenderingBean implements RenderingEngine, Serializable {
 
     /**
      * read-write lock to prevent READ-calls during WRITE operations.
+     * Rendering only reads the settings and takes the read lock, so that
+     * several planes or tiles can be rendered concurrently.
      *
      * It is safe for the lock to be serialized. On de-serialization, it will be
      * in the unlocked state.
@@ -160,6 +165,12 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /** Reference to the helper used to retrieve luts.*/
     private final ScriptRepoHelper helper;
 
+    /** Reference to the pool shared by all renderers. */
+    private transient RenderingExecutor renderingExecutor;
+
+    /** Reference to the cache of compressed tiles or <code>null</code>. */
+    private transient RenderedTileCache tileCache;
+
     /** Notification that the bean has just returned from passivation. */
     private transient boolean wasPassivated = false;
 
@@ -197,6 +208,26 @@ public class RenderingBean implements RenderingEngine, Serializable {
         this.helper = helper;
     }
 
+    /**
+     * Rendering executor Bean injector.
+     *
+     * @param renderingExecutor
+     *          The pool shared by all renderers.
+     */
+    public void setRenderingExecutor(RenderingExecutor renderingExecutor) {
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    /**
+     * Rendered tile cache Bean injector.
+     *
+     * @param tileCache
+     *          The cache of compressed tiles shared by all renderers.
+     */
+    public void setRenderedTileCache(RenderedTileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
     @RolesAllowed("user")
     public long getRenderingDefId() {
         if (rendDefObj == null || rendDefObj.getId() == null) {
@@ -427,8 +458,15 @@ public class RenderingBean implements RenderingEngine, Serializable {
                 /* probably in a share */
                 log.debug("failed to load LUTs");
             }
+            RenderingExecutor executor = renderingExecutor;
+            if (executor == null) {
+                executor = RenderingExecutor.getDefault();
+            }
             renderer = new Renderer(quantumFactory, renderingModels, pixelsObj,
-                    rendDefObj, buffer, luts);
+                    rendDefObj, buffer, luts, executor);
+            if (resolutionLevel != null) {
+                renderer.setResolutionLevel(resolutionLevel);
+            }
         } finally {
             rwl.writeLock().unlock();
         }
@@ -444,7 +482,12 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public void setOverlays(Map<byte[], Integer> overlays)
     {
-    	renderer.setOverlays(overlays);
+        rwl.writeLock().lock();
+        try {
+            renderer.setOverlays(overlays);
+        } finally {
+            rwl.writeLock().unlock();
+        }
     }
 
     /**
@@ -481,14 +524,9 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public RGBBuffer render(PlaneDef pd) {
-        rwl.readLock().lock();
+        Lock lock = lockForRendering(pd);
 
         try {
-            final Map<byte[], Integer> overlays = getMasks(pd);
-            if (overlays.size() > 0) {
-                renderer.setOverlays(overlays);
-            }
-            errorIfInvalidState();
             return renderer.render(pd);
         } catch (IOException e) {
             log.error("IO error while rendering.", e);
@@ -497,7 +535,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
         } finally {
-            rwl.readLock().unlock();
+            lock.unlock();
         }
     }
 
@@ -508,19 +546,25 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public int[] renderAsPackedInt(PlaneDef pd) {
-        rwl.writeLock().lock();
+        Lock lock = lockForRendering(pd);
 
         try {
-            final Map<byte[], Integer> overlays = getMasks(pd);
-            if (overlays.size() > 0) {
-                renderer.setOverlays(overlays);
-            }
-            errorIfInvalidState();
+            return renderLocked(pd);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Renders a plane. The caller must hold the lock returned by
+     * {@link #lockForRendering(PlaneDef)}.
+     * 
+     * @param pd The plane to render.
+     * @return See above.
+     */
+    private int[] renderLocked(PlaneDef pd) {
+        try {
             checkPlaneDef(pd);
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
             return renderer.renderAsPackedInt(pd, null);
         } catch (IOException e) {
             log.error("IO error while rendering.", e);
@@ -528,58 +572,54 @@ public class RenderingBean implements RenderingEngine, Serializable {
         } catch (QuantizationException e) {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
-        } finally {
-            rwl.writeLock().unlock();
         }
     }
 
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
-     * @see LocalCompress#compressToStream(BufferedImage, java.io.OutputStream)
+     * @see LocalCompress#compressToBytes(int[], int, int)
      */
     @RolesAllowed("user")
     public byte[] renderCompressed(PlaneDef pd) {
-        rwl.writeLock().lock();
-
-        ByteArrayOutputStream byteStream = null;
+        int stride = pd.getStride();
+        if (stride < 0) stride = 0;
+        stride++;
+        int[] buf;
+        int sizeX, sizeY;
+        long pixelsId;
+        String key = null;
+        Lock lock = lockForRendering(pd);
         try {
-            final Map<byte[], Integer> overlays = getMasks(pd);
-            if (overlays.size() > 0) {
-                renderer.setOverlays(overlays);
-            }
-            int stride = pd.getStride();
-            if (stride < 0) stride = 0;
-            stride++;
-            int[] buf = renderAsPackedInt(pd);
-            int sizeX = pixelsObj.getSizeX();
-            int sizeY = pixelsObj.getSizeY();
-            RegionDef region = pd.getRegion();
-            if (region != null) {
-                sizeX = region.getWidth();
-                sizeY = region.getHeight();
+            pixelsId = pixelsObj.getId();
+            // Shapes are read from the database on each call, never cache.
+            if (tileCache != null && tileCache.isEnabled()
+                    && !pd.getRenderShapes()) {
+                key = getTileKey(pd);
             }
-            sizeX = sizeX/stride;
-            sizeY = sizeY/stride;
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
-        } catch (IOException e) {
-            log.error("Could not compress rendered image.", e);
-            throw new ResourceError(e.getMessage());
-        } finally {
-            rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
+            if (key != null) {
+                byte[] tile = tileCache.get(pixelsId, key);
+                if (tile != null) {
+                    return tile;
                 }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
             }
+            buf = renderLocked(pd);
+            sizeX = pixelsObj.getSizeX();
+            sizeY = pixelsObj.getSizeY();
+        } finally {
+            lock.unlock();
+        }
+        RegionDef region = pd.getRegion();
+        if (region != null) {
+            sizeX = region.getWidth();
+            sizeY = region.getHeight();
         }
+        // The image is compressed without holding any lock.
+        byte[] tile = compress(buf, sizeX/stride, sizeY/stride);
+        if (key != null) {
+            tileCache.put(pixelsId, key, tile);
+        }
+        return tile;
     }
 
     /**
@@ -590,14 +630,10 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public int[] renderProjectedAsPackedInt(int algorithm, int timepoint,
             int stepping, int start, int end) {
-        rwl.writeLock().lock();
+        rwl.readLock().lock();
 
         try {
             errorIfInvalidState();
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
             ChannelBinding[] channelBindings = renderer.getChannelBindings();
             byte[][][][] planes = new byte[1][pixelsObj.getSizeC()][1][];
             long pixelsId = pixelsObj.getId();
@@ -628,48 +664,169 @@ public class RenderingBean implements RenderingEngine, Serializable {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
+            rwl.readLock().unlock();
         }
     }
 
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
-     * @see LocalCompress#compressToStream(BufferedImage, java.io.OutputStream)
+     * @see LocalCompress#compressToBytes(int[], int, int)
      */
     @RolesAllowed("user")
     public byte[] renderProjectedCompressed(int algorithm, int timepoint,
             int stepping, int start, int end) {
-        rwl.writeLock().lock();
+        int[] buf = renderProjectedAsPackedInt(algorithm, timepoint,
+                stepping, start, end);
+        int sizeX, sizeY;
+        rwl.readLock().lock();
+        try {
+            errorIfInvalidState();
+            sizeX = pixelsObj.getSizeX();
+            sizeY = pixelsObj.getSizeY();
+        } finally {
+            rwl.readLock().unlock();
+        }
+        // The image is compressed without holding any lock.
+        return compress(buf, sizeX, sizeY);
+    }
 
-        ByteArrayOutputStream byteStream = null;
+    /**
+     * Acquires the lock a render call has to hold. Rendering only reads the
+     * settings so the read lock is used, unless shapes have to be rendered:
+     * setting them as overlays modifies the renderer and takes the write lock.
+     * The caller must release the returned lock.
+     * 
+     * @param pd The plane to render.
+     * @return The acquired lock.
+     */
+    private Lock lockForRendering(PlaneDef pd) {
+        Lock lock = pd.getRenderShapes() ? rwl.writeLock() : rwl.readLock();
+        lock.lock();
         try {
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
+            errorIfInvalidState();
+            if (pd.getRenderShapes()) {
+                final Map<byte[], Integer> overlays = getMasks(pd);
+                if (overlays.size() > 0) {
+                    renderer.setOverlays(overlays);
+                }
+            }
+        } catch (RuntimeException e) {
+            lock.unlock();
+            throw e;
+        }
+        return lock;
+    }
+
+    /**
+     * Returns the key of a compressed plane or tile in the
+     * {@link RenderedTileCache}, <code>null</code> if it must not be cached.
+     * The key is made of the plane, region, stride, resolution level,
+     * compression level and a digest of the current rendering settings,
+     * including the unsaved ones. Planes rendered with overlays, set by
+     * {@link #setOverlays(Map)} or left by an earlier request rendering
+     * shapes, are not cached since the cache is shared between sessions.
+     * The caller must hold a lock.
+     * 
+     * @param pd The plane to render.
+     * @return See above.
+     */
+    private String getTileKey(PlaneDef pd) {
+        Map<byte[], Integer> overlays = renderer.getOverlays();
+        if (overlays != null && !overlays.isEmpty()) {
+            return null;
+        }
+        String digest = getSettingsDigest();
+        if (digest == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(pd.getSlice()).append(':');
+        key.append(pd.getZ()).append(':').append(pd.getX()).append(':');
+        key.append(pd.getY()).append(':').append(pd.getT()).append(':');
+        RegionDef region = pd.getRegion();
+        if (region != null) {
+            key.append(region.getX()).append(',').append(region.getY());
+            key.append(',').append(region.getWidth()).append(',');
+            key.append(region.getHeight());
+        }
+        key.append(':').append(pd.getStride());
+        key.append(':').append(renderer.getResolutionLevel());
+        key.append(':').append(compressionSrv.getCompressionLevel());
+        key.append(':').append(digest);
+        return key.toString();
+    }
+
+    /**
+     * Drops the cached tiles of the current pixels set once its settings have
+     * been saved.
+     */
+    private void invalidateTiles() {
+        if (tileCache != null) {
+            tileCache.invalidate(pixelsObj.getId());
+        }
+    }
+
+    /**
+     * Returns a digest of the current rendering settings, <code>null</code>
+     * if they cannot be summarized, i.e. if a codomain map other than the
+     * reverse intensity one is in use.
+     * 
+     * @return See above.
+     */
+    private String getSettingsDigest() {
+        StringBuilder buf = new StringBuilder();
+        RenderingModel model = rendDefObj.getModel();
+        buf.append(model.isLoaded() ? model.getValue() : model.getId());
+        QuantumDef qd = rendDefObj.getQuantization();
+        buf.append('|').append(qd.getBitResolution());
+        buf.append('|').append(qd.getCdStart());
+        buf.append('|').append(qd.getCdEnd());
+        ChannelBinding[] bindings = renderer.getChannelBindings();
+        for (int w = 0; w < bindings.length; w++) {
+            ChannelBinding cb = bindings[w];
+            buf.append('|').append(cb.getActive());
+            if (!cb.getActive()) {
+                continue;
             }
-            int[] buf = renderProjectedAsPackedInt(algorithm, timepoint,
-                    stepping, start, end);
-            int sizeX = pixelsObj.getSizeX();
-            int sizeY = pixelsObj.getSizeY();
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            Family family = cb.getFamily();
+            buf.append(',').append(
+                    family.isLoaded() ? family.getValue() : family.getId());
+            buf.append(',').append(cb.getCoefficient());
+            buf.append(',').append(cb.getInputStart());
+            buf.append(',').append(cb.getInputEnd());
+            buf.append(',').append(cb.getNoiseReduction());
+            buf.append(',').append(cb.getRed());
+            buf.append(',').append(cb.getGreen());
+            buf.append(',').append(cb.getBlue());
+            buf.append(',').append(cb.getAlpha());
+            buf.append(',').append(cb.getLookupTable());
+            for (CodomainMapContext ctx :
+                    renderer.getCodomainChain(w).getContexts()) {
+                if (!(ctx instanceof ReverseIntensityContext)) {
+                    return null;
+                }
+                buf.append(",reverse");
+            }
+        }
+        return Hashing.sha1().hashString(buf, StandardCharsets.UTF_8)
+                .toString();
+    }
+
+    /**
+     * Compresses a rendered image with the current compression settings.
+     * 
+     * @param buf The packed integer image.
+     * @param sizeX The width of the image.
+     * @param sizeY The height of the image.
+     * @return The compressed image.
+     */
+    private byte[] compress(int[] buf, int sizeX, int sizeY) {
+        try {
+            return compressionSrv.compressToBytes(buf, sizeX, sizeY);
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
-        } finally {
-            rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
-                }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
-            }
         }
     }
 
@@ -736,6 +893,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
                     // *** Ticket #848 -- Chris Allan <callan@blackcat.ca> ***
                     load();
                 }
+                invalidateTiles();
             }
             return rendDefObj.getId();
         } finally {
@@ -1032,6 +1190,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
                 // we will now reload the renderer.
                 // *** Ticket #848 -- Chris Allan <callan@blackcat.ca> ***
             }
+            invalidateTiles();
             load();
             return id;
         } finally {
@@ -1217,13 +1376,13 @@ public class RenderingBean implements RenderingEngine, Serializable {
     public void setChannelLookupTable(int w, String lookup) {
         StopWatch t0 = new Slf4JStopWatch(
                 "omero.rendering_bean.setChannelLookupTable");
-        rwl.readLock().lock();
+        rwl.writeLock().lock();
 
         try {
             errorIfNullRenderingDef();
             renderer.setChannelLookupTable(w, lookup);
         } finally {
-            rwl.readLock().unlock();
+            rwl.writeLock().unlock();
             t0.stop();
         }
     }
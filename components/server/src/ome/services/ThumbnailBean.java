@@ -56,6 +56,7 @@ import ome.system.OmeroContext;
 import ome.system.SimpleEventContext;
 import ome.util.ImageUtil;
 import omeis.providers.re.Renderer;
+import omeis.providers.re.RenderingExecutor;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumFactory;
@@ -162,6 +163,9 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** The list of all luts used by the {@link Renderer}. */
     private transient List<File> luts;
 
+    /** The pool shared by all renderers to run rendering tasks. */
+    private transient RenderingExecutor renderingExecutor;
+
     /** The default X-width for a thumbnail. */
     public static final int DEFAULT_X_WIDTH = 48;
 
@@ -387,8 +391,12 @@ public class ThumbnailBean extends AbstractLevel2Service
         QuantumFactory quantumFactory = new QuantumFactory(families);
         // Loading last to try to ensure that the buffer will get closed.
         PixelBuffer buffer = pixelDataService.getPixelBuffer(pixels, false);
+        RenderingExecutor executor = renderingExecutor;
+        if (executor == null) {
+            executor = RenderingExecutor.getDefault();
+        }
         renderer = new Renderer(quantumFactory, renderingModels, pixels,
-                settings, buffer, getLuts());
+                settings, buffer, getLuts(), executor);
         dirty = false;
     }
 
@@ -484,6 +492,18 @@ public class ThumbnailBean extends AbstractLevel2Service
         this.compressionService = compressionService;
     }
 
+    /**
+     * Rendering executor Bean injector.
+     *
+     * @param renderingExecutor
+     *            the pool shared by all renderers.
+     */
+    public void setRenderingExecutor(RenderingExecutor renderingExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.renderingExecutor,
+                renderingExecutor);
+        this.renderingExecutor = renderingExecutor;
+    }
+
     /**
      * Rendering settings service Bean injector.
      *
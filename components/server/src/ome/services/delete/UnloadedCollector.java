@@ -7,8 +7,11 @@ package ome.services.delete;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import ome.api.local.LocalAdmin;
 import ome.api.local.LocalQuery;
@@ -40,9 +43,37 @@ class UnloadedCollector implements CBlock {
         this.count = count;
     }
 
+    /**
+     * Adds all the objects, counting the locks of those of the same class
+     * together rather than one by one as {@link #call(IObject)} does.
+     *
+     * @param list
+     */
+    @SuppressWarnings("unchecked")
     public void addAll(List<IObject> list) {
+        final Map<Class<IObject>, Set<Long>> uncounted =
+            new LinkedHashMap<Class<IObject>, Set<Long>>();
         for (IObject object : list) {
-            call(object);
+            if (object == null) {
+                continue;
+            }
+            add(object);
+            if (count) {
+                final Map<Long, Map<String, Long>> id_class_id = counts(object);
+                if (!id_class_id.containsKey(object.getId())) {
+                    final Class<IObject> klass = (Class<IObject>) object.getClass();
+                    Set<Long> ids = uncounted.get(klass);
+                    if (ids == null) {
+                        ids = new LinkedHashSet<Long>();
+                        uncounted.put(klass, ids);
+                    }
+                    ids.add(object.getId());
+                }
+            }
+        }
+        for (Map.Entry<Class<IObject>, Set<Long>> entry : uncounted.entrySet()) {
+            map.get(entry.getKey().getName()).putAll(
+                    admin.getLockingIds(entry.getKey(), entry.getValue(), null));
         }
     }
 
@@ -52,16 +83,20 @@ class UnloadedCollector implements CBlock {
             return null;
         }
 
-        IObject copy = (IObject) Utils.trueInstance(object.getClass());
-        copy.setId(object.getId());
-        copy.unload();
-        list.add(copy);
+        add(object);
         if (count) {
             count(object); /* PERFORMANCE HIT */
         }
         return null;
     }
 
+    private void add(IObject object) {
+        IObject copy = (IObject) Utils.trueInstance(object.getClass());
+        copy.setId(object.getId());
+        copy.unload();
+        list.add(copy);
+    }
+
     /**
      * Counts via {@link LocalAdmin#getLockingIds(Session, IObject)} all the
      * items which entities which link to the given object.
@@ -71,6 +106,17 @@ class UnloadedCollector implements CBlock {
     @SuppressWarnings("unchecked")
     void count(final IObject object) {
 
+        final Map<Long, Map<String, Long>> id_class_id = counts(object);
+
+        if (!id_class_id.containsKey(object.getId())) {
+            id_class_id.put(object.getId(), admin.getLockingIds(
+                    (Class<IObject>) object.getClass(), object.getId(), null));
+        }
+
+    }
+
+    private Map<Long, Map<String, Long>> counts(final IObject object) {
+
         Map<Long, Map<String, Long>> id_class_id = map.get(object.getClass()
                 .getName());
 
@@ -78,11 +124,6 @@ class UnloadedCollector implements CBlock {
             id_class_id = new HashMap<Long, Map<String, Long>>();
             map.put(object.getClass().getName(), id_class_id);
         }
-
-        if (!id_class_id.containsKey(object.getId())) {
-            id_class_id.put(object.getId(), admin.getLockingIds(
-                    (Class<IObject>) object.getClass(), object.getId(), null));
-        }
-
+        return id_class_id;
     }
 }
@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Set;
 
 import ome.io.nio.AbstractFileSystemService;
+import ome.io.nio.RenderedTileCache;
 import ome.system.OmeroContext;
 
 import org.slf4j.Logger;
@@ -84,6 +85,7 @@ public class FileDeleter {
         pixelsFD = new PixelsFileDeletions(afs, load(Type.Pixels));
         filesFailed += pixelsFD.deleteLocal();
         bytesFailed += pixelsFD.getBytesFailed();
+        invalidateRenderedTiles(load(Type.Pixels));
 
         undeletedFiles = new HashMap<String, long[]>();
         undeletedFiles.put(Type.OriginalFile.toString(), originalFD.getUndeletedFiles());
@@ -101,6 +103,23 @@ public class FileDeleter {
         }
     }
 
+    /**
+     * Drops the cached rendered tiles of the deleted pixels sets, both in
+     * memory and under the binary repository.
+     * @param pixelsIds the IDs of the deleted pixels sets
+     */
+    protected void invalidateRenderedTiles(Set<Long> pixelsIds) {
+        if (ctx == null || pixelsIds.isEmpty()
+                || !ctx.containsBean("renderedTileCache")) {
+            return;
+        }
+        final RenderedTileCache tileCache =
+                ctx.getBean("renderedTileCache", RenderedTileCache.class);
+        for (final Long pixelsId : pixelsIds) {
+            tileCache.invalidate(pixelsId);
+        }
+    }
+
     /**
      * Lookup the ids which are scheduled for deletion.
      * @param fileType non-null
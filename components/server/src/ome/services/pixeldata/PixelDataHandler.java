@@ -5,6 +5,8 @@
 
 package ome.services.pixeldata;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -45,6 +47,9 @@ public class PixelDataHandler extends SimpleWork {
 
     protected int reps = 5;
 
+    /** Computes the missing statistics, <code>null</code> to skip them. */
+    protected StatsInfoCalculator statsInfoCalculator;
+
     /**
      * Spring injector. Sets the number of indexing runs will be made if there
      * is a substantial backlog.
@@ -54,6 +59,15 @@ public class PixelDataHandler extends SimpleWork {
         ;
     }
 
+    /**
+     * Spring injector. Sets the calculator of the statistics of the pixels
+     * sets which require no pyramid, or for which the pyramid creation from
+     * a pixels file did not yield any.
+     */
+    public void setStatsInfoCalculator(StatsInfoCalculator calculator) {
+        this.statsInfoCalculator = calculator;
+    }
+
     public PixelDataHandler(EventLogLoader ll, PixelsService pixelsService) {
         super("PixelDataHandler", "process");
         this.loader = ll;
@@ -141,7 +155,7 @@ public class PixelDataHandler extends SimpleWork {
 
         try
         {
-            StatsInfo[] statsInfo = pixelsService.makePyramid(pixels);
+            StatsInfo[] statsInfo = makePyramid(pixels);
             if(statsInfo == null) {
                 // Either exists or failed to be created, but that's
                 // the PixelsService's business. It should throw an exception
@@ -168,6 +182,66 @@ public class PixelDataHandler extends SimpleWork {
         return true;
     }
 
+    /**
+     * Creates the pyramid of a pixels set if it requires one, and computes
+     * its statistics. If no pyramid is required, only the statistics are
+     * computed, by the {@link #statsInfoCalculator} if set. A pyramid
+     * written from a ROMIO pixels file yields no statistics, so they are
+     * then computed by the {@link #statsInfoCalculator} too. A pyramid
+     * which already exists, or whose creation failed, yields none.
+     *
+     * @param pixels The pixels set.
+     * @return See above or <code>null</code> if not computed.
+     * @throws IOException If the statistics cannot be computed.
+     */
+    protected StatsInfo[] makePyramid(Pixels pixels) throws IOException {
+        final File pixelsFile =
+            new File(pixelsService.getPixelsPath(pixels.getId()));
+        final File pyramidFile = new File(
+                pixelsFile.getPath() + PixelsService.PYRAMID_SUFFIX);
+        if (statsInfoCalculator != null && !pyramidFile.exists()
+                && !pixelsService.requiresPixelsPyramid(pixels)) {
+            log.debug("Creating only StatsInfo.");
+            return statsInfoCalculator.createStatsInfo(pixels);
+        }
+        final boolean fromPixelsFile =
+            pixelsFile.exists() && !pyramidFile.exists();
+        StatsInfo[] statsInfo = pixelsService.makePyramid(pixels);
+        // A failed creation leaves an empty pyramid (see ticket:5189).
+        if (statsInfo == null && fromPixelsFile && pyramidFile.length() > 0) {
+            statsInfo = calculateMissingStatsInfo(pixels);
+        }
+        return statsInfo;
+    }
+
+    /**
+     * Computes the statistics of a pixels set over its tiles if some of its
+     * channels have none, e.g. because its pyramid was created from a pixels
+     * file rather than from the original file.
+     *
+     * @param pixels The pixels set.
+     * @return See above or <code>null</code> if not computed.
+     */
+    protected StatsInfo[] calculateMissingStatsInfo(Pixels pixels) {
+        if (statsInfoCalculator == null) {
+            return null;
+        }
+        boolean missing = false;
+        for (int c = 0; c < pixels.sizeOfChannels(); c++) {
+            missing |= pixels.getChannel(c).getStatsInfo() == null;
+        }
+        if (!missing) {
+            return null;
+        }
+        try {
+            return statsInfoCalculator.createStatsInfo(pixels);
+        } catch (Exception e) {
+            log.warn("Failed to calculate the statistics of pixels "
+                    + pixels.getId(), e);
+            return null;
+        }
+    }
+
     protected Pixels getPixels(Long id, ServiceFactory sf)
     {
         final IQuery iQuery = sf.getQueryService();
@@ -0,0 +1,118 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.pixeldata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.model.core.Pixels;
+import ome.model.stats.StatsInfo;
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.metadata.TileStatistics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the {@link StatsInfo} of pixels sets in a pass over the tiles of
+ * their full resolution level, the channels and the planes being read
+ * concurrently on the {@link RenderingExecutor} if the pixel buffer allows it.
+ * Used by the {@link PixelDataHandler} for the pixels sets which require no
+ * pyramid, and for those whose pyramid written from a pixels file did not
+ * yield any minimum and maximum.
+ *
+ * @since 5.4.1
+ */
+public class StatsInfoCalculator {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(StatsInfoCalculator.class);
+
+    private final PixelsService pixelsService;
+
+    private final RenderingExecutor executor;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param pixelsService The service giving the pixel buffers.
+     * @param executor The pool reading the tiles.
+     */
+    public StatsInfoCalculator(PixelsService pixelsService,
+            RenderingExecutor executor) {
+        this.pixelsService = pixelsService;
+        this.executor = executor;
+    }
+
+    /**
+     * Computes the statistics of all the channels of a pixels set over all
+     * its planes.
+     *
+     * @param pixels The pixels set.
+     * @param binCount The number of bins of the histograms, <code>0</code>
+     *                 for no histogram.
+     * @return The statistics, keyed by channel.
+     * @throws IOException If a tile cannot be read.
+     */
+    public Map<Integer, TileStatistics.Result> calculate(Pixels pixels,
+            int binCount) throws IOException {
+        PixelBuffer buffer = pixelsService.getPixelBuffer(pixels, false);
+        try {
+            int[] channels = new int[pixels.getSizeC()];
+            for (int c = 0; c < channels.length; c++) {
+                channels[c] = c;
+            }
+            List<int[]> planes = new ArrayList<int[]>();
+            for (int t = 0; t < pixels.getSizeT(); t++) {
+                for (int z = 0; z < pixels.getSizeZ(); z++) {
+                    planes.add(new int[] { z, t });
+                }
+            }
+            long start = System.currentTimeMillis();
+            Map<Integer, TileStatistics.Result> results =
+                new TileStatistics(buffer, executor).compute(
+                        pixels.getPixelsType().getValue(), channels, planes,
+                        null, binCount, null);
+            log.info(String.format("Statistics of Pixels:%d over %d planes "
+                    + "[%d ms.]", pixels.getId(), planes.size(),
+                    System.currentTimeMillis() - start));
+            return results;
+        } finally {
+            buffer.close();
+        }
+    }
+
+    /**
+     * Computes the global minimum and maximum of all the channels of a pixels
+     * set.
+     *
+     * @param pixels The pixels set.
+     * @return The statistics, indexed by channel.
+     * @throws IOException If a tile cannot be read.
+     */
+    public StatsInfo[] createStatsInfo(Pixels pixels) throws IOException {
+        Map<Integer, TileStatistics.Result> results = calculate(pixels, 0);
+        StatsInfo[] statsInfo = new StatsInfo[pixels.getSizeC()];
+        for (int c = 0; c < statsInfo.length; c++) {
+            TileStatistics.Result result = results.get(c);
+            statsInfo[c] = new StatsInfo();
+            statsInfo[c].setGlobalMin(result.getMin());
+            statsInfo[c].setGlobalMax(result.getMax());
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Pixels:%d C:%d 0.5%%:%s 99.5%%:%s",
+                        pixels.getId(), c, result.getPercentile(0.005),
+                        result.getPercentile(0.995)));
+            }
+        }
+        return statsInfo;
+    }
+}
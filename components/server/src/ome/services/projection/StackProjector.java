@@ -0,0 +1,466 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.projection;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import ome.api.IProjection;
+import ome.io.nio.DimensionsOutOfBoundsException;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.Utils;
+import ome.util.PixelData;
+import omeis.providers.re.RenderingExecutor;
+
+/**
+ * Projects the optical sections of stacks tile by tile. Each tile is read
+ * one section at a time through {@link PixelBuffer#getTile}, so that
+ * pyramid buffers which cannot return whole stacks can be projected too.
+ * Values are accumulated in <code>long</code> arrays for integer pixels
+ * types and in <code>double</code> arrays for floating point ones, and the
+ * tiles of all the channels projected at a timepoint run concurrently on
+ * the {@link RenderingExecutor} unless the buffer cannot be read by several
+ * threads.
+ * <p>
+ * The projected values are the same as the ones historically computed pixel
+ * by pixel by {@link ProjectionBean}.
+ * </p>
+ *
+ * @since 5.4.1
+ */
+class StackProjector
+{
+    /** The buffer to read the stacks from. */
+    private final PixelBuffer source;
+
+    /** One of the algorithms defined by {@link IProjection}. */
+    private final int algorithm;
+
+    /** The stepping between the optical sections used. */
+    private final int stepping;
+
+    /** The first optical section used. */
+    private final int start;
+
+    /** The last optical section used. */
+    private final int end;
+
+    /** The pool running the tiles. */
+    private final RenderingExecutor executor;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param source The buffer to read the stacks from.
+     * @param algorithm One of the algorithms defined by {@link IProjection}.
+     * @param stepping The stepping between the optical sections used.
+     * @param start The first optical section used.
+     * @param end The last optical section used.
+     * @param executor The pool running the tiles.
+     */
+    StackProjector(PixelBuffer source, int algorithm, int stepping,
+                   int start, int end, RenderingExecutor executor)
+    {
+        switch (algorithm)
+        {
+            case IProjection.MAXIMUM_INTENSITY:
+            case IProjection.MEAN_INTENSITY:
+            case IProjection.SUM_INTENSITY:
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown algorithm: " + algorithm);
+        }
+        this.source = source;
+        this.algorithm = algorithm;
+        this.stepping = stepping;
+        this.start = start;
+        this.end = end;
+        this.executor = executor;
+    }
+
+    /**
+     * Projects the stacks of several channels at a timepoint.
+     *
+     * @param channels The channels to project.
+     * @param t The timepoint.
+     * @param to The planes to project into, one per channel.
+     * @param minMax The minimum and maximum of the projected values of each
+     * channel, updated with the values of the new planes. May be
+     * <code>null</code>.
+     * @throws IOException If a tile cannot be read.
+     * @throws DimensionsOutOfBoundsException If a channel or the timepoint
+     * is out of range.
+     */
+    void project(List<Integer> channels, int t, PixelData[] to,
+                 double[][] minMax)
+        throws IOException, DimensionsOutOfBoundsException
+    {
+        int sizeX = source.getSizeX();
+        int sizeY = source.getSizeY();
+        Dimension tileSize = source.getTileSize();
+        List<TileTask> tasks = new ArrayList<TileTask>();
+        List<Integer> owners = new ArrayList<Integer>();
+        for (int k = 0; k < channels.size(); k++)
+        {
+            for (int y = 0; y < sizeY; y += tileSize.height)
+            {
+                for (int x = 0; x < sizeX; x += tileSize.width)
+                {
+                    tasks.add(new TileTask(channels.get(k), t, x, y,
+                            Math.min(tileSize.width, sizeX - x),
+                            Math.min(tileSize.height, sizeY - y),
+                            sizeX, to[k]));
+                    owners.add(k);
+                }
+            }
+        }
+        // Bits of neighbouring tiles may share a byte of the plane.
+        boolean concurrent = to.length > 0
+            && to[0].javaType() != PixelData.BIT
+            && Utils.isConcurrentReadSafe(source);
+        List<double[]> results = execute(tasks, concurrent);
+        if (minMax == null)
+        {
+            return;
+        }
+        for (int i = 0; i < results.size(); i++)
+        {
+            double[] tile = results.get(i);
+            double[] channel = minMax[owners.get(i)];
+            channel[0] = tile[0] < channel[0]? tile[0] : channel[0];
+            channel[1] = tile[1] > channel[1]? tile[1] : channel[1];
+        }
+    }
+
+    /**
+     * Runs the specified tasks. Unless they must run serially, all but the
+     * first task are submitted to the executor and the first one runs in
+     * the calling thread. Returns once every task is complete.
+     *
+     * @param tasks The tasks to run.
+     * @param concurrent Whether the tasks may run concurrently.
+     * @return The results of the tasks, in order.
+     * @throws IOException If a tile cannot be read.
+     * @throws DimensionsOutOfBoundsException If a channel or the timepoint
+     * is out of range.
+     */
+    private List<double[]> execute(List<TileTask> tasks, boolean concurrent)
+        throws IOException, DimensionsOutOfBoundsException
+    {
+        try
+        {
+            if (concurrent && executor != null)
+            {
+                return executor.invokeAllCallerRunsFirst(tasks,
+                        Exception.class);
+            }
+            return RenderingExecutor.invokeAllInCaller(tasks, Exception.class);
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (DimensionsOutOfBoundsException e)
+        {
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the values of a tile as <code>long</code> values.
+     *
+     * @param tile The tile to read.
+     * @param values The array to fill, one element per pixel.
+     */
+    private static void readLongs(PixelData tile, long[] values)
+    {
+        ByteBuffer data = tile.getData();
+        boolean signed = tile.isSigned();
+        int n = values.length;
+        int i;
+        switch (tile.javaType())
+        {
+            case PixelData.BYTE:
+                if (signed)
+                {
+                    for (i = 0; i < n; i++)
+                    {
+                        values[i] = data.get(i);
+                    }
+                }
+                else
+                {
+                    for (i = 0; i < n; i++)
+                    {
+                        values[i] = data.get(i) & 0xFF;
+                    }
+                }
+                break;
+            case PixelData.SHORT:
+                if (signed)
+                {
+                    for (i = 0; i < n; i++)
+                    {
+                        values[i] = data.getShort(2 * i);
+                    }
+                }
+                else
+                {
+                    for (i = 0; i < n; i++)
+                    {
+                        values[i] = data.getShort(2 * i) & 0xFFFF;
+                    }
+                }
+                break;
+            case PixelData.INT:
+                if (signed)
+                {
+                    for (i = 0; i < n; i++)
+                    {
+                        values[i] = data.getInt(4 * i);
+                    }
+                }
+                else
+                {
+                    for (i = 0; i < n; i++)
+                    {
+                        values[i] = data.getInt(4 * i) & 0xFFFFFFFFL;
+                    }
+                }
+                break;
+            default:
+                for (i = 0; i < n; i++)
+                {
+                    values[i] = (long) tile.getPixelValue(i);
+                }
+        }
+    }
+
+    /**
+     * Reads the values of a floating point tile.
+     *
+     * @param tile The tile to read.
+     * @param values The array to fill, one element per pixel.
+     */
+    private static void readDoubles(PixelData tile, double[] values)
+    {
+        ByteBuffer data = tile.getData();
+        int n = values.length;
+        int i;
+        if (tile.javaType() == PixelData.FLOAT)
+        {
+            for (i = 0; i < n; i++)
+            {
+                values[i] = data.getFloat(4 * i);
+            }
+        }
+        else
+        {
+            for (i = 0; i < n; i++)
+            {
+                values[i] = data.getDouble(8 * i);
+            }
+        }
+    }
+
+    /**
+     * Projects a tile of a stack into the matching region of a plane.
+     * Returns the minimum and maximum of the projected values.
+     */
+    private class TileTask implements Callable<double[]>
+    {
+        private final int c;
+
+        private final int t;
+
+        private final int x;
+
+        private final int y;
+
+        private final int w;
+
+        private final int h;
+
+        private final int sizeX;
+
+        private final PixelData to;
+
+        TileTask(int c, int t, int x, int y, int w, int h, int sizeX,
+                 PixelData to)
+        {
+            this.c = c;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.sizeX = sizeX;
+            this.to = to;
+        }
+
+        public double[] call()
+            throws IOException, DimensionsOutOfBoundsException
+        {
+            boolean max = algorithm == IProjection.MAXIMUM_INTENSITY;
+            // Sum and mean have always excluded the end section.
+            int last = max? end : end - 1;
+            int n = w * h;
+            long[] longSum = null, longValues = null;
+            double[] doubleSum = null, doubleValues = null;
+            int count = 0;
+            for (int z = start; z <= last; z += stepping)
+            {
+                PixelData tile = source.getTile(z, c, t, x, y, w, h);
+                try
+                {
+                    if (tile.isFloat())
+                    {
+                        if (doubleSum == null)
+                        {
+                            doubleSum = new double[n];
+                            doubleValues = new double[n];
+                        }
+                        readDoubles(tile, doubleValues);
+                        accumulate(doubleSum, doubleValues, max);
+                    }
+                    else
+                    {
+                        if (longSum == null)
+                        {
+                            longSum = new long[n];
+                            longValues = new long[n];
+                        }
+                        readLongs(tile, longValues);
+                        accumulate(longSum, longValues, max);
+                    }
+                }
+                finally
+                {
+                    tile.dispose();
+                }
+                count++;
+            }
+            return store(longSum, doubleSum, count, max);
+        }
+
+        /**
+         * Adds the values of a section to the projection or keeps the
+         * maximum of both.
+         */
+        private void accumulate(long[] projected, long[] values, boolean max)
+        {
+            int n = projected.length;
+            if (max)
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    if (values[i] > projected[i])
+                    {
+                        projected[i] = values[i];
+                    }
+                }
+            }
+            else
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    projected[i] += values[i];
+                }
+            }
+        }
+
+        /**
+         * Adds the values of a section to the projection or keeps the
+         * maximum of both.
+         */
+        private void accumulate(double[] projected, double[] values,
+                                boolean max)
+        {
+            int n = projected.length;
+            if (max)
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    if (values[i] > projected[i])
+                    {
+                        projected[i] = values[i];
+                    }
+                }
+            }
+            else
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    projected[i] += values[i];
+                }
+            }
+        }
+
+        /**
+         * Writes the projected tile into the plane and returns the minimum
+         * and maximum of the values written.
+         */
+        private double[] store(long[] longSum, double[] doubleSum, int count,
+                               boolean max)
+        {
+            boolean mean = algorithm == IProjection.MEAN_INTENSITY;
+            double planeMaximum = to.getMaximum();
+            double minimum = Double.MAX_VALUE;
+            double maximum = Double.MIN_VALUE;
+            double projectedValue;
+            int i = 0;
+            for (int row = y; row < y + h; row++)
+            {
+                int offset = row * sizeX + x;
+                for (int col = 0; col < w; col++, i++)
+                {
+                    if (longSum != null)
+                    {
+                        projectedValue = longSum[i];
+                    }
+                    else if (doubleSum != null)
+                    {
+                        projectedValue = doubleSum[i];
+                    }
+                    else
+                    {
+                        projectedValue = 0;
+                    }
+                    if (!max)
+                    {
+                        if (mean)
+                        {
+                            projectedValue = projectedValue / count;
+                        }
+                        if (projectedValue > planeMaximum)
+                        {
+                            projectedValue = planeMaximum;
+                        }
+                    }
+                    to.setPixelValue(offset + col, projectedValue);
+                    minimum = projectedValue < minimum? projectedValue : minimum;
+                    maximum = projectedValue > maximum? projectedValue : maximum;
+                }
+            }
+            return new double[] { minimum, maximum };
+        }
+    }
+}
@@ -94,13 +94,19 @@ import com.google.common.collect.MapMaker;
  * @author Josh Moore, josh at glencoesoftware.com
  * @since 3.0-Beta3
  */
-public class SessionManagerImpl implements SessionManager, SessionCache.StaleCacheListener,
+public class SessionManagerImpl implements SessionManager, SessionCache.BulkStaleCacheListener,
         ApplicationContextAware, ApplicationListener<ApplicationEvent> {
 
     public final static String GROUP_SUDO_NS = "openmicroscopy.org/security/group-sudo";
 
     private final static Logger log = LoggerFactory.getLogger(SessionManagerImpl.class);
 
+    /**
+     * The maximum number of ids of a query of
+     * {@link #reload(Collection)}.
+     */
+    private final static int LOOKUP_BATCH_SIZE = 1000;
+
     /**
      * The id of this session manager, used to identify its own actions. This
      * value may be overwritten by an injector with a value which is used
@@ -1073,6 +1079,36 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
         return createSessionContext(list, ctx);
     }
 
+    /**
+     * Will be called by {@link SessionCache} in order to update many sessions
+     * at once, for instance after a modification of users or groups. The
+     * state of all the sessions is loaded with a query per kind of object
+     * rather than per session.
+     */
+    public Map<String, SessionContext> reload(
+            final Collection<SessionContext> contexts) {
+        @SuppressWarnings("unchecked")
+        final Map<String, List<Object>> lists = (Map<String, List<Object>>)
+                executor.execute(asroot, new Executor.SimpleWork(
+                this, "reload", contexts.size()) {
+            @Transactional(readOnly = true)
+            public Object doWork(org.hibernate.Session session,
+                    ServiceFactory sf) {
+                return executeSessionContextLookups(session, contexts);
+            }
+        });
+        final Map<String, SessionContext> replacements =
+                new HashMap<String, SessionContext>();
+        for (SessionContext ctx : contexts) {
+            final String uuid = ctx.getSession().getUuid();
+            final List<Object> list = lists.get(uuid);
+            if (list != null) {
+                replacements.put(uuid, createSessionContext(list, ctx));
+            }
+        }
+        return replacements;
+    }
+
     // Executor methods
     // =========================================================================
 
@@ -1492,6 +1528,129 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
         }
     }
 
+    /**
+     * Like {@link #executeSessionContextLookup(ServiceFactory, Principal, Experimenter, ExperimenterGroup, Session)}
+     * for many sessions at once, loading the users, groups, memberships and
+     * sessions with one query per batch of {@link #LOOKUP_BATCH_SIZE} ids.
+     * Returns the lists of state keyed by session uuid, without the sessions
+     * whose user, group or session row could not be found.
+     */
+    private Map<String, List<Object>> executeSessionContextLookups(
+            org.hibernate.Session session, Collection<SessionContext> contexts) {
+        final Set<Long> userIds = new HashSet<Long>();
+        final Set<Long> groupIds = new HashSet<Long>();
+        final Set<Long> sessionIds = new HashSet<Long>();
+        for (SessionContext ctx : contexts) {
+            userIds.add(ctx.getCurrentUserId());
+            if (ctx.getCurrentSudoerId() != null) {
+                userIds.add(ctx.getCurrentSudoerId());
+            }
+            groupIds.add(ctx.getCurrentGroupId());
+            sessionIds.add(ctx.getCurrentSessionId());
+        }
+
+        final Map<Long, Experimenter> users = new HashMap<Long, Experimenter>();
+        for (Object o : list(session,
+                "select e from Experimenter e where e.id in (:ids)", userIds)) {
+            final Experimenter exp = (Experimenter) o;
+            users.put(exp.getId(), exp);
+        }
+        final Map<Long, ExperimenterGroup> groups =
+                new HashMap<Long, ExperimenterGroup>();
+        for (Object o : list(session,
+                "select g from ExperimenterGroup g where g.id in (:ids)",
+                groupIds)) {
+            final ExperimenterGroup grp = (ExperimenterGroup) o;
+            groups.put(grp.getId(), grp);
+        }
+        final Map<Long, Session> sessions = new HashMap<Long, Session>();
+        for (Object o : list(session, "select distinct s from Session s "
+                + "left outer join fetch s.sudoer "
+                + "left outer join fetch s.annotationLinks l "
+                + "left outer join fetch l.child a where s.id in (:ids)",
+                sessionIds)) {
+            final Session reloaded = (Session) o;
+            sessions.put(reloaded.getId(), reloaded);
+        }
+
+        // Memberships in the order of the groups of each user, as in
+        // LocalAdmin.getMemberOfGroupIds(Experimenter)
+        final Map<Long, List<Long>> memberOf = new HashMap<Long, List<Long>>();
+        final Map<Long, List<Long>> leaderOf = new HashMap<Long, List<Long>>();
+        final Map<Long, List<String>> userRoles =
+                new HashMap<Long, List<String>>();
+        for (Long userId : userIds) {
+            memberOf.put(userId, new ArrayList<Long>());
+            leaderOf.put(userId, new ArrayList<Long>());
+            userRoles.put(userId, new ArrayList<String>());
+        }
+        for (Object o : list(session, "select e.id, m.parent.id, "
+                + "m.parent.name, m.owner from Experimenter e "
+                + "join e.groupExperimenterMap m where e.id in (:ids) "
+                + "order by e.id, index(m)", userIds)) {
+            final Object[] row = (Object[]) o;
+            final Long userId = (Long) row[0];
+            memberOf.get(userId).add((Long) row[1]);
+            userRoles.get(userId).add((String) row[2]);
+            if (Boolean.TRUE.equals(row[3])) {
+                leaderOf.get(userId).add((Long) row[1]);
+            }
+        }
+
+        final Map<String, List<Object>> lists =
+                new HashMap<String, List<Object>>();
+        for (SessionContext ctx : contexts) {
+            final String uuid = ctx.getSession().getUuid();
+            final Experimenter exp = users.get(ctx.getCurrentUserId());
+            final ExperimenterGroup grp = groups.get(ctx.getCurrentGroupId());
+            final Session reloaded = sessions.get(ctx.getCurrentSessionId());
+            if (exp == null || grp == null || reloaded == null) {
+                log.info("No info for session " + uuid);
+                continue;
+            }
+            try {
+                final Experimenter sudoer = reloaded.getSudoer();
+                boolean hasAdminPrivileges = memberOf.get(exp.getId())
+                        .contains(roles.getSystemGroupId());
+                if (sudoer != null) {
+                    hasAdminPrivileges = hasAdminPrivileges
+                            && memberOf.get(sudoer.getId()).contains(
+                                    roles.getSystemGroupId());
+                }
+                final List<Object> list = new ArrayList<Object>();
+                list.add(exp);
+                list.add(grp);
+                list.add(hasAdminPrivileges ? adminPrivileges.getSessionPrivileges(reloaded) : Collections.emptySet());
+                list.add(memberOf.get(exp.getId()));
+                list.add(leaderOf.get(exp.getId()));
+                list.add(userRoles.get(exp.getId()));
+                list.add(new Principal(exp.getOmeName(), grp.getName(),
+                        ctx.getCurrentEventType()));
+                list.add(reloaded);
+                lists.put(uuid, list);
+            } catch (Exception e) {
+                log.info("No info for session " + uuid, e);
+            }
+        }
+        return lists;
+    }
+
+    /**
+     * Runs a query with an <code>ids</code> list parameter in batches of
+     * {@link #LOOKUP_BATCH_SIZE} ids.
+     */
+    private static List<?> list(org.hibernate.Session session, String hql,
+            Collection<Long> ids) {
+        final List<Long> all = new ArrayList<Long>(ids);
+        final List<Object> results = new ArrayList<Object>();
+        for (int i = 0; i < all.size(); i += LOOKUP_BATCH_SIZE) {
+            results.addAll(session.createQuery(hql).setParameterList("ids",
+                    all.subList(i, Math.min(all.size(), i + LOOKUP_BATCH_SIZE)))
+                    .list());
+        }
+        return results;
+    }
+
     private Share newShare() {
         Share share = new Share();
         share.putAt("#2733", "ALLOW");
@@ -5,6 +5,11 @@
 
 package ome.services.sessions.events;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 import ome.model.meta.Experimenter;
 import ome.model.meta.ExperimenterGroup;
 import ome.model.meta.GroupExperimenterMap;
@@ -17,15 +22,64 @@ import ome.util.messages.InternalMessage;
  * {@link Experimenter}, {@link ExperimenterGroup}, or
  * {@link GroupExperimenterMap} is inserted or updated.
  * 
- * This signals the {@link SessionManager} to update its cache.
+ * This signals the {@link SessionManager} to update its cache. If the
+ * users and groups modified are known, only the sessions concerned by them
+ * need to be reloaded; otherwise, all are.
  * 
  * @author Josh Moore, josh at glencoesoftware.com
  * @since 3.0-Beta3
  */
 public class UserGroupUpdateEvent extends InternalMessage {
 
+    private final Set<Long> userIds;
+
+    private final Set<Long> groupIds;
+
+    /**
+     * Creates an event for unknown modifications, requiring all sessions to
+     * be reloaded.
+     */
     public UserGroupUpdateEvent(Object source) {
+        this(source, null, null);
+    }
+
+    /**
+     * Creates an event for the modification of the given users and groups.
+     *
+     * @param source the publisher of the event
+     * @param userIds the ids of the users modified, or <code>null</code> if
+     *            unknown
+     * @param groupIds the ids of the groups modified, or <code>null</code> if
+     *            unknown
+     */
+    public UserGroupUpdateEvent(Object source, Collection<Long> userIds,
+            Collection<Long> groupIds) {
         super(source);
+        if (userIds == null || groupIds == null) {
+            this.userIds = null;
+            this.groupIds = null;
+        } else {
+            this.userIds = Collections.unmodifiableSet(
+                    new HashSet<Long>(userIds));
+            this.groupIds = Collections.unmodifiableSet(
+                    new HashSet<Long>(groupIds));
+        }
+    }
+
+    /**
+     * @return the ids of the users modified, or <code>null</code> if the
+     *         modifications are unknown
+     */
+    public Set<Long> getUserIds() {
+        return userIds;
+    }
+
+    /**
+     * @return the ids of the groups modified, or <code>null</code> if the
+     *         modifications are unknown
+     */
+    public Set<Long> getGroupIds() {
+        return groupIds;
     }
 
     private static final long serialVersionUID = 1L;
@@ -5,11 +5,17 @@
 package ome.services.sessions.state;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import net.sf.ehcache.CacheManager;
@@ -25,6 +31,9 @@ import ome.services.sessions.SessionManager;
 import ome.services.sessions.SessionManagerImpl;
 import ome.services.sessions.events.UserGroupUpdateEvent;
 import ome.system.OmeroContext;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.system.metrics.Timer;
 
 import org.perf4j.StopWatch;
 import org.perf4j.slf4j.Slf4JStopWatch;
@@ -70,12 +79,32 @@ public class SessionCache implements ApplicationContextAware {
         SessionContext reload(SessionContext context);
     }
 
+    /**
+     * {@link StaleCacheListener} able to reload many sessions at once, used
+     * by {@link SessionCache#doUpdate()} instead of reloading them one by one.
+     */
+    public interface BulkStaleCacheListener extends StaleCacheListener {
+
+        /**
+         * Method called with the sessions to reload. The returned map gives
+         * the {@link SessionContext} replacing the current one of each
+         * session, keyed by session uuid. A session which is missing from the
+         * map or mapped to null is removed.
+         *
+         * Any runtime exception can be thrown to show that an update of the
+         * sessions is not possible.
+         */
+        Map<String, SessionContext> reload(Collection<SessionContext> contexts);
+    }
+
     /**
      * Container which can be put in a single {@link AtomicReference} instance.
-     * Contains all the data for a single session immutably. Therefore any
-     * thread that manages to get access to this instance can work with this
-     * data even if another thread is currently in the process of removing this
-     * from the map.
+     * Contains all the data for a single session. The {@link SessionContext}
+     * is immutable, therefore any thread that manages to get access to this
+     * instance can work with this data even if another thread is currently in
+     * the process of removing this from the map. Only the access information
+     * is updated in place, so that accessing a session does not write to the
+     * map.
      */
     private static class Data {
 
@@ -93,48 +122,37 @@ public class SessionCache implements ApplicationContextAware {
         final AtomicInteger error = new AtomicInteger(0);
 
         final SessionContext sessionContext;
-        final long lastAccessTime;
-        final long hitCount;
 
         /**
-         * Initial creation of a Data instance when a new session is
-         * added to the cache.
-         */
-        Data(SessionContext sc) {
-            this(sc, System.currentTimeMillis(), 1);
-        }
-
-        /**
-         * Copy constructor which uses the current time for {@link #lastAccessTime} and
-         * increments {@link #hitCount} by one. Used when updating the access
-         * time for a session.
+         * The access information, shared with the instance replacing this one
+         * on reload so that no concurrent access is lost.
          */
-        Data(Data old) {
-            this(old, true);
-        }
+        final AtomicLong lastAccessTime;
+        final AtomicLong hitCount;
 
         /**
-         * Copy constructor which uses either the current time for {@link #lastAccessTime}
-         * (if reset is true) or the previous lastAccessTime (if reset is false); and
-         * increments {@link #hitCount} by one. Used when reloading the session.
+         * Initial creation of a Data instance when a new session is
+         * added to the cache.
          */
-        Data(Data old, boolean reset) {
-            this(old, old.sessionContext, reset);
+        Data(SessionContext sc) {
+            this(sc, new AtomicLong(System.currentTimeMillis()),
+                    new AtomicLong(1));
         }
 
         /**
-         * Like {@link Data#Data(Data, boolean)} but allows setting the
-         * {@link SessionContext} which should be stored in the new instance.
-         * This is used on reload. See {@link SessionCache#doUpdate()}.
+         * Creates the instance replacing another one with the given
+         * {@link SessionContext}, keeping its access information and
+         * incrementing {@link #hitCount} by one. This is used on reload.
+         * See {@link SessionCache#doUpdate()}.
          * @param old
          * @param ctx
-         * @param reset
          */
-        Data(Data old, SessionContext ctx, boolean reset) {
-            this(ctx, reset ? System.currentTimeMillis() : old.lastAccessTime, old.hitCount+1);
+        Data(Data old, SessionContext ctx) {
+            this(ctx, old.lastAccessTime, old.hitCount);
+            hitCount.incrementAndGet();
         }
 
-        Data(SessionContext sc, long last, long count) {
+        private Data(SessionContext sc, AtomicLong last, AtomicLong count) {
             this.sessionContext = sc;
             this.lastAccessTime = last;
             this.hitCount = count;
@@ -142,6 +160,21 @@ public class SessionCache implements ApplicationContextAware {
             sc.getSession().getDetails().setContexts(null);
         }
 
+        /**
+         * Uses the current time for {@link #lastAccessTime} and increments
+         * {@link #hitCount} by one. Used when updating the access time for a
+         * session. The access time is only written if it moves forward so
+         * that the calls within the same millisecond only count the hit.
+         */
+        void touch() {
+            hitCount.incrementAndGet();
+            final long now = System.currentTimeMillis();
+            long last = lastAccessTime.get();
+            while (last < now && !lastAccessTime.compareAndSet(last, now)) {
+                last = lastAccessTime.get();
+            }
+        }
+
     }
 
     /**
@@ -155,7 +188,8 @@ public class SessionCache implements ApplicationContextAware {
     private static class State {
 
         /**
-         * Time of the last update. This will be updated by a background thread.
+         * Time of the last reload of all the sessions. This will be updated by
+         * a background thread.
          */
         final long lastUpdateRun;
 
@@ -166,12 +200,33 @@ public class SessionCache implements ApplicationContextAware {
          */
         final long lastUpdateRequest;
 
+        /**
+         * The ids of the users and groups modified by the update requests
+         * received since the last run, or <code>null</code> if unknown in
+         * which case all the sessions need to be reloaded.
+         */
+        final Set<Long> userIds, groupIds;
+
         /**
          * Initial creation of State, used on cache creation.
          */
         State() {
-            this.lastUpdateRun = System.currentTimeMillis();
-            this.lastUpdateRequest = this.lastUpdateRun - 1;
+            this(System.currentTimeMillis());
+        }
+
+        private State(long now) {
+            this(now, now - 1);
+        }
+
+        /**
+         * Creation of State without any pending update request, used when a
+         * run starts.
+         */
+        State(long run, long request) {
+            this.lastUpdateRun = run;
+            this.lastUpdateRequest = request;
+            this.userIds = Collections.emptySet();
+            this.groupIds = Collections.emptySet();
         }
 
         /**
@@ -181,25 +236,36 @@ public class SessionCache implements ApplicationContextAware {
          * Specifies that a new request has occurred, but the old run
          * is kept.
          */
-        State(State old, long request) {
+        State(State old, long request, Set<Long> userIds, Set<Long> groupIds) {
             this.lastUpdateRun = old.lastUpdateRun;
             this.lastUpdateRequest = request;
+            if (old.userIds == null || userIds == null || groupIds == null) {
+                this.userIds = null;
+                this.groupIds = null;
+            } else {
+                this.userIds = union(old.userIds, userIds);
+                this.groupIds = union(old.groupIds, groupIds);
+            }
         }
 
+        private static Set<Long> union(Set<Long> a, Set<Long> b) {
+            if (b.isEmpty()) {
+                return a;
+            }
+            final Set<Long> union = new HashSet<Long>(a);
+            union.addAll(b);
+            return Collections.unmodifiableSet(union);
+        }
 
         /**
-         * Whether or not {@link #doUpdate()} should run. Returns immediately
-         * if {@link #active} contains true.
+         * Whether or not {@link #doUpdate()} should reload all the sessions,
+         * either because the modifications requested are unknown or because
+         * the last reload of all the sessions is older than the given
+         * interval.
          */
         boolean checkNeedsUpdate(long forceUpdateInterval) {
 
-            // Check whether entry is required.
-            if (lastUpdateRun < 0) {
-                // Then we are currently running
-                return false;
-            }
-
-            if (lastUpdateRun <= lastUpdateRequest) {
+            if (userIds == null) {
                 return true;
             }
 
@@ -211,6 +277,27 @@ public class SessionCache implements ApplicationContextAware {
             return false;
         }
 
+        /**
+         * Whether or not the session needs to be reloaded because its user,
+         * its sudoer or one of its groups is modified by the update requests.
+         */
+        boolean isModified(SessionContext ctx) {
+            if (userIds == null) {
+                return true;
+            }
+            if (userIds.contains(ctx.getCurrentUserId())
+                    || userIds.contains(ctx.getCurrentSudoerId())
+                    || groupIds.contains(ctx.getCurrentGroupId())) {
+                return true;
+            }
+            for (Long groupId : ctx.getMemberOfGroupsList()) {
+                if (groupIds.contains(groupId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
     }
 
     /**
@@ -247,6 +334,12 @@ public class SessionCache implements ApplicationContextAware {
      */
     private final AtomicBoolean active = new AtomicBoolean();
 
+    /**
+     * Times the reloads of {@link #doUpdate()}. Can be set via
+     * {@link #setMetrics(Metrics)}.
+     */
+    private Timer updateTimer = new NullMetrics().timer(this, "update");
+
     /**
      * {@link OmeroContext} instance used to publish
      * {@link DestroySessionMessage} on {@link #removeSession(String)}
@@ -281,6 +374,13 @@ public class SessionCache implements ApplicationContextAware {
         this.forceUpdateInterval = milliseconds;
     }
 
+    /**
+     * Inject the metrics timing the reloads of the sessions.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.updateTimer = metrics.timer(this, "update");
+    }
+
     // Accessors
     // ========================================================================
 
@@ -342,7 +442,7 @@ public class SessionCache implements ApplicationContextAware {
      */
     private void refresh(String uuid, Data data, SessionContext replacement) {
         // Adding and upping hit information.
-        Data fresh = new Data(data, replacement, false);
+        Data fresh = new Data(data, replacement);
         this.sessions.put(uuid, fresh);
     }
 
@@ -370,7 +470,7 @@ public class SessionCache implements ApplicationContextAware {
 
         if (!quietly) {
             // Up'ing access time
-            this.sessions.put(uuid, new Data(data));
+            data.touch();
         }
         return data.sessionContext;
     }
@@ -389,17 +489,19 @@ public class SessionCache implements ApplicationContextAware {
         }
 
         Data data = getDataNullOrThrowOnTimeout(uuid, true);
+        long hitCount = data.hitCount.get();
+        long lastAccessTime = data.lastAccessTime.get();
 
         if (!quietly) {
             // Up'ing access time
-            this.sessions.put(uuid, new Data(data));
+            data.touch();
         }
 
         return new ImmutableMap.Builder<String, Object>()
             .put("class", getClass().getName())
             .put("sessionContext", data.sessionContext)
-            .put("hitCount", data.hitCount)
-            .put("lastAccessTime", data.lastAccessTime)
+            .put("hitCount", hitCount)
+            .put("lastAccessTime", lastAccessTime)
             // .put("error", data.error.get())
             .build();
     }
@@ -436,8 +538,8 @@ public class SessionCache implements ApplicationContextAware {
             }
         }
 
-        long lastAccess = data.lastAccessTime;
-        long hits = data.hitCount;
+        long lastAccess = data.lastAccessTime.get();
+        long hits = data.hitCount.get();
 
         // Get session info
         SessionContext ctx = data.sessionContext;
@@ -583,8 +685,8 @@ public class SessionCache implements ApplicationContextAware {
     }
 
     /**
-     * Adds a new entry to {@link #state}. If the
-     * timestamp on the event is invalid, then
+     * Adds a new entry to {@link #state}, recording the users and groups
+     * modified if known. If the timestamp on the event is invalid, then
      * {@link System#currentTimeMillis()} will be used.
      */
     public void updateEvent(UserGroupUpdateEvent ugue) {
@@ -595,23 +697,27 @@ public class SessionCache implements ApplicationContextAware {
             time = ugue.getTimestamp();
         }
 
-        State old = state.get();
-        state.set(new State(old, time));
+        final Set<Long> userIds = ugue == null ? null : ugue.getUserIds();
+        final Set<Long> groupIds = ugue == null ? null : ugue.getGroupIds();
+        State old, updated;
+        do {
+            old = state.get();
+            updated = new State(old, time, userIds, groupIds);
+        } while (!state.compareAndSet(old, updated));
     }
 
     /**
-     * Will only ever be accessed by a single thread. Rechecks the target update
-     * time again in case a second write thread was blocking the current one.
+     * Will only ever be accessed by a single thread. Removes the sessions
+     * which have timed out and reloads the sessions concerned by the update
+     * requests received since the last run, or all of them if the requests
+     * are unknown or the last reload of all the sessions is older than the
+     * update interval. The sessions are reloaded together if the
+     * {@link StaleCacheListener} is a {@link BulkStaleCacheListener}.
      * {@link #active} gets set to <code>true</code> value to specify that this
      * method is currently running.
      */
     public void doUpdate() {
 
-        // Check whether entry is required.
-        if (!state.get().checkNeedsUpdate(forceUpdateInterval)) {
-            return;
-        }
-
         // Prevent recursion!
         // ------------------
         // To prevent another call from entering this block it's
@@ -621,13 +727,44 @@ public class SessionCache implements ApplicationContextAware {
         }
 
         try {
+            // Take the pending requests, leaving the requests which arrive
+            // from now on to the next run.
+            final long now = System.currentTimeMillis();
+            State requests, fresh;
+            boolean all;
+            do {
+                requests = state.get();
+                all = requests.checkNeedsUpdate(forceUpdateInterval);
+                fresh = new State(all ? now : requests.lastUpdateRun,
+                        requests.lastUpdateRequest);
+            } while (!state.compareAndSet(requests, fresh));
+
             final Set<String> ids = sessions.keySet();
-            log.info("Synchronizing session cache. Count = " + ids.size());
-            final StopWatch sw = new Slf4JStopWatch();
+            final Map<String, Data> modified = new LinkedHashMap<String, Data>();
             for (String id : ids) {
-                reload(id);
+                final Data data = getDataOrRemove(id);
+                if (data != null && (all
+                        || requests.isModified(data.sessionContext))) {
+                    modified.put(id, data);
+                }
+            }
+            if (modified.isEmpty()) {
+                return;
             }
 
+            log.info(String.format("Synchronizing session cache. Count = %s "
+                    + "of %s", modified.size(), ids.size()));
+            final StopWatch sw = new Slf4JStopWatch();
+            final Timer.Context timer = updateTimer.time();
+            final StaleCacheListener listener = staleCacheListener.get();
+            if (listener instanceof BulkStaleCacheListener) {
+                reload(modified, (BulkStaleCacheListener) listener);
+            } else {
+                for (String id : modified.keySet()) {
+                    reload(id);
+                }
+            }
+            timer.stop();
             sw.stop("omero.sessions.synchronization");
             log.info(String.format("Synchronization took %s ms.",
                     sw.getElapsedTime()));
@@ -640,6 +777,80 @@ public class SessionCache implements ApplicationContextAware {
 
     }
 
+    /**
+     * Returns the data of the session, removing it and returning null if it
+     * has timed out.
+     */
+    private Data getDataOrRemove(String id) {
+        try {
+            final Data data = getDataNullOrThrowOnTimeout(id, false);
+            if (data == null) {
+                internalRemove(id, "Timeout");
+            }
+            return data;
+        } catch (Exception e) {
+            // If an exception occurs here, then something is wrong
+            // with the Data instance itself since no DB calls are
+            // made. Therefore the instance will be removed.
+            log.warn("Removing session on get error of " + id, e);
+            internalRemove(id, "Get error");
+            return null;
+        }
+    }
+
+    /**
+     * Reloads sessions together.
+     *
+     * @param datas the data of the sessions keyed by uuid
+     * @param listener the listener reloading the sessions
+     */
+    private void reload(Map<String, Data> datas,
+            BulkStaleCacheListener listener) {
+
+        final List<SessionContext> contexts =
+                new ArrayList<SessionContext>(datas.size());
+        for (Data data : datas.values()) {
+            contexts.add(data.sessionContext);
+        }
+
+        final Map<String, SessionContext> replacements;
+        try {
+            // May throw an exception
+            replacements = listener.reload(contexts);
+        } catch (Exception e) {
+            for (Map.Entry<String, Data> entry : datas.entrySet()) {
+                reloadFailed(entry.getKey(), entry.getValue(), e);
+            }
+            return;
+        }
+
+        for (Map.Entry<String, Data> entry : datas.entrySet()) {
+            final String id = entry.getKey();
+            final SessionContext replacement = replacements.get(id);
+            if (replacement == null) {
+                internalRemove(id, "Replacement null");
+            } else {
+                refresh(id, entry.getValue(), replacement);
+            }
+        }
+    }
+
+    /**
+     * If an exception occurs on reload it MAY be transient, therefore
+     * we count the number of errors that have happened for
+     * this specific instance as described under Data#errors
+     * just to be safe.
+     */
+    private void reloadFailed(String id, Data data, Exception e) {
+        int count = data.error.incrementAndGet();
+        if (count > Data.MAX_ERROR) {
+            log.warn("Removing session on reload error of " + id, e);
+            internalRemove(id, "Reload error");
+        } else {
+            log.warn(count + "error(s) on reload of " + id, e);
+        }
+    }
+
     /**
      * Provides the reloading logic of the {@link SessionCache} for the
      * {@link SessionManagerImpl} to use.
@@ -655,19 +866,9 @@ public class SessionCache implements ApplicationContextAware {
             return;
         }
 
-        Data data = null;
-        try {
-            data = getDataNullOrThrowOnTimeout(id, false);
-            if (data == null) {
-                internalRemove(id, "Timeout");
-                return;
-            }
-        } catch (Exception e) {
-            // If an exception occurs here, then something is wrong
-            // with the Data instance itself since no DB calls are
-            // made. Therefore the instance will be removed.
-            log.warn("Removing session on get error of " + id, e);
-            internalRemove(id, "Get error");
+        final Data data = getDataOrRemove(id);
+        if (data == null) {
+            return;
         }
 
         try {
@@ -680,17 +881,7 @@ public class SessionCache implements ApplicationContextAware {
                 refresh(id, data, replacement);
             }
         } catch (Exception e) {
-            // If an exception occurs it MAY be transient, therefore
-            // we count the number of errors that have happened for
-            // this specific instance as described under Data#errors
-            // just to be safe.
-            int count = data.error.incrementAndGet();
-            if (count > Data.MAX_ERROR) {
-                log.warn("Removing session on reload error of " + id, e);
-                internalRemove(id, "Reload error");
-            } else {
-                log.warn(count + "error(s) on reload of " + id, e);
-            }
+            reloadFailed(id, data, e);
         }
     }
 
@@ -5,9 +5,11 @@
 package ome.tools.hibernate;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -138,14 +140,31 @@ public interface ExtendedMetadata {
      * <pre>
      * select count(x) from Linker x, Linked y where x.$FIELD.id = y.id $CLAUSE;
      * </pre>
-     * otherwise
+     * otherwise the checks are those of
+     * {@link #countLocks(Session, Collection, String[][], String)} for the
+     * single id.
+     *
+     * If the clause argument is null or empty it will be omitted.
+     */
+    Map<String, Long> countLocks(Session session, Long id, String[][] lockChecks, String clause);
+
+    /**
+     * Like {@link #countLocks(Session, Long, String[][], String)} for many
+     * objects at once: the checks against the same class are combined into a
+     * single query, run for batches of ids, e.g.
      * <pre>
-     * select count(x) from Linker x where x.$FIELD.id = :id $CLAUSE'
+     * select x.$FIELD1.id, x.$FIELD2.id, count(x.id) from Linker x
+     * where (x.$FIELD1.id in (:ids) or x.$FIELD2.id in (:ids)) $CLAUSE
+     * group by x.$FIELD1.id, x.$FIELD2.id
      * </pre>
      *
      * If the clause argument is null or empty it will be omitted.
+     *
+     * @return the map from class to number of locks of each of the objects,
+     *         keyed by object id
      */
-    Map<String, Long> countLocks(Session session, Long id, String[][] lockChecks, String clause);
+    Map<Long, Map<String, Long>> countLocks(Session session,
+            Collection<Long> ids, String[][] lockChecks, String clause);
 
     /**
      * Walks the data on what locks what
@@ -190,6 +209,9 @@ public interface ExtendedMetadata {
  */
 public static class Impl extends OnContextRefreshedEventListener implements ExtendedMetadata {
 
+    /** The maximum number of ids of a query of {@link #countLocks(Session, Collection, String[][], String)}. */
+    private static final int LOCK_BATCH_SIZE = 1000;
+
     private final static Logger log = LoggerFactory.getLogger(ExtendedMetadata.class);
 
     private final Map<String, Locks> locksHolder = new HashMap<String, Locks>();
@@ -473,21 +495,15 @@ public static class Impl extends OnContextRefreshedEventListener implements Exte
     public Map<String, Long> countLocks(final Session session, final Long id,
             String[][] checks, String clause) {
 
+        if (id != null) {
+            return countLocks(session, Collections.singleton(id), checks,
+                    clause).get(id);
+        }
+
         final QueryBuilder qb = new QueryBuilder();
         qb.select("count(x.id)");
         qb.from("%s", "x");
-
-        // Only one of the these two will happen, so the second replacement
-        // argument to String.format will have to be check[1].
-        if (id == null) {
-            qb.join("x.%s", "y", false, false);
-        }
-
-
-        if (id != null) {
-            qb.where();
-            qb.and("%s.id = :id");
-        }
+        qb.join("x.%s", "y", false, false);
 
         if (clause != null && clause.length() > 0) {
             qb.where();
@@ -506,10 +522,6 @@ public static class Impl extends OnContextRefreshedEventListener implements Exte
             final String hql = String.format(queryString, check[0], check[1]);
 
             org.hibernate.Query q = session.createQuery(hql);
-            if (id != null) {
-                q.setLong("id", id);
-            }
-
             Long count = (Long) q.uniqueResult();
 
             if (count != null && count.longValue() > 0) {
@@ -522,6 +534,87 @@ public static class Impl extends OnContextRefreshedEventListener implements Exte
 
     }
 
+    public Map<Long, Map<String, Long>> countLocks(final Session session,
+            final Collection<Long> ids, String[][] checks, String clause) {
+
+        // Fields of each class which may link to the objects.
+        final Map<String, List<String>> fieldsByClass =
+                new LinkedHashMap<String, List<String>>();
+        for (final String[] check : checks) {
+            List<String> fields = fieldsByClass.get(check[0]);
+            if (fields == null) {
+                fields = new ArrayList<String>();
+                fieldsByClass.put(check[0], fields);
+            }
+            fields.add(check[1]);
+        }
+
+        final Map<Long, Map<String, Long>> counts =
+                new HashMap<Long, Map<String, Long>>();
+        for (final Long id : ids) {
+            final Map<String, Long> idCounts = new HashMap<String, Long>();
+            idCounts.put("*", 0L);
+            counts.put(id, idCounts);
+        }
+        final List<Long> distinct = new ArrayList<Long>(counts.keySet());
+
+        // run one query per class for each batch of ids
+        for (final Map.Entry<String, List<String>> entry : fieldsByClass.entrySet()) {
+            final List<String> fields = entry.getValue();
+            final String[] selects = new String[fields.size() + 1];
+            final StringBuilder linked = new StringBuilder("(");
+            final StringBuilder group = new StringBuilder("group by ");
+            for (int i = 0; i < fields.size(); i++) {
+                selects[i] = "x." + fields.get(i) + ".id";
+                if (i > 0) {
+                    linked.append(" or ");
+                    group.append(", ");
+                }
+                linked.append(selects[i]);
+                linked.append(" in (:ids)");
+                group.append(selects[i]);
+            }
+            linked.append(")");
+            selects[fields.size()] = "count(x.id)";
+
+            final QueryBuilder qb = new QueryBuilder();
+            qb.select(selects);
+            qb.from(entry.getKey(), "x");
+            qb.where();
+            qb.and(linked.toString());
+            if (clause != null && clause.length() > 0) {
+                qb.and(clause);
+                qb.appendSpace();
+            }
+            final String hql = qb.queryString() + group;
+
+            for (int b = 0; b < distinct.size(); b += LOCK_BATCH_SIZE) {
+                final List<Long> batch = distinct.subList(b,
+                        Math.min(distinct.size(), b + LOCK_BATCH_SIZE));
+                final Set<Long> batchIds = new HashSet<Long>(batch);
+                final org.hibernate.Query q = session.createQuery(hql);
+                q.setParameterList("ids", batch);
+                for (final Object o : q.list()) {
+                    final Object[] row = (Object[]) o;
+                    final Long count = (Long) row[fields.size()];
+                    // A link counts once per field linking to one of the ids.
+                    // Those of other batches are counted with their batch.
+                    for (int i = 0; i < fields.size(); i++) {
+                        if (batchIds.contains(row[i])) {
+                            final Map<String, Long> idCounts = counts.get(row[i]);
+                            final Long previous = idCounts.get(entry.getKey());
+                            idCounts.put(entry.getKey(), previous == null
+                                    ? count : previous + count);
+                            idCounts.put("*", idCounts.get("*") + count);
+                        }
+                    }
+                }
+            }
+        }
+        return counts;
+
+    }
+
     public String[] getImmutableFields(Class<? extends IObject> klass) {
         if (klass == null) {
             throw new ApiUsageException("Cannot proceed with null klass.");
@@ -6,9 +6,13 @@
 package ome.server.utests.sessions;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CyclicBarrier;
 
@@ -23,12 +27,14 @@ import ome.conditions.RemovedSessionException;
 import ome.conditions.SessionException;
 import ome.conditions.SessionTimeoutException;
 import ome.model.internal.Permissions;
+import ome.model.meta.Experimenter;
 import ome.model.meta.ExperimenterGroup;
 import ome.model.meta.Session;
 import ome.services.sessions.SessionCallback;
 import ome.services.sessions.SessionContext;
 import ome.services.sessions.SessionContextImpl;
 import ome.services.sessions.events.UserGroupUpdateEvent;
+import ome.services.sessions.state.SessionCache.BulkStaleCacheListener;
 import ome.services.sessions.state.SessionCache.StaleCacheListener;
 import ome.services.sessions.state.SessionCache;
 import ome.services.sessions.stats.NullSessionStats;
@@ -311,6 +317,64 @@ public class SessionCacheTest extends TestCase {
         }
     }
 
+    @Test
+    public void testAccessInformationIsKeptOnRefresh() throws Exception {
+        final Session s = sess();
+        cache.putSession(s.getUuid(), sc(s));
+        cache.getSessionContext(s.getUuid());
+        cache.getSessionContext(s.getUuid(), true);
+        assertEquals(2L, cache.getSessionData(s.getUuid(), true)
+                .get("hitCount"));
+        cache.refresh(s.getUuid(), sc(s));
+        cache.getSessionData(s.getUuid(), false);
+        assertEquals(4L, cache.getSessionData(s.getUuid(), true)
+                .get("hitCount"));
+    }
+
+    @Test
+    public void testOnlyModifiedSessionsAreReloadedTogether() throws Exception {
+        final Session s1 = sess();
+        final Session s2 = sess();
+        s1.getDetails().setOwner(new Experimenter(1L, false));
+        s2.getDetails().setOwner(new Experimenter(2L, false));
+        cache.putSession(s1.getUuid(), sc(s1));
+        cache.putSession(s2.getUuid(), sc(s2));
+        final List<String> reloaded = new ArrayList<String>();
+        cache.setStaleCacheListener(new BulkStaleCacheListener() {
+            public SessionContext reload(SessionContext context) {
+                fail("Should reload together");
+                return null;
+            }
+
+            public Map<String, SessionContext> reload(
+                    Collection<SessionContext> contexts) {
+                Map<String, SessionContext> replacements =
+                        new HashMap<String, SessionContext>();
+                for (SessionContext context : contexts) {
+                    reloaded.add(context.getCurrentSessionUuid());
+                    replacements.put(context.getCurrentSessionUuid(),
+                            context);
+                }
+                return replacements;
+            }
+        });
+        cache.updateEvent(new UserGroupUpdateEvent(this,
+                Collections.singleton(1L), Collections.<Long>emptySet()));
+        cache.doUpdate();
+        assertEquals(Collections.singletonList(s1.getUuid()), reloaded);
+
+        // Nothing pending any more
+        reloaded.clear();
+        cache.doUpdate();
+        assertTrue(reloaded.isEmpty());
+
+        // Unknown modifications reload all the sessions
+        cache.updateEvent(new UserGroupUpdateEvent(this));
+        cache.doUpdate();
+        assertEquals(2, reloaded.size());
+        assertNotNull(cache.getSessionContext(s2.getUuid()));
+    }
+
     /**
      * For {@link #testGetSessionDoesUpdateTheTimestamp()} we changed from
      * cache.putQuiet(new Element) to cache.put(new Element) but we want to make
@@ -0,0 +1,191 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.pixeldata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.model.core.Channel;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.model.stats.StatsInfo;
+import ome.system.metrics.NullMetrics;
+import omeis.providers.re.RenderingExecutor;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the statistics computed by the {@link StatsInfoCalculator} with
+ * the minimum and maximum of the pixels written.
+ */
+public class StatsInfoCalculatorTest
+{
+    private static final int SIZE_X = 70;
+
+    private static final int SIZE_Y = 50;
+
+    private static final int SIZE_Z = 3;
+
+    private static final int SIZE_C = 2;
+
+    private static final int SIZE_T = 2;
+
+    private File root;
+
+    private Pixels pixels;
+
+    private double[][] expected = new double[SIZE_C][];
+
+    private RenderingExecutor executor;
+
+    private PixelsService service;
+
+    private StatsInfoCalculator calculator;
+
+    @BeforeClass
+    public void setUp() throws IOException
+    {
+        root = File.createTempFile("statsinfo", "");
+        root.delete();
+        root.mkdirs();
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(SIZE_Z);
+        pixels.setSizeC(SIZE_C);
+        pixels.setSizeT(SIZE_T);
+        PixelsType type = new PixelsType();
+        type.setValue("int16");
+        pixels.setPixelsType(type);
+        for (int c = 0; c < SIZE_C; c++)
+        {
+            pixels.addChannel(new Channel());
+            expected[c] = new double[] {
+                    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        }
+        service = new PixelsService(root.getPath() + "/")
+        {
+            public boolean requiresPixelsPyramid(Pixels pixels)
+            {
+                return false;
+            }
+        };
+        PixelBuffer buffer = service.createPixelBuffer(pixels);
+        Random random = new Random(11L);
+        for (int t = 0; t < SIZE_T; t++)
+        {
+            for (int c = 0; c < SIZE_C; c++)
+            {
+                for (int z = 0; z < SIZE_Z; z++)
+                {
+                    ByteBuffer plane = ByteBuffer.allocate(SIZE_X * SIZE_Y * 2);
+                    for (int i = 0; i < SIZE_X * SIZE_Y; i++)
+                    {
+                        short value = (short) (random.nextInt(2000 * (c + 1))
+                                - 500);
+                        plane.putShort(value);
+                        expected[c][0] = Math.min(expected[c][0], value);
+                        expected[c][1] = Math.max(expected[c][1], value);
+                    }
+                    buffer.setPlane(plane.array(), z, c, t);
+                }
+            }
+        }
+        buffer.close();
+        executor = new RenderingExecutor(3, 0, new NullMetrics());
+        calculator = new StatsInfoCalculator(service, executor);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException
+    {
+        executor.shutdown();
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testCreateStatsInfo() throws IOException
+    {
+        StatsInfo[] statsInfo = calculator.createStatsInfo(pixels);
+        Assert.assertEquals(statsInfo.length, SIZE_C);
+        for (int c = 0; c < SIZE_C; c++)
+        {
+            Assert.assertEquals(statsInfo[c].getGlobalMin(),
+                    (Double) expected[c][0]);
+            Assert.assertEquals(statsInfo[c].getGlobalMax(),
+                    (Double) expected[c][1]);
+        }
+    }
+
+    @Test
+    public void testStatsInfoWithoutPyramid() throws IOException
+    {
+        PixelDataHandler handler = new PixelDataHandler(null, service);
+        handler.setStatsInfoCalculator(calculator);
+        StatsInfo[] statsInfo = handler.makePyramid(pixels);
+        Assert.assertEquals(statsInfo.length, SIZE_C);
+        for (int c = 0; c < SIZE_C; c++)
+        {
+            Assert.assertEquals(statsInfo[c].getGlobalMin(),
+                    (Double) expected[c][0]);
+            Assert.assertEquals(statsInfo[c].getGlobalMax(),
+                    (Double) expected[c][1]);
+        }
+    }
+
+    @Test
+    public void testNoStatsInfoForExistingPyramid() throws IOException
+    {
+        PixelDataHandler handler = new PixelDataHandler(null, service);
+        handler.setStatsInfoCalculator(calculator);
+        File pyramid = new File(service.getPixelsPath(pixels.getId())
+                + PixelsService.PYRAMID_SUFFIX);
+        FileUtils.touch(pyramid);
+        try
+        {
+            Assert.assertNull(handler.makePyramid(pixels));
+        }
+        finally
+        {
+            pyramid.delete();
+        }
+    }
+
+    @Test
+    public void testOnlyMissingStatsInfo()
+    {
+        PixelDataHandler handler = new PixelDataHandler(null, null);
+        Assert.assertNull(handler.calculateMissingStatsInfo(pixels));
+        handler.setStatsInfoCalculator(calculator);
+        Assert.assertEquals(
+                handler.calculateMissingStatsInfo(pixels).length, SIZE_C);
+        for (int c = 0; c < SIZE_C; c++)
+        {
+            pixels.getChannel(c).setStatsInfo(new StatsInfo(0.0, 1.0));
+        }
+        try
+        {
+            Assert.assertNull(handler.calculateMissingStatsInfo(pixels));
+        }
+        finally
+        {
+            for (int c = 0; c < SIZE_C; c++)
+            {
+                pixels.getChannel(c).setStatsInfo(null);
+            }
+        }
+    }
+}
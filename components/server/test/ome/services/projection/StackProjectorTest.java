@@ -0,0 +1,212 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.projection;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import ome.api.IProjection;
+import ome.io.nio.RomioPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.RenderingExecutor;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the planes projected by {@link StackProjector} with the ones
+ * projected pixel by pixel from whole stacks, as {@link ProjectionBean} used
+ * to do.
+ */
+public class StackProjectorTest
+{
+    private static final int SIZE_X = 23;
+
+    private static final int SIZE_Y = 17;
+
+    private static final int SIZE_Z = 6;
+
+    private static final int SIZE_C = 2;
+
+    private static final int SIZE_T = 2;
+
+    private File root;
+
+    private RomioPixelBuffer buffer;
+
+    private RenderingExecutor executor;
+
+    @BeforeClass
+    public void setUp() throws IOException
+    {
+        root = File.createTempFile("projection", "");
+        root.delete();
+        root.mkdirs();
+        Pixels pixels = new Pixels();
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(SIZE_Z);
+        pixels.setSizeC(SIZE_C);
+        pixels.setSizeT(SIZE_T);
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels.setPixelsType(type);
+        // Small tiles which do not divide the plane.
+        buffer = new RomioPixelBuffer(
+                new File(root, "pixels").getPath(), pixels, true) {
+            @Override
+            public Dimension getTileSize()
+            {
+                return new Dimension(8, 5);
+            }
+        };
+        Random random = new Random(7L);
+        byte[] plane = new byte[SIZE_X * SIZE_Y * 2];
+        for (int t = 0; t < SIZE_T; t++)
+        {
+            for (int c = 0; c < SIZE_C; c++)
+            {
+                for (int z = 0; z < SIZE_Z; z++)
+                {
+                    random.nextBytes(plane);
+                    buffer.setPlane(plane, z, c, t);
+                }
+            }
+        }
+        executor = new RenderingExecutor(3, 0, null);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException
+    {
+        executor.shutdown();
+        buffer.close();
+        FileUtils.deleteDirectory(root);
+    }
+
+    /**
+     * Projects a stack pixel by pixel as {@link ProjectionBean} used to.
+     */
+    private double[] legacyProject(int algorithm, int c, int t, int stepping,
+                                   int start, int end, PixelData to)
+        throws IOException
+    {
+        int planeSize = SIZE_X * SIZE_Y;
+        PixelData from = buffer.getStack(c, t);
+        double minimum = Double.MAX_VALUE;
+        double maximum = Double.MIN_VALUE;
+        for (int i = 0; i < planeSize; i++)
+        {
+            double projectedValue = 0;
+            if (algorithm == IProjection.MAXIMUM_INTENSITY)
+            {
+                for (int z = start; z <= end; z += stepping)
+                {
+                    double stackValue = from.getPixelValue(planeSize * z + i);
+                    if (stackValue > projectedValue)
+                    {
+                        projectedValue = stackValue;
+                    }
+                }
+            }
+            else
+            {
+                int count = 0;
+                for (int z = start; z < end; z += stepping)
+                {
+                    projectedValue += from.getPixelValue(planeSize * z + i);
+                    count++;
+                }
+                if (algorithm == IProjection.MEAN_INTENSITY)
+                {
+                    projectedValue = projectedValue / count;
+                }
+                if (projectedValue > to.getMaximum())
+                {
+                    projectedValue = to.getMaximum();
+                }
+            }
+            to.setPixelValue(i, projectedValue);
+            minimum = projectedValue < minimum? projectedValue : minimum;
+            maximum = projectedValue > maximum? projectedValue : maximum;
+        }
+        from.dispose();
+        return new double[] { minimum, maximum };
+    }
+
+    private void assertProjection(int algorithm, String type, int stepping,
+                                  int start, int end)
+        throws IOException
+    {
+        int size = SIZE_X * SIZE_Y * new PixelData(type, null).bytesPerPixel();
+        List<Integer> channels = Arrays.asList(1, 0);
+        PixelData[] to = new PixelData[channels.size()];
+        double[][] minMax = new double[channels.size()][];
+        for (int k = 0; k < to.length; k++)
+        {
+            to[k] = new PixelData(type, ByteBuffer.wrap(new byte[size]));
+            minMax[k] = new double[] { Double.MAX_VALUE, Double.MIN_VALUE };
+        }
+        StackProjector projector = new StackProjector(buffer, algorithm,
+                stepping, start, end, executor);
+        for (int t = 0; t < SIZE_T; t++)
+        {
+            projector.project(channels, t, to, minMax);
+            for (int k = 0; k < to.length; k++)
+            {
+                PixelData expected =
+                    new PixelData(type, ByteBuffer.wrap(new byte[size]));
+                double[] expectedMinMax = legacyProject(algorithm,
+                        channels.get(k), t, stepping, start, end, expected);
+                Assert.assertEquals(to[k].getData().array(),
+                        expected.getData().array());
+                if (t == 0)
+                {
+                    Assert.assertEquals(minMax[k][0], expectedMinMax[0], 0.0);
+                    Assert.assertEquals(minMax[k][1], expectedMinMax[1], 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMaximum() throws IOException
+    {
+        assertProjection(IProjection.MAXIMUM_INTENSITY, "uint16", 1, 0, 5);
+        assertProjection(IProjection.MAXIMUM_INTENSITY, "uint8", 2, 1, 4);
+    }
+
+    @Test
+    public void testMean() throws IOException
+    {
+        assertProjection(IProjection.MEAN_INTENSITY, "uint16", 1, 0, 5);
+        assertProjection(IProjection.MEAN_INTENSITY, "float", 2, 0, 5);
+    }
+
+    @Test
+    public void testSum() throws IOException
+    {
+        assertProjection(IProjection.SUM_INTENSITY, "uint16", 1, 0, 5);
+        assertProjection(IProjection.SUM_INTENSITY, "uint32", 3, 1, 5);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownAlgorithm()
+    {
+        new StackProjector(buffer, -1, 1, 0, 5, executor);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.utests;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import ome.logic.CompressImpl;
+import ome.util.ImageUtil;
+
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Benchmarks the encoding of rendered tiles by {@link CompressImpl} against
+ * the previous implementation, which looked up a writer and went through an
+ * extra stream for every tile.
+ */
+public class CompressImplTest {
+
+    private static final int TILE_SIZE = 256;
+
+    private static final int RUN_COUNT = 50;
+
+    private CompressImpl compress;
+
+    private int[] tile;
+
+    @BeforeClass
+    public void setUp() {
+        compress = new CompressImpl();
+        tile = new int[TILE_SIZE * TILE_SIZE];
+        Random random = new Random(1L);
+        // Smooth gradient plus noise, closer to a rendered plane than noise.
+        for (int y = 0; y < TILE_SIZE; y++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                int v = (x + y) / 2 + random.nextInt(16);
+                v = Math.min(v, 255);
+                tile[y * TILE_SIZE + x] = 0xFF000000 | v << 16 | v << 8 | v;
+            }
+        }
+    }
+
+    private byte[] legacyCompress(int[] buf) throws Exception {
+        BufferedImage image =
+            ImageUtil.createBufferedImage(buf, TILE_SIZE, TILE_SIZE);
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        ImageWriter jpegWriter =
+            ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam iwp = jpegWriter.getDefaultWriteParam();
+        iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        iwp.setCompressionQuality(compress.getCompressionLevel());
+        ImageOutputStream imageOutputStream =
+            ImageIO.createImageOutputStream(byteStream);
+        try {
+            jpegWriter.setOutput(imageOutputStream);
+            jpegWriter.write(null, new IIOImage(image, null, null), iwp);
+        } finally {
+            imageOutputStream.close();
+        }
+        return byteStream.toByteArray();
+    }
+
+    @Test
+    public void testSameBytesAsLegacy() throws Exception {
+        byte[] expected = legacyCompress(tile);
+        Assert.assertEquals(
+                compress.compressToBytes(tile, TILE_SIZE, TILE_SIZE), expected);
+        // Second call goes through the reused writer and buffer.
+        Assert.assertEquals(
+                compress.compressToBytes(tile, TILE_SIZE, TILE_SIZE), expected);
+    }
+
+    @Test
+    public void testStreamMatchesBytes() throws Exception {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        compress.compressToStream(
+                ImageUtil.createBufferedImage(tile, TILE_SIZE, TILE_SIZE),
+                byteStream);
+        Assert.assertEquals(byteStream.toByteArray(),
+                compress.compressToBytes(tile, TILE_SIZE, TILE_SIZE));
+    }
+
+    @Test(timeOut = 60000)
+    public void testLegacyEncode() throws Exception {
+        for (int i = 0; i < RUN_COUNT; i++) {
+            StopWatch stopWatch = new LoggingStopWatch("testLegacyEncode");
+            legacyCompress(tile);
+            stopWatch.stop();
+        }
+    }
+
+    @Test(timeOut = 60000)
+    public void testPooledEncode() throws Exception {
+        for (int i = 0; i < RUN_COUNT; i++) {
+            StopWatch stopWatch = new LoggingStopWatch("testPooledEncode");
+            compress.compressToBytes(tile, TILE_SIZE, TILE_SIZE);
+            stopWatch.stop();
+        }
+    }
+}
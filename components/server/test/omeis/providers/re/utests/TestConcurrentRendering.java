@@ -0,0 +1,85 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+
+import org.testng.annotations.Test;
+
+/**
+ * Renders tiles of the same plane from several threads through a single
+ * {@link omeis.providers.re.Renderer}, as a viewer does over one rendering
+ * engine, and checks the tiles against the ones rendered serially.
+ */
+public class TestConcurrentRendering extends BaseRenderingTest
+{
+    private static final int TILE_SIZE = 256;
+
+    private static final int THREADS = 4;
+
+    private PlaneDef tile(int x, int y)
+    {
+        PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+        def.setRegion(new RegionDef(x, y, TILE_SIZE, TILE_SIZE));
+        return def;
+    }
+
+    @Test(timeOut = 60000)
+    public void testConcurrentTilesMatchSerialTiles() throws Exception
+    {
+        final List<PlaneDef> tiles = new ArrayList<PlaneDef>();
+        for (int y = 0; y < getSizeY(); y += TILE_SIZE)
+        {
+            for (int x = 0; x < getSizeX(); x += TILE_SIZE)
+            {
+                tiles.add(tile(x, y));
+            }
+        }
+        List<int[]> expected = new ArrayList<int[]>();
+        for (PlaneDef def : tiles)
+        {
+            expected.add(renderer.renderAsPackedInt(def, null));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try
+        {
+            List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+            for (final PlaneDef def : tiles)
+            {
+                futures.add(pool.submit(new Callable<int[]>() {
+                    public int[] call() throws Exception
+                    {
+                        return renderer.renderAsPackedInt(def, null);
+                    }
+                }));
+            }
+            for (int i = 0; i < tiles.size(); i++)
+            {
+                int[] actual = futures.get(i).get();
+                int[] tile = expected.get(i);
+                assertEquals(tile.length, actual.length);
+                for (int j = 0; j < tile.length; j++)
+                {
+                    assertEquals(tile[j], actual[j]);
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *   Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import ome.model.enums.PixelsType;
+import ome.model.enums.RenderingModel;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the per-pixel quantization loop, which widens every value to a
+ * <code>double</code>, with the type-specialised rendering loops across
+ * pixels types and numbers of active channels.
+ */
+public class TestRenderingLoops extends BaseRenderingTest
+{
+    private String type = "uint16";
+
+    private int bitSize = 16;
+
+    @Override
+    protected PixelsType getPixelsType()
+    {
+        PixelsType pixelsType = new PixelsType();
+        pixelsType.setValue(type);
+        pixelsType.setBitSize(bitSize);
+        return pixelsType;
+    }
+
+    @Override
+    protected int getBytesPerPixel()
+    {
+        return bitSize / 8;
+    }
+
+    @DataProvider(name = "loops")
+    public Object[][] createLoops()
+    {
+        return new Object[][] {
+                { "uint8", 8, 1 }, { "uint8", 8, 3 },
+                { "uint16", 16, 1 }, { "uint16", 16, 3 },
+                { "int16", 16, 1 }, { "int16", 16, 3 },
+        };
+    }
+
+    @DataProvider(name = "types")
+    public Object[][] createTypes()
+    {
+        return new Object[][] {
+                { "uint8", 8 }, { "uint16", 16 }, { "int16", 16 },
+        };
+    }
+
+    /**
+     * Re-creates the renderer for the given pixels type with only the first
+     * <code>activeChannels</code> channels active.
+     */
+    private void init(String type, int bitSize, int activeChannels)
+    {
+        this.type = type;
+        this.bitSize = bitSize;
+        setUp();
+        for (int c = 0; c < getSizeC(); c++)
+        {
+            renderer.setActive(c, c < activeChannels);
+        }
+    }
+
+    /**
+     * The loop used before the specialised paths: one quantization per pixel
+     * through {@link ome.util.PixelData#getPixelValueDirect(int)}.
+     */
+    private int[] legacyLoop(int activeChannels) throws Exception
+    {
+        int n = data.size();
+        int bytesPerPixel = data.bytesPerPixel();
+        int[] buf = new int[n];
+        for (int c = 0; c < activeChannels; c++)
+        {
+            QuantumStrategy qs =
+                renderer.getQuantumManager().getStrategyFor(c);
+            int shift = 16 - 8 * c;
+            for (int i = 0; i < n; i++)
+            {
+                int v = qs.quantize(data.getPixelValueDirect(i * bytesPerPixel));
+                buf[i] |= 0xFF000000 | v << shift;
+            }
+        }
+        return buf;
+    }
+
+    @Test(dataProvider = "loops", timeOut = 60000)
+    public void testLegacyLoop(String type, int bitSize, int channels)
+        throws Exception
+    {
+        init(type, bitSize, channels);
+        String tag = "testLegacyLoop." + type + "." + channels;
+        for (int i = 0; i < RUN_COUNT; i++)
+        {
+            StopWatch stopWatch = new LoggingStopWatch(tag);
+            legacyLoop(channels);
+            stopWatch.stop();
+        }
+    }
+
+    @Test(dataProvider = "loops", timeOut = 60000)
+    public void testSpecialisedLoop(String type, int bitSize, int channels)
+        throws Exception
+    {
+        init(type, bitSize, channels);
+        PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+        String tag = "testSpecialisedLoop." + type + "." + channels;
+        for (int i = 0; i < RUN_COUNT; i++)
+        {
+            StopWatch stopWatch = new LoggingStopWatch(tag);
+            renderer.renderAsPackedInt(def, pixelBuffer);
+            stopWatch.stop();
+        }
+    }
+
+    @Test(dataProvider = "types")
+    public void testSameValuesAsLegacyLoop(String type, int bitSize)
+        throws Exception
+    {
+        init(type, bitSize, 1);
+        RenderingModel greyscale = new RenderingModel();
+        greyscale.setValue(RenderingModel.VALUE_GREYSCALE);
+        renderer.setModel(greyscale);
+        int[] expected = legacyLoop(1);
+        int[] actual = renderer.renderAsPackedInt(
+                new PlaneDef(PlaneDef.XY, 0), pixelBuffer);
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+        {
+            // Greyscale packs the same value in each component.
+            assertEquals((expected[i] >> 16) & 0xFF, actual[i] & 0xFF);
+        }
+    }
+
+    /**
+     * Renders a single red channel through its colour table, changing the
+     * window in between, and checks the result against the legacy loop.
+     */
+    @Test(dataProvider = "types")
+    public void testColorTableFollowsSettings(String type, int bitSize)
+        throws Exception
+    {
+        init(type, bitSize, 1);
+        renderer.setRGBA(0, 255, 0, 0, 255);
+        PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+        QuantumStrategy qs = renderer.getQuantumManager().getStrategyFor(0);
+        double start = qs.getWindowStart();
+        double end = qs.getWindowEnd();
+        for (int i = 0; i < 2; i++)
+        {
+            int[] expected = legacyLoop(1);
+            int[] actual = renderer.renderAsPackedInt(def, pixelBuffer);
+            assertEquals(expected.length, actual.length);
+            for (int j = 0; j < expected.length; j++)
+            {
+                assertEquals(expected[j], actual[j]);
+            }
+            renderer.setChannelWindow(0, start, start + (end - start) / 2);
+        }
+    }
+}